@@ -0,0 +1,594 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Logstash plugin contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package jenkins.plugins.logstash;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.plugins.logstash.persistence.BuildData;
+import jenkins.plugins.logstash.persistence.IndexerDaoFactory;
+import jenkins.plugins.logstash.persistence.LogstashEvent;
+import jenkins.plugins.logstash.persistence.LogstashIndexerDao;
+import jenkins.plugins.logstash.persistence.PartialFailureException;
+import jenkins.plugins.logstash.persistence.PayloadEncoder;
+import jenkins.plugins.logstash.persistence.TimestampFormatter;
+
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Write-ahead journal of the console lines of one build. Every line is recorded
+ * before it is batched or queued, and acknowledged once it has been pushed, spooled
+ * or given up, so that the lines a restart of Jenkins caught in memory can be sent
+ * afterwards. The journal is deleted once the build's log is complete and all of it
+ * has been acknowledged.
+ * The file starts with the serialized build data, so the lines can be encoded again
+ * without loading the build, followed by append-only records: a line with its time,
+ * or the running count of acknowledged lines. A record torn by a crash ends the file.
+ * Lines are buffered and written once they are dispatched, see {@link #flush()}.
+ * Pushes may complete in any order; the count on disk only covers the lines up to the
+ * first one that is still on its way.
+ *
+ * @since 1.2.1
+ */
+final class BuildJournal {
+  private static final Logger LOG = Logger.getLogger(BuildJournal.class.getName());
+  static final String SUFFIX = ".journal";
+  private static final int MAGIC = 0x4c534a31;
+  private static final byte RECORD_LINE = 1;
+  private static final byte RECORD_ACK = 2;
+  private static final int REPLAY_BATCH_LINES = 100;
+  private static final long REPLAY_DELAY_MILLIS = 10000;
+  private static final long REPLAY_PAUSE_MILLIS = 100;
+  private static final long REPLAY_RETRY_MILLIS = 5000;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  // Another name is taken when the file is opened if a journal of the same build is left
+  File file;
+  private final String buildId;
+  private final byte[] data;
+  private final String jenkinsUrl;
+  private final String buildTimestamp;
+  private FileChannel channel;
+  private ByteBuffer buffer;
+  private long written;
+  private long acknowledged;
+  // Ranges acknowledged ahead of the first unacknowledged line, end offset by start offset
+  private final TreeMap<Long, Long> ahead = new TreeMap<Long, Long>();
+  private boolean closed;
+  private boolean failed;
+
+  /**
+   * Nothing is written until the first line is appended. The file is created anew and never
+   * replaces another one, such as a journal that a build of the same id left for replay.
+   *
+   * @param directory
+   *          The directory holding the journals of all builds
+   * @param buildId
+   *          Identifies the build, e.g. its job's full name and number
+   * @param data
+   *          The serialized build data
+   * @param jenkinsUrl
+   *          The host name of the Jenkins instance, nullable
+   * @param buildTimestamp
+   *          The formatted start time of the build, nullable
+   */
+  BuildJournal(File directory, String buildId, byte[] data, String jenkinsUrl, String buildTimestamp) {
+    this.file = new File(directory, toFileName(buildId));
+    this.buildId = buildId;
+    this.data = data;
+    this.jenkinsUrl = jenkinsUrl;
+    this.buildTimestamp = buildTimestamp;
+  }
+
+  static String toFileName(String buildId) {
+    return toFileName(buildId, 0);
+  }
+
+  /**
+   * @param attempt
+   *          Counts the names already taken, 0 for the first choice
+   */
+  static String toFileName(String buildId, int attempt) {
+    try {
+      // URL encoding never leaves a tilde, so the counter cannot collide with another build's name
+      return URLEncoder.encode(buildId, "UTF-8") + (attempt == 0 ? "" : "~" + attempt) + SUFFIX;
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Records a line before it is sent. The line is buffered until the next {@link #flush()}.
+   * A journal that cannot be written stops recording; the line is still sent.
+   *
+   * @param line
+   *          Message, not null
+   * @param timestamp
+   *          The time of the line
+   * @return The offset of the line in the journal, to acknowledge it by, or -1 if it was not recorded
+   */
+  synchronized long append(String line, long timestamp) {
+    if (failed || closed) {
+      return -1;
+    }
+
+    try {
+      if (channel == null) {
+        open();
+      }
+
+      byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+      ByteBuffer record = ByteBuffer.allocate(1 + 8 + 4 + bytes.length);
+      record.put(RECORD_LINE).putLong(timestamp).putInt(bytes.length).put(bytes);
+      write(record);
+      return written++;
+    } catch (IOException e) {
+      fail(e);
+      return -1;
+    }
+  }
+
+  /**
+   * Writes the buffered lines. Called before lines are handed on to be pushed.
+   */
+  synchronized void flush() {
+    if (failed || channel == null) {
+      return;
+    }
+
+    try {
+      writeBuffer();
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * Records that consecutive lines have been dealt with. The count on disk only moves
+   * once every line before them has been acknowledged as well.
+   *
+   * @param offset
+   *          The offset of the first line, as returned by {@link #append(String, long)}
+   * @param count
+   *          The number of lines
+   */
+  synchronized void acknowledge(long offset, int count) {
+    if (failed || channel == null || offset < 0 || count <= 0) {
+      return;
+    }
+
+    long end = Math.min(written, offset + count);
+    if (offset > acknowledged) {
+      Long previous = ahead.get(offset);
+      if (previous == null || previous < end) {
+        ahead.put(offset, end);
+      }
+      return;
+    }
+    if (end <= acknowledged) {
+      return;
+    }
+
+    acknowledged = end;
+    while (!ahead.isEmpty() && ahead.firstKey() <= acknowledged) {
+      acknowledged = Math.max(acknowledged, ahead.pollFirstEntry().getValue());
+    }
+    try {
+      if (closed && acknowledged == written) {
+        delete();
+        return;
+      }
+
+      ByteBuffer record = ByteBuffer.allocate(1 + 8);
+      record.put(RECORD_ACK).putLong(acknowledged);
+      write(record);
+      // Once per push, not per line
+      writeBuffer();
+    } catch (IOException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * Called once the build's log is complete. The journal is deleted as soon as
+   * all of its lines have been acknowledged.
+   */
+  synchronized void close() {
+    closed = true;
+    if (channel != null && acknowledged == written) {
+      delete();
+    } else {
+      flush();
+    }
+  }
+
+  synchronized long getWrittenCount() {
+    return written;
+  }
+
+  synchronized long getAcknowledgedCount() {
+    return acknowledged;
+  }
+
+  private void open() throws IOException {
+    File directory = file.getParentFile();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create journal directory " + directory);
+    }
+
+    for (int attempt = 1; channel == null; attempt++) {
+      try {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+      } catch (FileAlreadyExistsException e) {
+        file = new File(directory, toFileName(buildId, attempt));
+      }
+    }
+    buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    byte[] id = buildId.getBytes(StandardCharsets.UTF_8);
+    byte[] url = StringUtils.defaultString(jenkinsUrl).getBytes(StandardCharsets.UTF_8);
+    byte[] timestamp = StringUtils.defaultString(buildTimestamp).getBytes(StandardCharsets.UTF_8);
+    ByteBuffer header = ByteBuffer.allocate(4 + 4 + id.length + 4 + url.length + 4 + timestamp.length + 4 + data.length);
+    header.putInt(MAGIC);
+    header.putInt(id.length).put(id);
+    header.putInt(url.length).put(url);
+    header.putInt(timestamp.length).put(timestamp);
+    header.putInt(data.length).put(data);
+    write(header);
+  }
+
+  // Records are written whole and in order, so that a crash of Jenkins leaves at most the last one torn
+  private void write(ByteBuffer record) throws IOException {
+    record.flip();
+    if (record.remaining() > buffer.remaining()) {
+      writeBuffer();
+    }
+    if (record.remaining() <= buffer.remaining()) {
+      buffer.put(record);
+      return;
+    }
+
+    // Larger than the buffer
+    while (record.hasRemaining()) {
+      channel.write(record);
+    }
+  }
+
+  private void writeBuffer() throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  private void delete() {
+    closeQuietly(channel);
+    if (!file.delete()) {
+      LOG.log(Level.WARNING, "Could not delete the Logstash journal " + file);
+    }
+  }
+
+  private static void closeQuietly(FileChannel channel) {
+    if (channel == null) {
+      return;
+    }
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // Nothing more to write
+    }
+  }
+
+  private void fail(IOException e) {
+    failed = true;
+    LOG.log(Level.WARNING, "Could not write the Logstash journal " + file + ", it is no longer kept for " + buildId, e);
+    closeQuietly(channel);
+  }
+
+  /**
+   * @param directory
+   *          The directory holding the journals
+   * @return The journals left in the directory, oldest first
+   */
+  static List<File> list(File directory) {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SUFFIX);
+      }
+    });
+    if (files == null) {
+      return new ArrayList<File>();
+    }
+
+    List<File> result = new ArrayList<File>(Arrays.asList(files));
+    Collections.sort(result, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        long diff = a.lastModified() - b.lastModified();
+        return diff < 0 ? -1 : diff > 0 ? 1 : a.getName().compareTo(b.getName());
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Reads back a journal left by a previous run of Jenkins.
+   *
+   * @throws IOException
+   *           If the file cannot be read or is no journal
+   */
+  static Contents read(File file) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    try {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("Not a Logstash journal: " + file);
+      }
+      Contents contents = new Contents(readString(in), readString(in), readString(in), readBytes(in));
+
+      try {
+        while (true) {
+          byte type = in.readByte();
+          if (type == RECORD_LINE) {
+            long timestamp = in.readLong();
+            contents.lines.add(new Line(timestamp, readString(in)));
+          } else if (type == RECORD_ACK) {
+            contents.acknowledged = in.readLong();
+          } else {
+            // Garbage after a torn record
+            break;
+          }
+        }
+      } catch (EOFException e) {
+        // End of the journal, possibly in the middle of a torn record
+      }
+
+      return contents;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      throw new EOFException("Negative length");
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    return new String(readBytes(in), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Sends the unacknowledged lines of a journal in order, a batch at a time, recording
+   * each batch as acknowledged. The journal is deleted once all of it has been sent.
+   *
+   * @param pauseMillis
+   *          The pause between two batches, which keeps the replay from competing with running builds
+   * @return True if the whole journal was sent, false if the indexer failed and the rest is still due
+   */
+  static boolean replay(File file, LogstashIndexerDao dao, CircuitBreaker breaker, TimestampFormatter formatter, long pauseMillis)
+      throws IOException, InterruptedException {
+    return replay(file, dao, breaker, formatter, pauseMillis, false);
+  }
+
+  /**
+   * @param routed
+   *          True to push with the routing key of the build, for indexers that spread builds over several brokers or consumers
+   */
+  static boolean replay(File file, LogstashIndexerDao dao, CircuitBreaker breaker, TimestampFormatter formatter, long pauseMillis,
+      boolean routed) throws IOException, InterruptedException {
+    Contents contents = read(file);
+    String routingKey = routed ? BuildData.getRoutingKey(contents.data) : null;
+    PayloadEncoder encoder = new PayloadEncoder(contents.data, StringUtils.defaultIfEmpty(contents.jenkinsUrl, null),
+      StringUtils.defaultIfEmpty(contents.buildTimestamp, null), formatter);
+
+    long acknowledged = Math.max(0, contents.acknowledged);
+    FileChannel out = new FileOutputStream(file, true).getChannel();
+    try {
+      while (acknowledged < contents.lines.size()) {
+        if (!breaker.allowRequest(System.currentTimeMillis()) || dao.isBackedUp()) {
+          return false;
+        }
+
+        int end = (int) Math.min(contents.lines.size(), acknowledged + REPLAY_BATCH_LINES);
+        List<Line> batch = contents.lines.subList((int) acknowledged, end);
+        List<String> lines = new ArrayList<String>(batch.size());
+        for (Line line : batch) {
+          lines.add(line.text);
+        }
+        encoder.encode(lines, new Date(batch.get(0).timestamp));
+
+        try {
+          dao.push(new LogstashEvent(encoder.buffer(), 0, encoder.size(), batch.get(0).timestamp, routingKey));
+          breaker.onSuccess();
+        } catch (PartialFailureException e) {
+          // Rejected lines would be rejected again
+          breaker.onSuccess();
+        } catch (IOException e) {
+          breaker.onFailure(System.currentTimeMillis());
+          LOG.log(Level.FINE, "Could not replay the Logstash journal " + file + " to " + dao.getDescription(), e);
+          return false;
+        }
+
+        acknowledged = end;
+        ByteBuffer record = ByteBuffer.allocate(1 + 8);
+        record.put(RECORD_ACK).putLong(acknowledged);
+        record.flip();
+        while (record.hasRemaining()) {
+          out.write(record);
+        }
+
+        if (acknowledged < contents.lines.size()) {
+          Thread.sleep(pauseMillis);
+        }
+      }
+    } finally {
+      out.close();
+    }
+
+    if (!file.delete()) {
+      LOG.log(Level.WARNING, "Could not delete the Logstash journal " + file);
+    }
+    return true;
+  }
+
+  /**
+   * Replays the journals a previous run of Jenkins left behind on a background thread,
+   * one journal after the other, so that startup does not wait for the indexer.
+   * Journals created from now on belong to running builds and are left alone.
+   *
+   * @param directory
+   *          The directory holding the journals
+   */
+  static void startReplay(File directory) {
+    List<File> files = list(directory);
+    if (!files.isEmpty()) {
+      LOG.info("Logstash: replaying " + files.size() + " build journal(s) left by the last run.");
+      new Replay(files).start();
+    }
+  }
+
+  private static final class Replay extends Thread {
+    final List<File> files;
+
+    Replay(List<File> files) {
+      super("Logstash journal replay");
+      this.files = files;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      try {
+        Thread.sleep(REPLAY_DELAY_MILLIS);
+        for (File file : files) {
+          Boolean done = replayFile(file);
+          while (Boolean.FALSE.equals(done)) {
+            Thread.sleep(REPLAY_RETRY_MILLIS);
+            done = replayFile(file);
+          }
+          if (done == null) {
+            return;
+          }
+        }
+      } catch (InterruptedException e) {
+        // Jenkins is shutting down, the rest is replayed on the next start
+      }
+    }
+
+    /**
+     * @return True once the journal is done with, false to try again later, or null if the
+     *         indexer is not configured and nothing can be replayed
+     */
+    private Boolean replayFile(File file) throws InterruptedException {
+      LogstashInstallation.Descriptor descriptor = LogstashInstallation.getLogstashDescriptor();
+      if (descriptor == null) {
+        // Jenkins is not up yet
+        return false;
+      }
+      if (descriptor.type == null) {
+        LOG.info("Logstash: no indexer is configured, build journals are kept for later.");
+        return null;
+      }
+
+      try {
+        LogstashIndexerDao dao = IndexerDaoFactory.getInstance(descriptor.type, descriptor.host, descriptor.port, descriptor.key,
+          descriptor.username, descriptor.password, descriptor.getIndexerSettings());
+        CircuitBreaker breaker = CircuitBreaker.getInstance(dao, descriptor.getCircuitFailureThreshold(),
+          TimeUnit.SECONDS.toMillis(descriptor.getCircuitOpenSeconds()));
+        return replay(file, dao, breaker, TimestampFormatter.getInstance(descriptor.millisecondTimestamps), REPLAY_PAUSE_MILLIS,
+          descriptor.isRouted());
+      } catch (InstantiationException e) {
+        LOG.log(Level.WARNING, "Logstash: the indexer cannot be created, build journals are kept for later.", e);
+        return null;
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Logstash: could not replay the build journal " + file + ", skipping it.", e);
+        return true;
+      }
+    }
+  }
+
+  /**
+   * What a journal holds.
+   */
+  static final class Contents {
+    final String buildId;
+    final String jenkinsUrl;
+    final String buildTimestamp;
+    final byte[] data;
+    final List<Line> lines = new ArrayList<Line>();
+    long acknowledged;
+
+    Contents(String buildId, String jenkinsUrl, String buildTimestamp, byte[] data) {
+      this.buildId = buildId;
+      this.jenkinsUrl = jenkinsUrl;
+      this.buildTimestamp = buildTimestamp;
+      this.data = data;
+    }
+
+    List<Line> getUnacknowledged() {
+      return lines.subList((int) Math.min(lines.size(), Math.max(0, acknowledged)), lines.size());
+    }
+  }
+
+  static final class Line {
+    final long timestamp;
+    final String text;
+
+    Line(long timestamp, String text) {
+      this.timestamp = timestamp;
+      this.text = text;
+    }
+  }
+}
@@ -0,0 +1,135 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Logstash plugin contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package jenkins.plugins.logstash;
+
+import jenkins.plugins.logstash.persistence.LogstashIndexerDao;
+
+/**
+ * Circuit breaker shared by all the writers of one sink, so that running builds do
+ * not keep hammering an indexer that is down.
+ * While closed, every push goes through and consecutive failures are counted; at the
+ * threshold the breaker opens and turns pushes away. Once the open time is over, one
+ * push is let through as a probe (half-open): its success closes the breaker, its
+ * failure opens it again.
+ *
+ * @since 1.2.1
+ */
+final class CircuitBreaker {
+  static enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private static CircuitBreaker instance = null;
+
+  final LogstashIndexerDao dao;
+  final int failureThreshold;
+  final long openMillis;
+  private State state = State.CLOSED;
+  private int failures;
+  private long changedAt;
+
+  CircuitBreaker(LogstashIndexerDao dao, int failureThreshold, long openMillis) {
+    if (failureThreshold < 1) {
+      throw new IllegalArgumentException("failure threshold must be positive");
+    }
+    if (openMillis < 1) {
+      throw new IllegalArgumentException("open time must be positive");
+    }
+
+    this.dao = dao;
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openMillis;
+  }
+
+  /**
+   * Singleton accessor. The breaker is replaced whenever the indexer or the
+   * breaker configuration changes.
+   *
+   * @param dao
+   *          The indexer the breaker guards, not null
+   * @param failureThreshold
+   *          The number of consecutive failures that opens the breaker
+   * @param openMillis
+   *          How long the breaker stays open before it lets a probe through
+   * @return The breaker for the given sink, never null
+   */
+  static synchronized CircuitBreaker getInstance(LogstashIndexerDao dao, int failureThreshold, long openMillis) {
+    if (instance == null || instance.dao != dao || instance.failureThreshold != failureThreshold || instance.openMillis != openMillis) {
+      instance = new CircuitBreaker(dao, failureThreshold, openMillis);
+    }
+
+    return instance;
+  }
+
+  /**
+   * @param now
+   *          The current time in milliseconds
+   * @return True if the push may be sent; the caller must then report its outcome
+   */
+  synchronized boolean allowRequest(long now) {
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (now - changedAt < openMillis) {
+          return false;
+        }
+        break;
+      default:
+        // A probe that never reported back must not keep the breaker half-open for good
+        if (now - changedAt < openMillis) {
+          return false;
+        }
+    }
+
+    state = State.HALF_OPEN;
+    changedAt = now;
+    return true;
+  }
+
+  synchronized void onSuccess() {
+    state = State.CLOSED;
+    failures = 0;
+  }
+
+  /**
+   * @param now
+   *          The current time in milliseconds
+   */
+  synchronized void onFailure(long now) {
+    failures++;
+    if (state == State.HALF_OPEN || failures >= failureThreshold) {
+      state = State.OPEN;
+      changedAt = now;
+    }
+  }
+
+  synchronized State getState() {
+    return state;
+  }
+}
@@ -0,0 +1,549 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Logstash plugin contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package jenkins.plugins.logstash;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.plugins.logstash.persistence.LogstashEvent;
+import jenkins.plugins.logstash.persistence.LogstashIndexerDao;
+import jenkins.plugins.logstash.persistence.PartialFailureException;
+import jenkins.plugins.logstash.persistence.PendingEventsException;
+
+/**
+ * Keeps log data on disk while the indexer cannot take it, and sends it once the
+ * indexer is back, in the order it was spooled.
+ * The spool is a series of append-only segment files of equal size, each one mapped
+ * into memory, so appending is a memory copy rather than a system call. Every record
+ * carries a state byte that is flipped once it has been sent, which lets a restarted
+ * Jenkins pick up where it left off. A record also keeps the routing key of its
+ * data, if it has one. When the spool reaches its size limit, the oldest segment is
+ * discarded with whatever it still holds.
+ *
+ * @since 1.2.1
+ */
+class DiskSpool {
+  private static final Logger LOG = Logger.getLogger(DiskSpool.class.getName());
+  private static final String SUFFIX = ".seg";
+  private static final int MIN_SEGMENT_BYTES = 64 * 1024;
+  private static final int MAX_SEGMENT_BYTES = 16 * 1024 * 1024;
+  private static final int REPLAY_BATCH = 500;
+  private static final long POLL_INTERVAL_MILLIS = 500;
+
+  // Record layout: length, kind, state, timestamp, data. The length is written last and commits the record.
+  // A routed record starts its data with the length of the routing key and the key, both counted in the length.
+  private static final int HEADER_BYTES = 4 + 1 + 1 + 8;
+  private static final byte KIND_PAYLOAD = 1;
+  private static final byte KIND_EVENT = 2;
+  private static final byte KIND_ROUTED = 0x10;
+  private static final byte STATE_PENDING = 1;
+  private static final byte STATE_SENT = 2;
+
+  private static DiskSpool instance = null;
+
+  final File directory;
+  final long maxBytes;
+  final int segmentBytes;
+  private final LinkedList<Segment> segments = new LinkedList<Segment>();
+  private final AtomicLong dropped = new AtomicLong();
+  private long nextSequence;
+  private int pending;
+  private volatile Replay replay;
+
+  /**
+   * Opens the spool, picking up the records a previous instance left unsent.
+   *
+   * @param directory
+   *          The directory holding the segment files, created if missing
+   * @param maxBytes
+   *          The maximum disk space used by the segment files
+   */
+  DiskSpool(File directory, long maxBytes) throws IOException {
+    if (maxBytes < 2 * MIN_SEGMENT_BYTES) {
+      throw new IllegalArgumentException("spool size must be at least " + (2 * MIN_SEGMENT_BYTES) + " bytes");
+    }
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Could not create spool directory " + directory);
+    }
+
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    this.segmentBytes = (int) Math.max(MIN_SEGMENT_BYTES, Math.min(MAX_SEGMENT_BYTES, maxBytes / 4));
+    open();
+  }
+
+  /**
+   * Singleton accessor. The spool is replaced whenever its directory or size changes;
+   * the records of the old one stay on disk and are picked up again if it comes back.
+   *
+   * @param directory
+   *          The directory holding the segment files
+   * @param maxBytes
+   *          The maximum disk space used by the segment files
+   * @return The spool, never null
+   */
+  static synchronized DiskSpool getInstance(File directory, long maxBytes) throws IOException {
+    if (instance == null || !instance.directory.equals(directory) || instance.maxBytes != maxBytes) {
+      if (instance != null) {
+        instance.close();
+      }
+      instance = new DiskSpool(directory, maxBytes);
+    }
+
+    return instance;
+  }
+
+  private void open() throws IOException {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith(SUFFIX);
+      }
+    });
+    Arrays.sort(files);
+
+    for (File file : files) {
+      long sequence;
+      try {
+        sequence = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+      } catch (NumberFormatException e) {
+        continue;
+      }
+
+      Segment segment = Segment.map(file, sequence, (int) Math.min(Integer.MAX_VALUE, file.length()));
+      segment.scan();
+      if (segment.pending == 0) {
+        segment.delete();
+        continue;
+      }
+
+      segments.add(segment);
+      pending += segment.pending;
+      nextSequence = sequence + 1;
+    }
+  }
+
+  /**
+   * Appends a record, discarding the oldest segment if the spool is full.
+   *
+   * @param event
+   *          The serialized log data
+   * @param bulk
+   *          True to send the record with the other events of a bulk push, false to send it on its own
+   * @return False if the record could not be written and was dropped
+   */
+  synchronized boolean append(LogstashEvent event, boolean bulk) {
+    byte[] key = event.getRoutingKey() == null ? null : event.getRoutingKey().getBytes(StandardCharsets.UTF_8);
+    int length = key == null ? event.getLength() : 2 + key.length + event.getLength();
+    if (HEADER_BYTES + length > segmentBytes - 4 || (key != null && key.length > Short.MAX_VALUE)) {
+      dropped.incrementAndGet();
+      return false;
+    }
+
+    try {
+      Segment segment = segments.isEmpty() ? null : segments.getLast();
+      if (segment == null || !segment.fits(length)) {
+        if (segment != null) {
+          segment.buffer.force();
+        }
+        segment = addSegment();
+      }
+
+      segment.append(key, event, bulk ? KIND_EVENT : KIND_PAYLOAD);
+      pending++;
+      notifyAll();
+      return true;
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Could not write to the Logstash spool in " + directory, e);
+      dropped.incrementAndGet();
+      return false;
+    }
+  }
+
+  private Segment addSegment() throws IOException {
+    while (!segments.isEmpty() && (segments.size() + 1L) * segmentBytes > maxBytes) {
+      Segment oldest = segments.removeFirst();
+      pending -= oldest.pending;
+      dropped.addAndGet(oldest.pending);
+      oldest.delete();
+    }
+
+    long sequence = nextSequence++;
+    Segment segment = Segment.map(new File(directory, String.format("%016d%s", sequence, SUFFIX)), sequence, segmentBytes);
+    segments.add(segment);
+    return segment;
+  }
+
+  /**
+   * @param max
+   *          The maximum number of records to return
+   * @return The oldest unsent records in order, without removing them
+   */
+  synchronized List<Record> peek(int max) {
+    List<Record> result = new ArrayList<Record>();
+    for (Segment segment : segments) {
+      int offset = segment.readOffset;
+      while (result.size() < max && offset < segment.writeOffset) {
+        Record record = segment.read(offset);
+        if (record.pending) {
+          result.add(record);
+        }
+        offset = record.next;
+      }
+      if (result.size() >= max) {
+        break;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Marks records returned by {@link #peek(int)} as sent, in order. Segments that
+   * hold nothing unsent any more are deleted.
+   */
+  synchronized void acknowledge(List<Record> records) {
+    for (Record record : records) {
+      if (!segments.contains(record.segment) || !record.pending) {
+        // Evicted meanwhile
+        continue;
+      }
+      record.segment.markSent(record);
+      pending--;
+    }
+
+    while (!segments.isEmpty()) {
+      Segment first = segments.getFirst();
+      if (first.pending > 0 || (segments.size() == 1 && first.fits(0))) {
+        break;
+      }
+      segments.removeFirst();
+      first.delete();
+    }
+  }
+
+  synchronized boolean isEmpty() {
+    return pending == 0;
+  }
+
+  synchronized int getPendingCount() {
+    return pending;
+  }
+
+  /**
+   * @return The number of records dropped because they did not fit or were evicted
+   */
+  long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * Starts sending the spooled records to the given indexer on a background thread,
+   * or switches the running thread over to it.
+   *
+   * @param dao
+   *          The indexer to send to, not null
+   * @param breaker
+   *          Tells when the indexer is worth trying, not null
+   */
+  synchronized void startReplay(LogstashIndexerDao dao, CircuitBreaker breaker) {
+    if (replay != null && replay.dao == dao && replay.breaker == breaker) {
+      return;
+    }
+    if (replay != null) {
+      replay.running = false;
+    }
+
+    replay = new Replay(dao, breaker, "Logstash spool replay [" + dao.getDescription() + "]");
+    replay.start();
+  }
+
+  /**
+   * Sends one batch of spooled records if the indexer may be tried.
+   *
+   * @return True if records were sent, false if there were none, the indexer is backed up or sending failed
+   */
+  boolean replayOnce(LogstashIndexerDao dao, CircuitBreaker breaker) {
+    List<Record> records = peek(REPLAY_BATCH);
+    if (records.isEmpty() || !breaker.allowRequest(System.currentTimeMillis()) || dao.isBackedUp()) {
+      return false;
+    }
+
+    List<Record> sent = new ArrayList<Record>(records.size());
+    try {
+      int next = 0;
+      while (next < records.size()) {
+        Record record = records.get(next);
+        if (!record.bulk) {
+          dao.push(new LogstashEvent(record.data, record.timestamp, record.routingKey));
+          sent.add(record);
+          next++;
+          continue;
+        }
+
+        // Consecutive events go out as one bulk push
+        int end = next;
+        List<LogstashEvent> events = new ArrayList<LogstashEvent>();
+        while (end < records.size() && records.get(end).bulk) {
+          events.add(new LogstashEvent(records.get(end).data, records.get(end).timestamp, records.get(end).routingKey));
+          end++;
+        }
+        List<Record> pushed = records.subList(next, end);
+        try {
+          dao.pushAll(events);
+        } catch (PartialFailureException e) {
+          // Rejected events would be rejected again
+          LOG.log(Level.FINE, "Spooled events were rejected by " + dao.getDescription(), e);
+        } catch (PendingEventsException e) {
+          // Whatever is not pending has been indexed, wherever it was in the push
+          Set<LogstashEvent> unsent = Collections.newSetFromMap(new IdentityHashMap<LogstashEvent, Boolean>());
+          unsent.addAll(e.getPendingEvents());
+          for (int i = 0; i < events.size(); i++) {
+            if (!unsent.contains(events.get(i))) {
+              sent.add(pushed.get(i));
+            }
+          }
+          throw e;
+        }
+        sent.addAll(pushed);
+        next = end;
+      }
+
+      breaker.onSuccess();
+      return true;
+    } catch (IOException e) {
+      breaker.onFailure(System.currentTimeMillis());
+      LOG.log(Level.FINE, "Could not send spooled log data to " + dao.getDescription(), e);
+      return false;
+    } finally {
+      acknowledge(sent);
+    }
+  }
+
+  /**
+   * Stops the replay and flushes the mapped segments. Records stay on disk.
+   */
+  synchronized void close() {
+    if (replay != null) {
+      replay.running = false;
+      replay = null;
+    }
+    for (Segment segment : segments) {
+      segment.buffer.force();
+    }
+    notifyAll();
+  }
+
+  // Waits for new records or the next attempt
+  private synchronized void await() throws InterruptedException {
+    wait(POLL_INTERVAL_MILLIS);
+  }
+
+  /**
+   * A spooled record, as returned by {@link DiskSpool#peek(int)}.
+   */
+  static final class Record {
+    final Segment segment;
+    final int offset;
+    final int next;
+    final boolean bulk;
+    final boolean pending;
+    final long timestamp;
+    // Null for data without a key, and for records spooled before keys were kept
+    final String routingKey;
+    final byte[] data;
+
+    Record(Segment segment, int offset, int next, boolean bulk, boolean pending, long timestamp, String routingKey, byte[] data) {
+      this.segment = segment;
+      this.offset = offset;
+      this.next = next;
+      this.bulk = bulk;
+      this.pending = pending;
+      this.timestamp = timestamp;
+      this.routingKey = routingKey;
+      this.data = data;
+    }
+  }
+
+  /**
+   * One segment file. Only accessed under the lock of the spool.
+   */
+  static final class Segment {
+    final long sequence;
+    final File file;
+    final MappedByteBuffer buffer;
+    int readOffset;
+    int writeOffset;
+    int pending;
+
+    private Segment(long sequence, File file, MappedByteBuffer buffer) {
+      this.sequence = sequence;
+      this.file = file;
+      this.buffer = buffer;
+    }
+
+    static Segment map(File file, long sequence, int size) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        // The mapping stays valid once the channel is closed
+        return new Segment(sequence, file, raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size));
+      } finally {
+        raf.close();
+      }
+    }
+
+    /**
+     * Finds the end of the committed records and the first unsent one.
+     */
+    void scan() {
+      int offset = 0;
+      readOffset = -1;
+      while (offset + HEADER_BYTES <= buffer.capacity()) {
+        int length = buffer.getInt(offset);
+        if (length <= 0 || offset + HEADER_BYTES + length > buffer.capacity()) {
+          break;
+        }
+        if (buffer.get(offset + 5) == STATE_PENDING) {
+          pending++;
+          if (readOffset < 0) {
+            readOffset = offset;
+          }
+        }
+        offset += HEADER_BYTES + length;
+      }
+      writeOffset = offset;
+      if (readOffset < 0) {
+        readOffset = offset;
+      }
+    }
+
+    // Leaves room for the zero length that marks the end
+    boolean fits(int length) {
+      return writeOffset + HEADER_BYTES + length + 4 <= buffer.capacity();
+    }
+
+    /**
+     * @param key
+     *          The UTF-8 encoded routing key, nullable
+     */
+    void append(byte[] key, LogstashEvent event, byte kind) {
+      int offset = writeOffset;
+      ByteBuffer view = buffer.duplicate();
+      view.position(offset + HEADER_BYTES);
+      if (key != null) {
+        view.putShort((short) key.length);
+        view.put(key);
+      }
+      view.put(event.getBuffer(), event.getOffset(), event.getLength());
+      int length = view.position() - offset - HEADER_BYTES;
+
+      buffer.put(offset + 4, key == null ? kind : (byte) (kind | KIND_ROUTED));
+      buffer.put(offset + 5, STATE_PENDING);
+      buffer.putLong(offset + 6, event.getTimestamp());
+      buffer.putInt(offset + HEADER_BYTES + length, 0);
+      buffer.putInt(offset, length);
+      writeOffset = offset + HEADER_BYTES + length;
+      pending++;
+    }
+
+    Record read(int offset) {
+      int length = buffer.getInt(offset);
+      byte kind = buffer.get(offset + 4);
+      ByteBuffer view = buffer.duplicate();
+      view.position(offset + HEADER_BYTES);
+
+      String routingKey = null;
+      if ((kind & KIND_ROUTED) != 0) {
+        byte[] key = new byte[view.getShort()];
+        view.get(key);
+        routingKey = new String(key, StandardCharsets.UTF_8);
+      }
+      byte[] data = new byte[offset + HEADER_BYTES + length - view.position()];
+      view.get(data);
+      return new Record(this, offset, offset + HEADER_BYTES + length, (kind & ~KIND_ROUTED) == KIND_EVENT,
+        buffer.get(offset + 5) == STATE_PENDING, buffer.getLong(offset + 6), routingKey, data);
+    }
+
+    void markSent(Record record) {
+      buffer.put(record.offset + 5, STATE_SENT);
+      pending--;
+      if (record.offset == readOffset) {
+        readOffset = record.next;
+      }
+    }
+
+    void delete() {
+      // On Windows the file can only be deleted once the mapping has been garbage collected
+      if (!file.delete()) {
+        file.deleteOnExit();
+      }
+    }
+  }
+
+  private final class Replay extends Thread {
+    final LogstashIndexerDao dao;
+    final CircuitBreaker breaker;
+    volatile boolean running = true;
+
+    Replay(LogstashIndexerDao dao, CircuitBreaker breaker, String name) {
+      super(name);
+      this.dao = dao;
+      this.breaker = breaker;
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        try {
+          if (!replayOnce(dao, breaker)) {
+            await();
+          }
+        } catch (InterruptedException e) {
+          break;
+        } catch (RuntimeException e) {
+          // Keep replaying, the next batch may go through
+          LOG.log(Level.WARNING, "Unexpected failure while replaying spooled log data to " + dao.getDescription(), e);
+        }
+      }
+    }
+  }
+}
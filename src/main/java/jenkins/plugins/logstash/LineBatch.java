@@ -0,0 +1,111 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Logstash plugin contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.logstash;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Collects console lines so that many of them are sent as one Logstash payload.
+ * A batch is full once it reaches its line count or approximate byte size, and
+ * expires once its oldest line reaches the maximum age.
+ * Not thread-safe, callers synchronize on the batch.
+ *
+ * @since 1.2.1
+ */
+final class LineBatch {
+  // Quotes and separator around each line in the JSON message array
+  private static final int LINE_OVERHEAD = 3;
+
+  final int maxLines;
+  final int maxBytes;
+  final long maxAgeMillis;
+
+  private List<String> lines;
+  private int bytes;
+  private long startedAt;
+
+  LineBatch(int maxLines, int maxBytes, long maxAgeMillis) {
+    if (maxLines < 1 || maxBytes < 1 || maxAgeMillis < 1) {
+      throw new IllegalArgumentException("batch limits must be positive");
+    }
+
+    this.maxLines = maxLines;
+    this.maxBytes = maxBytes;
+    this.maxAgeMillis = maxAgeMillis;
+    this.lines = new ArrayList<String>();
+  }
+
+  /**
+   * Adds a line to the batch.
+   *
+   * @param line
+   *          Message, not null
+   * @param now
+   *          The current time in milliseconds
+   * @return The completed batch if this line filled it, otherwise null
+   */
+  List<String> add(String line, long now) {
+    if (lines.isEmpty()) {
+      startedAt = now;
+    }
+
+    lines.add(line);
+    bytes += line.length() + LINE_OVERHEAD;
+
+    if (lines.size() >= maxLines || bytes >= maxBytes) {
+      return drain();
+    }
+    return null;
+  }
+
+  /**
+   * @return The batch if its oldest line is at least maxAgeMillis old, otherwise null
+   */
+  List<String> drainIfExpired(long now) {
+    if (!lines.isEmpty() && now - startedAt >= maxAgeMillis) {
+      return drain();
+    }
+    return null;
+  }
+
+  /**
+   * @return The pending lines, or null if there are none
+   */
+  List<String> drain() {
+    if (lines.isEmpty()) {
+      return null;
+    }
+
+    List<String> result = lines;
+    lines = new ArrayList<String>(Math.min(result.size(), maxLines));
+    bytes = 0;
+    return result;
+  }
+
+  boolean isEmpty() {
+    return lines.isEmpty();
+  }
+}
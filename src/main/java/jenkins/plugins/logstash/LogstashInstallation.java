@@ -30,9 +30,14 @@ import hudson.tools.ToolProperty;
 import hudson.tools.ToolInstallation;
 import hudson.util.FormValidation;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import jenkins.model.Jenkins;
+import jenkins.plugins.logstash.persistence.IndexerSettings;
+import jenkins.plugins.logstash.persistence.IndexerSettings.LoadBalancing;
+import jenkins.plugins.logstash.persistence.IndexerSettings.RedisDataType;
+import jenkins.plugins.logstash.persistence.IndexerSettings.SyslogTransport;
 import jenkins.plugins.logstash.persistence.LogstashIndexerDao.IndexerType;
 import net.sf.json.JSONObject;
 
@@ -55,8 +60,52 @@ public class LogstashInstallation extends ToolInstallation {
     super(name, home, properties);
   }
 
+  /**
+   * What senders do while the indexer asks them to hold back, see {@link jenkins.plugins.logstash.persistence.LogstashIndexerDao#isBackedUp()}.
+   */
+  public static enum BackpressurePolicy {
+    /** Wait for the backlog to clear, for a while, then keep the data on disk or drop it. */
+    SLOW_DOWN,
+    /** Keep the data on disk, or drop it without a spool. */
+    SPOOL,
+    /** Drop the data. */
+    DROP
+  }
+
   public static Descriptor getLogstashDescriptor() {
-    return (Descriptor) Jenkins.getInstance().getDescriptor(LogstashInstallation.class);
+    Jenkins jenkins = Jenkins.getInstance();
+    if (jenkins == null) {
+      return null;
+    }
+
+    return (Descriptor) jenkins.getDescriptor(LogstashInstallation.class);
+  }
+
+  /**
+   * @return The value, or the default if it is unset or not positive.
+   */
+  static int positiveOrDefault(Integer value, int defaultValue) {
+    return (value == null || value.intValue() <= 0) ? defaultValue : value.intValue();
+  }
+
+  /**
+   * @return The value, or the default if it is unset or negative.
+   */
+  static int nonNegativeOrDefault(Integer value, int defaultValue) {
+    return (value == null || value.intValue() < 0) ? defaultValue : value.intValue();
+  }
+
+  /**
+   * @return The non-blank lines of the value, trimmed, never null
+   */
+  static List<String> splitLines(String value) {
+    List<String> lines = new ArrayList<String>();
+    for (String line : StringUtils.split(StringUtils.defaultString(value), "\r\n")) {
+      if (StringUtils.isNotBlank(line)) {
+        lines.add(line.trim());
+      }
+    }
+    return lines;
   }
 
   @Extension
@@ -68,6 +117,86 @@ public class LogstashInstallation extends ToolInstallation {
     public String password;
     public String key;
 
+    // Shipping
+    public boolean async;
+    public Integer queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    public Integer shipperThreads = DEFAULT_SHIPPER_THREADS;
+
+    // Batching
+    public boolean batch;
+    public Integer batchMaxLines = DEFAULT_BATCH_MAX_LINES;
+    public Integer batchMaxBytes = DEFAULT_BATCH_MAX_BYTES;
+    public Integer batchMaxAgeMillis = DEFAULT_BATCH_MAX_AGE_MILLIS;
+
+    // Retries
+    public Integer pushRetries = DEFAULT_PUSH_RETRIES;
+    public Integer retryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+    public Integer circuitFailureThreshold = DEFAULT_CIRCUIT_FAILURE_THRESHOLD;
+    public Integer circuitOpenSeconds = DEFAULT_CIRCUIT_OPEN_SECONDS;
+
+    // Spooling
+    public boolean spool;
+    public Integer spoolMaxMegabytes = DEFAULT_SPOOL_MAX_MEGABYTES;
+    public boolean journal;
+
+    // Formatting
+    public boolean millisecondTimestamps;
+
+    // Connections
+    public Integer maxConnectionsPerRoute = IndexerSettings.DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+    public Integer connectionIdleSeconds = IndexerSettings.DEFAULT_CONNECTION_IDLE_SECONDS;
+
+    // Bulk
+    public boolean bulk;
+    public Integer bulkMaxDocuments = IndexerSettings.DEFAULT_BULK_MAX_DOCUMENTS;
+    public Integer bulkMaxBytes = IndexerSettings.DEFAULT_BULK_MAX_BYTES;
+    public boolean asyncHttp;
+    public Integer maxInFlightRequests = IndexerSettings.DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+
+    // Nodes
+    public String additionalHosts;
+    public LoadBalancing loadBalancing = LoadBalancing.ROUND_ROBIN;
+    public Integer nodeRecheckSeconds = IndexerSettings.DEFAULT_NODE_RECHECK_SECONDS;
+
+    // Redis
+    public boolean redisBulk;
+    public Integer redisBatchSize = IndexerSettings.DEFAULT_REDIS_BATCH_SIZE;
+    public Integer redisMaxConnections = IndexerSettings.DEFAULT_REDIS_MAX_CONNECTIONS;
+    public Integer redisMaxIdle = IndexerSettings.DEFAULT_REDIS_MAX_IDLE;
+    public Integer redisTimeoutMillis = IndexerSettings.DEFAULT_REDIS_TIMEOUT_MILLIS;
+    public Integer redisMaxWaitMillis = IndexerSettings.DEFAULT_REDIS_MAX_WAIT_MILLIS;
+    public boolean redisTestOnBorrow;
+    public RedisDataType redisDataType = RedisDataType.LIST;
+    public Integer redisStreamMaxLength = IndexerSettings.DEFAULT_REDIS_STREAM_MAX_LENGTH;
+    public String redisShards;
+    public Integer redisHighWatermark = 0;
+    public Integer redisLowWatermark = 0;
+    public Integer redisDepthCheckMillis = IndexerSettings.DEFAULT_REDIS_DEPTH_CHECK_MILLIS;
+    public BackpressurePolicy redisBackpressure = BackpressurePolicy.SPOOL;
+
+    // RabbitMQ
+    public Integer rabbitMqChannels = IndexerSettings.DEFAULT_RABBIT_MQ_CHANNELS;
+    public Integer rabbitMqRecoveryMillis = IndexerSettings.DEFAULT_RABBIT_MQ_RECOVERY_MILLIS;
+    public boolean rabbitMqConfirms;
+    public String rabbitMqExchange;
+    public String rabbitMqExchangeType = IndexerSettings.DEFAULT_RABBIT_MQ_EXCHANGE_TYPE;
+
+    // Syslog
+    public SyslogTransport syslogTransport = SyslogTransport.UDP;
+    public boolean syslogBulk;
+    public Integer syslogMaxDatagramBytes = IndexerSettings.DEFAULT_SYSLOG_MAX_DATAGRAM_BYTES;
+
+    static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    static final int DEFAULT_SHIPPER_THREADS = 2;
+    static final int DEFAULT_BATCH_MAX_LINES = 500;
+    static final int DEFAULT_BATCH_MAX_BYTES = 256 * 1024;
+    static final int DEFAULT_BATCH_MAX_AGE_MILLIS = 200;
+    static final int DEFAULT_PUSH_RETRIES = 3;
+    static final int DEFAULT_RETRY_DELAY_MILLIS = 500;
+    static final int DEFAULT_CIRCUIT_FAILURE_THRESHOLD = 5;
+    static final int DEFAULT_CIRCUIT_OPEN_SECONDS = 30;
+    static final int DEFAULT_SPOOL_MAX_MEGABYTES = 256;
+
     public Descriptor() {
       super();
       load();
@@ -92,6 +221,106 @@ public class LogstashInstallation extends ToolInstallation {
       return Messages.DisplayName();
     }
 
+    public int getQueueCapacity() {
+      return positiveOrDefault(queueCapacity, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public int getShipperThreads() {
+      return positiveOrDefault(shipperThreads, DEFAULT_SHIPPER_THREADS);
+    }
+
+    public int getBatchMaxLines() {
+      return positiveOrDefault(batchMaxLines, DEFAULT_BATCH_MAX_LINES);
+    }
+
+    public int getBatchMaxBytes() {
+      return positiveOrDefault(batchMaxBytes, DEFAULT_BATCH_MAX_BYTES);
+    }
+
+    public int getBatchMaxAgeMillis() {
+      return positiveOrDefault(batchMaxAgeMillis, DEFAULT_BATCH_MAX_AGE_MILLIS);
+    }
+
+    public int getPushRetries() {
+      return nonNegativeOrDefault(pushRetries, DEFAULT_PUSH_RETRIES);
+    }
+
+    public int getRetryDelayMillis() {
+      return positiveOrDefault(retryDelayMillis, DEFAULT_RETRY_DELAY_MILLIS);
+    }
+
+    /**
+     * @return True if Redis pushes are spread over several brokers, and so need a routing key
+     */
+    public boolean isRedisSharded() {
+      return type == IndexerType.REDIS && StringUtils.isNotBlank(redisShards);
+    }
+
+    /**
+     * @return True if events are pushed with the routing key of their build, to spread builds over brokers or consumers
+     */
+    public boolean isRouted() {
+      return isRedisSharded() || (type == IndexerType.RABBIT_MQ && StringUtils.isNotBlank(rabbitMqExchange));
+    }
+
+    /**
+     * @return What senders do while Redis is backed up, or null if its depth is not checked
+     */
+    public BackpressurePolicy getBackpressurePolicy() {
+      if (type != IndexerType.REDIS || redisHighWatermark == null || redisHighWatermark.intValue() <= 0) {
+        return null;
+      }
+      return redisBackpressure == null ? BackpressurePolicy.SPOOL : redisBackpressure;
+    }
+
+    public int getCircuitFailureThreshold() {
+      return positiveOrDefault(circuitFailureThreshold, DEFAULT_CIRCUIT_FAILURE_THRESHOLD);
+    }
+
+    public int getCircuitOpenSeconds() {
+      return positiveOrDefault(circuitOpenSeconds, DEFAULT_CIRCUIT_OPEN_SECONDS);
+    }
+
+    public int getSpoolMaxMegabytes() {
+      return positiveOrDefault(spoolMaxMegabytes, DEFAULT_SPOOL_MAX_MEGABYTES);
+    }
+
+    /**
+     * @return The tuning options handed to the indexer, never null
+     */
+    public IndexerSettings getIndexerSettings() {
+      IndexerSettings settings = new IndexerSettings();
+      settings.setMaxConnectionsPerRoute(positiveOrDefault(maxConnectionsPerRoute, IndexerSettings.DEFAULT_MAX_CONNECTIONS_PER_ROUTE));
+      settings.setConnectionIdleSeconds(positiveOrDefault(connectionIdleSeconds, IndexerSettings.DEFAULT_CONNECTION_IDLE_SECONDS));
+      settings.setBulkMaxDocuments(positiveOrDefault(bulkMaxDocuments, IndexerSettings.DEFAULT_BULK_MAX_DOCUMENTS));
+      settings.setBulkMaxBytes(positiveOrDefault(bulkMaxBytes, IndexerSettings.DEFAULT_BULK_MAX_BYTES));
+      settings.setAsyncHttp(asyncHttp);
+      settings.setMaxInFlightRequests(positiveOrDefault(maxInFlightRequests, IndexerSettings.DEFAULT_MAX_IN_FLIGHT_REQUESTS));
+      settings.setAdditionalHosts(splitLines(additionalHosts));
+      settings.setLoadBalancing(loadBalancing == null ? LoadBalancing.ROUND_ROBIN : loadBalancing);
+      settings.setNodeRecheckSeconds(positiveOrDefault(nodeRecheckSeconds, IndexerSettings.DEFAULT_NODE_RECHECK_SECONDS));
+      settings.setRedisBatchSize(positiveOrDefault(redisBatchSize, IndexerSettings.DEFAULT_REDIS_BATCH_SIZE));
+      settings.setRedisMaxConnections(positiveOrDefault(redisMaxConnections, IndexerSettings.DEFAULT_REDIS_MAX_CONNECTIONS));
+      settings.setRedisMaxIdle(nonNegativeOrDefault(redisMaxIdle, IndexerSettings.DEFAULT_REDIS_MAX_IDLE));
+      settings.setRedisTimeoutMillis(positiveOrDefault(redisTimeoutMillis, IndexerSettings.DEFAULT_REDIS_TIMEOUT_MILLIS));
+      settings.setRedisMaxWaitMillis(positiveOrDefault(redisMaxWaitMillis, IndexerSettings.DEFAULT_REDIS_MAX_WAIT_MILLIS));
+      settings.setRedisTestOnBorrow(redisTestOnBorrow);
+      settings.setRedisDataType(redisDataType == null ? RedisDataType.LIST : redisDataType);
+      settings.setRedisStreamMaxLength(nonNegativeOrDefault(redisStreamMaxLength, IndexerSettings.DEFAULT_REDIS_STREAM_MAX_LENGTH));
+      settings.setRedisShards(splitLines(redisShards));
+      settings.setRedisHighWatermark(nonNegativeOrDefault(redisHighWatermark, 0));
+      settings.setRedisLowWatermark(nonNegativeOrDefault(redisLowWatermark, 0));
+      settings.setRedisDepthCheckMillis(positiveOrDefault(redisDepthCheckMillis, IndexerSettings.DEFAULT_REDIS_DEPTH_CHECK_MILLIS));
+      settings.setRabbitMqChannels(positiveOrDefault(rabbitMqChannels, IndexerSettings.DEFAULT_RABBIT_MQ_CHANNELS));
+      settings.setRabbitMqRecoveryMillis(positiveOrDefault(rabbitMqRecoveryMillis, IndexerSettings.DEFAULT_RABBIT_MQ_RECOVERY_MILLIS));
+      settings.setRabbitMqConfirms(rabbitMqConfirms);
+      settings.setRabbitMqExchange(StringUtils.trimToEmpty(rabbitMqExchange));
+      settings.setRabbitMqExchangeType(StringUtils.defaultIfBlank(StringUtils.trim(rabbitMqExchangeType), IndexerSettings.DEFAULT_RABBIT_MQ_EXCHANGE_TYPE));
+      settings.setSyslogTransport(syslogTransport == null ? SyslogTransport.UDP : syslogTransport);
+      settings.setSyslogMaxDatagramBytes(positiveOrDefault(syslogMaxDatagramBytes, IndexerSettings.DEFAULT_SYSLOG_MAX_DATAGRAM_BYTES));
+      return settings;
+    }
+
     /*
      * Form validation methods
      */
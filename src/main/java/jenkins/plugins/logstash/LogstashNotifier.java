@@ -67,7 +67,8 @@ public class LogstashNotifier extends Notifier {
 
   // Method to encapsulate calls for unit-testing
   LogstashWriter getLogStashWriter(AbstractBuild<?, ?> build, OutputStream errorStream) {
-    return new LogstashWriter(build, errorStream);
+    // The build log is read back from disk, the wrapper's writer journals and ships the build
+    return new LogstashWriter(build, errorStream, false);
   }
 
   public BuildStepMonitor getRequiredMonitorService() {
@@ -86,7 +86,12 @@ public class LogstashOutputStream extends LineTransformationOutputStream {
    */
   @Override
   public void close() throws IOException {
-    delegate.close();
-    super.close();
+    try {
+      delegate.close();
+      super.close();
+    } finally {
+      // The lines held back are sent and the journal released even if the console fails to close
+      logstash.close();
+    }
   }
 }
@@ -0,0 +1,206 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Logstash plugin contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.logstash;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.plugins.logstash.persistence.LogstashIndexerDao;
+
+/**
+ * Ships log lines to an indexer from dedicated background threads so that the
+ * build's logging thread never waits on network I/O.
+ * Each sink is split into lanes, each one a bounded queue drained by a single
+ * shipper thread. A writer is pinned to one lane, which keeps its lines in order.
+ * A replaced shipper keeps shipping for the writers it already has until they are released,
+ * so that a configuration change does not cut off the builds that are running.
+ *
+ * @since 1.2.1
+ */
+class LogstashShipper {
+  private static final Logger LOG = Logger.getLogger(LogstashShipper.class.getName());
+  private static final long POLL_INTERVAL_MILLIS = 500;
+
+  private static LogstashShipper instance = null;
+
+  final LogstashIndexerDao dao;
+  final int capacity;
+  private final Lane[] lanes;
+  private final AtomicInteger nextLane = new AtomicInteger();
+  private final AtomicInteger writers = new AtomicInteger();
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile boolean retired;
+
+  LogstashShipper(LogstashIndexerDao dao, int capacity, int threads) {
+    if (capacity < 1) {
+      throw new IllegalArgumentException("queue capacity must be positive");
+    }
+    if (threads < 1) {
+      throw new IllegalArgumentException("shipper thread count must be positive");
+    }
+
+    this.dao = dao;
+    this.capacity = capacity;
+    this.lanes = new Lane[threads];
+    for (int i = 0; i < threads; i++) {
+      lanes[i] = new Lane(capacity, "Logstash shipper [" + dao.getDescription() + "] #" + i);
+      lanes[i].start();
+    }
+  }
+
+  /**
+   * Singleton accessor. The shipper is replaced whenever the indexer or the
+   * queue configuration changes; the old one stops once its writers are released
+   * and its queues are drained.
+   *
+   * @param dao
+   *          The indexer the shipper threads push to, not null
+   * @param capacity
+   *          The maximum number of queued entries per lane
+   * @param threads
+   *          The number of lanes, each drained by its own thread
+   * @return The shipper for the given sink, never null
+   */
+  static synchronized LogstashShipper getInstance(LogstashIndexerDao dao, int capacity, int threads) {
+    if (instance == null || instance.dao != dao || instance.capacity != capacity || instance.lanes.length != threads) {
+      if (instance != null) {
+        instance.shutdown();
+      }
+      instance = new LogstashShipper(dao, capacity, threads);
+    }
+
+    return instance;
+  }
+
+  /**
+   * Attaches a new writer, which must call {@link #release()} once it has handed over its last lines.
+   *
+   * @return The lane a new writer should use for all of its lines.
+   */
+  int assignLane() {
+    writers.incrementAndGet();
+    return (nextLane.getAndIncrement() & Integer.MAX_VALUE) % lanes.length;
+  }
+
+  /**
+   * Queues lines for shipping without ever blocking the caller.
+   *
+   * @param journalOffset
+   *          The offset of the first line in the writer's journal, or -1 if they are not journaled
+   * @return False if the lane is full or the shipper is stopped and the lines were dropped,
+   *         see {@link #isRunning()} to tell them apart.
+   */
+  boolean offer(int lane, LogstashWriter writer, List<String> lines, long journalOffset) {
+    if (!isRunning()) {
+      return false;
+    }
+    if (lanes[lane].queue.offer(new Shipment(writer, lines, journalOffset))) {
+      return true;
+    }
+
+    dropped.incrementAndGet();
+    return false;
+  }
+
+  /**
+   * @return The number of entries dropped because a lane was full.
+   */
+  long getDroppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * Detaches a writer that has handed over its last lines.
+   */
+  void release() {
+    writers.decrementAndGet();
+  }
+
+  /**
+   * Stops the shipper once the writers attached to it are released. Shipper threads exit
+   * when it has stopped and their lane is empty.
+   */
+  void shutdown() {
+    retired = true;
+  }
+
+  /**
+   * @return False once the shipper has been shut down and all of its writers are released.
+   */
+  boolean isRunning() {
+    return !retired || writers.get() > 0;
+  }
+
+  private static final class Shipment {
+    final LogstashWriter writer;
+    final List<String> lines;
+    final long journalOffset;
+
+    Shipment(LogstashWriter writer, List<String> lines, long journalOffset) {
+      this.writer = writer;
+      this.lines = lines;
+      this.journalOffset = journalOffset;
+    }
+  }
+
+  private final class Lane extends Thread {
+    final BlockingQueue<Shipment> queue;
+
+    Lane(int capacity, String name) {
+      super(name);
+      this.queue = new ArrayBlockingQueue<Shipment>(capacity);
+      setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+      while (isRunning() || !queue.isEmpty()) {
+        Shipment shipment;
+        try {
+          shipment = queue.poll(POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          break;
+        }
+
+        if (shipment == null) {
+          continue;
+        }
+
+        try {
+          shipment.writer.send(shipment.lines, shipment.journalOffset);
+        } catch (RuntimeException e) {
+          // Keep the lane alive, a misbehaving payload must not stop shipping for every other build
+          LOG.log(Level.WARNING, "Unexpected failure while shipping log lines to " + dao.getDescription(), e);
+        }
+      }
+    }
+  }
+}
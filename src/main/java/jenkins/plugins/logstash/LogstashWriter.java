@@ -27,38 +27,98 @@ package jenkins.plugins.logstash;
 
 import hudson.model.AbstractBuild;
 import jenkins.model.Jenkins;
+import jenkins.plugins.logstash.LogstashInstallation.BackpressurePolicy;
 import jenkins.plugins.logstash.persistence.BuildData;
 import jenkins.plugins.logstash.persistence.IndexerDaoFactory;
+import jenkins.plugins.logstash.persistence.LogstashEvent;
 import jenkins.plugins.logstash.persistence.LogstashIndexerDao;
-import net.sf.json.JSONObject;
+import jenkins.plugins.logstash.persistence.LogstashIndexerDao.IndexerType;
+import jenkins.plugins.logstash.persistence.PartialFailureException;
+import jenkins.plugins.logstash.persistence.PendingEventsException;
+import jenkins.plugins.logstash.persistence.PayloadEncoder;
+import jenkins.plugins.logstash.persistence.TimestampFormatter;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A writer that wraps all Logstash DAOs.  Handles error reporting and per build connection state.
  * Each call to write (one line or multiple lines) sends a Logstash payload to the DAO.
- * If any write fails, writer will not attempt to send any further messages to logstash during this build.
+ * A failed push is retried with exponential backoff. Failures are also counted by a {@link CircuitBreaker}
+ * shared with the other builds; while it is open, lines are dropped without contacting the indexer,
+ * and shipping resumes on its own once the indexer is back. With a {@link DiskSpool}, lines that
+ * cannot be sent are kept on disk instead of being dropped, and sent later in order. With a
+ * {@link BuildJournal}, single lines are recorded before they are batched or queued, so that a
+ * restart of Jenkins does not lose them.
+ * When asynchronous shipping is enabled, single lines are handed to a {@link LogstashShipper} instead
+ * and pushed from its threads. When batching is enabled, single lines are first collected into a
+ * {@link LineBatch} and sent as one payload when the batch is full, expires, or the writer is closed.
+ * In bulk mode each line becomes an event of its own and the events are pushed together.
  *
  * @author Rusty Gerard
  * @author Liam Newman
  * @since 1.0.5
  */
 public class LogstashWriter {
+  static final String SPOOL_DIRECTORY = "logstash/spool";
+  static final String JOURNAL_DIRECTORY = "logstash/journal";
+  // How long a push waits for the indexer's backlog to clear under SLOW_DOWN, and how often it looks
+  static final long BACKPRESSURE_WAIT_MILLIS = 5000;
+  static final long BACKPRESSURE_POLL_MILLIS = 250;
 
   final OutputStream errorStream;
   final AbstractBuild<?, ?> build;
   final BuildData buildData;
   final String jenkinsUrl;
   final LogstashIndexerDao dao;
-  private boolean connectionBroken;
+  final LogstashShipper shipper;
+  final int lane;
+  final LineBatch batch;
+  final boolean bulk;
+  final CircuitBreaker breaker;
+  final RetryPolicy retryPolicy;
+  final DiskSpool spool;
+  final BuildJournal journal;
+  final String routingKey;
+  final BackpressurePolicy backpressure;
+  private volatile boolean connectionBroken;
+  // The journal offset of the first line in the batch, guarded by the batch
+  private long batchJournalOffset = -1;
+  // Set once a push has waited out a backlog of the indexer in vain, cleared when the backlog clears
+  private volatile boolean backedUp;
+  private boolean queueFullReported;
+  private boolean shipperStoppedReported;
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private volatile boolean partialFailureReported;
+  private final AtomicBoolean failureReported = new AtomicBoolean();
+  private ScheduledFuture<?> batchFlusher;
+  // Encoders not in use, guarded by itself. A push owns its encoder until the indexer has taken the events
+  private final Deque<PayloadEncoder> encoders = new ArrayDeque<PayloadEncoder>();
+  private PayloadEncoder template;
 
   public LogstashWriter(AbstractBuild<?, ?> build, OutputStream error) {
+    this(build, error, true);
+  }
+
+  /**
+   * @param streamed
+   *          false for a writer that only sends the log already on disk, it neither journals
+   *          the build nor attaches to the shipper, and need not be closed
+   */
+  LogstashWriter(AbstractBuild<?, ?> build, OutputStream error, boolean streamed) {
     this.errorStream = error != null ? error : System.err;
     this.build = build;
     this.dao = this.getDaoOrNull();
@@ -70,26 +130,93 @@ public class LogstashWriter {
       this.buildData = getBuildData();
     }
 
+    this.shipper = this.dao == null || !streamed ? null : getShipper();
+    this.lane = this.shipper == null ? 0 : this.shipper.assignLane();
+    this.batch = this.dao == null ? null : getLineBatch();
+    this.bulk = this.dao != null && isBulk();
+    this.breaker = this.dao == null ? null : getCircuitBreaker();
+    this.retryPolicy = this.dao == null ? null : getRetryPolicy();
+    this.spool = this.dao == null ? null : getSpool();
+    this.journal = this.dao == null || !streamed ? null : getJournal();
+    this.routingKey = this.dao == null ? null : getRoutingKey();
+    this.backpressure = this.dao == null ? null : getBackpressurePolicy();
   }
 
   /**
    * Sends a logstash payload for a single line to the indexer.
    * Call will be ignored if the line is empty or if the connection to the indexer is broken.
-   * If write fails, errors will logged to errorStream and connectionBroken will be set to true.
+   * If write fails after its retries and cannot be spooled, errors will be logged to errorStream and connectionBroken will be set to true.
+   * In asynchronous mode the line is only queued; if the queue is full the line is dropped.
+   * In batching mode the line is held back until its batch is sent.
    *
    * @param line
    *          Message, not null
    */
   public void write(String line) {
     if (!isConnectionBroken() && StringUtils.isNotEmpty(line)) {
-      this.write(Arrays.asList(line));
+      if (batch == null) {
+        dispatch(Arrays.asList(line), journal == null ? -1 : journal.append(line, System.currentTimeMillis()));
+        return;
+      }
+
+      List<String> lines;
+      long journalOffset;
+      synchronized (batch) {
+        scheduleBatchFlusher();
+        // Journaled under the batch lock, so that the lines of a batch follow each other in the journal
+        journalOffset = journal == null ? -1 : journal.append(line, System.currentTimeMillis());
+        if (batch.isEmpty()) {
+          batchJournalOffset = journalOffset;
+        }
+        lines = batch.add(line, System.currentTimeMillis());
+        journalOffset = batchJournalOffset;
+      }
+      // Pushed outside the batch lock, lines keep being batched while the indexer takes the payload
+      if (lines != null) {
+        dispatch(lines, journalOffset);
+      }
+    }
+  }
+
+  /**
+   * Sends any lines still held back in the batch and stops the periodic batch flush.
+   * The journal of the build is deleted once the lines still on their way have been sent.
+   * Called once the build's log is complete.
+   */
+  public void close() {
+    if (closed.getAndSet(true)) {
+      return;
+    }
+
+    if (batch != null) {
+      List<String> lines;
+      long journalOffset;
+      synchronized (batch) {
+        if (batchFlusher != null) {
+          batchFlusher.cancel(false);
+          batchFlusher = null;
+        }
+
+        lines = batch.drain();
+        journalOffset = batchJournalOffset;
+      }
+      if (lines != null && !isConnectionBroken()) {
+        dispatch(lines, journalOffset);
+      }
+    }
+
+    if (shipper != null) {
+      shipper.release();
+    }
+    if (journal != null) {
+      journal.close();
     }
   }
 
   /**
    * Sends a logstash payload containing log lines from the current build.
    * Call will be ignored if the connection to the indexer is broken.
-   * If write fails, errors will logged to errorStream and connectionBroken will be set to true.
+   * If write fails after its retries and cannot be spooled, errors will be logged to errorStream and connectionBroken will be set to true.
    *
    * @param maxLines
    *          Maximum number of lines to be written.  Negative numbers mean "all lines".
@@ -113,12 +240,16 @@ public class LogstashWriter {
         logLines = Arrays.asList(msg.split("\n"));
       }
 
-      write(logLines);
+      // The log is on disk already, no need to journal it
+      write(logLines, -1);
     }
   }
 
   /**
-   * @return True if errors have occurred during initialization or write.
+   * @return True if errors have occurred during initialization or while reading the log, or if
+   *         log data was given up after its retries without being spooled. Failed pushes that
+   *         are retried, spooled or dropped while the circuit is open do not break the connection,
+   *         see {@link CircuitBreaker}.
    */
   public boolean isConnectionBroken() {
     return connectionBroken || build == null || dao == null || buildData == null;
@@ -127,7 +258,7 @@ public class LogstashWriter {
   // Method to encapsulate calls for unit-testing
   LogstashIndexerDao getDao() throws InstantiationException {
     LogstashInstallation.Descriptor descriptor = LogstashInstallation.getLogstashDescriptor();
-    return IndexerDaoFactory.getInstance(descriptor.type, descriptor.host, descriptor.port, descriptor.key, descriptor.username, descriptor.password);
+    return IndexerDaoFactory.getInstance(descriptor.type, descriptor.host, descriptor.port, descriptor.key, descriptor.username, descriptor.password, descriptor.getIndexerSettings());
   }
 
   BuildData getBuildData() {
@@ -138,21 +269,457 @@ public class LogstashWriter {
     return Jenkins.getInstance().getRootUrl();
   }
 
-  /**
-   * Write a list of lines to the indexer as one Logstash payload.
-   */
-  private void write(List<String> lines) {
-    JSONObject payload = dao.buildPayload(buildData, jenkinsUrl, lines);
+  LogstashShipper getShipper() {
+    LogstashInstallation.Descriptor descriptor = LogstashInstallation.getLogstashDescriptor();
+    if (descriptor == null || !descriptor.async) {
+      return null;
+    }
+
+    return LogstashShipper.getInstance(dao, descriptor.getQueueCapacity(), descriptor.getShipperThreads());
+  }
+
+  LineBatch getLineBatch() {
+    LogstashInstallation.Descriptor descriptor = LogstashInstallation.getLogstashDescriptor();
+    if (descriptor == null || !descriptor.batch) {
+      return null;
+    }
+
+    return new LineBatch(descriptor.getBatchMaxLines(), descriptor.getBatchMaxBytes(), descriptor.getBatchMaxAgeMillis());
+  }
+
+  boolean isBulk() {
+    LogstashInstallation.Descriptor descriptor = LogstashInstallation.getLogstashDescriptor();
+    if (descriptor == null || !(descriptor.bulk || descriptor.redisBulk || descriptor.rabbitMqConfirms || descriptor.syslogBulk)) {
+      return false;
+    }
+
+    // Confirmed RabbitMQ pushes are reported through the callback of the bulk push
+    IndexerType type = dao.getIndexerType();
+    return (descriptor.bulk && type == IndexerType.ELASTICSEARCH) || (descriptor.redisBulk && type == IndexerType.REDIS)
+      || (descriptor.rabbitMqConfirms && type == IndexerType.RABBIT_MQ) || (descriptor.syslogBulk && type == IndexerType.SYSLOG);
+  }
+
+  CircuitBreaker getCircuitBreaker() {
+    LogstashInstallation.Descriptor descriptor = LogstashInstallation.getLogstashDescriptor();
+    int failureThreshold = descriptor == null ? LogstashInstallation.Descriptor.DEFAULT_CIRCUIT_FAILURE_THRESHOLD : descriptor.getCircuitFailureThreshold();
+    int openSeconds = descriptor == null ? LogstashInstallation.Descriptor.DEFAULT_CIRCUIT_OPEN_SECONDS : descriptor.getCircuitOpenSeconds();
+    return CircuitBreaker.getInstance(dao, failureThreshold, TimeUnit.SECONDS.toMillis(openSeconds));
+  }
+
+  RetryPolicy getRetryPolicy() {
+    LogstashInstallation.Descriptor descriptor = LogstashInstallation.getLogstashDescriptor();
+    if (descriptor == null) {
+      return new RetryPolicy(LogstashInstallation.Descriptor.DEFAULT_PUSH_RETRIES, LogstashInstallation.Descriptor.DEFAULT_RETRY_DELAY_MILLIS);
+    }
+
+    return new RetryPolicy(descriptor.getPushRetries(), descriptor.getRetryDelayMillis());
+  }
+
+  DiskSpool getSpool() {
+    LogstashInstallation.Descriptor descriptor = LogstashInstallation.getLogstashDescriptor();
+    if (descriptor == null || !descriptor.spool) {
+      return null;
+    }
+
     try {
-      dao.push(payload.toString());
+      DiskSpool result = DiskSpool.getInstance(new File(Jenkins.getInstance().getRootDir(), SPOOL_DIRECTORY),
+        descriptor.getSpoolMaxMegabytes() * 1024L * 1024L);
+      result.startReplay(dao, breaker);
+      return result;
     } catch (IOException e) {
-      String msg = "[logstash-plugin]: Failed to send log data to " + dao.getIndexerType() + ":" + dao.getDescription() + ".\n" +
-        "[logstash-plugin]: No Further logs will be sent to " + dao.getDescription() + ".\n" +
+      String msg = "[logstash-plugin]: Unable to open the spool, log data will be dropped while " + dao.getDescription() + " is unavailable.\n" +
         ExceptionUtils.getStackTrace(e);
-      logErrorMessage(msg);
+      logWarningMessage(msg);
+      return null;
+    }
+  }
+
+  BuildJournal getJournal() {
+    LogstashInstallation.Descriptor descriptor = LogstashInstallation.getLogstashDescriptor();
+    if (descriptor == null || !descriptor.journal || build == null || buildData == null) {
+      return null;
+    }
+
+    String buildId = build.getParent().getFullName() + "#" + build.getNumber();
+    return new BuildJournal(new File(Jenkins.getInstance().getRootDir(), JOURNAL_DIRECTORY), buildId,
+      buildData.toJsonBytes(), jenkinsUrl, buildData.getTimestamp());
+  }
+
+  /**
+   * @return The key that keeps the lines of this build on one broker, or null if the indexer does not need one
+   */
+  String getRoutingKey() {
+    LogstashInstallation.Descriptor descriptor = LogstashInstallation.getLogstashDescriptor();
+    if (descriptor == null || !descriptor.isRouted() || buildData == null) {
+      return null;
+    }
+    return buildData.getRoutingKey();
+  }
+
+  /**
+   * @return What to do while the indexer is backed up, or null if it is not checked
+   */
+  BackpressurePolicy getBackpressurePolicy() {
+    LogstashInstallation.Descriptor descriptor = LogstashInstallation.getLogstashDescriptor();
+    return descriptor == null ? null : descriptor.getBackpressurePolicy();
+  }
+
+  TimestampFormatter getTimestampFormatter() {
+    LogstashInstallation.Descriptor descriptor = LogstashInstallation.getLogstashDescriptor();
+    return TimestampFormatter.getInstance(descriptor != null && descriptor.millisecondTimestamps);
+  }
+
+  /**
+   * Pushes lines handed over by the {@link LogstashShipper}. Runs on a shipper thread.
+   *
+   * @param journalOffset
+   *          The offset of the first line in the journal, or -1 if the lines are not journaled
+   */
+  void send(List<String> lines, long journalOffset) {
+    if (!isConnectionBroken()) {
+      write(lines, journalOffset);
+    } else {
+      acknowledge(journalOffset, lines.size());
+    }
+  }
+
+  /**
+   * The build data is serialized once per writer, on first use. Pushes that overlap, such
+   * as those of the shipper and the batch flusher, each get an encoder of their own.
+   */
+  private PayloadEncoder takeEncoder() {
+    synchronized (encoders) {
+      PayloadEncoder result = encoders.poll();
+      if (result != null) {
+        return result;
+      }
+      if (template == null) {
+        template = new PayloadEncoder(buildData, jenkinsUrl, getTimestampFormatter());
+        return template;
+      }
+    }
+    return new PayloadEncoder(template);
+  }
+
+  private void releaseEncoder(PayloadEncoder encoder) {
+    synchronized (encoders) {
+      encoders.push(encoder);
+    }
+  }
+
+  /**
+   * Send lines as one payload, either right away or through the shipper.
+   * The journal is written first, so that the lines are on disk before they are on their way.
+   *
+   * @param journalOffset
+   *          The offset of the first line in the journal, or -1 if the lines are not journaled
+   */
+  private void dispatch(List<String> lines, long journalOffset) {
+    if (journalOffset >= 0) {
+      journal.flush();
+    }
+
+    if (shipper == null) {
+      write(lines, journalOffset);
+    } else if (!shipper.offer(lane, this, lines, journalOffset)) {
+      if (spool != null) {
+        spoolLines(lines);
+      } else if (!shipper.isRunning()) {
+        reportShipperStopped();
+      } else {
+        reportQueueFull();
+      }
+      acknowledge(journalOffset, lines.size());
+    }
+  }
+
+  /**
+   * Sends batches that have been waiting for longer than their maximum age, so that
+   * a build going quiet does not hold its last lines back. Caller holds the batch lock.
+   */
+  private void scheduleBatchFlusher() {
+    if (batchFlusher != null) {
+      return;
+    }
+
+    // The flush may push and wait out retries, see PushScheduler
+    batchFlusher = PushScheduler.get().scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        List<String> lines;
+        long journalOffset;
+        synchronized (batch) {
+          lines = batch.drainIfExpired(System.currentTimeMillis());
+          journalOffset = batchJournalOffset;
+        }
+        if (lines != null && !isConnectionBroken()) {
+          dispatch(lines, journalOffset);
+        }
+      }
+    }, batch.maxAgeMillis, batch.maxAgeMillis, TimeUnit.MILLISECONDS);
+  }
+
+  // Method to encapsulate calls for unit-testing
+  void pause(long millis) throws InterruptedException {
+    Thread.sleep(millis);
+  }
+
+  /**
+   * Write a list of lines to the indexer as one Logstash payload, or in bulk mode as one event per line.
+   * While the circuit breaker is open, lines are spooled if there is a spool and dropped otherwise.
+   * While the spool holds data, lines are spooled behind it to keep them in order.
+   * While the indexer is backed up, lines are held back according to the backpressure policy.
+   *
+   * @param journalOffset
+   *          The offset of the first line in the journal, to acknowledge the lines once they are
+   *          dealt with, or -1 if they are not journaled
+   */
+  private void write(List<String> lines, long journalOffset) {
+    try {
+      boolean spoolFirst = spool != null && !spool.isEmpty();
+      if (!spoolFirst && !breaker.allowRequest(System.currentTimeMillis())) {
+        reportUnavailable(spool != null);
+        if (spool == null) {
+          return;
+        }
+        spoolFirst = true;
+      }
+      if (!spoolFirst && backpressure != null && isBackedUp()) {
+        boolean spooled = spool != null && backpressure != BackpressurePolicy.DROP;
+        reportBackedUp(spooled);
+        if (!spooled) {
+          return;
+        }
+        spoolFirst = true;
+      }
+
+      // The events are views of the encoder's buffer, it goes back to the pool once they are taken
+      PayloadEncoder payload = takeEncoder();
+      try {
+        if (bulk) {
+          List<LogstashEvent> events = encodeEvents(payload, lines);
+          if (spoolFirst) {
+            spool(events);
+          } else {
+            // Acknowledged by the push once it is done
+            BulkPush push = new BulkPush(events, journalOffset, lines.size());
+            journalOffset = -1;
+            push.run();
+          }
+          return;
+        }
+
+        Date now = new Date();
+        payload.encode(lines, now);
+        // Keeps its timestamp through the retries, the spool and the indexer
+        LogstashEvent event = new LogstashEvent(payload.buffer(), 0, payload.size(), now.getTime(), routingKey);
+        if (spoolFirst) {
+          spool(Collections.singletonList(event));
+          return;
+        }
+
+        for (int attempt = 0; ; attempt++) {
+          try {
+            dao.push(event);
+            pushSucceeded();
+            return;
+          } catch (IOException e) {
+            long delay = pushFailed(e, attempt);
+            if (delay < 0) {
+              if (!(e instanceof PartialFailureException)) {
+                giveUp(e, Collections.singletonList(event));
+              }
+              return;
+            }
+
+            try {
+              pause(delay);
+            } catch (InterruptedException ie) {
+              Thread.currentThread().interrupt();
+              giveUp(e, Collections.singletonList(event));
+              return;
+            }
+            if (!breaker.allowRequest(System.currentTimeMillis())) {
+              giveUp(e, Collections.singletonList(event));
+              return;
+            }
+          }
+        }
+      } finally {
+        releaseEncoder(payload);
+      }
+    } finally {
+      acknowledge(journalOffset, lines.size());
+    }
+  }
+
+  /**
+   * Under SLOW_DOWN, waits a while for the backlog of the indexer to clear, once per
+   * episode: while the indexer stays backed up after that, lines are held back right away.
+   *
+   * @return True if the indexer is still backed up
+   */
+  private boolean isBackedUp() {
+    if (!dao.isBackedUp()) {
+      backedUp = false;
+      return false;
+    }
+    if (backpressure != BackpressurePolicy.SLOW_DOWN || backedUp) {
+      return true;
+    }
+
+    try {
+      for (long waited = 0; waited < BACKPRESSURE_WAIT_MILLIS; waited += BACKPRESSURE_POLL_MILLIS) {
+        pause(BACKPRESSURE_POLL_MILLIS);
+        if (!dao.isBackedUp()) {
+          return false;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    backedUp = true;
+    return true;
+  }
+
+  /**
+   * Encodes one event per line, one after the other in the encoder's buffer.
+   * Caller owns the encoder.
+   */
+  private List<LogstashEvent> encodeEvents(PayloadEncoder payload, List<String> lines) {
+    Date now = new Date();
+    int[] ends = new int[lines.size()];
+    for (int i = 0; i < ends.length; i++) {
+      if (i == 0) {
+        payload.encode(Collections.singletonList(lines.get(i)), now);
+      } else {
+        payload.encodeNext(Collections.singletonList(lines.get(i)), now);
+      }
+      ends[i] = payload.size();
+    }
+
+    List<LogstashEvent> events = new ArrayList<LogstashEvent>(ends.length);
+    int start = 0;
+    for (int end : ends) {
+      events.add(new LogstashEvent(payload.buffer(), start, end - start, now.getTime(), routingKey));
+      start = end;
+    }
+    return events;
+  }
+
+  /**
+   * Encodes lines straight into the spool, for lines the shipper had no room for.
+   */
+  private void spoolLines(List<String> lines) {
+    PayloadEncoder payload = takeEncoder();
+    try {
+      if (bulk) {
+        spool(encodeEvents(payload, lines));
+      } else {
+        Date now = new Date();
+        payload.encode(lines, now);
+        spool(Collections.singletonList(new LogstashEvent(payload.buffer(), 0, payload.size(), now.getTime(), routingKey)));
+      }
+    } finally {
+      releaseEncoder(payload);
     }
   }
 
+  /**
+   * @return True if all the events were spooled
+   */
+  private boolean spool(List<LogstashEvent> events) {
+    boolean result = true;
+    for (LogstashEvent event : events) {
+      result &= spool.append(event, bulk);
+    }
+    return result;
+  }
+
+  private void acknowledge(long journalOffset, int count) {
+    if (journalOffset >= 0) {
+      journal.acknowledge(journalOffset, count);
+    }
+  }
+
+  private void giveUp(IOException e, List<LogstashEvent> events) {
+    boolean spooled = spool != null && spool(events);
+    if (!spooled) {
+      // Log data is lost, the build is failed if the notifier is told to
+      connectionBroken = true;
+    }
+    reportPushFailure(e, spooled);
+  }
+
+  private void pushSucceeded() {
+    breaker.onSuccess();
+    if (failureReported.compareAndSet(true, false)) {
+      logWarningMessage("[logstash-plugin]: " + dao.getDescription() + " is available again, log data is being sent.\n");
+    }
+  }
+
+  /**
+   * Records a failed push with the circuit breaker.
+   *
+   * @param attempt
+   *          The attempt that failed, counting from 0
+   * @return The delay before the push is sent again, or -1 if it is given up. Partial failures
+   *         have been reported, the caller deals with the others.
+   */
+  private long pushFailed(IOException e, int attempt) {
+    if (e instanceof PartialFailureException) {
+      // The indexer is up, it only refused some of the events
+      pushSucceeded();
+      reportPartialFailure((PartialFailureException) e);
+      return -1;
+    }
+
+    breaker.onFailure(System.currentTimeMillis());
+    if (attempt >= retryPolicy.maxRetries || breaker.getState() != CircuitBreaker.State.CLOSED) {
+      return -1;
+    }
+    return retryPolicy.getDelayMillis(attempt);
+  }
+
+  /**
+   * Tell the build once per outage that log data is being dropped or kept on disk.
+   */
+  private void reportPushFailure(IOException e, boolean spooled) {
+    if (!failureReported.compareAndSet(false, true)) {
+      return;
+    }
+
+    String msg = "[logstash-plugin]: Failed to send log data to " + dao.getIndexerType() + ":" + dao.getDescription() + ".\n" +
+      (spooled ? getOutageMessage(true) : "[logstash-plugin]: No Further logs will be sent to " + dao.getDescription() + ".\n") +
+      ExceptionUtils.getStackTrace(e);
+    logWarningMessage(msg);
+  }
+
+  private void reportUnavailable(boolean spooled) {
+    if (!failureReported.compareAndSet(false, true)) {
+      return;
+    }
+
+    String msg = "[logstash-plugin]: " + dao.getIndexerType() + ":" + dao.getDescription() + " is unavailable.\n" +
+      getOutageMessage(spooled);
+    logWarningMessage(msg);
+  }
+
+  private void reportBackedUp(boolean spooled) {
+    if (!failureReported.compareAndSet(false, true)) {
+      return;
+    }
+
+    String msg = "[logstash-plugin]: " + dao.getIndexerType() + ":" + dao.getDescription() + " is backed up, its consumers fall behind.\n" +
+      getOutageMessage(spooled);
+    logWarningMessage(msg);
+  }
+
+  private String getOutageMessage(boolean spooled) {
+    return "[logstash-plugin]: Log data will be " + (spooled ? "kept on disk" : "dropped") + " until " + dao.getDescription() +
+      " is available again.\n";
+  }
+
   /**
    * Construct a valid indexerDao or return null.
    * Writes errors to errorStream if dao constructor fails.
@@ -171,6 +738,134 @@ public class LogstashWriter {
     return null;
   }
 
+  /**
+   * Tell the build once that lines are being dropped, without breaking the connection.
+   */
+  private void reportQueueFull() {
+    if (queueFullReported) {
+      return;
+    }
+    queueFullReported = true;
+
+    String msg = "[logstash-plugin]: Shipping queue for " + dao.getDescription() + " is full, some log lines will not be sent.\n";
+    logWarningMessage(msg);
+  }
+
+  /**
+   * Tell the build once that its lines are dropped because the shipper is gone, unlike a full queue this lasts.
+   */
+  private void reportShipperStopped() {
+    if (shipperStoppedReported) {
+      return;
+    }
+    shipperStoppedReported = true;
+
+    String msg = "[logstash-plugin]: Shipping to " + dao.getDescription() + " has stopped, further log lines will not be sent.\n";
+    logWarningMessage(msg);
+  }
+
+  /**
+   * Tell the build once that the indexer rejects some events; the others are still sent.
+   */
+  private void reportPartialFailure(PartialFailureException e) {
+    if (partialFailureReported) {
+      return;
+    }
+    partialFailureReported = true;
+
+    String msg = "[logstash-plugin]: " + e.getMessage() + "\n" +
+      "[logstash-plugin]: Further rejected log lines will not be reported.\n";
+    logWarningMessage(msg);
+  }
+
+  /**
+   * Write message to errorStream without breaking the connection.
+   */
+  private void logWarningMessage(String msg) {
+    try {
+      errorStream.write(msg.getBytes());
+      errorStream.flush();
+    } catch (IOException ex) {
+      // This should never happen, but if it does we just have to let it go.
+      ex.printStackTrace();
+    }
+  }
+
+  /**
+   * One bulk push. Retries are scheduled on the {@link PushScheduler}, so that the thread
+   * that wrote the lines does not wait out the backoff, and no thread of the Jenkins timer
+   * waits for the indexer to take the push.
+   * Once part of the events have been indexed, only the pending ones are sent again.
+   */
+  private final class BulkPush implements Runnable {
+    final long journalOffset;
+    final int journaled;
+    // Attempts of one push never overlap
+    private List<LogstashEvent> events;
+    private boolean copied;
+    private int attempt;
+
+    /**
+     * @param journalOffset
+     *          The offset of the first line in the journal, or -1 if the lines are not journaled
+     * @param journaled
+     *          The number of lines the events were encoded from
+     */
+    BulkPush(List<LogstashEvent> events, long journalOffset, int journaled) {
+      this.events = events;
+      this.journalOffset = journalOffset;
+      this.journaled = journaled;
+    }
+
+    @Override
+    public void run() {
+      try {
+        dao.pushAll(events);
+      } catch (IOException e) {
+        failed(e);
+        return;
+      }
+      completed();
+    }
+
+    private void completed() {
+      pushSucceeded();
+      acknowledge(journalOffset, journaled);
+    }
+
+    private void failed(IOException e) {
+      final IOException failure = e;
+      if (e instanceof PendingEventsException) {
+        events = ((PendingEventsException) e).getPendingEvents();
+      }
+      long delay = pushFailed(e, attempt++);
+      if (delay < 0) {
+        if (!(e instanceof PartialFailureException)) {
+          giveUp(e, events);
+        }
+        acknowledge(journalOffset, journaled);
+        return;
+      }
+
+      // The first attempt sends views of the encoder's buffer, which the retry outlives
+      if (!copied) {
+        events = LogstashEvent.copyAll(events);
+        copied = true;
+      }
+      PushScheduler.get().schedule(new Runnable() {
+        @Override
+        public void run() {
+          if (breaker.allowRequest(System.currentTimeMillis())) {
+            BulkPush.this.run();
+          } else {
+            giveUp(failure, events);
+            acknowledge(journalOffset, journaled);
+          }
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
   /**
    * Write error message to errorStream and set connectionBroken to true.
    */
@@ -25,12 +25,16 @@ package jenkins.plugins.logstash;
 
 import hudson.Plugin;
 
+import java.io.File;
 import java.util.logging.Logger;
 
+import jenkins.model.Jenkins;
+
 public class PluginImpl extends Plugin {
   private final static Logger LOG = Logger.getLogger(PluginImpl.class.getName());
 
   public void start() throws Exception {
     LOG.info("Logstash: a logstash agent to send jenkins logs to a logstash indexer.");
+    BuildJournal.startReplay(new File(Jenkins.getInstance().getRootDir(), LogstashWriter.JOURNAL_DIRECTORY));
   }
 }
@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Logstash plugin contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package jenkins.plugins.logstash;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How often and after which delays a failed push is sent again.
+ * The delay doubles with every attempt up to a maximum; half of it is fixed and
+ * the other half random, so that builds failing together do not retry together.
+ *
+ * @since 1.2.1
+ */
+final class RetryPolicy {
+  static final long MAX_DELAY_MILLIS = 30000;
+
+  final int maxRetries;
+  final long initialDelayMillis;
+
+  /**
+   * @param maxRetries
+   *          The number of times a push is sent again, zero for none
+   * @param initialDelayMillis
+   *          The delay before the first retry, before jitter
+   */
+  RetryPolicy(int maxRetries, long initialDelayMillis) {
+    if (maxRetries < 0) {
+      throw new IllegalArgumentException("retry count must not be negative");
+    }
+    if (initialDelayMillis < 1) {
+      throw new IllegalArgumentException("retry delay must be positive");
+    }
+
+    this.maxRetries = maxRetries;
+    this.initialDelayMillis = initialDelayMillis;
+  }
+
+  /**
+   * @param attempt
+   *          The attempt that failed, counting from 0
+   * @return The delay before the next attempt in milliseconds
+   */
+  long getDelayMillis(int attempt) {
+    long ceiling = Math.min(MAX_DELAY_MILLIS, initialDelayMillis * (1L << Math.min(attempt, 20)));
+    long fixed = ceiling / 2;
+    return fixed + (long) (ThreadLocalRandom.current().nextDouble() * (ceiling - fixed + 1));
+  }
+}
@@ -24,7 +24,9 @@
 
 package jenkins.plugins.logstash.persistence;
 
-import java.util.Calendar;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.commons.lang.StringUtils;
@@ -43,6 +45,7 @@ abstract class AbstractLogstashIndexerDao implements LogstashIndexerDao {
   protected final String key;
   protected final String username;
   protected final String password;
+  protected volatile IndexerSettings settings = new IndexerSettings();
 
   AbstractLogstashIndexerDao(String host, int port, String key, String username, String password) {
     this.host = host;
@@ -56,6 +59,13 @@ abstract class AbstractLogstashIndexerDao implements LogstashIndexerDao {
     }
   }
 
+  /**
+   * Applies the tuning options, called by {@link IndexerDaoFactory} before the indexer is used.
+   */
+  void configure(IndexerSettings settings) {
+    this.settings = settings;
+  }
+
   @Override
   public JSONObject buildPayload(BuildData buildData, String jenkinsUrl, List<String> logLines) {
     JSONObject payload = new JSONObject();
@@ -64,12 +74,55 @@ abstract class AbstractLogstashIndexerDao implements LogstashIndexerDao {
     payload.put("source", "jenkins");
     payload.put("source_host", jenkinsUrl);
     payload.put("@buildTimestamp", buildData.getTimestamp());
-    payload.put("@timestamp", BuildData.DATE_FORMATTER.format(Calendar.getInstance().getTime()));
+    payload.put("@timestamp", TimestampFormatter.SECONDS.format(System.currentTimeMillis()));
     payload.put("@version", 1);
 
     return payload;
   }
 
+  /**
+   * Indexers that send raw bytes, spread data over several brokers or pick where data goes by
+   * its time override this, the default decodes the data and calls {@link #push(String)}.
+   */
+  @Override
+  public void push(LogstashEvent event) throws IOException {
+    push(new String(event.getBuffer(), event.getOffset(), event.getLength(), StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Indexers with a bulk API override this, the default pushes the events one by one.
+   * If one fails after others went through, only it and the events after it are pending.
+   */
+  @Override
+  public void pushAll(List<LogstashEvent> data) throws IOException {
+    for (int i = 0; i < data.size(); i++) {
+      try {
+        push(data.get(i));
+      } catch (IOException e) {
+        if (i == 0) {
+          throw e;
+        }
+        // The events before this one have been indexed
+        throw new PendingEventsException(e.getMessage(), new ArrayList<LogstashEvent>(data.subList(i, data.size())), e);
+      }
+    }
+  }
+
+  /**
+   * Indexers that can measure their backlog override this, the default never holds senders back.
+   */
+  @Override
+  public boolean isBackedUp() {
+    return false;
+  }
+
+  /**
+   * Indexers that hold connections override this, the default does nothing.
+   */
+  @Override
+  public void close() {
+  }
+
   @Override
   public String getDescription() {
     return this.host + ":" + this.port;
@@ -0,0 +1,107 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Logstash plugin contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package jenkins.plugins.logstash.persistence;
+
+/**
+ * Limit on the requests an indexer has in flight, adapted to the load of the server
+ * in the manner of TCP congestion control (AIMD): each successful request raises the
+ * limit by 1/limit, about one per round of requests, and a request the server rejects
+ * as overloaded halves it. Requests sent before the last decrease cannot lower the
+ * limit again, so a burst of rejections from one round counts once.
+ * Callers wait while the limit is reached, which holds the events back until the server
+ * catches up instead of dropping them.
+ *
+ * @since 1.2.1
+ */
+final class AdaptiveLimit {
+  final int maxLimit;
+  private double limit;
+  private int inFlight;
+  private long epoch;
+
+  /**
+   * @param maxLimit
+   *          The limit to start with and to grow back to, positive
+   */
+  AdaptiveLimit(int maxLimit) {
+    if (maxLimit < 1) {
+      throw new IllegalArgumentException("maximum in-flight requests must be positive");
+    }
+    this.maxLimit = maxLimit;
+    this.limit = maxLimit;
+  }
+
+  /**
+   * Waits until the request may be sent and counts it as in flight.
+   *
+   * @return The round the request was sent in, to pass to {@link #onOverload(long)}
+   */
+  synchronized long acquire() throws InterruptedException {
+    while (inFlight >= (int) limit) {
+      wait();
+    }
+    inFlight++;
+    return epoch;
+  }
+
+  /**
+   * @return The current round, for a request that keeps its place while it is sent again
+   */
+  synchronized long epoch() {
+    return epoch;
+  }
+
+  synchronized void release() {
+    inFlight--;
+    notifyAll();
+  }
+
+  synchronized void onSuccess() {
+    if (limit < maxLimit) {
+      limit = Math.min(maxLimit, limit + 1 / limit);
+      notifyAll();
+    }
+  }
+
+  /**
+   * @param requestEpoch
+   *          The round the rejected request was sent in
+   */
+  synchronized void onOverload(long requestEpoch) {
+    if (requestEpoch == epoch) {
+      limit = Math.max(1, limit / 2);
+      epoch++;
+    }
+  }
+
+  synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  synchronized int getInFlight() {
+    return inFlight;
+  }
+}
@@ -32,6 +32,7 @@ import hudson.model.Node;
 import hudson.tasks.test.AbstractTestResultAction;
 import hudson.tasks.test.TestResult;
 
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
@@ -57,7 +58,12 @@ import com.google.gson.GsonBuilder;
  * @since 1.0.0
  */
 public class BuildData {
-  // ISO 8601 date format
+  /**
+   * ISO 8601 date format.
+   *
+   * @deprecated Not thread-safe, use {@link TimestampFormatter} instead.
+   */
+  @Deprecated
   public transient static final DateFormat DATE_FORMATTER = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
 
   public static class TestData {
@@ -109,6 +115,8 @@ public class BuildData {
   protected Map<String, String> buildVariables;
   protected Set<String> sensitiveBuildVariables;
   protected TestData testResults = null;
+  // Serialized form, computed once and reused by every payload of the build
+  private transient volatile byte[] json;
 
   BuildData() {}
 
@@ -138,7 +146,7 @@ public class BuildData {
     buildNum = build.getNumber();
     // build.getDuration() is always 0 in Notifiers
     buildDuration = currentTime.getTime() - build.getStartTimeInMillis();
-    timestamp = DATE_FORMATTER.format(build.getTimestamp().getTime());
+    timestamp = TimestampFormatter.SECONDS.format(build.getTimestamp().getTime());
     rootProjectName = build.getRootBuild().getProject().getName();
     rootProjectDisplayName = build.getRootBuild().getDisplayName();
     rootBuildNum = build.getRootBuild().getNumber();
@@ -173,16 +181,54 @@ public class BuildData {
   }
 
   public JSONObject toJson() {
-    String data = toString();
+    String data = new String(toJsonBytes(), StandardCharsets.UTF_8);
     return JSONObject.fromObject(data);
   }
 
+  /**
+   * @return The key that keeps the data of this build on one Redis broker or RabbitMQ consumer,
+   *         made of the dot-separated words project, node label and build number, so that it
+   *         can also be matched by the bindings of a topic exchange
+   */
+  public String getRoutingKey() {
+    return getRoutingKey(projectName, buildLabel, buildNum);
+  }
+
+  /**
+   * @param data
+   *          The UTF-8 encoded JSON form of a build, as written by {@link #toJsonBytes()}
+   * @return The same key as {@link #getRoutingKey()} for that build
+   */
+  public static String getRoutingKey(byte[] data) {
+    JSONObject json = JSONObject.fromObject(new String(data, StandardCharsets.UTF_8));
+    return getRoutingKey(json.optString("projectName", null), json.optString("buildLabel", null), json.optInt("buildNum"));
+  }
+
+  private static String getRoutingKey(String projectName, String buildLabel, int buildNum) {
+    // A dot within a name would split it into several words
+    return StringUtils.replaceChars(projectName, '.', '_') + "." + StringUtils.replaceChars(buildLabel, '.', '_') + "." + buildNum;
+  }
+
+  /**
+   * @return The UTF-8 encoded JSON form of this object. It is computed on first use and
+   *         cached until a setter changes the data; callers must not modify the array.
+   */
+  public byte[] toJsonBytes() {
+    byte[] result = json;
+    if (result == null) {
+      result = toString().getBytes(StandardCharsets.UTF_8);
+      json = result;
+    }
+    return result;
+  }
+
   public String getId() {
     return id;
   }
 
   public void setId(String id) {
     this.id = id;
+    json = null;
   }
 
   public String getResult() {
@@ -191,6 +237,7 @@ public class BuildData {
 
   public void setResult(Result result) {
     this.result = result.toString();
+    json = null;
   }
 
   public String getProjectName() {
@@ -199,6 +246,7 @@ public class BuildData {
 
   public void setProjectName(String projectName) {
     this.projectName = projectName;
+    json = null;
   }
 
   public String getDisplayName() {
@@ -207,6 +255,7 @@ public class BuildData {
 
   public void setDisplayName(String displayName) {
     this.displayName = displayName;
+    json = null;
   }
 
   public String getFullDisplayName() {
@@ -215,6 +264,7 @@ public class BuildData {
 
   public void setFullDisplayName(String fullDisplayName) {
     this.fullDisplayName = fullDisplayName;
+    json = null;
   }
 
   public String getDescription() {
@@ -223,6 +273,7 @@ public class BuildData {
 
   public void setDescription(String description) {
     this.description = description;
+    json = null;
   }
 
   public String getUrl() {
@@ -231,6 +282,7 @@ public class BuildData {
 
   public void setUrl(String url) {
     this.url = url;
+    json = null;
   }
 
   public String getBuildHost() {
@@ -239,6 +291,7 @@ public class BuildData {
 
   public void setBuildHost(String buildHost) {
     this.buildHost = buildHost;
+    json = null;
   }
 
   public String getBuildLabel() {
@@ -247,6 +300,7 @@ public class BuildData {
 
   public void setBuildLabel(String buildLabel) {
     this.buildLabel = buildLabel;
+    json = null;
   }
 
   public int getBuildNum() {
@@ -255,6 +309,7 @@ public class BuildData {
 
   public void setBuildNum(int buildNum) {
     this.buildNum = buildNum;
+    json = null;
   }
 
   public long getBuildDuration() {
@@ -263,6 +318,7 @@ public class BuildData {
 
   public void setBuildDuration(long buildDuration) {
     this.buildDuration = buildDuration;
+    json = null;
   }
 
   public String getTimestamp() {
@@ -270,7 +326,8 @@ public class BuildData {
   }
 
   public void setTimestamp(Calendar timestamp) {
-    this.timestamp = DATE_FORMATTER.format(timestamp.getTime());
+    this.timestamp = TimestampFormatter.SECONDS.format(timestamp.getTime());
+    json = null;
   }
 
   public String getRootProjectName() {
@@ -279,6 +336,7 @@ public class BuildData {
 
   public void setRootProjectName(String rootProjectName) {
     this.rootProjectName = rootProjectName;
+    json = null;
   }
 
   public String getRootProjectDisplayName() {
@@ -287,6 +345,7 @@ public class BuildData {
 
   public void setRootProjectDisplayName(String rootProjectDisplayName) {
     this.rootProjectDisplayName = rootProjectDisplayName;
+    json = null;
   }
 
   public int getRootBuildNum() {
@@ -295,6 +354,7 @@ public class BuildData {
 
   public void setRootBuildNum(int rootBuildNum) {
     this.rootBuildNum = rootBuildNum;
+    json = null;
   }
 
   public Map<String, String> getBuildVariables() {
@@ -303,6 +363,7 @@ public class BuildData {
 
   public void setBuildVariables(Map<String, String> buildVariables) {
     this.buildVariables = buildVariables;
+    json = null;
   }
 
   public Set<String> getSensitiveBuildVariables() {
@@ -311,6 +372,7 @@ public class BuildData {
 
   public void setSensitiveBuildVariables(Set<String> sensitiveBuildVariables) {
     this.sensitiveBuildVariables = sensitiveBuildVariables;
+    json = null;
   }
 
   public TestData getTestResults() {
@@ -319,5 +381,6 @@ public class BuildData {
 
   public void setTestResults(TestData testResults) {
     this.testResults = testResults;
+    json = null;
   }
 }
@@ -24,33 +24,79 @@
 
 package jenkins.plugins.logstash.persistence;
 
+import net.sf.json.JSONArray;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.client.utils.URIBuilder;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.util.EntityUtils;
+
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Elastic Search Data Access Object.
+ * All pushes share one HTTP client backed by a pool of keep-alive connections,
+ * opened on the first push. Several events pushed together go to the _bulk
+ * endpoint as newline-delimited JSON, optionally through a non-blocking client
+ * that keeps several bulk requests in flight. Requests are spread over the
+ * configured nodes and fail over to the others when a node cannot be reached.
+ * The number of requests in flight adapts to the load of the cluster: requests
+ * rejected with 429 or 503 lower it and fail the push, for the writer to send them
+ * again on its own schedule; successes raise it. Pushes never wait out an overload.
+ * The key may name the index by date, such as <code>jenkins-%{yyyy.MM.dd}</code>,
+ * in which case each event goes to the index of its own timestamp.
  *
  * @author Liam Newman
  * @since 1.0.4
  */
 public class ElasticSearchDao extends AbstractLogstashIndexerDao {
+  private static final byte[] BULK_ACTION = "{\"index\":{}}\n".getBytes(StandardCharsets.UTF_8);
+  private static final ContentType NDJSON = ContentType.create("application/x-ndjson", StandardCharsets.UTF_8);
+
   final HttpClientBuilder clientBuilder;
   final URI uri;
+  final URI bulkUri;
   final String auth;
+  final IndexPattern indexPattern;
+
+  private CloseableHttpClient httpClient;
+  private PoolingHttpClientConnectionManager connectionManager;
+  private long lastEviction;
+  private CloseableHttpAsyncClient asyncClient;
+  private boolean closed;
+  private volatile ElasticSearchNodes nodes;
+  volatile AdaptiveLimit limit;
 
   //primary constructor used by indexer factory
   public ElasticSearchDao(String host, int port, String key, String username, String password) {
@@ -79,19 +125,80 @@ public class ElasticSearchDao extends AbstractLogstashIndexerDao {
       throw new IllegalArgumentException("host field must specify scheme, such as 'http://'");
     }
 
+    try {
+      bulkUri = new URIBuilder(uri).setPath(StringUtils.stripEnd(uri.getPath(), "/") + "/_bulk").build();
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException("Could not create uri", e);
+    }
+
     if (StringUtils.isNotBlank(username)) {
       auth = Base64.encodeBase64String((username + ":" + StringUtils.defaultString(password)).getBytes());
     } else {
       auth = null;
     }
 
+    indexPattern = IndexPattern.isPattern(key) ? new IndexPattern(key) : null;
     clientBuilder = factory == null ? HttpClientBuilder.create() : factory;
+    nodes = createNodes(settings);
+    limit = new AdaptiveLimit(settings.getMaxInFlightRequests());
+  }
+
+  /**
+   * Also sets up the additional nodes and the load balancing over them.
+   */
+  @Override
+  void configure(IndexerSettings settings) {
+    super.configure(settings);
+    ElasticSearchNodes previous = nodes;
+    nodes = createNodes(settings);
+    previous.close();
+    limit = new AdaptiveLimit(settings.getMaxInFlightRequests());
+  }
+
+  private ElasticSearchNodes createNodes(IndexerSettings settings) {
+    List<URI> uris = new ArrayList<URI>();
+    uris.add(uri);
+
+    for (String additionalHost : settings.getAdditionalHosts()) {
+      try {
+        URIBuilder builder = new URIBuilder(additionalHost.trim());
+        if (builder.getPort() < 0) {
+          builder.setPort(port);
+        }
+        URI nodeUri = builder.setPath(uri.getPath()).build();
+        if (StringUtils.isBlank(nodeUri.getScheme()) || StringUtils.isBlank(nodeUri.getHost())) {
+          throw new IllegalArgumentException("node '" + additionalHost + "' must specify scheme and host, such as 'http://host'");
+        }
+        uris.add(nodeUri);
+      } catch (URISyntaxException e) {
+        throw new IllegalArgumentException("Could not create uri for node '" + additionalHost + "'", e);
+      }
+    }
+
+    return new ElasticSearchNodes(uris, settings.getLoadBalancing(), TimeUnit.SECONDS.toMillis(settings.getNodeRecheckSeconds()),
+      new ElasticSearchNodes.Probe() {
+        @Override
+        public boolean isAlive(ElasticSearchNodes.Node node) {
+          return ElasticSearchDao.this.isAlive(node);
+        }
+      });
   }
 
   HttpPost getHttpPost(String data) {
+    return getHttpPost(uri, new StringEntity(data, ContentType.APPLICATION_JSON));
+  }
+
+  HttpPost getHttpPost(byte[] data, int offset, int length) {
+    return getHttpPost(uri, new ByteArrayEntity(data, offset, length, ContentType.APPLICATION_JSON));
+  }
+
+  HttpPost getBulkHttpPost(byte[] body) {
+    return getHttpPost(bulkUri, new ByteArrayEntity(body, NDJSON));
+  }
+
+  private HttpPost getHttpPost(URI target, AbstractHttpEntity input) {
     HttpPost postRequest;
-    postRequest = new HttpPost(uri);
-    StringEntity input = new StringEntity(data, ContentType.APPLICATION_JSON);
+    postRequest = new HttpPost(target);
     postRequest.setEntity(input);
     if (auth != null) {
       postRequest.addHeader("Authorization", "Basic " + auth);
@@ -99,30 +206,483 @@ public class ElasticSearchDao extends AbstractLogstashIndexerDao {
     return postRequest;
   }
 
+  /**
+   * @param time
+   *          Milliseconds since the epoch
+   * @return The index for events of that time, or null if the key has no date pattern
+   */
+  String resolveIndex(long time) {
+    return indexPattern == null ? null : indexPattern.resolve(time);
+  }
+
+  private URI getTarget(ElasticSearchNodes.Node node, String index, boolean bulk) {
+    if (index == null) {
+      return bulk ? node.bulkUri : node.uri;
+    }
+
+    try {
+      return new URIBuilder(node.rootUri).setPath("/" + StringUtils.stripStart(index, "/") + (bulk ? "/_bulk" : "")).build();
+    } catch (URISyntaxException e) {
+      throw new IllegalArgumentException("Could not create uri for index '" + index + "'", e);
+    }
+  }
+
+  // Data pushed without its event has no timestamp here, it is indexed by the time it is pushed
   @Override
   public void push(String data) throws IOException {
-    CloseableHttpClient httpClient = null;
-    CloseableHttpResponse response = null;
-    HttpPost post = getHttpPost(data);
+    execute(getHttpPost(data), resolveIndex(System.currentTimeMillis()));
+  }
+
+  /**
+   * Goes to the index of the event's timestamp, like the events of a bulk push.
+   */
+  @Override
+  public void push(LogstashEvent event) throws IOException {
+    execute(getHttpPost(event.getBuffer(), event.getOffset(), event.getLength()), resolveIndex(event.getTimestamp()));
+  }
+
+  /**
+   * Sends the events to the _bulk endpoint, split into requests that stay within the
+   * configured document count and size. Items the server rejects because it is
+   * overloaded, and those of a request that failed as a whole or was not sent, fail
+   * the push with a {@link PendingEventsException}, so that only they are sent again
+   * later; the others are reported as failed.
+   */
+  @Override
+  public void pushAll(List<LogstashEvent> data) throws IOException {
+    if (settings.isAsyncHttp()) {
+      pushAllAsync(data);
+      return;
+    }
+
+    BulkFailures failures = new BulkFailures(data);
+    List<BulkRequest> requests = splitBulk(data);
+    for (int i = 0; i < requests.size(); i++) {
+      try {
+        sendBulk(requests.get(i), failures);
+      } catch (IOException e) {
+        // The requests after the failed one are not sent
+        for (BulkRequest request : requests.subList(i + 1, requests.size())) {
+          failures.requestFailed(request.events, null);
+        }
+        break;
+      }
+    }
+    failures.check();
+  }
+
+  /**
+   * With the asynchronous transport all the bulk requests of the push are sent without
+   * waiting for each other's responses, as many at a time as the limit allows, and the
+   * caller waits once for all of them. Their responses are handled on I/O threads.
+   */
+  private void pushAllAsync(List<LogstashEvent> data) throws IOException {
+    CloseableHttpAsyncClient client = getHttpAsyncClient();
+    List<BulkRequest> requests = splitBulk(data);
+    PushCompletion completion = new PushCompletion();
+    AsyncBulk bulk = new AsyncBulk(data, requests.size(), completion, client, limit);
+
+    for (BulkRequest request : requests) {
+      long epoch;
+      try {
+        epoch = bulk.limit.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        bulk.requestDone(request.events, new InterruptedIOException("Interrupted while waiting to send bulk request"));
+        continue;
+      }
+
+      sendBulkAsync(bulk, request.index, request.events, epoch);
+    }
+    completion.await();
+  }
+
+  /**
+   * Splits the events into requests within the configured limits. With a date pattern
+   * a request also ends where the index changes, such as at midnight.
+   */
+  private List<BulkRequest> splitBulk(List<LogstashEvent> data) {
+    int maxDocuments = settings.getBulkMaxDocuments();
+    int maxBytes = settings.getBulkMaxBytes();
+    List<BulkRequest> requests = new ArrayList<BulkRequest>();
+
+    int from = 0;
+    while (from < data.size()) {
+      String index = resolveIndex(data.get(from).getTimestamp());
+      int to = from;
+      int bytes = 0;
+      do {
+        bytes += BULK_ACTION.length + data.get(to).getLength() + 1;
+        to++;
+      } while (to < data.size() && to - from < maxDocuments
+        && bytes + BULK_ACTION.length + data.get(to).getLength() + 1 <= maxBytes
+        && StringUtils.equals(index, resolveIndex(data.get(to).getTimestamp())));
+
+      requests.add(new BulkRequest(index, data.subList(from, to)));
+      from = to;
+    }
+    return requests;
+  }
+
+  /**
+   * @throws IOException
+   *           If the request failed as a whole, its pending items have been recorded with the failures
+   */
+  private void sendBulk(BulkRequest request, BulkFailures failures) throws IOException {
+    AdaptiveLimit requests = limit;
 
     try {
-      httpClient = clientBuilder.build();
-      response = httpClient.execute(post);
+      HttpPost post = getBulkHttpPost(toBulkBody(request.events));
+      long epoch = acquire(requests);
+      boolean overloaded;
+      CloseableHttpResponse response = null;
+      try {
+        response = executeOnNode(post, request.index, true);
+        overloaded = failures.collect(request.events, parseBulkResponse(post.getURI(), response, request.events.size()));
+      } finally {
+        if (response != null) {
+          response.close();
+        }
+        requests.release();
+      }
+
+      if (overloaded) {
+        requests.onOverload(epoch);
+      } else {
+        requests.onSuccess();
+      }
+    } catch (IOException e) {
+      failures.requestFailed(request.events, e);
+      throw e;
+    }
+  }
+
+  private void sendBulkAsync(AsyncBulk bulk, String index, List<LogstashEvent> pending, long epoch) {
+    sendBulkAsync(bulk, index, pending, epoch, new ArrayList<ElasticSearchNodes.Node>(1));
+  }
+
+  /**
+   * Sends one bulk request on the asynchronous client. The request keeps its place
+   * in flight until it completes, including the failover to other nodes.
+   */
+  private void sendBulkAsync(final AsyncBulk bulk, final String index, final List<LogstashEvent> pending,
+      final long epoch, final List<ElasticSearchNodes.Node> tried) {
+    final ElasticSearchNodes targets = nodes;
+    final ElasticSearchNodes.Node node = targets.acquire(tried);
+    final HttpPost post = getBulkHttpPost(toBulkBody(pending));
+    post.setURI(getTarget(node, index, true));
+
+    FutureCallback<HttpResponse> responseCallback = new FutureCallback<HttpResponse>() {
+      @Override
+      public void completed(HttpResponse response) {
+        targets.release(node);
+
+        boolean overloaded;
+        try {
+          overloaded = bulk.failures.collect(pending, parseBulkResponse(post.getURI(), response, pending.size()));
+        } catch (IOException e) {
+          done(e);
+          return;
+        }
 
-      if (response.getStatusLine().getStatusCode() != 201) {
-        throw new IOException(this.getErrorMessage(response));
+        if (overloaded) {
+          bulk.limit.onOverload(epoch);
+        } else {
+          bulk.limit.onSuccess();
+        }
+        done(null);
       }
+
+      @Override
+      public void failed(Exception e) {
+        targets.release(node);
+        targets.markDown(node);
+        tried.add(node);
+
+        if (tried.size() < targets.nodes.size()) {
+          sendBulkAsync(bulk, index, pending, epoch, tried);
+        } else {
+          done(e instanceof IOException ? (IOException) e : new IOException(e));
+        }
+      }
+
+      @Override
+      public void cancelled() {
+        targets.release(node);
+        done(new IOException("Bulk request to " + post.getURI() + " was cancelled"));
+      }
+
+      private void done(IOException e) {
+        bulk.limit.release();
+        bulk.requestDone(pending, e);
+      }
+    };
+
+    try {
+      bulk.client.execute(post, responseCallback);
+    } catch (RuntimeException e) {
+      // The client refuses requests once it has been closed
+      targets.release(node);
+      bulk.limit.release();
+      bulk.requestDone(pending, new IOException(e));
+    }
+  }
+
+  static byte[] toBulkBody(List<LogstashEvent> documents) {
+    int size = 0;
+    for (LogstashEvent document : documents) {
+      size += BULK_ACTION.length + document.getLength() + 1;
+    }
+
+    byte[] body = new byte[size];
+    int offset = 0;
+    for (LogstashEvent document : documents) {
+      System.arraycopy(BULK_ACTION, 0, body, offset, BULK_ACTION.length);
+      offset += BULK_ACTION.length;
+      System.arraycopy(document.getBuffer(), document.getOffset(), body, offset, document.getLength());
+      offset += document.getLength();
+      body[offset++] = '\n';
+    }
+    return body;
+  }
+
+  static boolean isOverloaded(int status) {
+    return status == 429 || status == 503;
+  }
+
+  /**
+   * @param count
+   *          The number of items in the request
+   * @return The per-item results of the bulk request in request order, or null if every item succeeded
+   * @throws IOException
+   *           If the request failed as a whole, or the response does not tell how its items fared
+   */
+  private JSONArray parseBulkResponse(URI target, HttpResponse response, int count) throws IOException {
+    int status = response.getStatusLine().getStatusCode();
+    if (isOverloaded(status)) {
+      // The whole request was turned away, the same as rejecting each of its items
+      EntityUtils.consume(response.getEntity());
+      JSONObject result = new JSONObject().element("status", status).element("error", response.getStatusLine().getReasonPhrase());
+      JSONArray items = new JSONArray();
+      for (int i = 0; i < count; i++) {
+        items.add(new JSONObject().element("index", result));
+      }
+      return items;
+    }
+
+    if (status != 200) {
+      throw new IOException(this.getErrorMessage(target, response));
+    }
+
+    try {
+      JSONObject result = JSONObject.fromObject(EntityUtils.toString(response.getEntity(), StandardCharsets.UTF_8));
+      // Only an explicit "errors": false vouches for every item, otherwise the items tell
+      if (result.has("errors") && !result.optBoolean("errors", true)) {
+        return null;
+      }
+
+      JSONArray items = result.optJSONArray("items");
+      if (items == null) {
+        // Nothing says which items were indexed, the request is sent again as a whole
+        throw new IOException("Bulk response from " + target + " has no items");
+      }
+      return items;
+    } catch (JSONException e) {
+      throw new IOException("Unexpected response to bulk request from " + target, e);
+    }
+  }
+
+  private static long acquire(AdaptiveLimit requests) throws IOException {
+    try {
+      return requests.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to send request");
+    }
+  }
+
+  /**
+   * Sends a single event. An overloaded cluster fails the push like any other error.
+   */
+  private void execute(HttpPost post, String index) throws IOException {
+    AdaptiveLimit requests = limit;
+    long epoch = acquire(requests);
+    CloseableHttpResponse response = null;
+    try {
+      response = executeOnNode(post, index, false);
+
+      int status = response.getStatusLine().getStatusCode();
+      if (isOverloaded(status)) {
+        requests.onOverload(epoch);
+      }
+      if (status != 201) {
+        throw new IOException(this.getErrorMessage(post.getURI(), response));
+      }
+
+      // Reading the response to the end hands the connection back to the pool
+      EntityUtils.consume(response.getEntity());
     } finally {
       if (response != null) {
         response.close();
       }
+      requests.release();
+    }
+    requests.onSuccess();
+  }
+
+  /**
+   * Sends the request to a node picked by the load balancing, failing over to the
+   * other nodes while the request cannot be delivered. HTTP errors do not fail over,
+   * the node did answer.
+   */
+  private CloseableHttpResponse executeOnNode(HttpPost post, String index, boolean bulk) throws IOException {
+    // A closed indexer fails before any node is marked down
+    CloseableHttpClient client = getHttpClient();
+    ElasticSearchNodes targets = nodes;
+    List<ElasticSearchNodes.Node> tried = new ArrayList<ElasticSearchNodes.Node>(1);
+
+    while (true) {
+      ElasticSearchNodes.Node node = targets.acquire(tried);
+      post.setURI(getTarget(node, index, bulk));
+      try {
+        return client.execute(post);
+      } catch (IOException e) {
+        targets.markDown(node);
+        tried.add(node);
+        if (tried.size() >= targets.nodes.size()) {
+          throw e;
+        }
+      } finally {
+        targets.release(node);
+      }
+    }
+  }
+
+  /**
+   * Used by the background check of nodes that are marked down.
+   */
+  boolean isAlive(ElasticSearchNodes.Node node) {
+    HttpGet get = new HttpGet(node.rootUri);
+    if (auth != null) {
+      get.addHeader("Authorization", "Basic " + auth);
+    }
+
+    CloseableHttpResponse response = null;
+    try {
+      response = getHttpClient().execute(get);
+      EntityUtils.consume(response.getEntity());
+      // Any answer short of a server error means the node is back
+      return response.getStatusLine().getStatusCode() < 500;
+    } catch (IOException e) {
+      return false;
+    } finally {
+      if (response != null) {
+        try {
+          response.close();
+        } catch (IOException e) {
+          // The check is done already
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the shared client, opening the pool on first use.
+   * Connections idle for longer than the configured time are closed first, so that
+   * requests are not sent over connections the server or a proxy already dropped.
+   *
+   * @throws IOException
+   *          The indexer is closed, its client is not opened again
+   */
+  synchronized CloseableHttpClient getHttpClient() throws IOException {
+    checkOpen();
+    long now = System.currentTimeMillis();
+    int idleSeconds = settings.getConnectionIdleSeconds();
+
+    if (httpClient == null) {
+      connectionManager = createConnectionManager();
+      connectionManager.setDefaultMaxPerRoute(settings.getMaxConnectionsPerRoute());
+      connectionManager.setMaxTotal(settings.getMaxConnectionsPerRoute() * nodes.nodes.size());
+      clientBuilder.setConnectionManager(connectionManager);
+      httpClient = clientBuilder.build();
+      lastEviction = now;
+    } else if (idleSeconds > 0 && now - lastEviction >= TimeUnit.SECONDS.toMillis(idleSeconds)) {
+      connectionManager.closeExpiredConnections();
+      connectionManager.closeIdleConnections(idleSeconds, TimeUnit.SECONDS);
+      lastEviction = now;
+    }
+
+    return httpClient;
+  }
+
+  // Method to encapsulate calls for unit-testing
+  PoolingHttpClientConnectionManager createConnectionManager() {
+    return new PoolingHttpClientConnectionManager();
+  }
+
+  /**
+   * Returns the asynchronous client, starting it on first use.
+   *
+   * @throws IOException
+   *          The indexer is closed, its client is not started again
+   */
+  private synchronized CloseableHttpAsyncClient getHttpAsyncClient() throws IOException {
+    checkOpen();
+    if (asyncClient == null) {
+      asyncClient = createHttpAsyncClient();
+      asyncClient.start();
+    }
+    return asyncClient;
+  }
+
+  // Method to encapsulate calls for unit-testing
+  CloseableHttpAsyncClient createHttpAsyncClient() {
+    return HttpAsyncClients.custom()
+      .setMaxConnPerRoute(settings.getMaxConnectionsPerRoute())
+      .setMaxConnTotal(settings.getMaxConnectionsPerRoute() * nodes.nodes.size())
+      .build();
+  }
+
+  // Caller holds the lock
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Elasticsearch indexer " + getDescription() + " is closed");
+    }
+  }
+
+  /**
+   * Closes the clients for good. Builds still pushing to this indexer are refused.
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    nodes.close();
+
+    try {
+      // Also shuts down the connection manager
       if (httpClient != null) {
         httpClient.close();
       }
+    } catch (IOException e) {
+      // Nothing left to do with a client that is being discarded
+    } finally {
+      httpClient = null;
+      connectionManager = null;
+    }
+
+    try {
+      // Requests still in flight are failed through their callbacks
+      if (asyncClient != null) {
+        asyncClient.close();
+      }
+    } catch (IOException e) {
+      // Nothing left to do with a client that is being discarded
+    } finally {
+      asyncClient = null;
     }
   }
 
-  private String getErrorMessage(CloseableHttpResponse response) {
+  private String getErrorMessage(URI target, HttpResponse response) {
     ByteArrayOutputStream byteStream = null;
     PrintStream stream = null;
     try {
@@ -133,7 +693,7 @@ public class ElasticSearchDao extends AbstractLogstashIndexerDao {
         stream.print("HTTP error code: ");
         stream.println(response.getStatusLine().getStatusCode());
         stream.print("URI: ");
-        stream.println(uri.toString());
+        stream.println(target.toString());
         stream.println("RESPONSE: " + response.toString());
         response.getEntity().writeTo(stream);
       } catch (IOException e) {
@@ -150,4 +710,148 @@ public class ElasticSearchDao extends AbstractLogstashIndexerDao {
 
   @Override
   public IndexerType getIndexerType() { return IndexerType.ELASTICSEARCH; }
+
+  /**
+   * Rejected and pending items of one push, shared by all of its bulk requests.
+   */
+  private final class BulkFailures {
+    private final List<LogstashEvent> data;
+    private int count;
+    private String firstError;
+    // Items turned away as overloaded, and those of requests that failed as a whole
+    private final Set<LogstashEvent> unsent = Collections.newSetFromMap(new IdentityHashMap<LogstashEvent, Boolean>());
+    private String unsentError;
+    private IOException requestError;
+
+    BulkFailures(List<LogstashEvent> data) {
+      this.data = data;
+    }
+
+    /**
+     * @return True if the server turned items away because it is overloaded
+     */
+    synchronized boolean collect(List<LogstashEvent> pending, JSONArray items) {
+      boolean overloaded = false;
+      if (items == null) {
+        return overloaded;
+      }
+
+      for (int i = 0; i < pending.size(); i++) {
+        JSONObject item = i < items.size() ? items.getJSONObject(i) : null;
+        // Each item is wrapped in an object named after its action
+        JSONObject result = item == null || item.isEmpty() ? null : item.getJSONObject((String) item.keys().next());
+        int status = result == null ? 0 : result.optInt("status");
+
+        if (status >= 200 && status < 300) {
+          continue;
+        }
+        if (isOverloaded(status)) {
+          if (unsent.isEmpty()) {
+            unsentError = "overloaded, " + status + " " + result.opt("error");
+          }
+          unsent.add(pending.get(i));
+          overloaded = true;
+        } else if (count++ == 0) {
+          firstError = result == null ? "no result for item" : status + " " + result.opt("error");
+        }
+      }
+      return overloaded;
+    }
+
+    /**
+     * Records the items of a request that failed as a whole, or was not sent.
+     *
+     * @param e
+     *          The failure, null if the request was not sent
+     */
+    synchronized void requestFailed(List<LogstashEvent> items, IOException e) {
+      if (e != null && requestError == null) {
+        requestError = e;
+        unsentError = e.getMessage();
+      }
+      unsent.addAll(items);
+    }
+
+    /**
+     * @throws PendingEventsException
+     *           If items are still to be sent, in the order of the push. Only when every
+     *           item was answered are the rejected ones reported as a partial failure.
+     */
+    synchronized void check() throws IOException {
+      int total = data.size();
+      if (!unsent.isEmpty()) {
+        List<LogstashEvent> events = new ArrayList<LogstashEvent>(unsent.size());
+        for (LogstashEvent event : data) {
+          if (unsent.contains(event)) {
+            events.add(event);
+          }
+        }
+        throw new PendingEventsException(events.size() + " of " + total + " events were not sent to " + getDescription() +
+          ": " + unsentError, events, requestError);
+      }
+      if (count > 0) {
+        throw new PartialFailureException(count + " of " + total + " events were rejected by " + getDescription() +
+          ": " + firstError, count, total);
+      }
+    }
+  }
+
+  /**
+   * Completion of one asynchronous push, which may span several bulk requests.
+   */
+  private final class AsyncBulk {
+    final BulkFailures failures;
+    final PushCompletion completion;
+    final CloseableHttpAsyncClient client;
+    final AdaptiveLimit limit;
+    final AtomicInteger remaining;
+
+    AsyncBulk(List<LogstashEvent> data, int requests, PushCompletion completion, CloseableHttpAsyncClient client, AdaptiveLimit limit) {
+      this.failures = new BulkFailures(data);
+      this.completion = completion;
+      this.client = client;
+      this.limit = limit;
+      this.remaining = new AtomicInteger(requests);
+      if (requests == 0) {
+        completion.completed();
+      }
+    }
+
+    /**
+     * @param pending
+     *          The items of the request that are still to be sent if it failed
+     * @param e
+     *          The failure of the request as a whole, or null
+     */
+    void requestDone(List<LogstashEvent> pending, IOException e) {
+      if (e != null) {
+        failures.requestFailed(pending, e);
+      }
+      if (remaining.decrementAndGet() > 0) {
+        return;
+      }
+
+      try {
+        failures.check();
+      } catch (IOException failure) {
+        completion.failed(failure);
+        return;
+      }
+      completion.completed();
+    }
+  }
+
+  /**
+   * Events sent in one bulk request, all to the same index.
+   */
+  private static final class BulkRequest {
+    // Null if the key has no date pattern
+    final String index;
+    final List<LogstashEvent> events;
+
+    BulkRequest(String index, List<LogstashEvent> events) {
+      this.index = index;
+      this.events = events;
+    }
+  }
 }
@@ -0,0 +1,213 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Logstash plugin contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package jenkins.plugins.logstash.persistence;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.plugins.logstash.persistence.IndexerSettings.LoadBalancing;
+
+import org.apache.http.client.utils.URIBuilder;
+
+/**
+ * The Elasticsearch nodes requests are spread over.
+ * A node that cannot be reached is marked down and skipped until a background
+ * check finds it reachable again. With a single node nothing is ever marked down,
+ * there is nowhere else to send the requests.
+ *
+ * @since 1.2.1
+ */
+final class ElasticSearchNodes {
+  private static final Logger LOG = Logger.getLogger(ElasticSearchNodes.class.getName());
+
+  /**
+   * Tells whether a node that is marked down answers again.
+   */
+  static interface Probe {
+    boolean isAlive(Node node);
+  }
+
+  static final class Node {
+    final URI uri;
+    final URI bulkUri;
+    final URI rootUri;
+    final AtomicInteger outstanding = new AtomicInteger();
+    volatile boolean down;
+
+    Node(URI uri) {
+      this.uri = uri;
+      try {
+        String path = uri.getPath() == null ? "" : uri.getPath();
+        this.bulkUri = new URIBuilder(uri).setPath(path.replaceAll("/+$", "") + "/_bulk").build();
+        this.rootUri = new URIBuilder(uri).setPath("/").build();
+      } catch (URISyntaxException e) {
+        throw new IllegalArgumentException("Could not create uri", e);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return rootUri.toString();
+    }
+  }
+
+  final List<Node> nodes;
+  final LoadBalancing loadBalancing;
+  private final long recheckMillis;
+  private final Probe probe;
+  private final AtomicInteger next = new AtomicInteger();
+  private ScheduledExecutorService recheck;
+
+  ElasticSearchNodes(List<URI> uris, LoadBalancing loadBalancing, long recheckMillis, Probe probe) {
+    if (uris.isEmpty()) {
+      throw new IllegalArgumentException("at least one node is required");
+    }
+
+    List<Node> list = new ArrayList<Node>(uris.size());
+    for (URI uri : uris) {
+      list.add(new Node(uri));
+    }
+    this.nodes = Collections.unmodifiableList(list);
+    this.loadBalancing = loadBalancing;
+    this.recheckMillis = recheckMillis;
+    this.probe = probe;
+  }
+
+  /**
+   * Picks the node for the next request and counts the request as outstanding on it.
+   * Nodes that are marked down are only picked once no other node is left.
+   *
+   * @param exclude
+   *          Nodes already tried for this request, not null
+   * @return The node, or null if every node has been tried
+   */
+  Node acquire(Collection<Node> exclude) {
+    int size = nodes.size();
+    int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+    Node best = null;
+
+    for (int i = 0; i < size; i++) {
+      Node candidate = nodes.get((start + i) % size);
+      if (candidate.down || exclude.contains(candidate)) {
+        continue;
+      }
+      if (loadBalancing == LoadBalancing.ROUND_ROBIN) {
+        best = candidate;
+        break;
+      }
+      if (best == null || candidate.outstanding.get() < best.outstanding.get()) {
+        best = candidate;
+      }
+    }
+
+    if (best == null) {
+      for (int i = 0; i < size && best == null; i++) {
+        Node candidate = nodes.get((start + i) % size);
+        if (!exclude.contains(candidate)) {
+          best = candidate;
+        }
+      }
+    }
+
+    if (best != null) {
+      best.outstanding.incrementAndGet();
+    }
+    return best;
+  }
+
+  /**
+   * The request sent to the node has completed.
+   */
+  void release(Node node) {
+    node.outstanding.decrementAndGet();
+  }
+
+  void markDown(Node node) {
+    if (nodes.size() == 1 || node.down) {
+      return;
+    }
+
+    LOG.log(Level.WARNING, "Elasticsearch node {0} is not reachable, sending to the other nodes", node);
+    node.down = true;
+    scheduleRecheck();
+  }
+
+  /**
+   * Stops the background checks.
+   */
+  synchronized void close() {
+    if (recheck != null) {
+      recheck.shutdownNow();
+      recheck = null;
+    }
+  }
+
+  private synchronized void scheduleRecheck() {
+    if (recheck != null) {
+      return;
+    }
+
+    recheck = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "Elasticsearch node check");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    recheck.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        recheck();
+      }
+    }, recheckMillis, recheckMillis, TimeUnit.MILLISECONDS);
+  }
+
+  void recheck() {
+    for (Node node : nodes) {
+      try {
+        if (node.down && probe.isAlive(node)) {
+          LOG.log(Level.INFO, "Elasticsearch node {0} is reachable again", node);
+          node.down = false;
+        }
+      } catch (RuntimeException e) {
+        // Keep checking the other nodes, and this one on the next round
+        LOG.log(Level.FINE, "Check of Elasticsearch node " + node + " failed", e);
+      }
+    }
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Logstash plugin contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package jenkins.plugins.logstash.persistence;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Index name with date placeholders, such as <code>jenkins-%{yyyy.MM.dd}</code>,
+ * resolved from the time of each event. As in Logstash, dates are taken in UTC
+ * and a leading '+' inside the placeholder is allowed.
+ * Placeholders may not be finer than a day, which lets the resolved name be cached
+ * for the whole day; readers never lock, the first event of a new day replaces the entry.
+ *
+ * @since 1.2.1
+ */
+final class IndexPattern {
+  private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+  // Letters of SimpleDateFormat that stay the same for a whole day
+  private static final String DAY_FIELDS = "GyYMwWdDFEu";
+
+  final String pattern;
+  private final DateFormat format;
+  private volatile CachedDay cached;
+
+  IndexPattern(String pattern) {
+    this.pattern = pattern;
+    this.format = new SimpleDateFormat(toDateFormat(pattern));
+    this.format.setTimeZone(TimeZone.getTimeZone("UTC"));
+  }
+
+  /**
+   * @return True if the value contains date placeholders
+   */
+  static boolean isPattern(String value) {
+    return value != null && value.contains("%{");
+  }
+
+  /**
+   * @param time
+   *          Milliseconds since the epoch
+   * @return The index name for that time
+   */
+  String resolve(long time) {
+    CachedDay entry = cached;
+    if (entry == null || time < entry.start || time >= entry.start + DAY_MILLIS) {
+      long start = time - (((time % DAY_MILLIS) + DAY_MILLIS) % DAY_MILLIS);
+      // A copy per resolved day, so that threads crossing midnight together do not share the format
+      DateFormat dayFormat = (DateFormat) format.clone();
+      entry = new CachedDay(start, dayFormat.format(new Date(start)));
+      cached = entry;
+    }
+    return entry.name;
+  }
+
+  /**
+   * Turns the placeholders into a SimpleDateFormat pattern, quoting everything else.
+   */
+  static String toDateFormat(String pattern) {
+    StringBuilder result = new StringBuilder();
+    int index = 0;
+
+    while (index < pattern.length()) {
+      int open = pattern.indexOf("%{", index);
+      if (open < 0) {
+        appendLiteral(result, pattern.substring(index));
+        break;
+      }
+      int close = pattern.indexOf('}', open);
+      if (close < 0) {
+        throw new IllegalArgumentException("unterminated placeholder in index pattern '" + pattern + "'");
+      }
+
+      appendLiteral(result, pattern.substring(index, open));
+      String placeholder = pattern.substring(open + 2, close);
+      if (placeholder.startsWith("+")) {
+        placeholder = placeholder.substring(1);
+      }
+      appendPlaceholder(result, placeholder, pattern);
+      index = close + 1;
+    }
+
+    return result.toString();
+  }
+
+  private static void appendLiteral(StringBuilder result, String literal) {
+    if (!literal.isEmpty()) {
+      result.append('\'').append(literal.replace("'", "''")).append('\'');
+    }
+  }
+
+  private static void appendPlaceholder(StringBuilder result, String placeholder, String pattern) {
+    if (placeholder.isEmpty()) {
+      throw new IllegalArgumentException("empty placeholder in index pattern '" + pattern + "'");
+    }
+
+    for (char c : placeholder.toCharArray()) {
+      if (Character.isLetter(c) && DAY_FIELDS.indexOf(c) < 0) {
+        throw new IllegalArgumentException("index pattern '" + pattern + "' may only use date fields, found '" + c + "'");
+      }
+      if (c == '\'') {
+        throw new IllegalArgumentException("quotes are not supported in index pattern '" + pattern + "'");
+      }
+    }
+    result.append(placeholder);
+  }
+
+  private static final class CachedDay {
+    final long start;
+    final String name;
+
+    CachedDay(long start, String name) {
+      this.start = start;
+      this.name = name;
+    }
+  }
+}
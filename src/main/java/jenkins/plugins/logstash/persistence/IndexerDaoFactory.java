@@ -74,7 +74,18 @@ public final class IndexerDaoFactory {
    * @return The instance of the appropriate indexer DAO, never null
    * @throws InstantiationException
    */
-  public static synchronized LogstashIndexerDao getInstance(IndexerType type, String host, Integer port, String key, String username, String password) throws InstantiationException {
+  public static LogstashIndexerDao getInstance(IndexerType type, String host, Integer port, String key, String username, String password) throws InstantiationException {
+    return getInstance(type, host, port, key, username, password, new IndexerSettings());
+  }
+
+  /**
+   * Singleton instance accessor. The previous instance is closed when it is replaced.
+   *
+   * @param settings
+   *          The tuning options of the indexer, not null
+   * @see #getInstance(IndexerType, String, Integer, String, String, String)
+   */
+  public static synchronized LogstashIndexerDao getInstance(IndexerType type, String host, Integer port, String key, String username, String password, IndexerSettings settings) throws InstantiationException {
     if (!INDEXER_MAP.containsKey(type)) {
       throw new InstantiationException("[logstash-plugin]: Unknown IndexerType '" + type + "'. Did you forget to configure the plugin?");
     }
@@ -82,24 +93,32 @@ public final class IndexerDaoFactory {
     // Prevent NPE
     port = (port == null ? -1 : port.intValue());
 
-    if (shouldRefreshInstance(type, host, port, key, username, password)) {
+    if (shouldRefreshInstance(type, host, port, key, username, password, settings)) {
       try {
         Class<?> indexerClass = INDEXER_MAP.get(type);
         Constructor<?> constructor = indexerClass.getConstructor(String.class, int.class, String.class, String.class, String.class);
-        instance = (AbstractLogstashIndexerDao) constructor.newInstance(host, port, key, username, password);
+        AbstractLogstashIndexerDao dao = (AbstractLogstashIndexerDao) constructor.newInstance(host, port, key, username, password);
+        dao.configure(settings);
+
+        if (instance != null) {
+          instance.close();
+        }
+        instance = dao;
       } catch (NoSuchMethodException e) {
         throw new InstantiationException(ExceptionUtils.getRootCauseMessage(e));
       } catch (InvocationTargetException e) {
         throw new InstantiationException(ExceptionUtils.getRootCauseMessage(e));
       } catch (IllegalAccessException e) {
         throw new InstantiationException(ExceptionUtils.getRootCauseMessage(e));
+      } catch (IllegalArgumentException e) {
+        throw new InstantiationException(ExceptionUtils.getRootCauseMessage(e));
       }
     }
 
     return instance;
   }
 
-  private static boolean shouldRefreshInstance(IndexerType type, String host, int port, String key, String username, String password) {
+  private static boolean shouldRefreshInstance(IndexerType type, String host, int port, String key, String username, String password, IndexerSettings settings) {
     if (instance == null) {
       return true;
     }
@@ -109,7 +128,8 @@ public final class IndexerDaoFactory {
       (instance.port == port) &&
       StringUtils.equals(instance.key, key) &&
       StringUtils.equals(instance.username, username) &&
-      StringUtils.equals(instance.password, password);
+      StringUtils.equals(instance.password, password) &&
+      instance.settings.equals(settings);
     return !matches;
   }
 }
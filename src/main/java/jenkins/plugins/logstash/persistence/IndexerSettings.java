@@ -0,0 +1,390 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Logstash plugin contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.logstash.persistence;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.lang.builder.EqualsBuilder;
+import org.apache.commons.lang.builder.HashCodeBuilder;
+
+/**
+ * Tuning options of an indexer that go beyond its address and credentials.
+ * A change of settings makes {@link IndexerDaoFactory} replace the indexer.
+ *
+ * @since 1.2.1
+ */
+public class IndexerSettings {
+  /**
+   * How requests are spread over several Elasticsearch nodes.
+   */
+  public static enum LoadBalancing {
+    ROUND_ROBIN,
+    LEAST_OUTSTANDING
+  }
+
+  /**
+   * The Redis data type events are pushed to.
+   */
+  public static enum RedisDataType {
+    LIST,
+    STREAM
+  }
+
+  /**
+   * How syslog messages are sent.
+   */
+  public static enum SyslogTransport {
+    UDP,
+    TCP,
+    TLS
+  }
+
+  public static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 10;
+  public static final int DEFAULT_CONNECTION_IDLE_SECONDS = 30;
+  public static final int DEFAULT_BULK_MAX_DOCUMENTS = 1000;
+  public static final int DEFAULT_BULK_MAX_BYTES = 5 * 1024 * 1024;
+  public static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 8;
+  public static final int DEFAULT_NODE_RECHECK_SECONDS = 10;
+  public static final int DEFAULT_REDIS_BATCH_SIZE = 500;
+  public static final int DEFAULT_REDIS_MAX_CONNECTIONS = 64;
+  public static final int DEFAULT_REDIS_MAX_IDLE = 16;
+  public static final int DEFAULT_REDIS_TIMEOUT_MILLIS = 2000;
+  public static final int DEFAULT_REDIS_MAX_WAIT_MILLIS = 1000;
+  public static final int DEFAULT_REDIS_STREAM_MAX_LENGTH = 1000000;
+  public static final int DEFAULT_REDIS_DEPTH_CHECK_MILLIS = 1000;
+  public static final int DEFAULT_RABBIT_MQ_CHANNELS = 8;
+  public static final int DEFAULT_RABBIT_MQ_RECOVERY_MILLIS = 5000;
+  public static final String DEFAULT_RABBIT_MQ_EXCHANGE_TYPE = "topic";
+  public static final int DEFAULT_SYSLOG_MAX_DATAGRAM_BYTES = 1400;
+
+  private int maxConnectionsPerRoute = DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+  private int connectionIdleSeconds = DEFAULT_CONNECTION_IDLE_SECONDS;
+  private int bulkMaxDocuments = DEFAULT_BULK_MAX_DOCUMENTS;
+  private int bulkMaxBytes = DEFAULT_BULK_MAX_BYTES;
+  private boolean asyncHttp;
+  private int maxInFlightRequests = DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+  private List<String> additionalHosts = Collections.emptyList();
+  private LoadBalancing loadBalancing = LoadBalancing.ROUND_ROBIN;
+  private int nodeRecheckSeconds = DEFAULT_NODE_RECHECK_SECONDS;
+  private int redisBatchSize = DEFAULT_REDIS_BATCH_SIZE;
+  private int redisMaxConnections = DEFAULT_REDIS_MAX_CONNECTIONS;
+  private int redisMaxIdle = DEFAULT_REDIS_MAX_IDLE;
+  private int redisTimeoutMillis = DEFAULT_REDIS_TIMEOUT_MILLIS;
+  private int redisMaxWaitMillis = DEFAULT_REDIS_MAX_WAIT_MILLIS;
+  private boolean redisTestOnBorrow;
+  private RedisDataType redisDataType = RedisDataType.LIST;
+  private int redisStreamMaxLength = DEFAULT_REDIS_STREAM_MAX_LENGTH;
+  private List<String> redisShards = Collections.emptyList();
+  private int redisHighWatermark;
+  private int redisLowWatermark;
+  private int redisDepthCheckMillis = DEFAULT_REDIS_DEPTH_CHECK_MILLIS;
+  private int rabbitMqChannels = DEFAULT_RABBIT_MQ_CHANNELS;
+  private int rabbitMqRecoveryMillis = DEFAULT_RABBIT_MQ_RECOVERY_MILLIS;
+  private boolean rabbitMqConfirms;
+  private String rabbitMqExchange = "";
+  private String rabbitMqExchangeType = DEFAULT_RABBIT_MQ_EXCHANGE_TYPE;
+  private SyslogTransport syslogTransport = SyslogTransport.UDP;
+  private int syslogMaxDatagramBytes = DEFAULT_SYSLOG_MAX_DATAGRAM_BYTES;
+
+  public int getMaxConnectionsPerRoute() {
+    return maxConnectionsPerRoute;
+  }
+
+  public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+    this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+  }
+
+  public int getConnectionIdleSeconds() {
+    return connectionIdleSeconds;
+  }
+
+  public void setConnectionIdleSeconds(int connectionIdleSeconds) {
+    this.connectionIdleSeconds = connectionIdleSeconds;
+  }
+
+  public int getBulkMaxDocuments() {
+    return bulkMaxDocuments;
+  }
+
+  public void setBulkMaxDocuments(int bulkMaxDocuments) {
+    this.bulkMaxDocuments = bulkMaxDocuments;
+  }
+
+  public int getBulkMaxBytes() {
+    return bulkMaxBytes;
+  }
+
+  public void setBulkMaxBytes(int bulkMaxBytes) {
+    this.bulkMaxBytes = bulkMaxBytes;
+  }
+
+  public boolean isAsyncHttp() {
+    return asyncHttp;
+  }
+
+  public void setAsyncHttp(boolean asyncHttp) {
+    this.asyncHttp = asyncHttp;
+  }
+
+  public int getMaxInFlightRequests() {
+    return maxInFlightRequests;
+  }
+
+  public void setMaxInFlightRequests(int maxInFlightRequests) {
+    this.maxInFlightRequests = maxInFlightRequests;
+  }
+
+  /**
+   * @return Further nodes of the same cluster, each with its scheme and optionally its port
+   */
+  public List<String> getAdditionalHosts() {
+    return additionalHosts;
+  }
+
+  public void setAdditionalHosts(List<String> additionalHosts) {
+    this.additionalHosts = additionalHosts;
+  }
+
+  public LoadBalancing getLoadBalancing() {
+    return loadBalancing;
+  }
+
+  public void setLoadBalancing(LoadBalancing loadBalancing) {
+    this.loadBalancing = loadBalancing;
+  }
+
+  public int getNodeRecheckSeconds() {
+    return nodeRecheckSeconds;
+  }
+
+  public void setNodeRecheckSeconds(int nodeRecheckSeconds) {
+    this.nodeRecheckSeconds = nodeRecheckSeconds;
+  }
+
+  /**
+   * @return The maximum number of events sent to Redis in one command
+   */
+  public int getRedisBatchSize() {
+    return redisBatchSize;
+  }
+
+  public void setRedisBatchSize(int redisBatchSize) {
+    this.redisBatchSize = redisBatchSize;
+  }
+
+  public int getRedisMaxConnections() {
+    return redisMaxConnections;
+  }
+
+  public void setRedisMaxConnections(int redisMaxConnections) {
+    this.redisMaxConnections = redisMaxConnections;
+  }
+
+  public int getRedisMaxIdle() {
+    return redisMaxIdle;
+  }
+
+  public void setRedisMaxIdle(int redisMaxIdle) {
+    this.redisMaxIdle = redisMaxIdle;
+  }
+
+  /**
+   * @return The connect and read timeout of a Redis connection
+   */
+  public int getRedisTimeoutMillis() {
+    return redisTimeoutMillis;
+  }
+
+  public void setRedisTimeoutMillis(int redisTimeoutMillis) {
+    this.redisTimeoutMillis = redisTimeoutMillis;
+  }
+
+  /**
+   * @return How long a push waits for a free connection before it fails
+   */
+  public int getRedisMaxWaitMillis() {
+    return redisMaxWaitMillis;
+  }
+
+  public void setRedisMaxWaitMillis(int redisMaxWaitMillis) {
+    this.redisMaxWaitMillis = redisMaxWaitMillis;
+  }
+
+  public boolean isRedisTestOnBorrow() {
+    return redisTestOnBorrow;
+  }
+
+  public void setRedisTestOnBorrow(boolean redisTestOnBorrow) {
+    this.redisTestOnBorrow = redisTestOnBorrow;
+  }
+
+  public RedisDataType getRedisDataType() {
+    return redisDataType;
+  }
+
+  public void setRedisDataType(RedisDataType redisDataType) {
+    this.redisDataType = redisDataType;
+  }
+
+  /**
+   * @return The approximate number of entries a stream is trimmed to, 0 to never trim
+   */
+  public int getRedisStreamMaxLength() {
+    return redisStreamMaxLength;
+  }
+
+  public void setRedisStreamMaxLength(int redisStreamMaxLength) {
+    this.redisStreamMaxLength = redisStreamMaxLength;
+  }
+
+  /**
+   * @return Further Redis brokers the builds are spread over, each as host or host:port
+   */
+  public List<String> getRedisShards() {
+    return redisShards;
+  }
+
+  public void setRedisShards(List<String> redisShards) {
+    this.redisShards = redisShards;
+  }
+
+  /**
+   * @return The length of the list or stream at which senders are asked to hold back, 0 to never check it
+   */
+  public int getRedisHighWatermark() {
+    return redisHighWatermark;
+  }
+
+  public void setRedisHighWatermark(int redisHighWatermark) {
+    this.redisHighWatermark = redisHighWatermark;
+  }
+
+  /**
+   * @return The length of the list or stream at which senders resume, 0 for three quarters of the high watermark
+   */
+  public int getRedisLowWatermark() {
+    return redisLowWatermark;
+  }
+
+  public void setRedisLowWatermark(int redisLowWatermark) {
+    this.redisLowWatermark = redisLowWatermark;
+  }
+
+  /**
+   * @return How often the length of the list or stream is sampled
+   */
+  public int getRedisDepthCheckMillis() {
+    return redisDepthCheckMillis;
+  }
+
+  public void setRedisDepthCheckMillis(int redisDepthCheckMillis) {
+    this.redisDepthCheckMillis = redisDepthCheckMillis;
+  }
+
+  /**
+   * @return The maximum number of idle channels kept open on the RabbitMQ connection
+   */
+  public int getRabbitMqChannels() {
+    return rabbitMqChannels;
+  }
+
+  public void setRabbitMqChannels(int rabbitMqChannels) {
+    this.rabbitMqChannels = rabbitMqChannels;
+  }
+
+  /**
+   * @return How long to wait between two attempts to recover a lost RabbitMQ connection
+   */
+  public int getRabbitMqRecoveryMillis() {
+    return rabbitMqRecoveryMillis;
+  }
+
+  public void setRabbitMqRecoveryMillis(int rabbitMqRecoveryMillis) {
+    this.rabbitMqRecoveryMillis = rabbitMqRecoveryMillis;
+  }
+
+  /**
+   * @return True to publish to RabbitMQ with publisher confirms
+   */
+  public boolean isRabbitMqConfirms() {
+    return rabbitMqConfirms;
+  }
+
+  public void setRabbitMqConfirms(boolean rabbitMqConfirms) {
+    this.rabbitMqConfirms = rabbitMqConfirms;
+  }
+
+  /**
+   * @return The exchange events are published to with the routing key of their build, empty to publish to the queue
+   */
+  public String getRabbitMqExchange() {
+    return rabbitMqExchange;
+  }
+
+  public void setRabbitMqExchange(String rabbitMqExchange) {
+    this.rabbitMqExchange = rabbitMqExchange;
+  }
+
+  /**
+   * @return The type the exchange is declared with, such as topic or x-consistent-hash
+   */
+  public String getRabbitMqExchangeType() {
+    return rabbitMqExchangeType;
+  }
+
+  public void setRabbitMqExchangeType(String rabbitMqExchangeType) {
+    this.rabbitMqExchangeType = rabbitMqExchangeType;
+  }
+
+  public SyslogTransport getSyslogTransport() {
+    return syslogTransport;
+  }
+
+  public void setSyslogTransport(SyslogTransport syslogTransport) {
+    this.syslogTransport = syslogTransport;
+  }
+
+  /**
+   * @return The maximum size of a UDP syslog message, larger events are split
+   */
+  public int getSyslogMaxDatagramBytes() {
+    return syslogMaxDatagramBytes;
+  }
+
+  public void setSyslogMaxDatagramBytes(int syslogMaxDatagramBytes) {
+    this.syslogMaxDatagramBytes = syslogMaxDatagramBytes;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    return EqualsBuilder.reflectionEquals(this, obj);
+  }
+
+  @Override
+  public int hashCode() {
+    return HashCodeBuilder.reflectionHashCode(this);
+  }
+}
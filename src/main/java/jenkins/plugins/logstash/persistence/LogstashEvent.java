@@ -0,0 +1,142 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Logstash plugin contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package jenkins.plugins.logstash.persistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * One serialized Logstash event together with its @timestamp, so that indexers
+ * can route it by time without parsing it, and optionally the key that keeps it
+ * on the same broker or consumer as the other events of its build.
+ * An event may be a view of a buffer its creator reuses, such as the buffer of a
+ * {@link PayloadEncoder}: it is then only valid during the call it is passed to,
+ * and whoever keeps it longer takes a {@link #copy()}.
+ *
+ * @since 1.2.1
+ */
+public final class LogstashEvent {
+  private final byte[] buffer;
+  private final int offset;
+  private final int length;
+  private final long timestamp;
+  private final String routingKey;
+
+  /**
+   * @param data
+   *          The serialized event, UTF-8 encoded, not null
+   * @param timestamp
+   *          The @timestamp of the event in milliseconds since the epoch
+   */
+  public LogstashEvent(byte[] data, long timestamp) {
+    this(data, timestamp, null);
+  }
+
+  /**
+   * @param data
+   *          The serialized event, UTF-8 encoded, not null
+   * @param timestamp
+   *          The @timestamp of the event in milliseconds since the epoch
+   * @param routingKey
+   *          Identifies the data that must stay in order, such as the build, nullable
+   */
+  public LogstashEvent(byte[] data, long timestamp, String routingKey) {
+    this(data, 0, data.length, timestamp, routingKey);
+  }
+
+  /**
+   * @param buffer
+   *          Holds the serialized event, UTF-8 encoded, not null
+   * @param offset
+   *          The index of the first byte of the event in the buffer
+   * @param length
+   *          The number of bytes of the event
+   * @param timestamp
+   *          The @timestamp of the event in milliseconds since the epoch
+   * @param routingKey
+   *          Identifies the data that must stay in order, such as the build, nullable
+   */
+  public LogstashEvent(byte[] buffer, int offset, int length, long timestamp, String routingKey) {
+    this.buffer = buffer;
+    this.offset = offset;
+    this.length = length;
+    this.timestamp = timestamp;
+    this.routingKey = routingKey;
+  }
+
+  /**
+   * @return The serialized event, a copy if the event is a view of a larger buffer.
+   *         Indexers that can send part of an array use {@link #getBuffer()} instead.
+   */
+  public byte[] getData() {
+    if (offset == 0 && length == buffer.length) {
+      return buffer;
+    }
+    return Arrays.copyOfRange(buffer, offset, offset + length);
+  }
+
+  /**
+   * @return The buffer holding the event from {@link #getOffset()} for {@link #getLength()} bytes. Not a copy.
+   */
+  public byte[] getBuffer() {
+    return buffer;
+  }
+
+  public int getOffset() {
+    return offset;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public String getRoutingKey() {
+    return routingKey;
+  }
+
+  /**
+   * @return An event that owns its data, for events kept beyond the call they were passed to
+   */
+  public LogstashEvent copy() {
+    return new LogstashEvent(Arrays.copyOfRange(buffer, offset, offset + length), timestamp, routingKey);
+  }
+
+  /**
+   * @return Events that own their data, in the same order
+   */
+  public static List<LogstashEvent> copyAll(List<LogstashEvent> events) {
+    List<LogstashEvent> result = new ArrayList<LogstashEvent>(events.size());
+    for (LogstashEvent event : events) {
+      result.add(event.copy());
+    }
+    return result;
+  }
+}
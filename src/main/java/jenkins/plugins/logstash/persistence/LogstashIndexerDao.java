@@ -57,6 +57,46 @@ public interface LogstashIndexerDao {
    */
   void push(String data) throws IOException;
 
+  /**
+   * Sends one event on its own, with its routing key if it has one. Indexers that pick
+   * where data goes by its time, such as an index per day, use the timestamp of the event
+   * rather than the time it is sent, which is later for data that was retried, spooled or
+   * journaled.
+   *
+   * @param event
+   *          The event, not null
+   * @throws java.io.IOException
+   *          The data is not written to the server
+   */
+  void push(LogstashEvent event) throws IOException;
+
+  /**
+   * Sends several events, in as few requests as the indexer allows. Returns once the
+   * indexer has taken them, even where requests complete on the indexer's own threads.
+   *
+   * @param data
+   *          The events, not null
+   * @throws PartialFailureException
+   *          Some of the events were rejected, the others were written
+   * @throws java.io.IOException
+   *          The data is not written to the server
+   */
+  void pushAll(List<LogstashEvent> data) throws IOException;
+
+  /**
+   * Tells whether the consumers of the indexer fall behind, so that senders should hold back
+   * even though the indexer still takes data. Cheap, the indexer checks its backlog on its own schedule.
+   *
+   * @return True while the backlog is above its high watermark and until it drops below its low watermark
+   */
+  boolean isBackedUp();
+
+  /**
+   * Releases the connections held by the indexer once it has been replaced.
+   * Pushes of builds that still hold it are refused from then on.
+   */
+  void close();
+
   /**
    * Builds a JSON payload compatible with the Logstash schema.
    *
@@ -0,0 +1,61 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Logstash plugin contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package jenkins.plugins.logstash.persistence;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the indexer accepted some of the events sent together but rejected
+ * others. Unlike other {@link IOException}s the connection itself is fine.
+ *
+ * @since 1.2.1
+ */
+public class PartialFailureException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  private final int failedCount;
+  private final int totalCount;
+
+  public PartialFailureException(String message, int failedCount, int totalCount) {
+    super(message);
+    this.failedCount = failedCount;
+    this.totalCount = totalCount;
+  }
+
+  /**
+   * @return The number of events that were not indexed.
+   */
+  public int getFailedCount() {
+    return failedCount;
+  }
+
+  /**
+   * @return The number of events that were sent.
+   */
+  public int getTotalCount() {
+    return totalCount;
+  }
+}
@@ -0,0 +1,292 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Logstash plugin contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.logstash.persistence;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Streaming encoder for Logstash payloads of one build.
+ * The build data is serialized once, when the encoder is created; each payload
+ * only adds the per-event fields around it. Payloads are written as UTF-8 straight
+ * into a buffer that is reused from one payload to the next, so the result is only
+ * valid until the next call to {@link #encode(List, Date)}.
+ * Produces the same document as {@link LogstashIndexerDao#buildPayload(BuildData, String, List)}.
+ * Not thread-safe.
+ *
+ * @since 1.2.1
+ */
+public final class PayloadEncoder {
+  private static final byte[] TAIL = ",\"@version\":1}".getBytes(StandardCharsets.UTF_8);
+  private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.UTF_8);
+  private static final int INITIAL_CAPACITY = 4096;
+
+  private final byte[] head;
+  private final byte[] middle;
+  private final TimestampFormatter timestampFormatter;
+  private byte[] buffer = new byte[INITIAL_CAPACITY];
+  private int size;
+
+  public PayloadEncoder(BuildData buildData, String jenkinsUrl) {
+    this(buildData, jenkinsUrl, TimestampFormatter.SECONDS);
+  }
+
+  public PayloadEncoder(BuildData buildData, String jenkinsUrl, TimestampFormatter timestampFormatter) {
+    this(buildData.toJsonBytes(), jenkinsUrl, buildData.getTimestamp(), timestampFormatter);
+  }
+
+  public PayloadEncoder(byte[] data, String jenkinsUrl, String buildTimestamp) {
+    this(data, jenkinsUrl, buildTimestamp, TimestampFormatter.SECONDS);
+  }
+
+  /**
+   * @param data
+   *          The serialized build data, not null
+   * @param jenkinsUrl
+   *          The host name of the Jenkins instance, nullable
+   * @param buildTimestamp
+   *          The formatted start time of the build, nullable
+   * @param timestampFormatter
+   *          Formats the time of each event, not null
+   */
+  public PayloadEncoder(byte[] data, String jenkinsUrl, String buildTimestamp, TimestampFormatter timestampFormatter) {
+    this.timestampFormatter = timestampFormatter;
+    writeAscii("{\"data\":");
+    writeBytes(data, 0, data.length);
+    writeAscii(",\"message\":");
+    head = toByteArray();
+
+    size = 0;
+    writeAscii(",\"source\":\"jenkins\"");
+    if (jenkinsUrl != null) {
+      writeAscii(",\"source_host\":");
+      writeString(jenkinsUrl);
+    }
+    if (buildTimestamp != null) {
+      writeAscii(",\"@buildTimestamp\":");
+      writeString(buildTimestamp);
+    }
+    writeAscii(",\"@timestamp\":");
+    middle = toByteArray();
+    size = 0;
+  }
+
+  /**
+   * Creates an encoder for the same build with a buffer of its own, without
+   * serializing the build data again.
+   *
+   * @param template
+   *          The encoder to share the build data with, not null
+   */
+  public PayloadEncoder(PayloadEncoder template) {
+    this.head = template.head;
+    this.middle = template.middle;
+    this.timestampFormatter = template.timestampFormatter;
+  }
+
+  /**
+   * Encodes one payload into the buffer, replacing the previous one.
+   *
+   * @param logLines
+   *          The log data to transmit, not null
+   * @param timestamp
+   *          The time of the event
+   */
+  public void encode(List<String> logLines, Date timestamp) {
+    size = 0;
+    encodeNext(logLines, timestamp);
+  }
+
+  /**
+   * Encodes one more payload behind those already in the buffer, so that the events of
+   * a bulk push share one buffer. The buffer is replaced as it grows: take it once the
+   * last payload is encoded.
+   *
+   * @param logLines
+   *          The log data to transmit, not null
+   * @param timestamp
+   *          The time of the event
+   */
+  public void encodeNext(List<String> logLines, Date timestamp) {
+    writeBytes(head, 0, head.length);
+    append('[');
+    for (int i = 0; i < logLines.size(); i++) {
+      if (i > 0) {
+        append(',');
+      }
+      writeString(logLines.get(i));
+    }
+    append(']');
+    writeBytes(middle, 0, middle.length);
+    writeString(timestampFormatter.format(timestamp));
+    writeBytes(TAIL, 0, TAIL.length);
+  }
+
+  /**
+   * @return The buffer holding the current payload from index 0 to {@link #size()}. Not a copy.
+   */
+  public byte[] buffer() {
+    return buffer;
+  }
+
+  /**
+   * @return The length of the current payload in bytes.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return A copy of the current payload.
+   */
+  public byte[] toByteArray() {
+    return Arrays.copyOf(buffer, size);
+  }
+
+  @Override
+  public String toString() {
+    return new String(buffer, 0, size, StandardCharsets.UTF_8);
+  }
+
+  private void ensureCapacity(int extra) {
+    int required = size + extra;
+    if (required > buffer.length) {
+      buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+    }
+  }
+
+  private void append(char c) {
+    ensureCapacity(1);
+    buffer[size++] = (byte) c;
+  }
+
+  private void writeBytes(byte[] bytes, int offset, int length) {
+    ensureCapacity(length);
+    System.arraycopy(bytes, offset, buffer, size, length);
+    size += length;
+  }
+
+  // Only for constants known to be ASCII and to need no escaping
+  private void writeAscii(String value) {
+    ensureCapacity(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      buffer[size++] = (byte) value.charAt(i);
+    }
+  }
+
+  /**
+   * Writes a quoted and escaped JSON string. Printable ASCII, the bulk of any
+   * console log, is copied a byte per char; the rest goes through the slow path.
+   */
+  private void writeString(String value) {
+    int length = value.length();
+    ensureCapacity(length + 2);
+    buffer[size++] = '"';
+
+    int i = 0;
+    for (; i < length; i++) {
+      char c = value.charAt(i);
+      if (c < 0x20 || c >= 0x80 || c == '"' || c == '\\') {
+        break;
+      }
+      buffer[size++] = (byte) c;
+    }
+
+    for (; i < length; i++) {
+      char c = value.charAt(i);
+      // Worst case: an escaped control character or a 4 byte sequence, plus the closing quote
+      ensureCapacity(7);
+      if (c < 0x80) {
+        writeAsciiChar(c);
+      } else if (c < 0x800) {
+        buffer[size++] = (byte) (0xc0 | (c >> 6));
+        buffer[size++] = (byte) (0x80 | (c & 0x3f));
+      } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        buffer[size++] = (byte) (0xf0 | (codePoint >> 18));
+        buffer[size++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+        buffer[size++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+        buffer[size++] = (byte) (0x80 | (codePoint & 0x3f));
+      } else if (Character.isSurrogate(c)) {
+        // Unpaired surrogate, replaced like String.getBytes does
+        buffer[size++] = '?';
+      } else {
+        buffer[size++] = (byte) (0xe0 | (c >> 12));
+        buffer[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        buffer[size++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+
+    ensureCapacity(1);
+    buffer[size++] = '"';
+  }
+
+  // Caller ensures capacity
+  private void writeAsciiChar(char c) {
+    switch (c) {
+      case '"':
+        buffer[size++] = '\\';
+        buffer[size++] = '"';
+        break;
+      case '\\':
+        buffer[size++] = '\\';
+        buffer[size++] = '\\';
+        break;
+      case '\n':
+        buffer[size++] = '\\';
+        buffer[size++] = 'n';
+        break;
+      case '\r':
+        buffer[size++] = '\\';
+        buffer[size++] = 'r';
+        break;
+      case '\t':
+        buffer[size++] = '\\';
+        buffer[size++] = 't';
+        break;
+      case '\b':
+        buffer[size++] = '\\';
+        buffer[size++] = 'b';
+        break;
+      case '\f':
+        buffer[size++] = '\\';
+        buffer[size++] = 'f';
+        break;
+      default:
+        if (c < 0x20) {
+          buffer[size++] = '\\';
+          buffer[size++] = 'u';
+          buffer[size++] = '0';
+          buffer[size++] = '0';
+          buffer[size++] = HEX[c >> 4];
+          buffer[size++] = HEX[c & 0xf];
+        } else {
+          buffer[size++] = (byte) c;
+        }
+    }
+  }
+}
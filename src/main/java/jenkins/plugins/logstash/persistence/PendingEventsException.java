@@ -0,0 +1,52 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Logstash plugin contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.logstash.persistence;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Thrown when events sent together failed after some of them had already been indexed.
+ * Only the pending events are to be sent again, the others would be indexed twice.
+ *
+ * @since 1.2.1
+ */
+public class PendingEventsException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  private final transient List<LogstashEvent> pendingEvents;
+
+  public PendingEventsException(String message, List<LogstashEvent> pendingEvents, Throwable cause) {
+    super(message, cause);
+    this.pendingEvents = pendingEvents;
+  }
+
+  /**
+   * @return The events that were not indexed, in the order they were given.
+   */
+  public List<LogstashEvent> getPendingEvents() {
+    return pendingEvents;
+  }
+}
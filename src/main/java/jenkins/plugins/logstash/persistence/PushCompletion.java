@@ -0,0 +1,74 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Logstash plugin contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package jenkins.plugins.logstash.persistence;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The outcome of a push whose requests complete on other threads, such as the I/O
+ * threads of a non-blocking client or the thread broker confirms arrive on. Settled
+ * once; the pushing thread waits for it.
+ *
+ * @since 1.2.1
+ */
+class PushCompletion {
+  private final CountDownLatch settled = new CountDownLatch(1);
+  private volatile IOException failure;
+
+  void completed() {
+    settled.countDown();
+  }
+
+  /**
+   * @param e
+   *          A {@link PartialFailureException} if only some of the events were rejected
+   */
+  void failed(IOException e) {
+    failure = e;
+    settled.countDown();
+  }
+
+  /**
+   * Waits until the push is settled.
+   *
+   * @throws IOException
+   *          The failure the push was settled with
+   */
+  void await() throws IOException {
+    try {
+      settled.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the push to complete");
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+}
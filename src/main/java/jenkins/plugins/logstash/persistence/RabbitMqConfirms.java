@@ -0,0 +1,212 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Logstash plugin contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package jenkins.plugins.logstash.persistence;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * The publisher confirms of one RabbitMQ channel in confirm mode. Publishing does
+ * not wait for the broker: each message is recorded under its delivery tag, and the
+ * acks and nacks the broker sends back, each possibly covering all the tags up to its
+ * own, settle them as they arrive. Nacked messages are handed back for publishing
+ * again, a few times, and only them. If the channel shuts down, the messages still
+ * waiting for a confirm fail, since they may or may not have been delivered.
+ *
+ * @since 1.2.1
+ */
+final class RabbitMqConfirms implements ConfirmListener, ShutdownListener {
+  // How often a nacked message is published again before it counts as rejected
+  static final int MAX_REPUBLISH = 3;
+
+  /**
+   * Publishes a nacked message again, possibly on another channel.
+   * Called on the connection's thread, so it must not block.
+   */
+  static interface Republisher {
+    void republish(String routingKey, byte[] body, Batch batch, int attempt);
+  }
+
+  /**
+   * Messages published together, settled as one push once all of them are.
+   */
+  static final class Batch {
+    private final PushCompletion completion;
+    private final int total;
+    private final AtomicInteger remaining;
+    private final AtomicInteger rejected = new AtomicInteger();
+    private final AtomicBoolean settled = new AtomicBoolean();
+
+    Batch(int total, PushCompletion completion) {
+      this.total = total;
+      this.remaining = new AtomicInteger(total);
+      this.completion = completion;
+    }
+
+    void confirmed() {
+      if (remaining.decrementAndGet() == 0) {
+        settle();
+      }
+    }
+
+    void rejected() {
+      rejected.incrementAndGet();
+      confirmed();
+    }
+
+    /**
+     * Fails the whole batch, whatever confirms of it are still to come.
+     */
+    void failed(IOException e) {
+      if (settled.compareAndSet(false, true)) {
+        completion.failed(e);
+      }
+    }
+
+    boolean isSettled() {
+      return settled.get();
+    }
+
+    private void settle() {
+      if (!settled.compareAndSet(false, true)) {
+        return;
+      }
+
+      int count = rejected.get();
+      if (count == 0) {
+        completion.completed();
+      } else {
+        completion.failed(new PartialFailureException(count + " of " + total + " events were rejected by the broker", count, total));
+      }
+    }
+  }
+
+  private static final class Outstanding {
+    final String routingKey;
+    final byte[] body;
+    final Batch batch;
+    final int attempt;
+
+    Outstanding(String routingKey, byte[] body, Batch batch, int attempt) {
+      this.routingKey = routingKey;
+      this.body = body;
+      this.batch = batch;
+      this.attempt = attempt;
+    }
+  }
+
+  private final ConcurrentSkipListMap<Long, Outstanding> outstanding = new ConcurrentSkipListMap<Long, Outstanding>();
+  private final Republisher republisher;
+
+  RabbitMqConfirms(Republisher republisher) {
+    this.republisher = republisher;
+  }
+
+  /**
+   * Publishes a message and records it until the broker confirms it.
+   * The caller has the channel to itself.
+   *
+   * @param exchange
+   *          The exchange, empty for the default exchange
+   * @param routingKey
+   *          The routing key, the queue name for the default exchange
+   * @param attempt
+   *          0 for the first publish, then the number of times it was nacked
+   */
+  void publish(Channel channel, String exchange, String routingKey, byte[] body, Batch batch, int attempt) throws IOException {
+    long tag = channel.getNextPublishSeqNo();
+    outstanding.put(tag, new Outstanding(routingKey, body, batch, attempt));
+    try {
+      channel.basicPublish(exchange, routingKey, null, body);
+    } catch (IOException e) {
+      outstanding.remove(tag);
+      throw e;
+    }
+  }
+
+  int getOutstandingCount() {
+    return outstanding.size();
+  }
+
+  @Override
+  public void handleAck(long deliveryTag, boolean multiple) {
+    for (Outstanding message : take(deliveryTag, multiple)) {
+      message.batch.confirmed();
+    }
+  }
+
+  @Override
+  public void handleNack(long deliveryTag, boolean multiple) {
+    for (Outstanding message : take(deliveryTag, multiple)) {
+      if (message.batch.isSettled()) {
+        // The batch failed as a whole already and is sent again by its owner
+        continue;
+      }
+      if (message.attempt >= MAX_REPUBLISH) {
+        message.batch.rejected();
+      } else {
+        republisher.republish(message.routingKey, message.body, message.batch, message.attempt + 1);
+      }
+    }
+  }
+
+  @Override
+  public void shutdownCompleted(ShutdownSignalException cause) {
+    for (Outstanding message : take(Long.MAX_VALUE, true)) {
+      message.batch.failed(new IOException("The channel closed before the broker confirmed the events", cause));
+    }
+  }
+
+  // Removes the messages a confirm covers: its own tag, or with multiple all tags up to it
+  private List<Outstanding> take(long deliveryTag, boolean multiple) {
+    List<Outstanding> result = new ArrayList<Outstanding>();
+    if (!multiple) {
+      Outstanding message = outstanding.remove(deliveryTag);
+      if (message != null) {
+        result.add(message);
+      }
+      return result;
+    }
+
+    Map.Entry<Long, Outstanding> entry;
+    while ((entry = outstanding.firstEntry()) != null && entry.getKey() <= deliveryTag) {
+      if (outstanding.remove(entry.getKey(), entry.getValue())) {
+        result.add(entry.getValue());
+      }
+    }
+    return result;
+  }
+}
@@ -25,21 +25,54 @@
 package jenkins.plugins.logstash.persistence;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.lang.StringUtils;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+import com.rabbitmq.client.ShutdownSignalException;
 
 /**
  * RabbitMQ Data Access Object.
+ * One connection is opened on first use and kept open; the client library recovers it,
+ * with its channels and the queue, after a network failure. Each publish checks out a
+ * channel of its own, since channels must not be shared between threads, and returns
+ * it to a pool of idle channels once done.
+ * In confirm mode, channels are opened with publisher confirms and the broker's
+ * confirms are tracked asynchronously, see {@link RabbitMqConfirms}; a push publishes
+ * all of its events and then returns once the broker has confirmed them.
+ * Events go to the queue through the default exchange, or, if an exchange is configured,
+ * to that exchange with the routing key of their build, so that several consumers can
+ * share the load while the events of each build stay in order.
+ * The queue or exchange is declared once per connection, and again only after the
+ * connection has been recovered or a channel was closed because something was not found.
  *
  * @author Rusty Gerard
  * @since 1.0.0
  */
 public class RabbitMqDao extends AbstractLogstashIndexerDao {
   final ConnectionFactory pool;
+  final Map<Channel, RabbitMqConfirms> confirms = new ConcurrentHashMap<Channel, RabbitMqConfirms>();
+  // Nacked events are published again from here, confirms arrive on the connection's own thread
+  Executor republishExecutor;
+  volatile LinkedBlockingDeque<Channel> channels = new LinkedBlockingDeque<Channel>(IndexerSettings.DEFAULT_RABBIT_MQ_CHANNELS);
+  private Connection connection;
+  private boolean closed;
+  // Whether the queue has been declared on the current connection
+  volatile boolean topologyDeclared;
 
   //primary constructor used by indexer factory
   public RabbitMqDao(String host, int port, String key, String username, String password) {
@@ -60,6 +93,8 @@ public class RabbitMqDao extends AbstractLogstashIndexerDao {
     pool = factory == null ? new ConnectionFactory() : factory;
     pool.setHost(host);
     pool.setPort(port);
+    pool.setAutomaticRecoveryEnabled(true);
+    pool.setTopologyRecoveryEnabled(true);
 
     if (!StringUtils.isBlank(username) && !StringUtils.isBlank(password)) {
       pool.setPassword(password);
@@ -67,31 +102,254 @@ public class RabbitMqDao extends AbstractLogstashIndexerDao {
     }
   }
 
+  @Override
+  void configure(IndexerSettings settings) {
+    super.configure(settings);
+    pool.setNetworkRecoveryInterval(settings.getRabbitMqRecoveryMillis());
+
+    LinkedBlockingDeque<Channel> previous = channels;
+    channels = new LinkedBlockingDeque<Channel>(settings.getRabbitMqChannels());
+    closeChannels(previous);
+  }
+
+  /**
+   * In confirm mode the push returns once the broker has confirmed the message; a message
+   * the broker rejects is published again a few times before the push fails.
+   */
   @Override
   public void push(String data) throws IOException {
-    Connection connection = null;
-    Channel channel = null;
-    try {
-      connection = pool.newConnection();
-      channel = connection.createChannel();
+    publish(Collections.singletonList(new LogstashEvent(data.getBytes(), System.currentTimeMillis())));
+  }
+
+  @Override
+  public void push(LogstashEvent event) throws IOException {
+    publish(Collections.singletonList(event));
+  }
 
-      // Ensure the queue exists
+  /**
+   * Publishes the events one after the other on the same channel. In confirm mode the
+   * events are all published before the push waits for the broker to confirm them.
+   */
+  @Override
+  public void pushAll(List<LogstashEvent> data) throws IOException {
+    if (data.isEmpty()) {
+      return;
+    }
+
+    publish(data);
+  }
+
+  /**
+   * @return The exchange events are published to, empty for the default exchange
+   */
+  private String getExchange() {
+    return StringUtils.defaultString(settings.getRabbitMqExchange()).trim();
+  }
+
+  /**
+   * @return The routing key of the event: the queue name on the default exchange, otherwise
+   *         the key of its build, or the queue name for events that do not belong to one
+   */
+  private String routingKeyOf(String exchange, LogstashEvent event) {
+    return exchange.isEmpty() || event.getRoutingKey() == null ? key : event.getRoutingKey();
+  }
+
+  private void publish(List<LogstashEvent> events) throws IOException {
+    if (settings.isRabbitMqConfirms()) {
+      PushCompletion completion = new PushCompletion();
+      RabbitMqConfirms.Batch batch = new RabbitMqConfirms.Batch(events.size(), completion);
       try {
-        channel.queueDeclarePassive(key);
+        publishConfirmed(events, batch, 0);
       } catch (IOException e) {
-        // The queue does not exist and the channel has been closed
-        finalizeChannel(channel);
+        batch.failed(e);
+      }
+      completion.await();
+      return;
+    }
 
-        // Create the queue
-        channel = connection.createChannel();
-        channel.queueDeclare(key, true, false, false, null);
+    String exchange = getExchange();
+    Channel channel = null;
+    boolean healthy = false;
+    try {
+      channel = declareTopology(borrowChannel(), exchange);
+      for (LogstashEvent event : events) {
+        channel.basicPublish(exchange, routingKeyOf(exchange, event), null, event.getData());
       }
+      healthy = true;
+    } finally {
+      releaseChannel(channel, healthy);
+    }
+  }
 
-      channel.basicPublish("", key, null, data.getBytes());
+  private void publishConfirmed(List<LogstashEvent> events, RabbitMqConfirms.Batch batch, int attempt) throws IOException {
+    String exchange = getExchange();
+    Channel channel = null;
+    boolean healthy = false;
+    try {
+      channel = declareTopology(borrowChannel(), exchange);
+      RabbitMqConfirms tracker = confirms.get(channel);
+      for (LogstashEvent event : events) {
+        tracker.publish(channel, exchange, routingKeyOf(exchange, event), event.getData(), batch, attempt);
+      }
+      healthy = true;
     } finally {
+      releaseChannel(channel, healthy);
+    }
+  }
+
+  private void republish(final String routingKey, final byte[] body, final RabbitMqConfirms.Batch batch, final int attempt) {
+    Executor executor;
+    try {
+      executor = getRepublishExecutor();
+    } catch (IOException e) {
+      batch.failed(e);
+      return;
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          publishConfirmed(Collections.singletonList(new LogstashEvent(body, System.currentTimeMillis(), routingKey)), batch, attempt);
+        } catch (IOException e) {
+          batch.failed(e);
+        }
+      }
+    });
+  }
+
+  private synchronized Executor getRepublishExecutor() throws IOException {
+    checkOpen();
+    if (republishExecutor == null) {
+      republishExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "RabbitMQ republish [" + getDescription() + "]");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return republishExecutor;
+  }
+
+  /**
+   * Opens a channel, in confirm mode if configured.
+   */
+  private Channel openChannel(Connection connection) throws IOException {
+    Channel channel = connection.createChannel();
+    if (settings.isRabbitMqConfirms()) {
+      RabbitMqConfirms tracker = new RabbitMqConfirms(new RabbitMqConfirms.Republisher() {
+        @Override
+        public void republish(String routingKey, byte[] body, RabbitMqConfirms.Batch batch, int attempt) {
+          RabbitMqDao.this.republish(routingKey, body, batch, attempt);
+        }
+      });
+      channel.confirmSelect();
+      channel.addConfirmListener(tracker);
+      channel.addShutdownListener(tracker);
+      confirms.put(channel, tracker);
+    }
+    return channel;
+  }
+
+  /**
+   * Declares the queue, or the exchange if one is configured, unless it has been declared
+   * on the current connection already.
+   *
+   * @return The channel to publish on, see {@link #declareQueue(Channel)}
+   */
+  private Channel declareTopology(Channel channel, String exchange) throws IOException {
+    if (topologyDeclared) {
+      return channel;
+    }
+
+    // Several threads may declare at the same time, declarations are idempotent
+    Channel result;
+    if (exchange.isEmpty()) {
+      result = declareQueue(channel);
+    } else {
+      // Consumers declare and bind their own queues
+      channel.exchangeDeclare(exchange, settings.getRabbitMqExchangeType(), true);
+      result = channel;
+    }
+    topologyDeclared = true;
+    return result;
+  }
+
+  /**
+   * Forgets the declared topology if the channel was closed because something it used is gone.
+   */
+  private void checkCloseReason(Channel channel) {
+    ShutdownSignalException cause = channel.getCloseReason();
+    if (cause != null && cause.getReason() instanceof AMQP.Channel.Close
+        && ((AMQP.Channel.Close) cause.getReason()).getReplyCode() == AMQP.NOT_FOUND) {
+      topologyDeclared = false;
+    }
+  }
+
+  /**
+   * Ensures the queue exists.
+   *
+   * @return The channel to publish on, a new one if the passive declaration closed the given one
+   */
+  private Channel declareQueue(Channel channel) throws IOException {
+    try {
+      channel.queueDeclarePassive(key);
+      return channel;
+    } catch (IOException e) {
+      // The queue does not exist and the channel has been closed
       finalizeChannel(channel);
-      finalizeConnection(connection);
+
+      // Create the queue
+      Channel created = openChannel(getConnection());
+      created.queueDeclare(key, true, false, false, null);
+      return created;
+    }
+  }
+
+  private Channel borrowChannel() throws IOException {
+    // Fails while the connection is being recovered, its channels are recovered along with it
+    Connection current = getConnection();
+    Channel channel;
+    while ((channel = channels.pollFirst()) != null) {
+      // Closed by the broker, such as after a failed passive declaration
+      if (channel.isOpen()) {
+        return channel;
+      }
+      checkCloseReason(channel);
+    }
+    return openChannel(current);
+  }
+
+  // Channels that failed may be in any state, they are closed rather than reused
+  private void releaseChannel(Channel channel, boolean healthy) {
+    if (channel == null) {
+      return;
+    }
+    if (!healthy || !channel.isOpen() || !channels.offerFirst(channel)) {
+      finalizeChannel(channel);
+    }
+  }
+
+  private synchronized Connection getConnection() throws IOException {
+    checkOpen();
+    if (connection == null) {
+      connection = pool.newConnection();
+      topologyDeclared = false;
+      if (connection instanceof Recoverable) {
+        // Recovery redeclares what was declared on the connection, but not what was found by a passive declaration
+        ((Recoverable) connection).addRecoveryListener(new RecoveryListener() {
+          @Override
+          public void handleRecovery(Recoverable recoverable) {
+            topologyDeclared = false;
+          }
+        });
+      }
+    } else if (!connection.isOpen()) {
+      // Automatic recovery is reopening it, opening another one meanwhile would leak one of the two
+      throw new IOException("The connection to " + getDescription() + " is being recovered");
     }
+    return connection;
   }
 
   @Override
@@ -99,6 +357,42 @@ public class RabbitMqDao extends AbstractLogstashIndexerDao {
     return IndexerType.RABBIT_MQ;
   }
 
+  // Caller holds the lock
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException("RabbitMQ indexer " + getDescription() + " is closed");
+    }
+  }
+
+  /**
+   * Closes the idle channels and the connection, which also stops its recovery.
+   * The connection is not opened again, builds still pushing to this indexer are refused.
+   */
+  @Override
+  public void close() {
+    closeChannels(channels);
+    synchronized (this) {
+      closed = true;
+      if (connection != null && !connection.isOpen()) {
+        // Stops a recovery in progress
+        connection.abort();
+      }
+      finalizeConnection(connection);
+      connection = null;
+      if (republishExecutor instanceof ExecutorService) {
+        ((ExecutorService) republishExecutor).shutdown();
+      }
+      republishExecutor = null;
+    }
+  }
+
+  private void closeChannels(LinkedBlockingDeque<Channel> idle) {
+    Channel channel;
+    while ((channel = idle.pollFirst()) != null) {
+      finalizeChannel(channel);
+    }
+  }
+
   private void finalizeConnection(Connection connection) {
     if (connection != null && connection.isOpen()) {
       try {
@@ -111,6 +405,10 @@ public class RabbitMqDao extends AbstractLogstashIndexerDao {
   }
 
   private void finalizeChannel(Channel channel) {
+    if (channel != null) {
+      // Its tracker has failed whatever it was still waiting for once the channel shut down
+      confirms.remove(channel);
+    }
     if (channel != null && channel.isOpen()) {
       try {
         channel.close();
@@ -118,6 +416,8 @@ public class RabbitMqDao extends AbstractLogstashIndexerDao {
         // This shouldn't happen but if it does there's nothing we can do
         e.printStackTrace();
       }
+    } else if (channel != null) {
+      checkCloseReason(channel);
     }
   }
 }
@@ -0,0 +1,86 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Logstash plugin contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package jenkins.plugins.logstash.persistence;
+
+/**
+ * The backlog of a Redis list or stream, against a high and a low watermark.
+ * Once the sampled length reaches the high watermark the backlog counts as backed
+ * up, and it stays so until the length drops to the low watermark, so that a length
+ * hovering around one watermark does not make senders flap between the two states.
+ *
+ * @since 1.2.1
+ */
+final class RedisBacklog {
+  final long highWatermark;
+  final long lowWatermark;
+  private volatile boolean backedUp;
+  private volatile long depth = -1;
+
+  /**
+   * @param lowWatermark
+   *          0 for three quarters of the high watermark
+   */
+  RedisBacklog(long highWatermark, long lowWatermark) {
+    if (highWatermark < 1) {
+      throw new IllegalArgumentException("high watermark must be positive");
+    }
+    if (lowWatermark >= highWatermark) {
+      throw new IllegalArgumentException("low watermark must be below the high watermark");
+    }
+
+    this.highWatermark = highWatermark;
+    this.lowWatermark = lowWatermark > 0 ? lowWatermark : highWatermark * 3 / 4;
+  }
+
+  boolean isBackedUp() {
+    return backedUp;
+  }
+
+  /**
+   * @return The last sampled length, or -1 before the first sample
+   */
+  long getDepth() {
+    return depth;
+  }
+
+  /**
+   * @param depth
+   *          The sampled length of the list or stream
+   * @return True if the sample changed whether the backlog is backed up
+   */
+  boolean update(long depth) {
+    this.depth = depth;
+    if (!backedUp && depth >= highWatermark) {
+      backedUp = true;
+      return true;
+    }
+    if (backedUp && depth <= lowWatermark) {
+      backedUp = false;
+      return true;
+    }
+    return false;
+  }
+}
@@ -25,6 +25,26 @@
 package jenkins.plugins.logstash.persistence;
 
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jenkins.plugins.logstash.persistence.IndexerSettings.RedisDataType;
 
 import org.apache.commons.lang.StringUtils;
 
@@ -32,24 +52,67 @@ import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
 import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
 import redis.clients.jedis.exceptions.JedisException;
 
 /**
  * Redis Data Access Object.
+ * Connections come from a pool that authenticates them once, when they are opened,
+ * and keeps them open between pushes. How long callers wait for a connection and
+ * how often the pool runs out is logged every few minutes, which helps to size it.
+ * Events go to a list with RPUSH, or to a stream with XADD, which lets several
+ * consumers share the work and keeps the stream trimmed to about a maximum length.
+ * Additional brokers turn on sharding: each broker gets a pool of its own, and the
+ * data of each build goes to one broker, see {@link RedisShards}.
+ * With a high watermark, the length of the list or stream is sampled in the background,
+ * and senders are asked to hold back while it is too long, see {@link RedisBacklog}.
+ * Closing the indexer closes its pools for good; builds that still push to it are refused,
+ * so that they spool or give up instead of opening connections nobody closes again.
  *
  * @author Rusty Gerard
  * @since 1.0.0
  */
 public class RedisDao extends AbstractLogstashIndexerDao {
-  final JedisPool pool;
+  private static final Logger LOG = Logger.getLogger(RedisDao.class.getName());
+  private static final long STATS_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+  private static final long STRAINED_WAIT_MILLIS = 100;
+  private static final long SHARD_RECHECK_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  // ARGV[1] is the approximate maximum length of the stream, 0 for none, the other arguments are the events
+  private static final byte[] XADD_SCRIPT = ("local added = 0\n" +
+    "for i = 2, #ARGV do\n" +
+    "  if ARGV[1] == '0' then\n" +
+    "    redis.call('XADD', KEYS[1], '*', 'event', ARGV[i])\n" +
+    "  else\n" +
+    "    redis.call('XADD', KEYS[1], 'MAXLEN', '~', ARGV[1], '*', 'event', ARGV[i])\n" +
+    "  end\n" +
+    "  added = added + 1\n" +
+    "end\n" +
+    "return added\n").getBytes(StandardCharsets.UTF_8);
+  private static final byte[] XADD_SCRIPT_SHA1 = sha1Hex(XADD_SCRIPT);
+  // Jedis 2.6 has no XLEN
+  private static final byte[] XLEN_SCRIPT = "return redis.call('XLEN', KEYS[1])".getBytes(StandardCharsets.UTF_8);
+
+  volatile RedisShards shards;
+  final boolean ownsPool;
+  private final byte[] keyBytes;
+  volatile RedisBacklog backlog;
+  private ScheduledExecutorService backlogCheck;
+  private volatile boolean closed;
 
   //primary constructor used by indexer factory
   public RedisDao(String host, int port, String key, String username, String password) {
-    this(null, host, port, key, username, password);
+    this((JedisPool) null, host, port, key, username, password);
   }
 
   // Factored for unit testing
   RedisDao(JedisPool factory, String host, int port, String key, String username, String password) {
+    this(factory == null ? null : new RedisShards(Arrays.asList(createShard(host, port, factory)), SHARD_RECHECK_MILLIS, null),
+      host, port, key, username, password);
+  }
+
+  // Factored for unit testing
+  RedisDao(RedisShards shards, String host, int port, String key, String username, String password) {
     super(host, port, key, username, password);
 
     if (StringUtils.isBlank(key)) {
@@ -58,36 +121,399 @@ public class RedisDao extends AbstractLogstashIndexerDao {
 
     // The JedisPool must be a singleton
     // We assume this is used as a singleton as well
-    pool = factory == null ? new JedisPool(new JedisPoolConfig(), host, port) : factory;
+    ownsPool = shards == null;
+    this.shards = ownsPool ? createShards(settings) : shards;
+    keyBytes = key.getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Override
+  void configure(IndexerSettings settings) {
+    super.configure(settings);
+    if (ownsPool) {
+      // Connections are only opened on demand, so the pools built with the defaults hold none yet
+      RedisShards previous = shards;
+      shards = createShards(settings);
+      previous.close();
+    }
+
+    stopBacklogCheck();
+    backlog = settings.getRedisHighWatermark() > 0
+      ? new RedisBacklog(settings.getRedisHighWatermark(), settings.getRedisLowWatermark()) : null;
+    if (backlog != null && ownsPool) {
+      startBacklogCheck(settings.getRedisDepthCheckMillis());
+    }
+  }
+
+  private synchronized void startBacklogCheck(long periodMillis) {
+    backlogCheck = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "Redis backlog check");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    backlogCheck.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        checkBacklog();
+      }
+    }, 0, periodMillis, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void stopBacklogCheck() {
+    if (backlogCheck != null) {
+      backlogCheck.shutdownNow();
+      backlogCheck = null;
+    }
+  }
+
+  @Override
+  public boolean isBackedUp() {
+    RedisBacklog current = backlog;
+    return current != null && current.isBackedUp();
+  }
+
+  /**
+   * Samples the length of the list or stream on each broker that is up; the deepest one counts.
+   * Brokers that cannot be sampled are left out, outages are for the circuit breaker to deal with.
+   */
+  void checkBacklog() {
+    RedisBacklog current = backlog;
+    if (current == null) {
+      return;
+    }
+
+    long deepest = -1;
+    for (RedisShards.Shard shard : shards.shards) {
+      if (!shard.down) {
+        deepest = Math.max(deepest, depth(shard));
+      }
+    }
+    if (deepest >= 0 && current.update(deepest)) {
+      if (current.isBackedUp()) {
+        LOG.log(Level.WARNING, "Logstash: Redis key {0} holds {1} events, above the high watermark of {2}; holding log data back",
+          new Object[] { key, deepest, current.highWatermark });
+      } else {
+        LOG.log(Level.INFO, "Logstash: Redis key {0} is down to {1} events, sending log data again", new Object[] { key, deepest });
+      }
+    }
+  }
+
+  /**
+   * @return The length of the list or stream, or -1 if it could not be read
+   */
+  private long depth(RedisShards.Shard shard) {
+    Jedis jedis = null;
+    boolean connectionBroken = false;
+    try {
+      // Straight from the pool, so that the checks do not show up in the push statistics
+      jedis = shard.pool.getResource();
+      if (settings.getRedisDataType() == RedisDataType.STREAM) {
+        Object result = jedis.eval(XLEN_SCRIPT, 1, keyBytes);
+        return result instanceof Long ? (Long) result : -1;
+      }
+      return jedis.llen(keyBytes);
+    } catch (JedisException e) {
+      connectionBroken = (e instanceof JedisConnectionException);
+      LOG.log(Level.FINE, "Could not read the length of " + key + " on Redis broker " + shard, e);
+      return -1;
+    } finally {
+      returnResource(shard, jedis, connectionBroken);
+    }
+  }
+
+  private RedisShards createShards(IndexerSettings settings) {
+    List<RedisShards.Shard> list = new ArrayList<RedisShards.Shard>();
+    list.add(createShard(host, port, createPool(host, port, settings)));
+
+    for (String broker : settings.getRedisShards()) {
+      String shardHost = broker.trim();
+      int shardPort = port;
+      int colon = shardHost.lastIndexOf(':');
+      if (colon >= 0) {
+        try {
+          shardPort = Integer.parseInt(shardHost.substring(colon + 1));
+        } catch (NumberFormatException e) {
+          throw new IllegalArgumentException("broker '" + broker + "' must be given as host or host:port", e);
+        }
+        shardHost = shardHost.substring(0, colon);
+      }
+      if (StringUtils.isBlank(shardHost)) {
+        throw new IllegalArgumentException("broker '" + broker + "' must be given as host or host:port");
+      }
+      list.add(createShard(shardHost, shardPort, createPool(shardHost, shardPort, settings)));
+    }
+
+    return new RedisShards(list, SHARD_RECHECK_MILLIS, new RedisShards.Probe() {
+      @Override
+      public boolean isAlive(RedisShards.Shard shard) {
+        return RedisDao.this.isAlive(shard);
+      }
+    });
+  }
+
+  private static RedisShards.Shard createShard(String host, int port, JedisPool pool) {
+    return new RedisShards.Shard(host, port, pool, new RedisPoolStats(STATS_INTERVAL_MILLIS, System.currentTimeMillis()));
+  }
+
+  private JedisPool createPool(String host, int port, IndexerSettings settings) {
+    JedisPoolConfig config = new JedisPoolConfig();
+    config.setMaxTotal(settings.getRedisMaxConnections());
+    config.setMaxIdle(Math.min(settings.getRedisMaxIdle(), settings.getRedisMaxConnections()));
+    config.setMaxWaitMillis(settings.getRedisMaxWaitMillis());
+    config.setTestOnBorrow(settings.isRedisTestOnBorrow());
+
+    // The pool authenticates each connection once, when it opens it
+    return new JedisPool(config, host, port, settings.getRedisTimeoutMillis(), StringUtils.isBlank(password) ? null : password);
+  }
+
+  // Method to encapsulate calls for unit-testing
+  boolean isAlive(RedisShards.Shard shard) {
+    Jedis jedis = null;
+    boolean connectionBroken = false;
+    try {
+      jedis = shard.pool.getResource();
+      return "PONG".equals(jedis.ping());
+    } catch (JedisException e) {
+      connectionBroken = (e instanceof JedisConnectionException);
+      return false;
+    } finally {
+      returnResource(shard, jedis, connectionBroken);
+    }
   }
 
   @Override
   public void push(String data) throws IOException {
+    rpush(data, null, null);
+  }
+
+  /**
+   * Goes to the broker of the event's routing key.
+   */
+  @Override
+  public void push(LogstashEvent event) throws IOException {
+    rpush(null, event.getData(), event.getRoutingKey());
+  }
+
+  // Exactly one of data and rawData is set
+  private void rpush(String data, byte[] rawData, String routingKey) throws IOException {
+    checkOpen();
+    RedisShards.Shard shard = shards.select(routingKey);
     Jedis jedis = null;
     boolean connectionBroken = false;
     try {
-      jedis = pool.getResource();
-      if (!StringUtils.isBlank(password)) {
-        jedis.auth(password);
+      jedis = getResource(shard);
+      if (settings.getRedisDataType() == RedisDataType.STREAM) {
+        xadd(jedis, new byte[][] { data != null ? data.getBytes(StandardCharsets.UTF_8) : rawData });
+        return;
       }
 
-      jedis.connect();
-      long result = jedis.rpush(key, data);
-      jedis.disconnect();
+      long result = data != null ? jedis.rpush(key, data) : jedis.rpush(keyBytes, rawData);
       if (result <= 0) {
         throw new IOException("Failed to push results");
       }
     } catch (JedisException e) {
-      connectionBroken = (e instanceof JedisConnectionException);
+      connectionBroken = failed(shard, e);
       throw new IOException(e);
     } finally {
-      if (jedis != null) {
-        if (connectionBroken) {
-          pool.returnBrokenResource(jedis);
-        } else {
-          pool.returnResource(jedis);
+      returnResource(shard, jedis, connectionBroken);
+    }
+  }
+
+  /**
+   * Pushes the events with one variadic RPUSH, or one script call adding them to the stream,
+   * per batch, all over the same connection, so that a batch costs one round trip instead
+   * of one per event. With several brokers, the events are first grouped by broker.
+   */
+  @Override
+  public void pushAll(List<LogstashEvent> data) throws IOException {
+    if (data.isEmpty()) {
+      return;
+    }
+    checkOpen();
+    if (shards.shards.size() == 1) {
+      pushAll(shards.shards.get(0), data);
+      return;
+    }
+
+    // The events of one build share their routing key, so they are usually all for the same broker
+    Map<RedisShards.Shard, List<LogstashEvent>> byShard = new LinkedHashMap<RedisShards.Shard, List<LogstashEvent>>();
+    for (LogstashEvent event : data) {
+      RedisShards.Shard shard = shards.select(event.getRoutingKey());
+      List<LogstashEvent> events = byShard.get(shard);
+      if (events == null) {
+        events = new ArrayList<LogstashEvent>();
+        byShard.put(shard, events);
+      }
+      events.add(event);
+    }
+
+    PendingEventsException failure = null;
+    Set<LogstashEvent> pending = Collections.newSetFromMap(new IdentityHashMap<LogstashEvent, Boolean>());
+    for (Map.Entry<RedisShards.Shard, List<LogstashEvent>> entry : byShard.entrySet()) {
+      try {
+        pushAll(entry.getKey(), entry.getValue());
+      } catch (PendingEventsException e) {
+        // Keep going, the other brokers may well take their events
+        failure = e;
+        pending.addAll(e.getPendingEvents());
+      }
+    }
+    if (failure != null) {
+      List<LogstashEvent> events = new ArrayList<LogstashEvent>(pending.size());
+      for (LogstashEvent event : data) {
+        if (pending.contains(event)) {
+          events.add(event);
         }
       }
+      throw new PendingEventsException(failure.getMessage(), events, failure.getCause());
+    }
+  }
+
+  /**
+   * Pushes the events to one broker in chunks of the configured size.
+   *
+   * @throws PendingEventsException
+   *           With the events of the chunk that failed and those after it, the chunks before it were pushed
+   */
+  private void pushAll(RedisShards.Shard shard, List<LogstashEvent> data) throws PendingEventsException {
+    int batchSize = settings.getRedisBatchSize();
+    boolean stream = settings.getRedisDataType() == RedisDataType.STREAM;
+    Jedis jedis = null;
+    boolean connectionBroken = false;
+    int from = 0;
+    try {
+      jedis = getResource(shard);
+      for (; from < data.size(); from += batchSize) {
+        List<LogstashEvent> batch = data.subList(from, Math.min(data.size(), from + batchSize));
+        byte[][] values = new byte[batch.size()][];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = batch.get(i).getData();
+        }
+
+        if (stream) {
+          xadd(jedis, values);
+        } else if (jedis.rpush(keyBytes, values) < values.length) {
+          // The length of the list after the push
+          throw new IOException("Failed to push results");
+        }
+      }
+    } catch (JedisException e) {
+      connectionBroken = failed(shard, e);
+      throw pending(data, from, new IOException(e));
+    } catch (IOException e) {
+      throw pending(data, from, e);
+    } finally {
+      returnResource(shard, jedis, connectionBroken);
+    }
+  }
+
+  private static PendingEventsException pending(List<LogstashEvent> data, int from, IOException e) {
+    return new PendingEventsException(e.getMessage(), new ArrayList<LogstashEvent>(data.subList(from, data.size())), e);
+  }
+
+  /**
+   * Adds the values to the stream with a single script call. The script is sent by its digest,
+   * and only in full when the server does not know it yet.
+   */
+  private void xadd(Jedis jedis, byte[][] values) throws IOException {
+    byte[][] params = new byte[values.length + 2][];
+    params[0] = keyBytes;
+    params[1] = Integer.toString(settings.getRedisStreamMaxLength()).getBytes(StandardCharsets.UTF_8);
+    System.arraycopy(values, 0, params, 2, values.length);
+
+    Object result;
+    try {
+      result = jedis.evalsha(XADD_SCRIPT_SHA1, 1, params);
+    } catch (JedisDataException e) {
+      if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+        throw e;
+      }
+      // EVAL also caches the script for the next EVALSHA
+      result = jedis.eval(XADD_SCRIPT, 1, params);
+    }
+
+    // The number of entries added
+    if (!(result instanceof Long) || (Long) result < values.length) {
+      throw new IOException("Failed to push results");
+    }
+  }
+
+  private static byte[] sha1Hex(byte[] data) {
+    try {
+      StringBuilder result = new StringBuilder();
+      for (byte b : MessageDigest.getInstance("SHA-1").digest(data)) {
+        result.append(String.format("%02x", b & 0xff));
+      }
+      return result.toString().getBytes(StandardCharsets.UTF_8);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Redis indexer " + getDescription() + " is closed");
+    }
+  }
+
+  private Jedis getResource(RedisShards.Shard shard) {
+    long start = System.nanoTime();
+    try {
+      return shard.pool.getResource();
+    } catch (JedisConnectionException e) {
+      // The pool gave up waiting for a connection
+      if (e.getCause() instanceof NoSuchElementException) {
+        shard.stats.recordExhausted();
+      }
+      throw e;
+    } finally {
+      shard.stats.recordBorrow(System.nanoTime() - start);
+      reportPoolStats(shard);
+    }
+  }
+
+  /**
+   * @return True if the connection is broken, in which case the broker is marked down
+   */
+  private boolean failed(RedisShards.Shard shard, JedisException e) {
+    if (!(e instanceof JedisConnectionException)) {
+      return false;
+    }
+    // An exhausted pool says nothing about the broker
+    if (!(e.getCause() instanceof NoSuchElementException)) {
+      shards.markDown(shard);
+    }
+    return true;
+  }
+
+  private void returnResource(RedisShards.Shard shard, Jedis jedis, boolean connectionBroken) {
+    if (jedis != null) {
+      if (connectionBroken) {
+        shard.pool.returnBrokenResource(jedis);
+      } else {
+        shard.pool.returnResource(jedis);
+      }
+    }
+  }
+
+  private void reportPoolStats(RedisShards.Shard shard) {
+    boolean strained = shard.stats.isStrained(STRAINED_WAIT_MILLIS);
+    String summary = shard.stats.report(System.currentTimeMillis());
+    if (summary != null) {
+      LOG.log(strained ? Level.INFO : Level.FINE, "Logstash: Redis connection pool of " + shard + ": " + summary);
+    }
+  }
+
+  @Override
+  public void close() {
+    // Builds that keep pushing to a replaced indexer are no longer held back
+    stopBacklogCheck();
+    backlog = null;
+    closed = true;
+    if (ownsPool) {
+      shards.close();
     }
   }
 
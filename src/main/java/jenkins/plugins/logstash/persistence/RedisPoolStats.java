@@ -0,0 +1,106 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Logstash plugin contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package jenkins.plugins.logstash.persistence;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Borrow statistics of a Redis connection pool over a reporting interval: how
+ * often a connection was borrowed, how long callers waited for one, and how
+ * often the pool was exhausted, i.e. a caller gave up waiting.
+ * The counters start over with every report.
+ *
+ * @since 1.2.1
+ */
+final class RedisPoolStats {
+  final long intervalMillis;
+  private long intervalStart;
+  private long borrows;
+  private long waitNanos;
+  private long maxWaitNanos;
+  private long exhausted;
+
+  RedisPoolStats(long intervalMillis, long now) {
+    this.intervalMillis = intervalMillis;
+    this.intervalStart = now;
+  }
+
+  synchronized void recordBorrow(long waitNanos) {
+    borrows++;
+    this.waitNanos += waitNanos;
+    maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+  }
+
+  synchronized void recordExhausted() {
+    exhausted++;
+  }
+
+  synchronized long getBorrowCount() {
+    return borrows;
+  }
+
+  synchronized long getExhaustedCount() {
+    return exhausted;
+  }
+
+  synchronized double getMeanWaitMillis() {
+    return borrows == 0 ? 0 : waitNanos / (double) borrows / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  synchronized double getMaxWaitMillis() {
+    return maxWaitNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  /**
+   * @return True if the pool had to make callers wait noticeably, or ran out of connections
+   */
+  synchronized boolean isStrained(long waitThresholdMillis) {
+    return exhausted > 0 || getMaxWaitMillis() >= waitThresholdMillis;
+  }
+
+  /**
+   * Summarizes the interval and starts the next one, once the interval has elapsed.
+   *
+   * @param now
+   *          The current time in milliseconds
+   * @return The summary, or null if the interval has not elapsed or nothing was borrowed
+   */
+  synchronized String report(long now) {
+    if (now - intervalStart < intervalMillis) {
+      return null;
+    }
+
+    String result = borrows == 0 ? null : String.format(Locale.ENGLISH, "%d borrows in %d s, mean wait %.1f ms, max wait %.1f ms, exhausted %d times",
+      borrows, TimeUnit.MILLISECONDS.toSeconds(now - intervalStart), getMeanWaitMillis(), getMaxWaitMillis(), exhausted);
+    intervalStart = now;
+    borrows = 0;
+    waitNanos = 0;
+    maxWaitNanos = 0;
+    exhausted = 0;
+    return result;
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Logstash plugin contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package jenkins.plugins.logstash.persistence;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import redis.clients.jedis.JedisPool;
+
+/**
+ * The Redis brokers events are spread over, each with its own connection pool.
+ * Events are assigned by consistent hashing of their routing key, so that all the
+ * lines of one build go to the same broker and stay in order there, and adding a
+ * broker only moves a share of the builds. A broker that cannot be reached is
+ * marked down and its builds go to the next broker on the ring until a background
+ * check finds it reachable again. With a single broker nothing is ever marked down.
+ *
+ * @since 1.2.1
+ */
+final class RedisShards {
+  private static final Logger LOG = Logger.getLogger(RedisShards.class.getName());
+  // Points per broker on the ring, enough to spread the builds evenly
+  private static final int VIRTUAL_NODES = 160;
+
+  /**
+   * Tells whether a broker that is marked down answers again.
+   */
+  static interface Probe {
+    boolean isAlive(Shard shard);
+  }
+
+  static final class Shard {
+    final String host;
+    final int port;
+    final JedisPool pool;
+    final RedisPoolStats stats;
+    volatile boolean down;
+
+    Shard(String host, int port, JedisPool pool, RedisPoolStats stats) {
+      this.host = host;
+      this.port = port;
+      this.pool = pool;
+      this.stats = stats;
+    }
+
+    @Override
+    public String toString() {
+      return host + ":" + port;
+    }
+  }
+
+  final List<Shard> shards;
+  private final SortedMap<Long, Shard> ring = new TreeMap<Long, Shard>();
+  private final long recheckMillis;
+  private final Probe probe;
+  private ScheduledExecutorService recheck;
+
+  RedisShards(List<Shard> shards, long recheckMillis, Probe probe) {
+    if (shards.isEmpty()) {
+      throw new IllegalArgumentException("at least one broker is required");
+    }
+
+    this.shards = Collections.unmodifiableList(new ArrayList<Shard>(shards));
+    this.recheckMillis = recheckMillis;
+    this.probe = probe;
+    for (Shard shard : shards) {
+      for (int i = 0; i < VIRTUAL_NODES; i++) {
+        ring.put(hash(shard + "-" + i), shard);
+      }
+    }
+  }
+
+  /**
+   * Picks the broker for a routing key. Brokers that are marked down are skipped
+   * as long as another one is up.
+   *
+   * @param routingKey
+   *          Identifies the data that must stay together, nullable
+   * @return The broker, never null
+   */
+  Shard select(String routingKey) {
+    if (shards.size() == 1) {
+      return shards.get(0);
+    }
+    if (routingKey == null) {
+      // Data without a key, such as data spooled by an earlier version, goes to the first broker that is up
+      for (Shard shard : shards) {
+        if (!shard.down) {
+          return shard;
+        }
+      }
+      return shards.get(0);
+    }
+
+    long hash = hash(routingKey);
+    Shard owner = null;
+    for (Map.Entry<Long, Shard> entry : ring.tailMap(hash).entrySet()) {
+      owner = owner == null ? entry.getValue() : owner;
+      if (!entry.getValue().down) {
+        return entry.getValue();
+      }
+    }
+    for (Map.Entry<Long, Shard> entry : ring.headMap(hash).entrySet()) {
+      owner = owner == null ? entry.getValue() : owner;
+      if (!entry.getValue().down) {
+        return entry.getValue();
+      }
+    }
+    return owner;
+  }
+
+  void markDown(Shard shard) {
+    if (shards.size() == 1 || shard.down) {
+      return;
+    }
+
+    LOG.log(Level.WARNING, "Redis broker {0} is not reachable, sending its builds to the other brokers", shard);
+    shard.down = true;
+    scheduleRecheck();
+  }
+
+  /**
+   * Stops the background checks and closes the pools.
+   */
+  synchronized void close() {
+    if (recheck != null) {
+      recheck.shutdownNow();
+      recheck = null;
+    }
+    for (Shard shard : shards) {
+      shard.pool.destroy();
+    }
+  }
+
+  private synchronized void scheduleRecheck() {
+    if (recheck != null) {
+      return;
+    }
+
+    recheck = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "Redis broker check");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    recheck.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        recheck();
+      }
+    }, recheckMillis, recheckMillis, TimeUnit.MILLISECONDS);
+  }
+
+  void recheck() {
+    for (Shard shard : shards) {
+      try {
+        if (shard.down && probe.isAlive(shard)) {
+          LOG.log(Level.INFO, "Redis broker {0} is reachable again", shard);
+          shard.down = false;
+        }
+      } catch (RuntimeException e) {
+        // Keep checking the other brokers, and this one on the next round
+        LOG.log(Level.FINE, "Check of Redis broker " + shard + " failed", e);
+      }
+    }
+  }
+
+  // The first 8 bytes of the MD5 digest, which spreads similar keys such as consecutive build numbers
+  static long hash(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+      long result = 0;
+      for (int i = 0; i < 8; i++) {
+        result = (result << 8) | (digest[i] & 0xff);
+      }
+      return result;
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -4,12 +4,35 @@ import com.cloudbees.syslog.sender.UdpSyslogMessageSender;
 import com.cloudbees.syslog.Facility;
 import com.cloudbees.syslog.MessageFormat;
 import com.cloudbees.syslog.Severity;
+import com.cloudbees.syslog.SyslogMessage;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import jenkins.plugins.logstash.persistence.IndexerSettings.SyslogTransport;
 
 
+/**
+ * Syslog Data Access Object.
+ * Sends each event as an RFC 5424 message, over UDP or over a persistent TCP connection,
+ * see {@link TcpSyslogSender}. The senders are configured once, not for each message.
+ * Over UDP, events that would not fit into a datagram are split and small events are
+ * packed together, see {@link SyslogDatagramSplitter}.
+ */
 public class SyslogDao extends AbstractLogstashIndexerDao {
+  static final String APP_NAME = "jenkins:";
+  // Making the JSON document compliant to Common Event Expression (CEE)
+  // http://www.rsyslog.com/json-elasticsearch/
+  static final String CEE_PREFIX = " @cee: ";
+  // Every IPv4 receiver must accept syslog datagrams of this size, see RFC 5426
+  static final int MIN_DATAGRAM_BYTES = 480;
+
   final UdpSyslogMessageSender messageSender;
-  
+  volatile TcpSyslogSender tcpSender;
+  volatile SyslogDatagramSplitter splitter;
+  private volatile boolean closed;
+
   public SyslogDao(String host, int port, String key, String username, String password) {
     this(null, host, port, key, username, password);
   }
@@ -17,25 +40,130 @@ public class SyslogDao extends AbstractLogstashIndexerDao {
   public SyslogDao(UdpSyslogMessageSender udpSyslogMessageSender, String host, int port, String key, String username, String password) {
     super(host, port, key, username, password);
     messageSender = udpSyslogMessageSender == null ? new UdpSyslogMessageSender() : udpSyslogMessageSender;
-  }
 
-  @Override
-  public void push(String data) throws IOException {
-    // Making the JSON document compliant to Common Event Expression (CEE)
-    // http://www.rsyslog.com/json-elasticsearch/
-    data = " @cee: "  + data;
     // SYSLOG Configuration
     messageSender.setDefaultMessageHostname(host);
-    messageSender.setDefaultAppName("jenkins:");
+    messageSender.setDefaultAppName(APP_NAME);
     messageSender.setDefaultFacility(Facility.USER);
     messageSender.setDefaultSeverity(Severity.INFORMATIONAL);
     messageSender.setSyslogServerHostname(host);
     messageSender.setSyslogServerPort(port);
     messageSender.setMessageFormat(MessageFormat.RFC_5424);
-    // Sending the message
-    messageSender.sendMessage(data);
+  }
+
+  @Override
+  void configure(IndexerSettings settings) {
+    if (settings.getSyslogMaxDatagramBytes() < MIN_DATAGRAM_BYTES) {
+      throw new IllegalArgumentException("syslog datagrams must be allowed at least " + MIN_DATAGRAM_BYTES + " bytes");
+    }
+    super.configure(settings);
+
+    TcpSyslogSender previous = tcpSender;
+    SyslogTransport transport = settings.getSyslogTransport();
+    tcpSender = transport == null || transport == SyslogTransport.UDP ? null : createTcpSender(transport == SyslogTransport.TLS);
+    if (previous != null) {
+      previous.close();
+    }
+
+    // The header and the CEE prefix are the same for every message, measured on an empty one
+    splitter = tcpSender == null ? new SyslogDatagramSplitter(settings.getSyslogMaxDatagramBytes() - format("").length) : null;
+  }
+
+  // Method to encapsulate calls for unit-testing
+  TcpSyslogSender createTcpSender(boolean tls) {
+    return new TcpSyslogSender(host, port, tls);
+  }
+
+  @Override
+  public void push(String data) throws IOException {
+    checkOpen();
+    TcpSyslogSender sender = tcpSender;
+    if (sender != null) {
+      sender.send(Collections.singletonList(format(data)));
+      return;
+    }
+
+    SyslogDatagramSplitter datagrams = splitter;
+    if (datagrams == null) {
+      // Sending the message
+      messageSender.sendMessage(CEE_PREFIX + data);
+      return;
+    }
+    sendDatagrams(datagrams.split(data));
+  }
+
+  /**
+   * Over TCP, the events are written together and flushed once. Over UDP, they are packed
+   * into as few datagrams as they fit.
+   */
+  @Override
+  public void pushAll(List<LogstashEvent> data) throws IOException {
+    checkOpen();
+    TcpSyslogSender sender = tcpSender;
+    SyslogDatagramSplitter datagrams = splitter;
+    if (sender == null && datagrams == null) {
+      super.pushAll(data);
+      return;
+    }
+    if (data.isEmpty()) {
+      return;
+    }
+
+    if (sender == null) {
+      List<String> payloads = new ArrayList<String>(data.size());
+      for (LogstashEvent event : data) {
+        payloads.add(new String(event.getBuffer(), event.getOffset(), event.getLength(), StandardCharsets.UTF_8));
+      }
+      sendDatagrams(datagrams.pack(payloads));
+      return;
+    }
+
+    List<byte[]> messages = new ArrayList<byte[]>(data.size());
+    for (LogstashEvent event : data) {
+      messages.add(format(new String(event.getBuffer(), event.getOffset(), event.getLength(), StandardCharsets.UTF_8)));
+    }
+    sender.send(messages);
+  }
+
+  private void checkOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Syslog indexer " + getDescription() + " is closed");
+    }
+  }
+
+  private void sendDatagrams(List<String> documents) throws IOException {
+    for (String document : documents) {
+      messageSender.sendMessage(CEE_PREFIX + document);
+    }
+  }
+
+  /**
+   * @return The event as a UTF-8 encoded RFC 5424 message, with the same header as the UDP sender writes
+   */
+  byte[] format(String data) {
+    SyslogMessage message = new SyslogMessage()
+      .withTimestamp(System.currentTimeMillis())
+      .withHostname(host)
+      .withAppName(APP_NAME)
+      .withFacility(Facility.USER)
+      .withSeverity(Severity.INFORMATIONAL)
+      .withMsg(CEE_PREFIX + data);
+    return message.toRfc5424SyslogMessage().getBytes(StandardCharsets.UTF_8);
   }
 
   @Override
   public IndexerType getIndexerType() { return IndexerType.SYSLOG; }
+
+  /**
+   * Closes the TCP connection, if any. Builds still pushing to this indexer are refused,
+   * the connection is not opened again.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    TcpSyslogSender sender = tcpSender;
+    if (sender != null) {
+      sender.close();
+    }
+  }
 }
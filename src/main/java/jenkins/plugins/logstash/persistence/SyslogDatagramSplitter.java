@@ -0,0 +1,390 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Logstash plugin contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package jenkins.plugins.logstash.persistence;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Fits Logstash payloads into syslog datagrams, which are lost as a whole if they are too large.
+ * A payload that fits is sent as it is. Consecutive payloads that differ only in their lines
+ * and @timestamp, such as those of one build, are packed into one as long as it fits, so that
+ * each datagram carries as many lines as it can. The lines of a payload that does not fit are
+ * split over several, each with the other fields of the payload and the fields
+ * {@value #CORRELATION_ID}, {@value #SEQUENCE} and {@value #SEQUENCE_COUNT}; a line that does
+ * not fit on its own is cut into pieces. If even a payload without lines does not fit, such as
+ * one with many build variables, its text is sent in pieces, as the field {@value #FRAGMENT}
+ * of otherwise empty documents, for the receiver to join.
+ * Not thread-safe.
+ *
+ * @since 1.2.1
+ */
+final class SyslogDatagramSplitter {
+  static final String CORRELATION_ID = "@correlationId";
+  static final String SEQUENCE = "@sequence";
+  static final String SEQUENCE_COUNT = "@sequenceCount";
+  static final String FRAGMENT = "@fragment";
+  // The smallest document size that leaves room for some text next to the correlation fields
+  static final int MIN_DOCUMENT_BYTES = 256;
+
+  private static final String MESSAGE = "message";
+  private static final String TIMESTAMP = "@timestamp";
+  // A UUID has a fixed length, the sequence numbers are sized for the longest
+  private static final String WIDEST_ID = "00000000-0000-0000-0000-000000000000";
+  private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+  final int maxBytes;
+  private final JsonParser parser = new JsonParser();
+
+  /**
+   * @param maxBytes
+   *          The maximum size of a UTF-8 encoded document
+   */
+  SyslogDatagramSplitter(int maxBytes) {
+    if (maxBytes < MIN_DOCUMENT_BYTES) {
+      throw new IllegalArgumentException("syslog documents must be allowed at least " + MIN_DOCUMENT_BYTES + " bytes");
+    }
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @param payload
+   *          A JSON document
+   * @return The documents to send in its place, each at most maxBytes long
+   */
+  List<String> split(String payload) {
+    if (sizeOf(payload) <= maxBytes) {
+      return Collections.singletonList(payload);
+    }
+    return pack(Collections.singletonList(payload));
+  }
+
+  /**
+   * @param payloads
+   *          JSON documents, in the order they are to be sent
+   * @return The documents to send in their place, each at most maxBytes long
+   */
+  List<String> pack(List<String> payloads) {
+    List<String> result = new ArrayList<String>();
+    Group group = null;
+    for (String payload : payloads) {
+      JsonObject event = parse(payload);
+      if (event == null) {
+        flush(group, result);
+        group = null;
+        if (sizeOf(payload) <= maxBytes) {
+          result.add(payload);
+        } else {
+          fragment(payload, result);
+        }
+      } else if (group != null && group.accepts(event, maxBytes)) {
+        group.add(payload, event);
+      } else {
+        flush(group, result);
+        group = new Group(payload, event);
+      }
+    }
+    flush(group, result);
+    return result;
+  }
+
+  private JsonObject parse(String payload) {
+    try {
+      JsonElement element = parser.parse(payload);
+      return element.isJsonObject() ? element.getAsJsonObject() : null;
+    } catch (JsonParseException e) {
+      return null;
+    }
+  }
+
+  private void flush(Group group, List<String> result) {
+    if (group == null) {
+      return;
+    }
+
+    if (group.payloads.size() == 1 && sizeOf(group.payloads.get(0)) <= maxBytes) {
+      result.add(group.payloads.get(0));
+      return;
+    }
+
+    String packed = GSON.toJson(group.render(group.lines, null, 0, 0));
+    if (sizeOf(packed) <= maxBytes) {
+      result.add(packed);
+      return;
+    }
+
+    int available = maxBytes - sizeOf(GSON.toJson(group.render(Collections.<String>emptyList(), WIDEST_ID, Integer.MAX_VALUE, Integer.MAX_VALUE)));
+    // Leaves room for at least a few characters of a line, its quotes and separator
+    if (available < 16) {
+      fragment(group.payloads.size() == 1 ? group.payloads.get(0) : packed, result);
+      return;
+    }
+
+    List<List<String>> chunks = new ArrayList<List<String>>();
+    List<String> chunk = new ArrayList<String>();
+    int chunkBytes = 0;
+    for (String line : group.lines) {
+      int lineBytes = escapedSize(line) + 3;
+      if (lineBytes > available) {
+        // Too long on its own, cut into pieces that each fill a payload
+        for (String piece : cut(line, available - 3)) {
+          if (!chunk.isEmpty()) {
+            chunks.add(chunk);
+            chunk = new ArrayList<String>();
+            chunkBytes = 0;
+          }
+          chunk.add(piece);
+          chunkBytes = available;
+        }
+        continue;
+      }
+      if (chunkBytes + lineBytes > available) {
+        chunks.add(chunk);
+        chunk = new ArrayList<String>();
+        chunkBytes = 0;
+      }
+      chunk.add(line);
+      chunkBytes += lineBytes;
+    }
+    if (!chunk.isEmpty()) {
+      chunks.add(chunk);
+    }
+
+    String id = UUID.randomUUID().toString();
+    for (int i = 0; i < chunks.size(); i++) {
+      result.add(GSON.toJson(group.render(chunks.get(i), id, i + 1, chunks.size())));
+    }
+  }
+
+  private void fragment(String text, List<String> result) {
+    JsonObject widest = new JsonObject();
+    widest.addProperty(CORRELATION_ID, WIDEST_ID);
+    widest.addProperty(SEQUENCE, Integer.MAX_VALUE);
+    widest.addProperty(SEQUENCE_COUNT, Integer.MAX_VALUE);
+    widest.addProperty(FRAGMENT, "");
+    List<String> pieces = cut(text, maxBytes - sizeOf(GSON.toJson(widest)));
+
+    String id = UUID.randomUUID().toString();
+    for (int i = 0; i < pieces.size(); i++) {
+      JsonObject document = new JsonObject();
+      document.addProperty(CORRELATION_ID, id);
+      document.addProperty(SEQUENCE, i + 1);
+      document.addProperty(SEQUENCE_COUNT, pieces.size());
+      document.addProperty(FRAGMENT, pieces.get(i));
+      result.add(GSON.toJson(document));
+    }
+  }
+
+  /**
+   * Cuts text into pieces whose escaped form is at most maxBytes long, never within a surrogate pair.
+   */
+  static List<String> cut(String text, int maxBytes) {
+    List<String> pieces = new ArrayList<String>();
+    int start = 0;
+    int bytes = 0;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      boolean pair = Character.isHighSurrogate(c) && i + 1 < text.length() && Character.isLowSurrogate(text.charAt(i + 1));
+      int size = pair ? 4 : escapedSize(c);
+      if (bytes + size > maxBytes && i > start) {
+        pieces.add(text.substring(start, i));
+        start = i;
+        bytes = 0;
+      }
+      bytes += size;
+      if (pair) {
+        i++;
+      }
+    }
+    if (start < text.length()) {
+      pieces.add(text.substring(start));
+    }
+    return pieces;
+  }
+
+  private static int escapedSize(String text) {
+    return sizeOf(GSON.toJson(new JsonPrimitive(text))) - 2;
+  }
+
+  // The size of a char as written by Gson, UTF-8 encoded; an unpaired surrogate counts as its worst case
+  private static int escapedSize(char c) {
+    switch (c) {
+      case '"':
+      case '\\':
+      case '\t':
+      case '\b':
+      case '\n':
+      case '\r':
+      case '\f':
+        return 2;
+      default:
+        // Gson escapes the JavaScript line separators as well
+        if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+          return 6;
+        }
+        return c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+    }
+  }
+
+  private static int sizeOf(String text) {
+    return text.getBytes(StandardCharsets.UTF_8).length;
+  }
+
+  /**
+   * Consecutive payloads with the same fields apart from their lines and @timestamp.
+   */
+  private static final class Group {
+    final JsonObject first;
+    // The number of fields of the first payload, apart from its lines and @timestamp
+    final int fieldCount;
+    final List<String> payloads = new ArrayList<String>();
+    final List<String> lines = new ArrayList<String>();
+
+    // An upper bound of the size of the packed payload
+    int bytes;
+
+    Group(String payload, JsonObject event) {
+      this.first = event;
+      this.fieldCount = countFields(event);
+      this.bytes = sizeOf(GSON.toJson(render(Collections.<String>emptyList(), null, 0, 0)));
+      add(payload, event);
+    }
+
+    /**
+     * @return True if the event has the same fields and its lines fit into the packed payload
+     */
+    boolean accepts(JsonObject event, int maxBytes) {
+      return bytes <= maxBytes && hasSameFields(event) && bytes + linesSize(linesOf(event)) <= maxBytes;
+    }
+
+    // Compares the parsed fields in place, the payloads of one build share them
+    private boolean hasSameFields(JsonObject event) {
+      int count = 0;
+      for (Map.Entry<String, JsonElement> entry : event.entrySet()) {
+        if (isPerEvent(entry.getKey())) {
+          continue;
+        }
+        count++;
+        if (!entry.getValue().equals(first.get(entry.getKey()))) {
+          return false;
+        }
+      }
+      return count == fieldCount;
+    }
+
+    void add(String payload, JsonObject event) {
+      List<String> added = linesOf(event);
+      payloads.add(payload);
+      lines.addAll(added);
+      bytes += linesSize(added);
+    }
+
+    private static List<String> linesOf(JsonObject event) {
+      List<String> result = new ArrayList<String>();
+      JsonElement message = event.get(MESSAGE);
+      if (message == null || message.isJsonNull()) {
+        return result;
+      }
+      if (message.isJsonArray()) {
+        for (JsonElement line : message.getAsJsonArray()) {
+          result.add(line.isJsonPrimitive() ? line.getAsString() : GSON.toJson(line));
+        }
+      } else {
+        result.add(message.isJsonPrimitive() ? message.getAsString() : GSON.toJson(message));
+      }
+      return result;
+    }
+
+    // Each line with its quotes and separator
+    private static int linesSize(List<String> lines) {
+      int result = 0;
+      for (String line : lines) {
+        result += escapedSize(line) + 3;
+      }
+      return result;
+    }
+
+    /**
+     * @return The first payload with the given lines, and the correlation fields unless id is null
+     */
+    JsonObject render(List<String> chunk, String id, int sequence, int count) {
+      JsonObject document = new JsonObject();
+      boolean hasMessage = false;
+      for (Map.Entry<String, JsonElement> entry : first.entrySet()) {
+        if (MESSAGE.equals(entry.getKey())) {
+          document.add(MESSAGE, toArray(chunk));
+          hasMessage = true;
+        } else {
+          document.add(entry.getKey(), entry.getValue());
+        }
+      }
+      if (!hasMessage && !chunk.isEmpty()) {
+        document.add(MESSAGE, toArray(chunk));
+      }
+      if (id != null) {
+        document.addProperty(CORRELATION_ID, id);
+        document.addProperty(SEQUENCE, sequence);
+        document.addProperty(SEQUENCE_COUNT, count);
+      }
+      return document;
+    }
+
+    private static JsonArray toArray(List<String> chunk) {
+      JsonArray array = new JsonArray();
+      for (String line : chunk) {
+        array.add(new JsonPrimitive(line));
+      }
+      return array;
+    }
+
+    private static int countFields(JsonObject event) {
+      int result = 0;
+      for (Map.Entry<String, JsonElement> entry : event.entrySet()) {
+        if (!isPerEvent(entry.getKey())) {
+          result++;
+        }
+      }
+      return result;
+    }
+
+    private static boolean isPerEvent(String field) {
+      return MESSAGE.equals(field) || TIMESTAMP.equals(field);
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Logstash plugin contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+
+package jenkins.plugins.logstash.persistence;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Sends syslog messages over one persistent TCP connection, optionally with TLS.
+ * Messages are framed by octet counting as in RFC 6587, each preceded by its length in
+ * bytes and a space, so that they may contain line breaks. They are written through a
+ * buffer that is flushed once per batch. A connection that failed is closed, and the batch
+ * is sent once more on a new connection; receivers may then get part of it twice.
+ * With TLS the server certificate is checked against the host name.
+ * Thread-safe, batches are sent one after the other.
+ *
+ * @since 1.2.1
+ */
+class TcpSyslogSender {
+  static final int CONNECT_TIMEOUT_MILLIS = 5000;
+  static final int READ_TIMEOUT_MILLIS = 30000;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  final String host;
+  final int port;
+  final boolean tls;
+
+  private Socket socket;
+  private OutputStream out;
+
+  TcpSyslogSender(String host, int port, boolean tls) {
+    this.host = host;
+    this.port = port;
+    this.tls = tls;
+  }
+
+  /**
+   * Writes the messages and flushes them, reconnecting first if the connection was lost.
+   *
+   * @param messages
+   *          Formatted syslog messages, UTF-8 encoded, not null
+   */
+  synchronized void send(List<byte[]> messages) throws IOException {
+    try {
+      write(messages);
+    } catch (IOException e) {
+      // The server may have closed an idle connection, which only shows on the next write
+      disconnect();
+      try {
+        write(messages);
+      } catch (IOException retryException) {
+        disconnect();
+        throw retryException;
+      }
+    }
+  }
+
+  private void write(List<byte[]> messages) throws IOException {
+    if (out == null) {
+      connect();
+    }
+
+    for (byte[] message : messages) {
+      out.write(Integer.toString(message.length).getBytes(StandardCharsets.US_ASCII));
+      out.write(' ');
+      out.write(message);
+    }
+    out.flush();
+  }
+
+  private void connect() throws IOException {
+    socket = createSocket();
+    out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+  }
+
+  // Method to encapsulate calls for unit-testing
+  Socket createSocket() throws IOException {
+    Socket plain = new Socket();
+    try {
+      plain.setKeepAlive(true);
+      // Bounds the TLS handshake and any other read, a server that stops answering is not waited on forever
+      plain.setSoTimeout(READ_TIMEOUT_MILLIS);
+      plain.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+      if (!tls) {
+        return plain;
+      }
+
+      SSLSocket secure = (SSLSocket) ((SSLSocketFactory) SSLSocketFactory.getDefault()).createSocket(plain, host, port, true);
+      // The certificate must be issued for the configured host, not only by a trusted authority
+      SSLParameters parameters = secure.getSSLParameters();
+      parameters.setEndpointIdentificationAlgorithm("HTTPS");
+      secure.setSSLParameters(parameters);
+      secure.startHandshake();
+      return secure;
+    } catch (IOException e) {
+      plain.close();
+      throw e;
+    }
+  }
+
+  synchronized boolean isConnected() {
+    return out != null;
+  }
+
+  /**
+   * Closes the connection, the next send opens a new one.
+   */
+  synchronized void close() {
+    disconnect();
+  }
+
+  private void disconnect() {
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Nothing left to do with a broken connection
+      }
+    }
+    socket = null;
+    out = null;
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Logstash plugin contributors
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+
+package jenkins.plugins.logstash.persistence;
+
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Thread-safe ISO 8601 timestamp formatter, e.g. 2015-06-01T12:34:56+0200 or,
+ * with millisecond precision, 2015-06-01T12:34:56.789+0200.
+ * The formatted second is cached, so all the lines logged within the same second
+ * share one formatting pass; only a change of second goes through {@link DateFormat}.
+ *
+ * @since 1.2.1
+ */
+public final class TimestampFormatter {
+  /** Formats to the second, the format used since 1.0.0. */
+  public static final TimestampFormatter SECONDS = new TimestampFormatter(false);
+
+  /** Formats to the millisecond. */
+  public static final TimestampFormatter MILLIS = new TimestampFormatter(true);
+
+  private final boolean millis;
+  private final DateFormat secondFormat;
+  private final DateFormat zoneFormat;
+  private volatile CachedSecond cached;
+
+  TimestampFormatter(boolean millis) {
+    this(millis, TimeZone.getDefault());
+  }
+
+  TimestampFormatter(boolean millis, TimeZone timeZone) {
+    this.millis = millis;
+    this.secondFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+    this.secondFormat.setTimeZone(timeZone);
+    this.zoneFormat = new SimpleDateFormat("Z");
+    this.zoneFormat.setTimeZone(timeZone);
+  }
+
+  /**
+   * @param millis
+   *          True for millisecond precision
+   * @return The shared formatter for the given precision
+   */
+  public static TimestampFormatter getInstance(boolean millis) {
+    return millis ? MILLIS : SECONDS;
+  }
+
+  public boolean isMillis() {
+    return millis;
+  }
+
+  public String format(Date date) {
+    return format(date.getTime());
+  }
+
+  /**
+   * @param time
+   *          Milliseconds since the epoch
+   * @return The formatted timestamp
+   */
+  public String format(long time) {
+    long second = time >= 0 ? time / 1000 : (time - 999) / 1000;
+
+    CachedSecond entry = cached;
+    if (entry == null || entry.second != second) {
+      entry = formatSecond(second);
+      cached = entry;
+    }
+
+    if (!millis) {
+      return entry.text;
+    }
+
+    int fraction = (int) (time - second * 1000);
+    StringBuilder result = new StringBuilder(entry.text.length() + 4);
+    result.append(entry.prefix).append('.');
+    if (fraction < 100) {
+      result.append('0');
+    }
+    if (fraction < 10) {
+      result.append('0');
+    }
+    return result.append(fraction).append(entry.zone).toString();
+  }
+
+  // Runs at most once per second and formatter, so a lock is cheaper than a formatter per thread
+  private synchronized CachedSecond formatSecond(long second) {
+    Date date = new Date(second * 1000);
+    return new CachedSecond(second, secondFormat.format(date), zoneFormat.format(date));
+  }
+
+  private static final class CachedSecond {
+    final long second;
+    final String prefix;
+    final String zone;
+    final String text;
+
+    CachedSecond(long second, String prefix, String zone) {
+      this.second = second;
+      this.prefix = prefix;
+      this.zone = zone;
+      this.text = prefix + zone;
+    }
+  }
+}
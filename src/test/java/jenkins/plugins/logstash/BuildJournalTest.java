@@ -0,0 +1,237 @@
+package jenkins.plugins.logstash;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import jenkins.plugins.logstash.persistence.LogstashEvent;
+import jenkins.plugins.logstash.persistence.LogstashIndexerDao;
+import jenkins.plugins.logstash.persistence.TimestampFormatter;
+import net.sf.json.JSONObject;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+@RunWith(MockitoJUnitRunner.class)
+public class BuildJournalTest {
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+  @Mock LogstashIndexerDao mockDao;
+
+  File directory;
+  BuildJournal journal;
+  List<List<Object>> pushed;
+  Answer<Void> recordPush;
+
+  @Before
+  public void before() throws Exception {
+    directory = new File(folder.getRoot(), "journal");
+    journal = new BuildJournal(directory, "folder/job#42", "{\"id\":\"42\"}".getBytes(StandardCharsets.UTF_8),
+      "http://my-jenkins-url", "2015-06-01T12:34:56+0000");
+
+    pushed = new ArrayList<List<Object>>();
+    recordPush = new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        LogstashEvent event = (LogstashEvent) invocation.getArguments()[0];
+        JSONObject payload = JSONObject.fromObject(new String(event.getData(), StandardCharsets.UTF_8));
+        pushed.add(new ArrayList<Object>(payload.getJSONArray("message")));
+        return null;
+      }
+    };
+    doAnswer(recordPush).when(mockDao).push(Matchers.any(LogstashEvent.class));
+  }
+
+  List<String> lines(int from, int to) {
+    List<String> result = new ArrayList<String>();
+    for (int i = from; i < to; i++) {
+      result.add("line " + i);
+    }
+    return result;
+  }
+
+  @Test
+  public void appendAndAcknowledgeReadBack() throws Exception {
+    journal.append("line 0", 1000);
+    journal.append("line 1", 2000);
+    journal.append("line 2", 3000);
+
+    // Unit under test
+    journal.acknowledge(0, 1);
+
+    // Verify results
+    BuildJournal.Contents contents = BuildJournal.read(journal.file);
+    assertEquals("Wrong build", "folder/job#42", contents.buildId);
+    assertEquals("Wrong url", "http://my-jenkins-url", contents.jenkinsUrl);
+    assertEquals("Wrong build timestamp", "2015-06-01T12:34:56+0000", contents.buildTimestamp);
+    assertEquals("Wrong build data", "{\"id\":\"42\"}", new String(contents.data, StandardCharsets.UTF_8));
+    assertEquals("Wrong acknowledged count", 1, contents.acknowledged);
+
+    List<BuildJournal.Line> unacknowledged = contents.getUnacknowledged();
+    assertEquals("Wrong line count", 2, unacknowledged.size());
+    assertEquals("Wrong first line", "line 1", unacknowledged.get(0).text);
+    assertEquals("Wrong timestamp", 2000, unacknowledged.get(0).timestamp);
+    assertEquals("Wrong last line", "line 2", unacknowledged.get(1).text);
+  }
+
+  @Test
+  public void closeDeletesOnceAcknowledged() throws Exception {
+    journal.append("line 0", 1000);
+    journal.append("line 1", 2000);
+
+    // Unit under test
+    journal.close();
+
+    // Verify results
+    assertTrue("Journal deleted with lines in flight", journal.file.exists());
+    journal.acknowledge(0, 2);
+    assertFalse("Journal not deleted", journal.file.exists());
+  }
+
+  @Test
+  public void appendReturnsOffsets() throws Exception {
+    // Unit under test
+    long first = journal.append("line 0", 1000);
+    long second = journal.append("line 1", 2000);
+
+    // Verify results
+    assertEquals("Wrong first offset", 0, first);
+    assertEquals("Wrong second offset", 1, second);
+    journal.close();
+    assertEquals("Appended after close", -1, journal.append("line 2", 3000));
+  }
+
+  @Test
+  public void appendIsWrittenOnFlush() throws Exception {
+    journal.append("line 0", 1000);
+    journal.append("line 1", 2000);
+    assertEquals("Written before flush", 0, journal.file.length());
+
+    // Unit under test
+    journal.flush();
+
+    // Verify results
+    assertEquals("Wrong line count", 2, BuildJournal.read(journal.file).lines.size());
+  }
+
+  @Test
+  public void acknowledgeOutOfOrderWaitsForEarlierLines() throws Exception {
+    for (String line : lines(0, 5)) {
+      journal.append(line, 1000);
+    }
+
+    // Unit under test
+    journal.acknowledge(2, 3);
+
+    // Verify results, the first two lines are still on their way
+    assertEquals("Acknowledged ahead of lines in flight", 0, journal.getAcknowledgedCount());
+    journal.acknowledge(0, 2);
+    assertEquals("Wrong acknowledged count", 5, journal.getAcknowledgedCount());
+    assertEquals("Wrong count on disk", 5, BuildJournal.read(journal.file).acknowledged);
+  }
+
+  @Test
+  public void closeWithoutLinesWritesNothing() throws Exception {
+    // Unit under test
+    journal.close();
+
+    // Verify results
+    assertFalse("Journal written", journal.file.exists());
+    assertTrue("Journal listed", BuildJournal.list(directory).isEmpty());
+  }
+
+  @Test
+  public void readStopsAtTornRecord() throws Exception {
+    journal.append("line 0", 1000);
+    journal.append("line 1", 2000);
+    journal.flush();
+    FileOutputStream out = new FileOutputStream(journal.file, true);
+    out.write(new byte[] { 1, 0, 0, 0 });
+    out.close();
+
+    // Unit under test
+    BuildJournal.Contents contents = BuildJournal.read(journal.file);
+
+    // Verify results
+    assertEquals("Wrong line count", 2, contents.lines.size());
+  }
+
+  @Test
+  public void replaySendsUnacknowledgedInOrder() throws Exception {
+    for (String line : lines(0, 150)) {
+      journal.append(line, 1000);
+    }
+    journal.acknowledge(0, 20);
+
+    // Unit under test
+    boolean done = BuildJournal.replay(journal.file, mockDao, new CircuitBreaker(mockDao, 1, 60000), TimestampFormatter.SECONDS, 0);
+
+    // Verify results
+    assertTrue("Replay not done", done);
+    assertFalse("Journal not deleted", journal.file.exists());
+    assertEquals("Wrong push count", 2, pushed.size());
+    assertEquals("Wrong first batch", lines(20, 120), pushed.get(0));
+    assertEquals("Wrong last batch", lines(120, 150), pushed.get(1));
+  }
+
+  @Test
+  public void replayKeepsRestOnFailure() throws Exception {
+    for (String line : lines(0, 150)) {
+      journal.append(line, 1000);
+    }
+    journal.flush();
+    doAnswer(recordPush).doThrow(new IOException("BOOM!"))
+      .when(mockDao).push(Matchers.any(LogstashEvent.class));
+    CircuitBreaker breaker = new CircuitBreaker(mockDao, 1, 60000);
+
+    // Unit under test
+    boolean done = BuildJournal.replay(journal.file, mockDao, breaker, TimestampFormatter.SECONDS, 0);
+
+    // Verify results
+    assertFalse("Replay done", done);
+    assertEquals("Breaker not opened", CircuitBreaker.State.OPEN, breaker.getState());
+    BuildJournal.Contents contents = BuildJournal.read(journal.file);
+    assertEquals("Wrong acknowledged count", 100, contents.acknowledged);
+    assertEquals("Wrong first pending line", "line 100", contents.getUnacknowledged().get(0).text);
+    assertEquals("Wrong pending count", 50, contents.getUnacknowledged().size());
+  }
+
+  @Test
+  public void toFileNameKeepsBuildsApart() throws Exception {
+    assertFalse("Names collide", BuildJournal.toFileName("a/b#1").equals(BuildJournal.toFileName("a_b#1")));
+    assertEquals("Wrong file name", "a%2Fb%231.journal", BuildJournal.toFileName("a/b#1"));
+  }
+
+  @Test
+  public void openKeepsLeftOverJournal() throws Exception {
+    journal.append("line 0", 1000);
+    journal.flush();
+    File leftOver = journal.file;
+    BuildJournal resumed = new BuildJournal(directory, "folder/job#42", "{\"id\":\"42\"}".getBytes(StandardCharsets.UTF_8),
+      "http://my-jenkins-url", "2015-06-01T12:34:56+0000");
+
+    // Unit under test
+    resumed.append("line 1", 2000);
+    resumed.flush();
+
+    // Verify results
+    assertFalse("Journal shared", leftOver.equals(resumed.file));
+    assertEquals("Wrong file name", BuildJournal.toFileName("folder/job#42", 1), resumed.file.getName());
+    assertEquals("Left-over journal overwritten", "line 0", BuildJournal.read(leftOver).lines.get(0).text);
+    assertEquals("Wrong line", "line 1", BuildJournal.read(resumed.file).lines.get(0).text);
+    assertEquals("Wrong journal count", 2, BuildJournal.list(directory).size());
+  }
+}
@@ -0,0 +1,111 @@
+package jenkins.plugins.logstash;
+
+import static org.junit.Assert.*;
+
+import jenkins.plugins.logstash.persistence.LogstashIndexerDao;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CircuitBreakerTest {
+  @Mock LogstashIndexerDao mockDao;
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructorFailZeroThreshold() throws Exception {
+    try {
+      new CircuitBreaker(mockDao, 0, 1000);
+    } catch (IllegalArgumentException e) {
+      assertEquals("Wrong error message was thrown", "failure threshold must be positive", e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test
+  public void onFailureOpensAtThreshold() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(mockDao, 2, 1000);
+
+    // Unit under test
+    breaker.onFailure(0);
+
+    // Verify results
+    assertTrue("Closed breaker refused", breaker.allowRequest(0));
+    breaker.onFailure(0);
+    assertEquals("Wrong state", CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse("Open breaker allowed request", breaker.allowRequest(999));
+  }
+
+  @Test
+  public void onSuccessResetsFailures() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(mockDao, 2, 1000);
+
+    // Unit under test
+    breaker.onFailure(0);
+    breaker.onSuccess();
+    breaker.onFailure(0);
+
+    // Verify results
+    assertEquals("Wrong state", CircuitBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void allowRequestProbesOnceWhenHalfOpen() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(mockDao, 1, 1000);
+    breaker.onFailure(0);
+
+    // Unit under test
+    boolean probe = breaker.allowRequest(1000);
+    boolean second = breaker.allowRequest(1001);
+
+    // Verify results
+    assertTrue("Probe refused", probe);
+    assertFalse("Second request allowed during probe", second);
+    assertEquals("Wrong state", CircuitBreaker.State.HALF_OPEN, breaker.getState());
+  }
+
+  @Test
+  public void probeSuccessCloses() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(mockDao, 1, 1000);
+    breaker.onFailure(0);
+    breaker.allowRequest(1000);
+
+    // Unit under test
+    breaker.onSuccess();
+
+    // Verify results
+    assertEquals("Wrong state", CircuitBreaker.State.CLOSED, breaker.getState());
+    assertTrue("Closed breaker refused", breaker.allowRequest(1001));
+  }
+
+  @Test
+  public void probeFailureReopens() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(mockDao, 3, 1000);
+    for (int i = 0; i < 3; i++) {
+      breaker.onFailure(0);
+    }
+    breaker.allowRequest(1000);
+
+    // Unit under test
+    breaker.onFailure(1500);
+
+    // Verify results
+    assertEquals("Wrong state", CircuitBreaker.State.OPEN, breaker.getState());
+    assertFalse("Reopened breaker allowed request", breaker.allowRequest(2499));
+    assertTrue("Probe refused", breaker.allowRequest(2500));
+  }
+
+  @Test
+  public void getInstanceReusedForSameSink() throws Exception {
+    CircuitBreaker first = CircuitBreaker.getInstance(mockDao, 5, 1000);
+
+    // Unit under test
+    CircuitBreaker second = CircuitBreaker.getInstance(mockDao, 5, 1000);
+    CircuitBreaker third = CircuitBreaker.getInstance(mockDao, 5, 2000);
+
+    // Verify results
+    assertSame("Breaker not reused", first, second);
+    assertNotSame("Breaker not replaced", first, third);
+  }
+}
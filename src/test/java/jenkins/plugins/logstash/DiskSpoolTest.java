@@ -0,0 +1,304 @@
+package jenkins.plugins.logstash;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import jenkins.plugins.logstash.persistence.LogstashEvent;
+import jenkins.plugins.logstash.persistence.LogstashIndexerDao;
+import jenkins.plugins.logstash.persistence.PendingEventsException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Matchers;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+@RunWith(MockitoJUnitRunner.class)
+public class DiskSpoolTest {
+  // Two segments of 64 KiB
+  static final long MAX_BYTES = 128 * 1024;
+
+  @Rule public TemporaryFolder folder = new TemporaryFolder();
+  @Mock LogstashIndexerDao mockDao;
+
+  File directory;
+  DiskSpool spool;
+
+  @Before
+  public void before() throws Exception {
+    directory = new File(folder.getRoot(), "spool");
+    spool = new DiskSpool(directory, MAX_BYTES);
+  }
+
+  @After
+  public void after() throws Exception {
+    spool.close();
+  }
+
+  static LogstashEvent event(String data, long timestamp) {
+    return new LogstashEvent(data.getBytes(StandardCharsets.UTF_8), timestamp);
+  }
+
+  static LogstashEvent event(char c, int length) {
+    char[] data = new char[length];
+    Arrays.fill(data, c);
+    return event(new String(data), 0);
+  }
+
+  static String text(DiskSpool.Record record) {
+    return new String(record.data, StandardCharsets.UTF_8);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructorFailTooSmall() throws Exception {
+    try {
+      new DiskSpool(directory, 1024);
+    } catch (IllegalArgumentException e) {
+      assertEquals("Wrong error message was thrown", "spool size must be at least 131072 bytes", e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test
+  public void appendPeekAcknowledgeInOrder() throws Exception {
+    // Unit under test
+    assertTrue("Append failed", spool.append(event("first", 1), false));
+    assertTrue("Append failed", spool.append(event("second", 2), true));
+    assertTrue("Append failed", spool.append(event("third", 3), false));
+
+    // Verify results
+    List<DiskSpool.Record> records = spool.peek(2);
+    assertEquals("Wrong record count", 2, records.size());
+    assertEquals("Wrong first record", "first", text(records.get(0)));
+    assertFalse("First record is an event", records.get(0).bulk);
+    assertEquals("Wrong second record", "second", text(records.get(1)));
+    assertTrue("Second record is no event", records.get(1).bulk);
+    assertEquals("Wrong timestamp", 2, records.get(1).timestamp);
+
+    spool.acknowledge(records);
+    assertEquals("Wrong pending count", 1, spool.getPendingCount());
+    assertEquals("Wrong remaining record", "third", text(spool.peek(10).get(0)));
+
+    spool.acknowledge(spool.peek(10));
+    assertTrue("Spool not empty", spool.isEmpty());
+  }
+
+  @Test
+  public void reopenKeepsPendingRecords() throws Exception {
+    spool.append(event("sent", 1), false);
+    spool.append(event("pending 1", 2), false);
+    spool.append(event("pending 2", 3), false);
+    spool.acknowledge(spool.peek(1));
+    spool.close();
+
+    // Unit under test
+    spool = new DiskSpool(directory, MAX_BYTES);
+
+    // Verify results
+    List<DiskSpool.Record> records = spool.peek(10);
+    assertEquals("Wrong pending count", 2, spool.getPendingCount());
+    assertEquals("Wrong record count", 2, records.size());
+    assertEquals("Wrong first record", "pending 1", text(records.get(0)));
+    assertEquals("Wrong second record", "pending 2", text(records.get(1)));
+
+    assertTrue("Append failed", spool.append(event("pending 3", 4), false));
+    assertEquals("Wrong appended record", "pending 3", text(spool.peek(10).get(2)));
+  }
+
+  @Test
+  public void appendEvictsOldestSegment() throws Exception {
+    // Two records per segment
+    spool.append(event('a', 30000), false);
+    spool.append(event('b', 30000), false);
+    spool.append(event('c', 30000), false);
+    spool.append(event('d', 30000), false);
+
+    // Unit under test
+    assertTrue("Append failed", spool.append(event('e', 30000), false));
+
+    // Verify results
+    List<DiskSpool.Record> records = spool.peek(10);
+    assertEquals("Wrong pending count", 3, spool.getPendingCount());
+    assertEquals("Wrong drop count", 2, spool.getDroppedCount());
+    assertEquals("Oldest segment not evicted", 'c', text(records.get(0)).charAt(0));
+    assertEquals("Newest record lost", 'e', text(records.get(2)).charAt(0));
+  }
+
+  @Test
+  public void appendDropsOversizedRecord() throws Exception {
+    // Unit under test
+    boolean appended = spool.append(event('x', 70000), false);
+
+    // Verify results
+    assertFalse("Oversized record appended", appended);
+    assertTrue("Spool not empty", spool.isEmpty());
+    assertEquals("Wrong drop count", 1, spool.getDroppedCount());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void replayOnceSendsInOrder() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(mockDao, 1, 1000);
+    spool.append(event("payload 1", 1), false);
+    spool.append(event("event 1", 2), true);
+    spool.append(event("event 2", 3), true);
+    spool.append(event("payload 2", 4), false);
+
+    // Unit under test
+    boolean sent = spool.replayOnce(mockDao, breaker);
+
+    // Verify results
+    assertTrue("Nothing sent", sent);
+    assertTrue("Spool not empty", spool.isEmpty());
+
+    ArgumentCaptor<LogstashEvent> payloads = ArgumentCaptor.forClass(LogstashEvent.class);
+    ArgumentCaptor<List> events = ArgumentCaptor.forClass(List.class);
+    InOrder inOrder = inOrder(mockDao);
+    inOrder.verify(mockDao).isBackedUp();
+    inOrder.verify(mockDao).push(payloads.capture());
+    inOrder.verify(mockDao).pushAll(events.capture());
+    inOrder.verify(mockDao).push(payloads.capture());
+    verifyNoMoreInteractions(mockDao);
+
+    assertEquals("Wrong first payload", "payload 1", new String(payloads.getAllValues().get(0).getData(), StandardCharsets.UTF_8));
+    assertEquals("Wrong payload timestamp", 1, payloads.getAllValues().get(0).getTimestamp());
+    assertEquals("Wrong last payload", "payload 2", new String(payloads.getAllValues().get(1).getData(), StandardCharsets.UTF_8));
+    List<LogstashEvent> bulk = events.getValue();
+    assertEquals("Wrong event count", 2, bulk.size());
+    assertEquals("Wrong event", "event 2", new String(bulk.get(1).getData(), StandardCharsets.UTF_8));
+    assertEquals("Wrong event timestamp", 3, bulk.get(1).getTimestamp());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void replayOnceKeepsRoutingKey() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(mockDao, 1, 1000);
+    spool.append(new LogstashEvent("payload".getBytes(StandardCharsets.UTF_8), 1, "project.label.1"), false);
+    spool.append(new LogstashEvent("event".getBytes(StandardCharsets.UTF_8), 2, "project.label.2"), true);
+    spool.close();
+    spool = new DiskSpool(directory, MAX_BYTES);
+
+    // Unit under test
+    boolean sent = spool.replayOnce(mockDao, breaker);
+
+    // Verify results, the keys survive a restart
+    assertTrue("Nothing sent", sent);
+    ArgumentCaptor<LogstashEvent> payload = ArgumentCaptor.forClass(LogstashEvent.class);
+    ArgumentCaptor<List> events = ArgumentCaptor.forClass(List.class);
+    InOrder inOrder = inOrder(mockDao);
+    inOrder.verify(mockDao).isBackedUp();
+    inOrder.verify(mockDao).push(payload.capture());
+    inOrder.verify(mockDao).pushAll(events.capture());
+    verifyNoMoreInteractions(mockDao);
+    assertEquals("Wrong payload routing key", "project.label.1", payload.getValue().getRoutingKey());
+
+    LogstashEvent event = (LogstashEvent) events.getValue().get(0);
+    assertEquals("Wrong event", "event", new String(event.getData(), StandardCharsets.UTF_8));
+    assertEquals("Wrong event timestamp", 2, event.getTimestamp());
+    assertEquals("Wrong routing key", "project.label.2", event.getRoutingKey());
+  }
+
+  @Test
+  public void replayOnceKeepsUnsentRecords() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(mockDao, 1, 1000);
+    spool.append(event("sent", 1), false);
+    spool.append(event("failed", 2), false);
+    doNothing().doThrow(new IOException("down")).when(mockDao).push(Matchers.any(LogstashEvent.class));
+
+    // Unit under test
+    boolean sent = spool.replayOnce(mockDao, breaker);
+
+    // Verify results
+    assertFalse("Failure not reported", sent);
+    assertEquals("Wrong pending count", 1, spool.getPendingCount());
+    assertEquals("Wrong remaining record", "failed", text(spool.peek(10).get(0)));
+    assertEquals("Breaker not opened", CircuitBreaker.State.OPEN, breaker.getState());
+
+    // The open breaker holds the replay back
+    assertFalse("Replayed while open", spool.replayOnce(mockDao, breaker));
+    verify(mockDao, times(2)).push(Matchers.any(LogstashEvent.class));
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void replayOnceKeepsPendingEvents() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(mockDao, 1, 1000);
+    spool.append(event("sent", 1), true);
+    spool.append(event("pending", 2), true);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        List<LogstashEvent> events = (List<LogstashEvent>) invocation.getArguments()[0];
+        throw new PendingEventsException("down", events.subList(1, 2), null);
+      }
+    }).when(mockDao).pushAll(Matchers.anyList());
+
+    // Unit under test
+    boolean sent = spool.replayOnce(mockDao, breaker);
+
+    // Verify results, the event that went through is not kept
+    assertFalse("Failure not reported", sent);
+    assertEquals("Wrong pending count", 1, spool.getPendingCount());
+    assertEquals("Wrong remaining record", "pending", text(spool.peek(10).get(0)));
+    verify(mockDao).isBackedUp();
+    verify(mockDao).pushAll(Matchers.anyList());
+  }
+
+  @Test
+  @SuppressWarnings("unchecked")
+  public void replayOnceKeepsPendingEventsOutOfOrder() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(mockDao, 1, 1000);
+    spool.append(event("overloaded 1", 1), true);
+    spool.append(event("sent", 2), true);
+    spool.append(event("overloaded 2", 3), true);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        List<LogstashEvent> events = (List<LogstashEvent>) invocation.getArguments()[0];
+        throw new PendingEventsException("overloaded", Arrays.asList(events.get(0), events.get(2)), null);
+      }
+    }).when(mockDao).pushAll(Matchers.anyList());
+
+    // Unit under test
+    boolean sent = spool.replayOnce(mockDao, breaker);
+
+    // Verify results, only the event in the middle went through
+    assertFalse("Failure not reported", sent);
+    assertEquals("Wrong pending count", 2, spool.getPendingCount());
+    List<DiskSpool.Record> remaining = spool.peek(10);
+    assertEquals("Wrong first record", "overloaded 1", text(remaining.get(0)));
+    assertEquals("Wrong last record", "overloaded 2", text(remaining.get(1)));
+    verify(mockDao).isBackedUp();
+    verify(mockDao).pushAll(Matchers.anyList());
+  }
+
+  @Test
+  public void replayOnceHoldsBackWhileBackedUp() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(mockDao, 1, 1000);
+    spool.append(event("pending", 1), false);
+    when(mockDao.isBackedUp()).thenReturn(true);
+
+    // Unit under test
+    boolean sent = spool.replayOnce(mockDao, breaker);
+
+    // Verify results
+    assertFalse("Replayed while backed up", sent);
+    assertEquals("Wrong pending count", 1, spool.getPendingCount());
+    verify(mockDao).isBackedUp();
+    verifyNoMoreInteractions(mockDao);
+  }
+}
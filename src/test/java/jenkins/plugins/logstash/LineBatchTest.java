@@ -0,0 +1,72 @@
+package jenkins.plugins.logstash;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class LineBatchTest {
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructorFailZeroLines() throws Exception {
+    try {
+      new LineBatch(0, 100, 100);
+    } catch (IllegalArgumentException e) {
+      assertEquals("Wrong error message was thrown", "batch limits must be positive", e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test
+  public void addFullByLineCount() throws Exception {
+    LineBatch batch = new LineBatch(2, 1024, 1000);
+
+    // Unit under test
+    List<String> first = batch.add("line 1", 0);
+    List<String> second = batch.add("line 2", 1);
+
+    // Verify results
+    assertNull("Batch sent too early", first);
+    assertEquals("Wrong batch", Arrays.asList("line 1", "line 2"), second);
+    assertTrue("Batch not reset", batch.isEmpty());
+  }
+
+  @Test
+  public void addFullByByteSize() throws Exception {
+    LineBatch batch = new LineBatch(100, 20, 1000);
+
+    // Unit under test
+    List<String> first = batch.add("0123456789", 0);
+    List<String> second = batch.add("0123456789", 0);
+
+    // Verify results
+    assertNull("Batch sent too early", first);
+    assertEquals("Wrong batch", Arrays.asList("0123456789", "0123456789"), second);
+  }
+
+  @Test
+  public void drainIfExpired() throws Exception {
+    LineBatch batch = new LineBatch(100, 1024, 200);
+    batch.add("line 1", 1000);
+    batch.add("line 2", 1150);
+
+    // Unit under test
+    List<String> early = batch.drainIfExpired(1199);
+    List<String> expired = batch.drainIfExpired(1200);
+
+    // Verify results
+    assertNull("Batch expired too early", early);
+    assertEquals("Wrong batch", Arrays.asList("line 1", "line 2"), expired);
+    assertNull("Empty batch expired", batch.drainIfExpired(5000));
+  }
+
+  @Test
+  public void drainEmpty() throws Exception {
+    LineBatch batch = new LineBatch(100, 1024, 200);
+
+    // Unit under test
+    assertNull("Empty batch drained", batch.drain());
+  }
+}
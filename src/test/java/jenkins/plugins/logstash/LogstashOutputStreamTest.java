@@ -3,9 +3,11 @@ package jenkins.plugins.logstash;
 import static org.hamcrest.core.StringContains.containsString;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 
 import org.junit.After;
@@ -118,4 +120,40 @@ public class LogstashOutputStreamTest {
     assertEquals("Results don't match", msg, buffer.toString());
     verify(mockWriter).isConnectionBroken();
   }
+
+  @Test
+  public void closeClosesWriter() throws Exception {
+    LogstashOutputStream los = new LogstashOutputStream(buffer, mockWriter);
+
+    // Unit under test
+    los.close();
+
+    // Verify results
+    verify(mockWriter).close();
+  }
+
+  @Test
+  public void closeClosesWriterWhenDelegateFails() throws Exception {
+    OutputStream failing = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {}
+
+      @Override
+      public void close() throws IOException {
+        throw new IOException("BOOM!");
+      }
+    };
+    LogstashOutputStream los = new LogstashOutputStream(failing, mockWriter);
+
+    // Unit under test
+    try {
+      los.close();
+      fail("Exception not thrown");
+    } catch (IOException e) {
+      assertEquals("Wrong exception", "BOOM!", e.getMessage());
+    }
+
+    // Verify results
+    verify(mockWriter).close();
+  }
 }
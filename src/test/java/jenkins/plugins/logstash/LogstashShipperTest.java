@@ -0,0 +1,152 @@
+package jenkins.plugins.logstash;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import jenkins.plugins.logstash.persistence.LogstashIndexerDao;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+@RunWith(MockitoJUnitRunner.class)
+public class LogstashShipperTest {
+  LogstashShipper shipper;
+  @Mock LogstashIndexerDao mockDao;
+  @Mock LogstashWriter mockWriter;
+
+  @Before
+  public void before() throws Exception {
+    when(mockDao.getDescription()).thenReturn("localhost:8080");
+  }
+
+  @After
+  public void after() throws Exception {
+    if (shipper != null) {
+      shipper.shutdown();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructorFailZeroCapacity() throws Exception {
+    try {
+      new LogstashShipper(mockDao, 0, 1);
+    } catch (IllegalArgumentException e) {
+      assertEquals("Wrong error message was thrown", "queue capacity must be positive", e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructorFailZeroThreads() throws Exception {
+    try {
+      new LogstashShipper(mockDao, 10, 0);
+    } catch (IllegalArgumentException e) {
+      assertEquals("Wrong error message was thrown", "shipper thread count must be positive", e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test
+  public void offerShipsInOrder() throws Exception {
+    shipper = new LogstashShipper(mockDao, 10, 1);
+    List<String> first = Arrays.asList("line 1");
+    List<String> second = Arrays.asList("line 2");
+
+    // Unit under test
+    assertTrue("Offer rejected", shipper.offer(shipper.assignLane(), mockWriter, first, -1));
+    assertTrue("Offer rejected", shipper.offer(0, mockWriter, second, 7));
+
+    // Verify results
+    InOrder inOrder = inOrder(mockWriter);
+    inOrder.verify(mockWriter, timeout(5000)).send(first, -1);
+    inOrder.verify(mockWriter, timeout(5000)).send(second, 7);
+    assertEquals("Lines were dropped", 0, shipper.getDroppedCount());
+  }
+
+  @Test
+  public void offerDropsWhenFull() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        started.countDown();
+        release.await(5, TimeUnit.SECONDS);
+        return null;
+      }
+    }).when(mockWriter).send(anyListOf(String.class), anyLong());
+    shipper = new LogstashShipper(mockDao, 1, 1);
+
+    // Occupy the shipper thread, then fill the queue
+    assertTrue("Offer rejected", shipper.offer(0, mockWriter, Arrays.asList("busy"), -1));
+    assertTrue("Shipper never started", started.await(5, TimeUnit.SECONDS));
+    assertTrue("Offer rejected", shipper.offer(0, mockWriter, Arrays.asList("queued"), -1));
+
+    // Unit under test
+    boolean accepted = shipper.offer(0, mockWriter, Arrays.asList("dropped"), -1);
+    release.countDown();
+
+    // Verify results
+    assertFalse("Offer accepted", accepted);
+    assertEquals("Wrong drop count", 1, shipper.getDroppedCount());
+  }
+
+  @Test
+  public void offerAfterShutdownDrops() throws Exception {
+    shipper = new LogstashShipper(mockDao, 10, 1);
+
+    // Unit under test
+    shipper.shutdown();
+
+    // Verify results
+    assertFalse("Still running", shipper.isRunning());
+    assertFalse("Offer accepted", shipper.offer(0, mockWriter, Arrays.asList("line"), -1));
+  }
+
+  @Test
+  public void shutdownKeepsShippingForAttachedWriters() throws Exception {
+    shipper = new LogstashShipper(mockDao, 10, 1);
+    int lane = shipper.assignLane();
+    List<String> lines = Arrays.asList("line");
+
+    // Unit under test
+    shipper.shutdown();
+
+    // Verify results
+    assertTrue("Stopped with a writer attached", shipper.isRunning());
+    assertTrue("Offer rejected", shipper.offer(lane, mockWriter, lines, -1));
+    verify(mockWriter, timeout(5000)).send(lines, -1);
+    shipper.release();
+    assertFalse("Still running", shipper.isRunning());
+    assertFalse("Offer accepted", shipper.offer(lane, mockWriter, lines, -1));
+    assertEquals("Stopped shipper counted as full", 0, shipper.getDroppedCount());
+  }
+
+  @Test
+  public void getInstanceReusedForSameSink() throws Exception {
+    LogstashShipper first = LogstashShipper.getInstance(mockDao, 10, 1);
+    shipper = first;
+
+    // Unit under test
+    LogstashShipper second = LogstashShipper.getInstance(mockDao, 10, 1);
+    LogstashShipper third = LogstashShipper.getInstance(mockDao, 20, 1);
+    shipper = third;
+
+    // Verify results
+    assertSame("Shipper not reused", first, second);
+    assertNotSame("Shipper not replaced", first, third);
+    assertFalse("Replaced shipper still running", first.isRunning());
+  }
+}
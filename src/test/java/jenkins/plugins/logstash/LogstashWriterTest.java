@@ -4,24 +4,36 @@ import hudson.model.AbstractBuild;
 import hudson.model.Project;
 import hudson.model.Result;
 import hudson.tasks.test.AbstractTestResultAction;
+import jenkins.plugins.logstash.LogstashInstallation.BackpressurePolicy;
 import jenkins.plugins.logstash.persistence.BuildData;
+import jenkins.plugins.logstash.persistence.LogstashEvent;
 import jenkins.plugins.logstash.persistence.LogstashIndexerDao;
 import jenkins.plugins.logstash.persistence.LogstashIndexerDao.IndexerType;
+import jenkins.plugins.logstash.persistence.PartialFailureException;
+import jenkins.plugins.logstash.persistence.PendingEventsException;
+import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.*;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.GregorianCalendar;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.hamcrest.core.StringContains.containsString;
 import static org.junit.Assert.*;
@@ -29,39 +41,148 @@ import static org.mockito.Mockito.*;
 
 @RunWith(MockitoJUnitRunner.class)
 public class LogstashWriterTest {
-  // Extension of the unit under test that avoids making calls to getInstance() to get the DAO singleton
-  static LogstashWriter createLogstashWriter(final AbstractBuild<?, ?> testBuild,
-                                             OutputStream error,
-                                             final String url,
-                                             final LogstashIndexerDao indexer,
-                                             final BuildData data) {
-    return new LogstashWriter(testBuild, error) {
-      @Override
-      LogstashIndexerDao getDao() throws InstantiationException {
-        if (indexer == null) {
-          throw new InstantiationException("DoaTestInstantiationException");
+  /**
+   * Extension of the unit under test that avoids making calls to getInstance() to get the DAO singleton.
+   * Features are off unless given, as without a descriptor; failed pushes are retried right away.
+   */
+  static final class WriterBuilder {
+    final AbstractBuild<?, ?> build;
+    final OutputStream error;
+    final String url;
+    final LogstashIndexerDao indexer;
+    final BuildData data;
+    CircuitBreaker breaker;
+    DiskSpool spool;
+    BackpressurePolicy policy;
+    LogstashShipper shipper;
+    LineBatch batch;
+    boolean bulk;
+    String routingKey;
+
+    WriterBuilder(AbstractBuild<?, ?> build, OutputStream error, String url, LogstashIndexerDao indexer, BuildData data) {
+      this.build = build;
+      this.error = error;
+      this.url = url;
+      this.indexer = indexer;
+      this.data = data;
+    }
+
+    // Null keeps the breaker shared by all writers of the indexer
+    WriterBuilder breaker(CircuitBreaker breaker) {
+      this.breaker = breaker;
+      return this;
+    }
+
+    WriterBuilder spool(DiskSpool spool) {
+      this.spool = spool;
+      return this;
+    }
+
+    WriterBuilder backpressure(BackpressurePolicy policy) {
+      this.policy = policy;
+      return this;
+    }
+
+    WriterBuilder shipper(LogstashShipper shipper) {
+      this.shipper = shipper;
+      return this;
+    }
+
+    WriterBuilder batch(LineBatch batch) {
+      this.batch = batch;
+      return this;
+    }
+
+    // Pushing one event per line
+    WriterBuilder bulk() {
+      this.bulk = true;
+      return this;
+    }
+
+    WriterBuilder routingKey(String routingKey) {
+      this.routingKey = routingKey;
+      return this;
+    }
+
+    LogstashWriter build() {
+      return new LogstashWriter(build, error) {
+        @Override
+        LogstashIndexerDao getDao() throws InstantiationException {
+          if (indexer == null) {
+            throw new InstantiationException("DoaTestInstantiationException");
+          }
+
+          return indexer;
         }
 
-        return indexer;
-      }
+        @Override
+        BuildData getBuildData() {
+          assertNotNull("BuildData should never be requested for missing dao.", this.dao);
 
-      @Override
-      BuildData getBuildData() {
-        assertNotNull("BuildData should never be requested for missing dao.", this.dao);
-
-        // For testing, providing null data means use the actual method
-        if (data == null) {
-          return super.getBuildData();
-        } else {
-          return data;
+          // For testing, providing null data means use the actual method
+          if (data == null) {
+            return super.getBuildData();
+          } else {
+            return data;
+          }
         }
-      }
 
-      @Override
-      String getJenkinsUrl() {
-        return url;
-      }
-    };
+        @Override
+        String getJenkinsUrl() {
+          return url;
+        }
+
+        @Override
+        CircuitBreaker getCircuitBreaker() {
+          // The fields of the writer would hide those of the builder
+          CircuitBreaker given = WriterBuilder.this.breaker;
+          return given == null ? super.getCircuitBreaker() : given;
+        }
+
+        @Override
+        DiskSpool getSpool() {
+          return WriterBuilder.this.spool;
+        }
+
+        @Override
+        BackpressurePolicy getBackpressurePolicy() {
+          return policy;
+        }
+
+        @Override
+        LogstashShipper getShipper() {
+          return WriterBuilder.this.shipper;
+        }
+
+        @Override
+        LineBatch getLineBatch() {
+          return WriterBuilder.this.batch;
+        }
+
+        @Override
+        boolean isBulk() {
+          return WriterBuilder.this.bulk;
+        }
+
+        @Override
+        String getRoutingKey() {
+          return WriterBuilder.this.routingKey;
+        }
+
+        @Override
+        void pause(long millis) {
+          // Retry right away
+        }
+      };
+    }
+  }
+
+  static LogstashWriter createLogstashWriter(final AbstractBuild<?, ?> testBuild,
+                                             OutputStream error,
+                                             final String url,
+                                             final LogstashIndexerDao indexer,
+                                             final BuildData data) {
+    return new WriterBuilder(testBuild, error, url, indexer, data).build();
   }
 
   ByteArrayOutputStream errorBuffer;
@@ -72,8 +193,44 @@ public class LogstashWriterTest {
   @Mock Project mockProject;
 
   @Mock BuildData mockBuildData;
+  @Mock LogstashShipper mockShipper;
+  @Mock DiskSpool mockSpool;
+
+  // Payloads as they were pushed
+  final List<String> pushed = new CopyOnWriteArrayList<String>();
+  final Answer<Void> recordPush = new Answer<Void>() {
+    @Override
+    public Void answer(InvocationOnMock invocation) throws Throwable {
+      LogstashEvent event = (LogstashEvent) invocation.getArguments()[0];
+      pushed.add(new String(event.getData(), "UTF-8"));
+      return null;
+    }
+  };
+
+  static final String TEST_PAYLOAD = "{\"data\":{},\"message\":[\"test\"],\"source\":\"jenkins\",\"source_host\":\"http://my-jenkins-url\",\"@version\":1}";
+
+  // The payload without its per-event @timestamp
+  static JSONObject withoutTimestamp(String payload) {
+    JSONObject result = JSONObject.fromObject(payload);
+    assertTrue("Missing @timestamp", result.containsKey("@timestamp"));
+    result.remove("@timestamp");
+    return result;
+  }
 
-  @Captor ArgumentCaptor<List<String>> logLinesCaptor;
+  static List<String> messageOf(String payload) {
+    JSONArray message = JSONObject.fromObject(payload).getJSONArray("message");
+    List<String> lines = new ArrayList<String>();
+    for (int i = 0; i < message.size(); i++) {
+      lines.add(message.getString(i));
+    }
+    return lines;
+  }
+
+  // The build data is serialized once per writer
+  void verifyBuildDataEncoded() {
+    verify(mockBuildData).toJsonBytes();
+    verify(mockBuildData).getTimestamp();
+  }
 
   @Before
   public void before() throws Exception {
@@ -101,10 +258,10 @@ public class LogstashWriterTest {
 
     when(mockProject.getName()).thenReturn("LogstashWriterTest");
 
-    when(mockDao.buildPayload(Matchers.any(BuildData.class), Matchers.anyString(), Matchers.anyListOf(String.class)))
-      .thenReturn(JSONObject.fromObject("{\"data\":{},\"message\":[\"test\"],\"source\":\"jenkins\",\"source_host\":\"http://my-jenkins-url\",\"@version\":1}"));
+    when(mockBuildData.toJsonBytes()).thenReturn("{}".getBytes("UTF-8"));
+    when(mockBuildData.getTimestamp()).thenReturn(null);
 
-    Mockito.doNothing().when(mockDao).push(Matchers.anyString());
+    Mockito.doAnswer(recordPush).when(mockDao).push(Matchers.any(LogstashEvent.class));
     when(mockDao.getIndexerType()).thenReturn(IndexerType.REDIS);
     when(mockDao.getDescription()).thenReturn("localhost:8080");
 
@@ -118,6 +275,8 @@ public class LogstashWriterTest {
     verifyNoMoreInteractions(mockBuildData);
     verifyNoMoreInteractions(mockTestResultAction);
     verifyNoMoreInteractions(mockProject);
+    verifyNoMoreInteractions(mockShipper);
+    verifyNoMoreInteractions(mockSpool);
     errorBuffer.close();
   }
 
@@ -211,8 +370,27 @@ public class LogstashWriterTest {
     // No error output
     assertEquals("Results don't match", "", errorBuffer.toString());
 
-    verify(mockDao).buildPayload(Matchers.eq(mockBuildData), Matchers.eq("http://my-jenkins-url"), Matchers.anyListOf(String.class));
-    verify(mockDao).push("{\"data\":{},\"message\":[\"test\"],\"source\":\"jenkins\",\"source_host\":\"http://my-jenkins-url\",\"@version\":1}");
+    verifyBuildDataEncoded();
+    verify(mockDao).push(Matchers.any(LogstashEvent.class));
+    assertEquals("Wrong payload", JSONObject.fromObject(TEST_PAYLOAD), withoutTimestamp(pushed.get(0)));
+  }
+
+  @Test
+  public void writeRoutesByBuild() throws Exception {
+    LogstashWriter writer = new WriterBuilder(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData)
+      .routingKey("LogstashWriterTest#123456").build();
+    errorBuffer.reset();
+
+    // Unit under test
+    writer.write("test");
+
+    // Verify results
+    assertEquals("Results don't match", "", errorBuffer.toString());
+
+    verifyBuildDataEncoded();
+    ArgumentCaptor<LogstashEvent> event = ArgumentCaptor.forClass(LogstashEvent.class);
+    verify(mockDao).push(event.capture());
+    assertEquals("Wrong routing key", "LogstashWriterTest#123456", event.getValue().getRoutingKey());
   }
 
   @Test
@@ -228,30 +406,48 @@ public class LogstashWriterTest {
     assertEquals("Results don't match", "", errorBuffer.toString());
     verify(mockBuild).getLog(3);
 
-    verify(mockDao).buildPayload(Matchers.eq(mockBuildData), Matchers.eq("http://my-jenkins-url"), Matchers.anyListOf(String.class));
-    verify(mockDao).push("{\"data\":{},\"message\":[\"test\"],\"source\":\"jenkins\",\"source_host\":\"http://my-jenkins-url\",\"@version\":1}");
+    verifyBuildDataEncoded();
+    verify(mockDao).push(Matchers.any(LogstashEvent.class));
+    assertEquals("Wrong lines", Arrays.asList("line 1", "line 2", "line 3", "Log truncated..."), messageOf(pushed.get(0)));
   }
 
   @Test
-  public void writeSuccessConnectionBroken() throws Exception {
-    Mockito.doNothing().doThrow(new IOException("BOOM!")).doNothing().when(mockDao).push(anyString());
-    LogstashWriter los = createLogstashWriter(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData);
+  public void writeRetriesFailedPush() throws Exception {
+    Mockito.doThrow(new IOException("BOOM!")).doAnswer(recordPush)
+      .when(mockDao).push(Matchers.any(LogstashEvent.class));
+    LogstashWriter writer = createLogstashWriter(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData);
 
+    // Unit under test
+    writer.write("test");
+
+    // Verify results
+    assertEquals("Results don't match", "", errorBuffer.toString());
+    assertFalse("Connection broken", writer.isConnectionBroken());
+    verifyBuildDataEncoded();
+    verify(mockDao, times(2)).push(Matchers.any(LogstashEvent.class));
+    assertEquals("Wrong payload", JSONObject.fromObject(TEST_PAYLOAD), withoutTimestamp(pushed.get(0)));
+  }
+
+  @Test
+  public void writeFailureBreaksConnection() throws Exception {
+    IOException failure = new IOException("BOOM!");
+    Mockito.doAnswer(recordPush).doThrow(failure).doThrow(failure).doThrow(failure).doThrow(failure)
+      .when(mockDao).push(Matchers.any(LogstashEvent.class));
+    LogstashWriter los = createLogstashWriter(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData);
 
     String msg = "test";
     String exMessage = "[logstash-plugin]: Failed to send log data to REDIS:localhost:8080.\n" +
       "[logstash-plugin]: No Further logs will be sent to localhost:8080.\n" +
       "java.io.IOException: BOOM!";
 
-    errorBuffer.reset();
-
     // Unit under test
     los.write(msg);
 
     // Verify results
     assertEquals("Results don't match", "", errorBuffer.toString());
+    assertFalse("Connection broken", los.isConnectionBroken());
 
-    // Break the dao connnection
+    // Fail the next push and all of its retries
     errorBuffer.reset();
 
     // Unit under test
@@ -261,19 +457,229 @@ public class LogstashWriterTest {
     assertTrue("Results don't match", errorBuffer.toString().startsWith(exMessage));
     assertTrue("Connection not broken", los.isConnectionBroken());
 
-    // Verify logs still write but on further calls are made to dao
+    // Further lines are not sent
     errorBuffer.reset();
+
     // Unit under test
     los.write(msg);
 
     // Verify results
     assertEquals("Results don't match", "", errorBuffer.toString());
+    verifyBuildDataEncoded();
+    verify(mockDao, times(5)).push(Matchers.any(LogstashEvent.class));
+    assertEquals("Wrong push count", 1, pushed.size());
+    verify(mockDao).getIndexerType();
+    verify(mockDao, times(2)).getDescription();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void writeBulkFailureBreaksConnection() throws Exception {
+    Mockito.doThrow(new IOException("BOOM!")).when(mockDao).pushAll(Matchers.anyList());
+    LogstashWriter writer = new WriterBuilder(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData)
+      .breaker(new CircuitBreaker(mockDao, 1, 60000)).bulk().build();
+
+    // Unit under test
+    writer.write("line 1");
+
+    // Verify results, the failure opened the circuit so the push was given up right away
+    assertTrue("Connection not broken", writer.isConnectionBroken());
+    assertThat("Results don't match", errorBuffer.toString(), containsString("[logstash-plugin]: No Further logs will be sent to localhost:8080.\n"));
+    verifyBuildDataEncoded();
+    verify(mockDao).pushAll(Matchers.anyList());
+    verify(mockDao).getIndexerType();
+    verify(mockDao, times(2)).getDescription();
+  }
+
+  @Test
+  public void writeDropsLinesWhileCircuitOpen() throws Exception {
+    CircuitBreaker breaker = new CircuitBreaker(mockDao, 1, 60000);
+    breaker.onFailure(System.currentTimeMillis());
+    LogstashWriter writer = new WriterBuilder(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData).breaker(breaker).build();
+
+    // Unit under test
+    writer.write("line 1");
+    writer.write("line 2");
+
+    // Verify results
+    assertEquals("Results don't match", "[logstash-plugin]: REDIS:localhost:8080 is unavailable.\n" +
+      "[logstash-plugin]: Log data will be dropped until localhost:8080 is available again.\n", errorBuffer.toString());
+    assertFalse("Connection broken", writer.isConnectionBroken());
+    verify(mockDao).getIndexerType();
+    verify(mockDao, times(2)).getDescription();
+  }
+
+  @Test
+  public void writeSpoolsLinesWhileCircuitOpen() throws Exception {
+    // The spool is handed views of the encoder's buffer, read them while they are valid
+    final List<String> spooled = new ArrayList<String>();
+    when(mockSpool.isEmpty()).thenReturn(true);
+    when(mockSpool.append(Matchers.any(LogstashEvent.class), Matchers.eq(false))).thenAnswer(new Answer<Boolean>() {
+      @Override
+      public Boolean answer(InvocationOnMock invocation) throws Throwable {
+        spooled.add(new String(((LogstashEvent) invocation.getArguments()[0]).getData(), "UTF-8"));
+        return true;
+      }
+    });
+    CircuitBreaker breaker = new CircuitBreaker(mockDao, 1, 60000);
+    breaker.onFailure(System.currentTimeMillis());
+    LogstashWriter writer = new WriterBuilder(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData)
+      .breaker(breaker).spool(mockSpool).build();
+
+    // Unit under test
+    writer.write("line 1");
+    writer.write("line 2");
+
+    // Verify results
+    assertEquals("Results don't match", "[logstash-plugin]: REDIS:localhost:8080 is unavailable.\n" +
+      "[logstash-plugin]: Log data will be kept on disk until localhost:8080 is available again.\n", errorBuffer.toString());
+    verifyBuildDataEncoded();
+    verify(mockDao).getIndexerType();
+    verify(mockDao, times(2)).getDescription();
+
+    verify(mockSpool, times(2)).isEmpty();
+    verify(mockSpool, times(2)).append(Matchers.any(LogstashEvent.class), Matchers.eq(false));
+    assertEquals("Wrong first payload", Arrays.asList("line 1"), messageOf(spooled.get(0)));
+    assertEquals("Wrong last payload", Arrays.asList("line 2"), messageOf(spooled.get(1)));
+  }
+
+  @Test
+  public void writeSpoolsWhileBackedUp() throws Exception {
+    when(mockSpool.isEmpty()).thenReturn(true);
+    when(mockSpool.append(Matchers.any(LogstashEvent.class), Matchers.eq(false))).thenReturn(true);
+    when(mockDao.isBackedUp()).thenReturn(true);
+    LogstashWriter writer = new WriterBuilder(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData)
+      .spool(mockSpool).backpressure(BackpressurePolicy.SPOOL).build();
+
+    // Unit under test
+    writer.write("line 1");
+
+    // Verify results
+    assertEquals("Results don't match", "[logstash-plugin]: REDIS:localhost:8080 is backed up, its consumers fall behind.\n" +
+      "[logstash-plugin]: Log data will be kept on disk until localhost:8080 is available again.\n", errorBuffer.toString());
+    verifyBuildDataEncoded();
+    verify(mockDao).isBackedUp();
+    verify(mockDao).getIndexerType();
+    verify(mockDao, times(2)).getDescription();
+    verify(mockSpool).isEmpty();
+    verify(mockSpool).append(Matchers.any(LogstashEvent.class), Matchers.eq(false));
+  }
+
+  @Test
+  public void writeDropsWhileBackedUp() throws Exception {
+    when(mockSpool.isEmpty()).thenReturn(true);
+    when(mockDao.isBackedUp()).thenReturn(true);
+    LogstashWriter writer = new WriterBuilder(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData)
+      .spool(mockSpool).backpressure(BackpressurePolicy.DROP).build();
+
+    // Unit under test
+    writer.write("line 1");
+    writer.write("line 2");
+
+    // Verify results, reported once
+    assertEquals("Results don't match", "[logstash-plugin]: REDIS:localhost:8080 is backed up, its consumers fall behind.\n" +
+      "[logstash-plugin]: Log data will be dropped until localhost:8080 is available again.\n", errorBuffer.toString());
+    verify(mockDao, times(2)).isBackedUp();
+    verify(mockDao).getIndexerType();
+    verify(mockDao, times(2)).getDescription();
+    verify(mockSpool, times(2)).isEmpty();
+  }
+
+  @Test
+  public void writeSlowsDownWhileBackedUp() throws Exception {
+    when(mockDao.isBackedUp()).thenReturn(true, true, false);
+    LogstashWriter writer = new WriterBuilder(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData)
+      .backpressure(BackpressurePolicy.SLOW_DOWN).build();
+
+    // Unit under test
+    writer.write("line 1");
+
+    // Verify results, sent once the backlog cleared
+    assertEquals("Results don't match", "", errorBuffer.toString());
+    verifyBuildDataEncoded();
+    verify(mockDao, times(3)).isBackedUp();
+    verify(mockDao).push(Matchers.any(LogstashEvent.class));
+    assertEquals("Wrong lines", Arrays.asList("line 1"), messageOf(pushed.get(0)));
+  }
+
+  @Test
+  public void writeSlowsDownOncePerBacklog() throws Exception {
+    when(mockDao.isBackedUp()).thenReturn(true);
+    LogstashWriter writer = new WriterBuilder(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData)
+      .backpressure(BackpressurePolicy.SLOW_DOWN).build();
+
+    // Unit under test
+    writer.write("line 1");
+    writer.write("line 2");
+
+    // Verify results, only the first line waited for the backlog to clear
+    assertEquals("Results don't match", "[logstash-plugin]: REDIS:localhost:8080 is backed up, its consumers fall behind.\n" +
+      "[logstash-plugin]: Log data will be dropped until localhost:8080 is available again.\n", errorBuffer.toString());
+    int polls = (int) (LogstashWriter.BACKPRESSURE_WAIT_MILLIS / LogstashWriter.BACKPRESSURE_POLL_MILLIS);
+    verify(mockDao, times(polls + 2)).isBackedUp();
+    verify(mockDao).getIndexerType();
+    verify(mockDao, times(2)).getDescription();
+  }
+
+  @Test
+  public void writeSpoolsBehindBacklog() throws Exception {
+    when(mockSpool.isEmpty()).thenReturn(false);
+    when(mockSpool.append(Matchers.any(LogstashEvent.class), Matchers.eq(false))).thenReturn(true);
+    LogstashWriter writer = new WriterBuilder(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData)
+      .breaker(new CircuitBreaker(mockDao, 1, 60000)).spool(mockSpool).build();
+
+    // Unit under test
+    writer.write("line 1");
+
+    // Verify results
+    assertEquals("Results don't match", "", errorBuffer.toString());
+    verifyBuildDataEncoded();
+    verify(mockSpool).isEmpty();
+    verify(mockSpool).append(Matchers.any(LogstashEvent.class), Matchers.eq(false));
+  }
 
-    //Verify calls were made to the dao logging twice, not three times.
-    verify(mockDao, times(2)).buildPayload(Matchers.eq(mockBuildData), Matchers.eq("http://my-jenkins-url"), Matchers.anyListOf(String.class));
-    verify(mockDao, times(2)).push("{\"data\":{},\"message\":[\"test\"],\"source\":\"jenkins\",\"source_host\":\"http://my-jenkins-url\",\"@version\":1}");
+  @Test
+  public void writeSpoolsFailedPush() throws Exception {
+    Mockito.doThrow(new IOException("BOOM!")).when(mockDao).push(Matchers.any(LogstashEvent.class));
+    when(mockSpool.isEmpty()).thenReturn(true);
+    when(mockSpool.append(Matchers.any(LogstashEvent.class), Matchers.eq(false))).thenReturn(true);
+    LogstashWriter writer = new WriterBuilder(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData)
+      .breaker(new CircuitBreaker(mockDao, 1, 60000)).spool(mockSpool).build();
+
+    // Unit under test
+    writer.write("line 1");
+
+    // Verify results
+    assertThat("Results don't match", errorBuffer.toString(), containsString("[logstash-plugin]: Failed to send log data to REDIS:localhost:8080.\n" +
+      "[logstash-plugin]: Log data will be kept on disk until localhost:8080 is available again.\n"));
+    verifyBuildDataEncoded();
+    // The failure opened the circuit, so the payload went to disk without a retry
+    verify(mockDao).push(Matchers.any(LogstashEvent.class));
     verify(mockDao).getIndexerType();
     verify(mockDao, times(2)).getDescription();
+    verify(mockSpool).isEmpty();
+    verify(mockSpool).append(Matchers.any(LogstashEvent.class), Matchers.eq(false));
+  }
+
+  @Test
+  public void writeFailureOpensSharedCircuit() throws Exception {
+    Mockito.doThrow(new IOException("BOOM!")).when(mockDao).push(Matchers.any(LogstashEvent.class));
+    CircuitBreaker breaker = new CircuitBreaker(mockDao, 2, 60000);
+    LogstashWriter first = new WriterBuilder(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData).breaker(breaker).build();
+    LogstashWriter second = new WriterBuilder(mockBuild, new ByteArrayOutputStream(), "http://my-jenkins-url", mockDao, mockBuildData)
+      .breaker(breaker).build();
+
+    // Unit under test
+    first.write("line 1");
+    second.write("line 2");
+
+    // Verify results
+    assertEquals("Circuit not open", CircuitBreaker.State.OPEN, breaker.getState());
+    verifyBuildDataEncoded();
+    // The first retry opened the circuit, so neither writer pushed again
+    verify(mockDao, times(2)).push(Matchers.any(LogstashEvent.class));
+    verify(mockDao, times(2)).getIndexerType();
+    verify(mockDao, times(4)).getDescription();
   }
 
   @Test
@@ -293,11 +699,248 @@ public class LogstashWriterTest {
     List<String> expectedErrorLines =  Arrays.asList(
       "[logstash-plugin]: Unable to serialize log data.",
       "java.io.IOException: Unable to read log file");
-    verify(mockDao).push("{\"data\":{},\"message\":[\"test\"],\"source\":\"jenkins\",\"source_host\":\"http://my-jenkins-url\",\"@version\":1}");
-    verify(mockDao).buildPayload(eq(mockBuildData), eq("http://my-jenkins-url"), logLinesCaptor.capture());
-    List<String> actualLogLines = logLinesCaptor.getValue();
+    verifyBuildDataEncoded();
+    verify(mockDao).push(Matchers.any(LogstashEvent.class));
+    List<String> actualLogLines = messageOf(pushed.get(0));
 
     assertThat("The exception was not sent to Logstash", actualLogLines.get(0), containsString(expectedErrorLines.get(0)));
     assertThat("The exception was not sent to Logstash", actualLogLines.get(1), containsString(expectedErrorLines.get(1)));
   }
+
+  @Test
+  public void writeAsyncQueuesLine() throws Exception {
+    when(mockShipper.assignLane()).thenReturn(1);
+    when(mockShipper.offer(Matchers.eq(1), Matchers.any(LogstashWriter.class), Matchers.anyListOf(String.class), Matchers.anyLong())).thenReturn(true);
+    LogstashWriter writer = new WriterBuilder(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData).shipper(mockShipper).build();
+
+    // Unit under test
+    writer.write("test");
+
+    // Verify results
+    assertEquals("Results don't match", "", errorBuffer.toString());
+    assertFalse("Connection broken", writer.isConnectionBroken());
+    verify(mockShipper).assignLane();
+    verify(mockShipper).offer(1, writer, Arrays.asList("test"), -1);
+  }
+
+  @Test
+  public void writeAsyncQueueFull() throws Exception {
+    when(mockShipper.assignLane()).thenReturn(0);
+    when(mockShipper.offer(Matchers.eq(0), Matchers.any(LogstashWriter.class), Matchers.anyListOf(String.class), Matchers.anyLong())).thenReturn(false);
+    when(mockShipper.isRunning()).thenReturn(true);
+    LogstashWriter writer = new WriterBuilder(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData).shipper(mockShipper).build();
+
+    // Unit under test
+    writer.write("line 1");
+    writer.write("line 2");
+
+    // Verify results
+    assertEquals("Results don't match",
+      "[logstash-plugin]: Shipping queue for localhost:8080 is full, some log lines will not be sent.\n", errorBuffer.toString());
+    assertFalse("Connection broken", writer.isConnectionBroken());
+    verify(mockShipper).assignLane();
+    verify(mockShipper).offer(0, writer, Arrays.asList("line 1"), -1);
+    verify(mockShipper).offer(0, writer, Arrays.asList("line 2"), -1);
+    verify(mockShipper, times(2)).isRunning();
+    verify(mockDao).getDescription();
+  }
+
+  @Test
+  public void writeAsyncShipperStopped() throws Exception {
+    when(mockShipper.assignLane()).thenReturn(0);
+    when(mockShipper.offer(Matchers.eq(0), Matchers.any(LogstashWriter.class), Matchers.anyListOf(String.class), Matchers.anyLong())).thenReturn(false);
+    when(mockShipper.isRunning()).thenReturn(false);
+    LogstashWriter writer = new WriterBuilder(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData).shipper(mockShipper).build();
+
+    // Unit under test
+    writer.write("line 1");
+    writer.write("line 2");
+
+    // Verify results
+    assertEquals("Results don't match",
+      "[logstash-plugin]: Shipping to localhost:8080 has stopped, further log lines will not be sent.\n", errorBuffer.toString());
+    verify(mockShipper).assignLane();
+    verify(mockShipper).offer(0, writer, Arrays.asList("line 1"), -1);
+    verify(mockShipper).offer(0, writer, Arrays.asList("line 2"), -1);
+    verify(mockShipper, times(2)).isRunning();
+    verify(mockDao).getDescription();
+  }
+
+  @Test
+  public void closeReleasesShipperOnce() throws Exception {
+    when(mockShipper.assignLane()).thenReturn(0);
+    LogstashWriter writer = new WriterBuilder(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData).shipper(mockShipper).build();
+
+    // Unit under test
+    writer.close();
+    writer.close();
+
+    // Verify results
+    verify(mockShipper).assignLane();
+    verify(mockShipper).release();
+  }
+
+  @Test
+  public void sendPushesOnCallerThread() throws Exception {
+    when(mockShipper.assignLane()).thenReturn(0);
+    LogstashWriter writer = new WriterBuilder(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData).shipper(mockShipper).build();
+
+    // Unit under test
+    writer.send(Arrays.asList("test"), -1);
+
+    // Verify results
+    assertEquals("Results don't match", "", errorBuffer.toString());
+    verify(mockShipper).assignLane();
+    verifyBuildDataEncoded();
+    verify(mockDao).push(Matchers.any(LogstashEvent.class));
+    assertEquals("Wrong payload", JSONObject.fromObject(TEST_PAYLOAD), withoutTimestamp(pushed.get(0)));
+  }
+
+  @Test
+  public void writeBatchSendsFullBatch() throws Exception {
+    LogstashWriter writer = new WriterBuilder(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData)
+      .batch(new LineBatch(2, 1024, 60000)).build();
+
+    // Unit under test
+    writer.write("line 1");
+    writer.write("line 2");
+    writer.write("line 3");
+    writer.close();
+
+    // Verify results
+    assertEquals("Results don't match", "", errorBuffer.toString());
+    verifyBuildDataEncoded();
+    verify(mockDao, times(2)).push(Matchers.any(LogstashEvent.class));
+    assertEquals("Wrong first batch", Arrays.asList("line 1", "line 2"), messageOf(pushed.get(0)));
+    assertEquals("Wrong last batch", Arrays.asList("line 3"), messageOf(pushed.get(1)));
+  }
+
+  @Test
+  public void writeBatchSendsExpiredBatch() throws Exception {
+    LogstashWriter writer = new WriterBuilder(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData)
+      .batch(new LineBatch(100, 1024, 10)).build();
+
+    // Unit under test
+    writer.write("line 1");
+
+    // Verify results
+    verify(mockDao, timeout(5000)).push(Matchers.any(LogstashEvent.class));
+    verifyBuildDataEncoded();
+    assertEquals("Wrong batch", Arrays.asList("line 1"), messageOf(pushed.get(0)));
+    writer.close();
+  }
+
+  @Test
+  public void writeBatchWhileExpiredBatchIsPushed() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    final CountDownLatch finished = new CountDownLatch(1);
+    final AtomicBoolean released = new AtomicBoolean();
+    Mockito.doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        recordPush.answer(invocation);
+        if (started.getCount() > 0) {
+          started.countDown();
+          released.set(release.await(5, TimeUnit.SECONDS));
+          finished.countDown();
+        }
+        return null;
+      }
+    }).when(mockDao).push(Matchers.any(LogstashEvent.class));
+    LogstashWriter writer = new WriterBuilder(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData)
+      .batch(new LineBatch(100, 1024, 10)).build();
+    writer.write("line 1");
+    assertTrue("Expired batch not pushed", started.await(5, TimeUnit.SECONDS));
+
+    // Unit under test, the flusher pushing does not hold the batch
+    writer.write("line 2");
+    release.countDown();
+    writer.close();
+
+    // Verify results
+    verify(mockDao, timeout(5000).times(2)).push(Matchers.any(LogstashEvent.class));
+    verifyBuildDataEncoded();
+    assertTrue("Expired batch push never returned", finished.await(5, TimeUnit.SECONDS));
+    assertTrue("Line waited for the push", released.get());
+    assertEquals("Wrong first batch", Arrays.asList("line 1"), messageOf(pushed.get(0)));
+    assertEquals("Wrong last batch", Arrays.asList("line 2"), messageOf(pushed.get(1)));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void writeBuildLogBulkPushesEventPerLine() throws Exception {
+    LogstashWriter writer = new WriterBuilder(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData).bulk().build();
+    ArgumentCaptor<List> events = ArgumentCaptor.forClass(List.class);
+
+    // Unit under test
+    writer.writeBuildLog(3);
+
+    // Verify results
+    assertEquals("Results don't match", "", errorBuffer.toString());
+    verify(mockBuild).getLog(3);
+    verifyBuildDataEncoded();
+    verify(mockDao).pushAll(events.capture());
+
+    List<LogstashEvent> pushedEvents = events.getValue();
+    assertEquals("Wrong number of events", 4, pushedEvents.size());
+    assertEquals("Wrong first event", Arrays.asList("line 1"), messageOf(new String(pushedEvents.get(0).getData(), "UTF-8")));
+    assertEquals("Wrong last event", Arrays.asList("Log truncated..."), messageOf(new String(pushedEvents.get(3).getData(), "UTF-8")));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void writeBulkPartialFailureKeepsConnection() throws Exception {
+    Mockito.doThrow(new PartialFailureException("1 of 1 events were rejected by localhost:8080: 400", 1, 1))
+      .when(mockDao).pushAll(Matchers.anyList());
+    LogstashWriter writer = new WriterBuilder(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData).bulk().build();
+
+    // Unit under test
+    writer.write("line 1");
+    writer.write("line 2");
+
+    // Verify results
+    String msg = "[logstash-plugin]: 1 of 1 events were rejected by localhost:8080: 400\n" +
+      "[logstash-plugin]: Further rejected log lines will not be reported.\n";
+    assertEquals("Results don't match", msg, errorBuffer.toString());
+    assertFalse("Connection broken", writer.isConnectionBroken());
+    verifyBuildDataEncoded();
+    verify(mockDao, times(2)).pushAll(Matchers.anyList());
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void writeBulkRetriesOnlyPendingEvents() throws Exception {
+    final List<List<LogstashEvent>> pushes = new CopyOnWriteArrayList<List<LogstashEvent>>();
+    doAnswer(new Answer<Void>() {
+      @Override
+      public Void answer(InvocationOnMock invocation) throws Throwable {
+        List<LogstashEvent> events = (List<LogstashEvent>) invocation.getArguments()[0];
+        pushes.add(events);
+        if (pushes.size() == 1) {
+          // The first event went through before the connection was lost
+          throw new PendingEventsException("Connection reset", events.subList(1, events.size()), null);
+        }
+        return null;
+      }
+    }).when(mockDao).pushAll(Matchers.anyList());
+    LogstashWriter writer = new WriterBuilder(mockBuild, errorBuffer, "http://my-jenkins-url", mockDao, mockBuildData)
+      .breaker(new CircuitBreaker(mockDao, 5, 60000)).bulk().build();
+
+    // Unit under test
+    writer.writeBuildLog(3);
+
+    // Verify results
+    verify(mockDao, timeout(5000).times(2)).pushAll(Matchers.anyList());
+    assertEquals("Results don't match", "", errorBuffer.toString());
+    verify(mockBuild).getLog(3);
+    verifyBuildDataEncoded();
+    assertEquals("Wrong number of events sent first", 4, pushes.get(0).size());
+    // The retry sends copies, the events of the first attempt were views of the encoder's buffer
+    List<String> retried = new ArrayList<String>();
+    for (LogstashEvent event : pushes.get(1)) {
+      retried.addAll(messageOf(new String(event.getData(), "UTF-8")));
+    }
+    assertEquals("Sent events retried", Arrays.asList("line 2", "line 3", "Log truncated..."), retried);
+  }
 }
@@ -0,0 +1,32 @@
+package jenkins.plugins.logstash;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PushSchedulerTest {
+
+  @Test
+  public void getReturnsSameScheduler() throws Exception {
+    // Unit under test
+    assertSame("Scheduler not shared", PushScheduler.get(), PushScheduler.get());
+  }
+
+  @Test
+  public void runsOnOwnDaemonThreads() throws Exception {
+    // Unit under test
+    Thread thread = PushScheduler.get().schedule(new Callable<Thread>() {
+      @Override
+      public Thread call() {
+        return Thread.currentThread();
+      }
+    }, 1, TimeUnit.MILLISECONDS).get(10, TimeUnit.SECONDS);
+
+    // Verify results
+    assertTrue("Not a daemon thread", thread.isDaemon());
+    assertTrue("Wrong thread: " + thread.getName(), thread.getName().startsWith("Logstash push scheduler #"));
+  }
+}
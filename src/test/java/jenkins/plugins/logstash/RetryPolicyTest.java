@@ -0,0 +1,44 @@
+package jenkins.plugins.logstash;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructorFailNegativeRetries() throws Exception {
+    try {
+      new RetryPolicy(-1, 100);
+    } catch (IllegalArgumentException e) {
+      assertEquals("Wrong error message was thrown", "retry count must not be negative", e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test
+  public void getDelayMillisDoubles() throws Exception {
+    RetryPolicy policy = new RetryPolicy(3, 100);
+
+    for (int i = 0; i < 100; i++) {
+      // Unit under test
+      long first = policy.getDelayMillis(0);
+      long third = policy.getDelayMillis(2);
+
+      // Verify results
+      assertTrue("First delay out of range: " + first, first >= 50 && first <= 100);
+      assertTrue("Third delay out of range: " + third, third >= 200 && third <= 400);
+    }
+  }
+
+  @Test
+  public void getDelayMillisCapped() throws Exception {
+    RetryPolicy policy = new RetryPolicy(100, 1000);
+
+    // Unit under test
+    long delay = policy.getDelayMillis(99);
+
+    // Verify results
+    assertTrue("Delay not capped: " + delay, delay >= RetryPolicy.MAX_DELAY_MILLIS / 2 && delay <= RetryPolicy.MAX_DELAY_MILLIS);
+  }
+}
@@ -0,0 +1,94 @@
+package jenkins.plugins.logstash.persistence;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class AdaptiveLimitTest {
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructorFailZeroLimit() throws Exception {
+    try {
+      new AdaptiveLimit(0);
+    } catch (IllegalArgumentException e) {
+      assertEquals("Wrong error message was thrown", "maximum in-flight requests must be positive", e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test
+  public void onOverloadHalvesOncePerRound() throws Exception {
+    AdaptiveLimit limit = new AdaptiveLimit(8);
+    long first = limit.acquire();
+    long second = limit.acquire();
+
+    // Unit under test
+    limit.onOverload(first);
+    limit.onOverload(second);
+
+    // Verify results
+    assertEquals("Wrong limit", 4, limit.getLimit());
+    limit.onOverload(limit.epoch());
+    assertEquals("Wrong limit", 2, limit.getLimit());
+  }
+
+  @Test
+  public void onOverloadKeepsOneRequest() throws Exception {
+    AdaptiveLimit limit = new AdaptiveLimit(2);
+
+    // Unit under test
+    limit.onOverload(limit.epoch());
+    limit.onOverload(limit.epoch());
+
+    // Verify results
+    assertEquals("Wrong limit", 1, limit.getLimit());
+  }
+
+  @Test
+  public void onSuccessGrowsBackToMaximum() throws Exception {
+    AdaptiveLimit limit = new AdaptiveLimit(4);
+    limit.onOverload(limit.epoch());
+
+    // Unit under test
+    limit.onSuccess();
+    limit.onSuccess();
+    limit.onSuccess();
+
+    // Verify results
+    assertEquals("Wrong limit", 3, limit.getLimit());
+    for (int i = 0; i < 10; i++) {
+      limit.onSuccess();
+    }
+    assertEquals("Grew past maximum", 4, limit.getLimit());
+  }
+
+  @Test
+  public void acquireWaitsForRelease() throws Exception {
+    final AdaptiveLimit limit = new AdaptiveLimit(1);
+    final CountDownLatch acquired = new CountDownLatch(1);
+    limit.acquire();
+
+    // Unit under test
+    Thread waiting = new Thread() {
+      @Override
+      public void run() {
+        try {
+          limit.acquire();
+          acquired.countDown();
+        } catch (InterruptedException e) {
+          // Test fails on the latch
+        }
+      }
+    };
+    waiting.start();
+
+    // Verify results
+    assertFalse("Acquired past the limit", acquired.await(100, TimeUnit.MILLISECONDS));
+    limit.release();
+    assertTrue("Not acquired after release", acquired.await(5, TimeUnit.SECONDS));
+    assertEquals("Wrong in-flight count", 1, limit.getInFlight());
+  }
+}
@@ -359,6 +359,48 @@ public class BuildDataTest {
     JSONAssert.assertEquals("Results don't match", JSONObject.fromObject(FULL_STRING), result);
   }
 
+  @Test
+  public void toJsonBytesCached() throws Exception {
+    BuildData buildData = makeFullBuildData();
+
+    // Unit under test
+    byte[] first = buildData.toJsonBytes();
+    byte[] second = buildData.toJsonBytes();
+    buildData.setDescription("CHANGED");
+    byte[] third = buildData.toJsonBytes();
+
+    // Verify results
+    Assert.assertSame("Serialized form not cached", first, second);
+    JSONAssert.assertEquals("Results don't match", JSONObject.fromObject(FULL_STRING), JSONObject.fromObject(new String(first, "UTF-8")));
+    Assert.assertEquals("Cache not invalidated", "CHANGED", JSONObject.fromObject(new String(third, "UTF-8")).getString("description"));
+  }
+
+  @Test
+  public void getRoutingKeyMatchesSerializedForm() throws Exception {
+    BuildData buildData = makeFullBuildData();
+
+    // Unit under test
+    String routingKey = buildData.getRoutingKey();
+
+    // Verify results
+    Assert.assertEquals("Wrong routing key", "PROJECT_NAME.master.123", routingKey);
+    Assert.assertEquals("Routing key differs when read back", routingKey, BuildData.getRoutingKey(buildData.toJsonBytes()));
+  }
+
+  @Test
+  public void getRoutingKeyKeepsWordsApart() throws Exception {
+    BuildData buildData = makeFullBuildData();
+    buildData.setProjectName("my.project");
+    buildData.setBuildLabel("linux && jdk1.7");
+
+    // Unit under test
+    String routingKey = buildData.getRoutingKey();
+
+    // Verify results
+    Assert.assertEquals("Wrong routing key", "my_project.linux && jdk1_7.123", routingKey);
+    Assert.assertEquals("Routing key differs when read back", routingKey, BuildData.getRoutingKey(buildData.toJsonBytes()));
+  }
+
   BuildData makeFullBuildData() {
     Map<String, String> buildVariables = Collections.emptyMap();
     Set<String> sensitiveBuildVariables = Collections.emptySet();
@@ -2,26 +2,40 @@ package jenkins.plugins.logstash.persistence;
 
 import org.apache.commons.lang.CharEncoding;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.*;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.*;
 
 @RunWith(MockitoJUnitRunner.class)
@@ -32,11 +46,44 @@ public class ElasticSearchDaoTest {
   @Mock StatusLine mockStatusLine;
   @Mock CloseableHttpResponse mockResponse;
   @Mock HttpEntity mockEntity;
+  @Mock CloseableHttpAsyncClient mockAsyncClient;
 
   ElasticSearchDao createDao(String host, int port, String key, String username, String password) {
     return new ElasticSearchDao(mockClientBuilder, host, port, key, username, password);
   }
 
+  // Same as createDao, but with the asynchronous transport on the mock async client
+  ElasticSearchDao createAsyncDao(int maxInFlight) {
+    ElasticSearchDao result = new ElasticSearchDao(mockClientBuilder, "http://localhost", 8200, "/jenkins/logstash", "", "") {
+      @Override
+      CloseableHttpAsyncClient createHttpAsyncClient() {
+        return mockAsyncClient;
+      }
+    };
+    IndexerSettings settings = new IndexerSettings();
+    settings.setAsyncHttp(true);
+    settings.setMaxInFlightRequests(maxInFlight);
+    result.configure(settings);
+    return result;
+  }
+
+  // Completes every asynchronous request right away with the given outcome
+  void answerAsync(final HttpResponse response, final Exception failure) {
+    when(mockAsyncClient.execute(any(HttpUriRequest.class), any(FutureCallback.class))).thenAnswer(new Answer<Future<HttpResponse>>() {
+      @SuppressWarnings("unchecked")
+      @Override
+      public Future<HttpResponse> answer(InvocationOnMock invocation) throws Throwable {
+        FutureCallback<HttpResponse> callback = (FutureCallback<HttpResponse>) invocation.getArguments()[1];
+        if (failure == null) {
+          callback.completed(response);
+        } else {
+          callback.failed(failure);
+        }
+        return null;
+      }
+    });
+  }
+
   @Before
   public void before() throws Exception {
     int port = (int) (Math.random() * 1000);
@@ -199,13 +246,100 @@ public class ElasticSearchDaoTest {
     // Unit under test
     dao.push(json);
 
+    verify(mockClientBuilder).setConnectionManager(any(PoolingHttpClientConnectionManager.class));
     verify(mockClientBuilder).build();
     verify(mockHttpClient).execute(any(HttpPost.class));
     verify(mockStatusLine, atLeastOnce()).getStatusCode();
     verify(mockResponse).close();
+  }
+
+  @Test
+  public void pushEventSuccess() throws Exception {
+    byte[] json = "{ 'foo': 'bar' }".getBytes(CharEncoding.UTF_8);
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "");
+    ArgumentCaptor<HttpPost> post = ArgumentCaptor.forClass(HttpPost.class);
+
+    when(mockStatusLine.getStatusCode()).thenReturn(201);
+
+    // Unit under test
+    dao.push(new LogstashEvent(json, 0));
+
+    verify(mockClientBuilder).setConnectionManager(any(PoolingHttpClientConnectionManager.class));
+    verify(mockClientBuilder).build();
+    verify(mockHttpClient).execute(post.capture());
+    assertTrue("Wrong content class", post.getValue().getEntity() instanceof ByteArrayEntity);
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    post.getValue().getEntity().writeTo(stream);
+    assertEquals("Wrong content", "{ 'foo': 'bar' }", stream.toString(CharEncoding.UTF_8));
+  }
+
+  @Test
+  public void pushEventToIndexOfItsTime() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins-%{+yyyy.MM.dd}/logstash", "", "");
+    ArgumentCaptor<HttpPost> post = ArgumentCaptor.forClass(HttpPost.class);
+    // 2015-06-01T23:59:59.999Z, the event was spooled long before it is sent
+    LogstashEvent event = new LogstashEvent("{\"a\":1}".getBytes(CharEncoding.UTF_8), 1433203200000L - 1);
+
+    when(mockStatusLine.getStatusCode()).thenReturn(201);
+
+    // Unit under test
+    dao.push(event);
+
+    // Verify results
+    verify(mockClientBuilder).setConnectionManager(any(PoolingHttpClientConnectionManager.class));
+    verify(mockClientBuilder).build();
+    verify(mockHttpClient).execute(post.capture());
+    assertEquals("Wrong uri", new URI("http://localhost:8200/jenkins-2015.06.01/logstash"), post.getValue().getURI());
+    assertEquals("Wrong body", "{\"a\":1}", bodyOf(post.getValue()));
+  }
+
+  @Test
+  public void pushReusesClient() throws Exception {
+    String json = "{ 'foo': 'bar' }";
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "");
+
+    when(mockStatusLine.getStatusCode()).thenReturn(201);
+
+    // Unit under test
+    dao.push(json);
+    dao.push(json);
+
+    verify(mockClientBuilder).setConnectionManager(any(PoolingHttpClientConnectionManager.class));
+    verify(mockClientBuilder).build();
+    verify(mockHttpClient, times(2)).execute(any(HttpPost.class));
+    verify(mockResponse, times(2)).close();
+  }
+
+  @Test
+  public void closeReleasesClient() throws Exception {
+    String json = "{ 'foo': 'bar' }";
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "");
+
+    when(mockStatusLine.getStatusCode()).thenReturn(201);
+
+    // Unit under test
+    dao.push(json);
+    dao.close();
+
+    // Verify results, the client is not opened again
+    try {
+      dao.push(json);
+      fail("Push to a closed indexer accepted");
+    } catch (IOException e) {
+      assertTrue("Wrong error message", e.getMessage().endsWith("is closed"));
+    }
+    verify(mockClientBuilder).setConnectionManager(any(PoolingHttpClientConnectionManager.class));
+    verify(mockClientBuilder).build();
+    verify(mockHttpClient).execute(any(HttpPost.class));
     verify(mockHttpClient).close();
   }
 
+  @Test
+  public void closeUnusedDoesNothing() throws Exception {
+    // Unit under test
+    dao.close();
+  }
+
   @Test(expected = IOException.class)
   public void pushFailStatusCode() throws Exception {
     String json = "{ 'foo': 'bar' }";
@@ -219,15 +353,486 @@ public class ElasticSearchDaoTest {
       dao.push(json);
     } catch (IOException e) {
       // Verify results
+      verify(mockClientBuilder).setConnectionManager(any(PoolingHttpClientConnectionManager.class));
       verify(mockClientBuilder).build();
       verify(mockHttpClient).execute(any(HttpPost.class));
       verify(mockStatusLine, atLeastOnce()).getStatusCode();
       verify(mockResponse).close();
-      verify(mockHttpClient).close();
       assertTrue("wrong error message",
         e.getMessage().contains("Something bad happened.") && e.getMessage().contains("HTTP error code: 500"));
         throw e;
     }
 
   }
+
+  @Test(expected = IOException.class)
+  public void pushFailsWhileOverloaded() throws Exception {
+    String json = "{ 'foo': 'bar' }";
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "");
+
+    when(mockStatusLine.getStatusCode()).thenReturn(429);
+    when(mockResponse.getEntity()).thenReturn(new StringEntity("Too many requests", ContentType.TEXT_PLAIN));
+
+    // Unit under test
+    try {
+      dao.push(json);
+    } catch (IOException e) {
+      // Verify results, the push is not retried here
+      verify(mockClientBuilder).setConnectionManager(any(PoolingHttpClientConnectionManager.class));
+      verify(mockClientBuilder).build();
+      verify(mockHttpClient).execute(any(HttpPost.class));
+      verify(mockResponse).close();
+      assertTrue("Wrong error message", e.getMessage().contains("HTTP error code: 429"));
+      assertEquals("Limit not lowered", 4, dao.limit.getLimit());
+      assertEquals("Request still in flight", 0, dao.limit.getInFlight());
+      throw e;
+    }
+  }
+
+  static String bodyOf(HttpPost post) throws IOException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    post.getEntity().writeTo(stream);
+    return stream.toString(CharEncoding.UTF_8);
+  }
+
+  static List<LogstashEvent> events(String... events) throws IOException {
+    return events(0, events);
+  }
+
+  static List<LogstashEvent> events(long timestamp, String... events) throws IOException {
+    List<LogstashEvent> result = new ArrayList<LogstashEvent>();
+    for (String event : events) {
+      result.add(new LogstashEvent(event.getBytes(CharEncoding.UTF_8), timestamp));
+    }
+    return result;
+  }
+
+  @Test
+  public void pushAllSuccess() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash/", "", "");
+    ArgumentCaptor<HttpPost> post = ArgumentCaptor.forClass(HttpPost.class);
+
+    when(mockStatusLine.getStatusCode()).thenReturn(200);
+    when(mockResponse.getEntity()).thenReturn(new StringEntity("{\"took\":1,\"errors\":false,\"items\":[]}", ContentType.APPLICATION_JSON));
+
+    // Unit under test
+    dao.pushAll(events("{\"a\":1}", "{\"b\":2}"));
+
+    // Verify results
+    verify(mockClientBuilder).setConnectionManager(any(PoolingHttpClientConnectionManager.class));
+    verify(mockClientBuilder).build();
+    verify(mockHttpClient).execute(post.capture());
+    assertEquals("Wrong uri", new URI("http://localhost:8200/jenkins/logstash/_bulk"), post.getValue().getURI());
+    assertEquals("Wrong body", "{\"index\":{}}\n{\"a\":1}\n{\"index\":{}}\n{\"b\":2}\n", bodyOf(post.getValue()));
+  }
+
+  @Test
+  public void pushAllSendsEventViews() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash/", "", "");
+    ArgumentCaptor<HttpPost> post = ArgumentCaptor.forClass(HttpPost.class);
+    byte[] buffer = "{\"a\":1}{\"b\":2}unused".getBytes(CharEncoding.UTF_8);
+
+    when(mockStatusLine.getStatusCode()).thenReturn(200);
+    when(mockResponse.getEntity()).thenReturn(new StringEntity("{\"took\":1,\"errors\":false,\"items\":[]}", ContentType.APPLICATION_JSON));
+
+    // Unit under test
+    dao.pushAll(Arrays.asList(new LogstashEvent(buffer, 0, 7, 0, null), new LogstashEvent(buffer, 7, 7, 0, null)));
+
+    // Verify results
+    verify(mockClientBuilder).setConnectionManager(any(PoolingHttpClientConnectionManager.class));
+    verify(mockClientBuilder).build();
+    verify(mockHttpClient).execute(post.capture());
+    assertEquals("Wrong body", "{\"index\":{}}\n{\"a\":1}\n{\"index\":{}}\n{\"b\":2}\n", bodyOf(post.getValue()));
+  }
+
+  @Test
+  public void pushAllSplitsRequests() throws Exception {
+    IndexerSettings settings = new IndexerSettings();
+    settings.setBulkMaxDocuments(2);
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "");
+    dao.configure(settings);
+    ArgumentCaptor<HttpPost> post = ArgumentCaptor.forClass(HttpPost.class);
+
+    when(mockStatusLine.getStatusCode()).thenReturn(200);
+    when(mockResponse.getEntity()).thenAnswer(new Answer<HttpEntity>() {
+      @Override
+      public HttpEntity answer(InvocationOnMock invocation) throws Throwable {
+        return new StringEntity("{\"errors\":false}", ContentType.APPLICATION_JSON);
+      }
+    });
+
+    // Unit under test
+    dao.pushAll(events("{\"a\":1}", "{\"b\":2}", "{\"c\":3}"));
+
+    // Verify results
+    verify(mockClientBuilder).setConnectionManager(any(PoolingHttpClientConnectionManager.class));
+    verify(mockClientBuilder).build();
+    verify(mockHttpClient, times(2)).execute(post.capture());
+    assertEquals("Wrong first body", "{\"index\":{}}\n{\"a\":1}\n{\"index\":{}}\n{\"b\":2}\n", bodyOf(post.getAllValues().get(0)));
+    assertEquals("Wrong second body", "{\"index\":{}}\n{\"c\":3}\n", bodyOf(post.getAllValues().get(1)));
+  }
+
+  @Test(expected = PendingEventsException.class)
+  public void pushAllReportsUnsentRequests() throws Exception {
+    IndexerSettings settings = new IndexerSettings();
+    settings.setBulkMaxDocuments(1);
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "");
+    dao.configure(settings);
+    List<LogstashEvent> events = events("{\"a\":1}", "{\"b\":2}", "{\"c\":3}");
+
+    when(mockStatusLine.getStatusCode()).thenReturn(200, 500);
+    when(mockResponse.getEntity()).thenAnswer(new Answer<HttpEntity>() {
+      @Override
+      public HttpEntity answer(InvocationOnMock invocation) throws Throwable {
+        return new StringEntity("{\"errors\":false}", ContentType.APPLICATION_JSON);
+      }
+    });
+
+    // Unit under test
+    try {
+      dao.pushAll(events);
+    } catch (PendingEventsException e) {
+      // Verify results, the first event is not sent again
+      verify(mockClientBuilder).setConnectionManager(any(PoolingHttpClientConnectionManager.class));
+      verify(mockClientBuilder).build();
+      verify(mockHttpClient, times(2)).execute(any(HttpPost.class));
+      assertEquals("Wrong pending events", events.subList(1, 3), e.getPendingEvents());
+      throw e;
+    }
+  }
+
+  @Test
+  public void pushAllSplitsRequestsAtDayBoundary() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins-%{+yyyy.MM.dd}/logstash", "", "");
+    ArgumentCaptor<HttpPost> post = ArgumentCaptor.forClass(HttpPost.class);
+    // 2015-06-01T23:59:59.999Z and 2015-06-02T00:00:00.000Z
+    long midnight = 1433203200000L;
+    List<LogstashEvent> events = events(midnight - 1, "{\"a\":1}");
+    events.addAll(events(midnight, "{\"b\":2}", "{\"c\":3}"));
+
+    when(mockStatusLine.getStatusCode()).thenReturn(200);
+    when(mockResponse.getEntity()).thenAnswer(new Answer<HttpEntity>() {
+      @Override
+      public HttpEntity answer(InvocationOnMock invocation) throws Throwable {
+        return new StringEntity("{\"errors\":false}", ContentType.APPLICATION_JSON);
+      }
+    });
+
+    // Unit under test
+    dao.pushAll(events);
+
+    // Verify results
+    verify(mockClientBuilder).setConnectionManager(any(PoolingHttpClientConnectionManager.class));
+    verify(mockClientBuilder).build();
+    verify(mockHttpClient, times(2)).execute(post.capture());
+    assertEquals("Wrong first uri", new URI("http://localhost:8200/jenkins-2015.06.01/logstash/_bulk"), post.getAllValues().get(0).getURI());
+    assertEquals("Wrong first body", "{\"index\":{}}\n{\"a\":1}\n", bodyOf(post.getAllValues().get(0)));
+    assertEquals("Wrong second uri", new URI("http://localhost:8200/jenkins-2015.06.02/logstash/_bulk"), post.getAllValues().get(1).getURI());
+    assertEquals("Wrong second body", "{\"index\":{}}\n{\"b\":2}\n{\"index\":{}}\n{\"c\":3}\n", bodyOf(post.getAllValues().get(1)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructorFailTimeOfDayPattern() throws Exception {
+    try {
+      createDao("http://localhost", 8200, "jenkins-%{yyyy.MM.dd.HH}", "", "");
+    } catch (IllegalArgumentException e) {
+      assertEquals("Wrong error message was thrown", "index pattern 'jenkins-%{yyyy.MM.dd.HH}' may only use date fields, found 'H'", e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test(expected = PendingEventsException.class)
+  public void pushAllReportsOverloadedItemsPending() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "");
+
+    when(mockStatusLine.getStatusCode()).thenReturn(200);
+    when(mockResponse.getEntity()).thenReturn(
+      new StringEntity("{\"errors\":true,\"items\":[{\"index\":{\"status\":201}},{\"index\":{\"status\":429,\"error\":\"queue full\"}}]}", ContentType.APPLICATION_JSON));
+
+    // Unit under test
+    try {
+      dao.pushAll(events("{\"a\":1}", "{\"b\":2}"));
+    } catch (PendingEventsException e) {
+      // Verify results, only the overloaded item is left for the writer to send again
+      verify(mockClientBuilder).setConnectionManager(any(PoolingHttpClientConnectionManager.class));
+      verify(mockClientBuilder).build();
+      verify(mockHttpClient).execute(any(HttpPost.class));
+      assertEquals("Wrong pending events", 1, e.getPendingEvents().size());
+      assertEquals("Wrong pending event", "{\"b\":2}", new String(e.getPendingEvents().get(0).getData(), CharEncoding.UTF_8));
+      assertEquals("Limit not lowered", 4, dao.limit.getLimit());
+      throw e;
+    }
+  }
+
+  @Test(expected = PendingEventsException.class)
+  public void pushAllReportsOverloadedRequestPending() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "");
+
+    when(mockStatusLine.getStatusCode()).thenReturn(429);
+    when(mockResponse.getEntity()).thenReturn(new StringEntity("Too many requests", ContentType.TEXT_PLAIN));
+
+    // Unit under test
+    try {
+      dao.pushAll(events("{\"a\":1}", "{\"b\":2}"));
+    } catch (PendingEventsException e) {
+      // Verify results
+      verify(mockClientBuilder).setConnectionManager(any(PoolingHttpClientConnectionManager.class));
+      verify(mockClientBuilder).build();
+      verify(mockHttpClient).execute(any(HttpPost.class));
+      assertEquals("Wrong pending events", 2, e.getPendingEvents().size());
+      assertEquals("Limit not lowered", 4, dao.limit.getLimit());
+      throw e;
+    }
+  }
+
+  @Test
+  public void pushAllReadsItemsWithoutErrorsFlag() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "");
+
+    when(mockStatusLine.getStatusCode()).thenReturn(200);
+    when(mockResponse.getEntity()).thenReturn(
+      new StringEntity("{\"items\":[{\"index\":{\"status\":201}},{\"index\":{\"status\":201}}]}", ContentType.APPLICATION_JSON));
+
+    // Unit under test
+    dao.pushAll(events("{\"a\":1}", "{\"b\":2}"));
+
+    // Verify results
+    verify(mockClientBuilder).setConnectionManager(any(PoolingHttpClientConnectionManager.class));
+    verify(mockClientBuilder).build();
+    verify(mockHttpClient).execute(any(HttpPost.class));
+  }
+
+  @Test(expected = PendingEventsException.class)
+  public void pushAllReportsResponseWithoutItemsPending() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "");
+
+    when(mockStatusLine.getStatusCode()).thenReturn(200);
+    when(mockResponse.getEntity()).thenReturn(new StringEntity("{\"took\":1}", ContentType.APPLICATION_JSON));
+
+    // Unit under test
+    try {
+      dao.pushAll(events("{\"a\":1}", "{\"b\":2}"));
+    } catch (PendingEventsException e) {
+      // Verify results, nothing is reported as rejected
+      verify(mockClientBuilder).setConnectionManager(any(PoolingHttpClientConnectionManager.class));
+      verify(mockClientBuilder).build();
+      verify(mockHttpClient).execute(any(HttpPost.class));
+      assertEquals("Wrong pending events", 2, e.getPendingEvents().size());
+      assertTrue("Wrong cause", e.getCause().getMessage().endsWith("has no items"));
+      throw e;
+    }
+  }
+
+  @Test(expected = PartialFailureException.class)
+  public void pushAllReportsRejectedItems() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "");
+
+    when(mockStatusLine.getStatusCode()).thenReturn(200);
+    when(mockResponse.getEntity()).thenReturn(
+      new StringEntity("{\"errors\":true,\"items\":[{\"index\":{\"status\":400,\"error\":\"mapper_parsing_exception\"}},{\"index\":{\"status\":201}}]}", ContentType.APPLICATION_JSON));
+
+    // Unit under test
+    try {
+      dao.pushAll(events("{\"a\":1}", "{\"b\":2}"));
+    } catch (PartialFailureException e) {
+      // Verify results
+      verify(mockClientBuilder).setConnectionManager(any(PoolingHttpClientConnectionManager.class));
+      verify(mockClientBuilder).build();
+      verify(mockHttpClient).execute(any(HttpPost.class));
+      assertEquals("Wrong failed count", 1, e.getFailedCount());
+      assertEquals("Wrong total count", 2, e.getTotalCount());
+      assertEquals("Wrong error message", "1 of 2 events were rejected by http://localhost:8200: 400 mapper_parsing_exception", e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void pushAllFailStatusCode() throws Exception {
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "");
+
+    when(mockStatusLine.getStatusCode()).thenReturn(500);
+    when(mockResponse.getEntity()).thenReturn(new StringEntity("Something bad happened.", ContentType.TEXT_PLAIN));
+
+    // Unit under test
+    try {
+      dao.pushAll(events("{\"a\":1}"));
+    } catch (IOException e) {
+      // Verify results
+      verify(mockClientBuilder).setConnectionManager(any(PoolingHttpClientConnectionManager.class));
+      verify(mockClientBuilder).build();
+      verify(mockHttpClient).execute(any(HttpPost.class));
+      assertTrue("Wrong exception", !(e instanceof PartialFailureException));
+      throw e;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void pushAllAsyncSuccess() throws Exception {
+    dao = createAsyncDao(1);
+    when(mockStatusLine.getStatusCode()).thenReturn(200);
+    when(mockResponse.getEntity()).thenAnswer(new Answer<HttpEntity>() {
+      @Override
+      public HttpEntity answer(InvocationOnMock invocation) throws Throwable {
+        return new StringEntity("{\"errors\":false}", ContentType.APPLICATION_JSON);
+      }
+    });
+    answerAsync(mockResponse, null);
+
+    // Unit under test
+    dao.pushAll(events("{\"a\":1}"));
+    dao.pushAll(events("{\"b\":2}"));
+
+    // Verify results
+    verify(mockAsyncClient).start();
+    verify(mockAsyncClient, times(2)).execute(any(HttpUriRequest.class), any(FutureCallback.class));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void pushAllAsyncFailureReleasesPermit() throws Exception {
+    IOException failure = new IOException("Connection refused");
+    dao = createAsyncDao(1);
+    answerAsync(null, failure);
+
+    // Unit under test
+    List<IOException> reported = new ArrayList<IOException>();
+    for (String event : Arrays.asList("{\"a\":1}", "{\"b\":2}")) {
+      try {
+        dao.pushAll(events(event));
+      } catch (IOException e) {
+        reported.add(e);
+      }
+    }
+
+    // Verify results, the second push got the permit the first one released
+    verify(mockAsyncClient).start();
+    verify(mockAsyncClient, times(2)).execute(any(HttpUriRequest.class), any(FutureCallback.class));
+    assertEquals("Wrong failure count", 2, reported.size());
+    assertEquals("Wrong cause", failure, reported.get(1).getCause());
+    assertEquals("Wrong pending events", 1, ((PendingEventsException) reported.get(1)).getPendingEvents().size());
+  }
+
+  @Test(expected = PartialFailureException.class)
+  public void pushAllAsyncReportsRejectedItems() throws Exception {
+    dao = createAsyncDao(1);
+    when(mockStatusLine.getStatusCode()).thenReturn(200);
+    when(mockResponse.getEntity()).thenReturn(
+      new StringEntity("{\"errors\":true,\"items\":[{\"index\":{\"status\":400,\"error\":\"mapper_parsing_exception\"}}]}", ContentType.APPLICATION_JSON));
+    answerAsync(mockResponse, null);
+
+    // Unit under test
+    dao.pushAll(events("{\"a\":1}"));
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void pushAllAsyncReportsOverloadedItemsPending() throws Exception {
+    dao = createAsyncDao(4);
+    when(mockStatusLine.getStatusCode()).thenReturn(200);
+    when(mockResponse.getEntity()).thenReturn(
+      new StringEntity("{\"errors\":true,\"items\":[{\"index\":{\"status\":429,\"error\":\"queue full\"}}]}", ContentType.APPLICATION_JSON));
+    answerAsync(mockResponse, null);
+
+    // Unit under test
+    try {
+      dao.pushAll(events("{\"a\":1}"));
+      fail("Overloaded item accepted");
+    } catch (PendingEventsException e) {
+      assertEquals("Wrong pending events", 1, e.getPendingEvents().size());
+    }
+
+    // Verify results, the item is not sent again here
+    verify(mockAsyncClient).start();
+    verify(mockAsyncClient).execute(any(HttpUriRequest.class), any(FutureCallback.class));
+    assertEquals("Limit not lowered", 2, dao.limit.getLimit());
+    assertEquals("Request still in flight", 0, dao.limit.getInFlight());
+  }
+
+  @Test
+  public void closeClosesAsyncClient() throws Exception {
+    dao = createAsyncDao(1);
+    answerAsync(null, new IOException("Connection refused"));
+    try {
+      dao.pushAll(events("{\"a\":1}"));
+    } catch (IOException e) {
+      // The client is started all the same
+    }
+
+    // Unit under test
+    dao.close();
+
+    // Verify results
+    verify(mockAsyncClient).close();
+  }
+
+  @Test
+  public void pushAllAsyncAfterCloseFails() throws Exception {
+    dao = createAsyncDao(1);
+    dao.close();
+
+    // Unit under test
+    try {
+      dao.pushAll(events("{\"a\":1}"));
+      fail("Push to a closed indexer accepted");
+    } catch (IOException e) {
+      assertTrue("Wrong error message", e.getMessage().endsWith("is closed"));
+    }
+
+    // Verify results, the client is not started again
+    verifyZeroInteractions(mockAsyncClient);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void configureFailNodeWithoutScheme() throws Exception {
+    IndexerSettings settings = new IndexerSettings();
+    settings.setAdditionalHosts(Arrays.asList("es2"));
+
+    try {
+      dao.configure(settings);
+    } catch (IllegalArgumentException e) {
+      assertEquals("Wrong error message was thrown", "node 'es2' must specify scheme and host, such as 'http://host'", e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test
+  public void pushFailsOverToNextNode() throws Exception {
+    String json = "{ 'foo': 'bar' }";
+    IndexerSettings settings = new IndexerSettings();
+    settings.setAdditionalHosts(Arrays.asList("http://es2", "https://es3:9201"));
+    settings.setNodeRecheckSeconds(3600);
+    dao = createDao("http://localhost", 8200, "/jenkins/logstash", "", "");
+    dao.configure(settings);
+    final List<URI> targets = new ArrayList<URI>();
+
+    when(mockStatusLine.getStatusCode()).thenReturn(201);
+    when(mockHttpClient.execute(any(HttpPost.class))).thenAnswer(new Answer<CloseableHttpResponse>() {
+      @Override
+      public CloseableHttpResponse answer(InvocationOnMock invocation) throws Throwable {
+        HttpPost post = (HttpPost) invocation.getArguments()[0];
+        targets.add(post.getURI());
+        if (targets.size() == 1) {
+          throw new IOException("Connection refused");
+        }
+        return mockResponse;
+      }
+    });
+
+    // Unit under test
+    dao.push(json);
+    dao.push(json);
+
+    // Verify results
+    verify(mockClientBuilder).setConnectionManager(any(PoolingHttpClientConnectionManager.class));
+    verify(mockClientBuilder).build();
+    verify(mockHttpClient, times(3)).execute(any(HttpPost.class));
+    assertEquals("Wrong first node", new URI("http://localhost:8200/jenkins/logstash"), targets.get(0));
+    assertEquals("Wrong failover node", new URI("http://es2:8200/jenkins/logstash"), targets.get(1));
+    assertEquals("Down node used", new URI("https://es3:9201/jenkins/logstash"), targets.get(2));
+
+    // Stops the background check
+    dao.close();
+    verify(mockHttpClient).close();
+  }
 }
@@ -0,0 +1,145 @@
+package jenkins.plugins.logstash.persistence;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import jenkins.plugins.logstash.persistence.ElasticSearchNodes.Node;
+import jenkins.plugins.logstash.persistence.IndexerSettings.LoadBalancing;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ElasticSearchNodesTest {
+  static final List<Node> NONE = Collections.emptyList();
+
+  ElasticSearchNodes nodes;
+  @Mock ElasticSearchNodes.Probe mockProbe;
+
+  ElasticSearchNodes createNodes(LoadBalancing loadBalancing, String... uris) throws Exception {
+    URI[] list = new URI[uris.length];
+    for (int i = 0; i < uris.length; i++) {
+      list[i] = new URI(uris[i]);
+    }
+    // Long interval, the tests run the check themselves
+    return new ElasticSearchNodes(Arrays.asList(list), loadBalancing, 3600000, mockProbe);
+  }
+
+  @After
+  public void after() throws Exception {
+    if (nodes != null) {
+      nodes.close();
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructorFailNoNodes() throws Exception {
+    try {
+      nodes = createNodes(LoadBalancing.ROUND_ROBIN);
+    } catch (IllegalArgumentException e) {
+      assertEquals("Wrong error message was thrown", "at least one node is required", e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test
+  public void nodeUris() throws Exception {
+    nodes = createNodes(LoadBalancing.ROUND_ROBIN, "http://es1:9200/jenkins/logstash/");
+
+    // Verify results
+    Node node = nodes.nodes.get(0);
+    assertEquals("Wrong bulk uri", new URI("http://es1:9200/jenkins/logstash/_bulk"), node.bulkUri);
+    assertEquals("Wrong root uri", new URI("http://es1:9200/"), node.rootUri);
+  }
+
+  @Test
+  public void acquireRoundRobin() throws Exception {
+    nodes = createNodes(LoadBalancing.ROUND_ROBIN, "http://es1:9200/logstash", "http://es2:9200/logstash");
+
+    // Unit under test
+    Node first = nodes.acquire(NONE);
+    Node second = nodes.acquire(NONE);
+    Node third = nodes.acquire(NONE);
+
+    // Verify results
+    assertNotSame("Nodes not rotated", first, second);
+    assertSame("Nodes not rotated", first, third);
+  }
+
+  @Test
+  public void acquireLeastOutstanding() throws Exception {
+    nodes = createNodes(LoadBalancing.LEAST_OUTSTANDING, "http://es1:9200/logstash", "http://es2:9200/logstash");
+    Node busy = nodes.acquire(NONE);
+
+    // Unit under test
+    Node second = nodes.acquire(NONE);
+    Node third = nodes.acquire(NONE);
+    nodes.release(busy);
+    nodes.release(third);
+    Node fourth = nodes.acquire(NONE);
+
+    // Verify results
+    assertNotSame("Busy node picked", busy, second);
+    assertEquals("Wrong outstanding count", 1, second.outstanding.get());
+    assertSame("Idle node not picked", busy, fourth);
+  }
+
+  @Test
+  public void acquireSkipsDownAndTriedNodes() throws Exception {
+    nodes = createNodes(LoadBalancing.ROUND_ROBIN, "http://es1:9200/logstash", "http://es2:9200/logstash", "http://es3:9200/logstash");
+    Node down = nodes.nodes.get(0);
+    Node tried = nodes.nodes.get(1);
+    Node healthy = nodes.nodes.get(2);
+    nodes.markDown(down);
+
+    // Unit under test
+    for (int i = 0; i < 3; i++) {
+      assertSame("Wrong node picked", healthy, nodes.acquire(Arrays.asList(tried)));
+    }
+
+    // Verify results
+    assertTrue("Node not marked down", down.down);
+    assertSame("Down node not used as last resort", down, nodes.acquire(Arrays.asList(tried, healthy)));
+    assertNull("Tried node picked again", nodes.acquire(Arrays.asList(down, tried, healthy)));
+  }
+
+  @Test
+  public void markDownSingleNode() throws Exception {
+    nodes = createNodes(LoadBalancing.ROUND_ROBIN, "http://es1:9200/logstash");
+    Node node = nodes.nodes.get(0);
+
+    // Unit under test
+    nodes.markDown(node);
+
+    // Verify results
+    assertFalse("Only node marked down", node.down);
+  }
+
+  @Test
+  public void recheckMarksNodeUp() throws Exception {
+    nodes = createNodes(LoadBalancing.ROUND_ROBIN, "http://es1:9200/logstash", "http://es2:9200/logstash");
+    Node back = nodes.nodes.get(0);
+    Node stillDown = nodes.nodes.get(1);
+    nodes.markDown(back);
+    nodes.markDown(stillDown);
+    when(mockProbe.isAlive(back)).thenReturn(true);
+    when(mockProbe.isAlive(stillDown)).thenReturn(false);
+
+    // Unit under test
+    nodes.recheck();
+
+    // Verify results
+    assertFalse("Node not marked up", back.down);
+    assertTrue("Node marked up", stillDown.down);
+    verify(mockProbe).isAlive(back);
+    verify(mockProbe).isAlive(stillDown);
+  }
+}
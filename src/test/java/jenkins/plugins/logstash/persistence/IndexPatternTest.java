@@ -0,0 +1,85 @@
+package jenkins.plugins.logstash.persistence;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class IndexPatternTest {
+  static final long MIDNIGHT = 1433203200000L; // 2015-06-02T00:00:00.000Z
+
+  @Test
+  public void resolveDailyPattern() throws Exception {
+    IndexPattern pattern = new IndexPattern("jenkins-%{yyyy.MM.dd}");
+
+    // Unit under test
+    String result = pattern.resolve(MIDNIGHT + 45296789L);
+
+    // Verify results
+    assertEquals("Wrong index", "jenkins-2015.06.02", result);
+  }
+
+  @Test
+  public void resolveSwitchesAtMidnight() throws Exception {
+    IndexPattern pattern = new IndexPattern("jenkins-%{+yyyy.MM.dd}/logstash");
+
+    // Unit under test
+    String before = pattern.resolve(MIDNIGHT - 1);
+    String after = pattern.resolve(MIDNIGHT);
+    String again = pattern.resolve(MIDNIGHT - 1);
+
+    // Verify results
+    assertEquals("Wrong index before midnight", "jenkins-2015.06.01/logstash", before);
+    assertEquals("Wrong index after midnight", "jenkins-2015.06.02/logstash", after);
+    assertEquals("Wrong index for late event", "jenkins-2015.06.01/logstash", again);
+  }
+
+  @Test
+  public void resolveCachesDay() throws Exception {
+    IndexPattern pattern = new IndexPattern("jenkins-%{yyyy.MM.dd}");
+
+    // Unit under test
+    String first = pattern.resolve(MIDNIGHT);
+    String second = pattern.resolve(MIDNIGHT + 86399999L);
+
+    // Verify results
+    assertSame("Day not cached", first, second);
+  }
+
+  @Test
+  public void resolveQuotesLiterals() throws Exception {
+    IndexPattern pattern = new IndexPattern("it's-%{YYYY}-%{MM}");
+
+    // Unit under test
+    String result = pattern.resolve(MIDNIGHT);
+
+    // Verify results
+    assertEquals("Wrong index", "it's-2015-06", result);
+  }
+
+  @Test
+  public void isPattern() throws Exception {
+    assertTrue("Pattern not detected", IndexPattern.isPattern("jenkins-%{yyyy}"));
+    assertFalse("Plain key taken as pattern", IndexPattern.isPattern("jenkins/logstash"));
+    assertFalse("Null taken as pattern", IndexPattern.isPattern(null));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructorFailUnterminated() throws Exception {
+    try {
+      new IndexPattern("jenkins-%{yyyy");
+    } catch (IllegalArgumentException e) {
+      assertEquals("Wrong error message was thrown", "unterminated placeholder in index pattern 'jenkins-%{yyyy'", e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructorFailTimeOfDay() throws Exception {
+    try {
+      new IndexPattern("jenkins-%{yyyy.MM.dd-mm}");
+    } catch (IllegalArgumentException e) {
+      assertEquals("Wrong error message was thrown", "index pattern 'jenkins-%{yyyy.MM.dd-mm}' may only use date fields, found 'm'", e.getMessage());
+      throw e;
+    }
+  }
+}
@@ -2,6 +2,8 @@ package jenkins.plugins.logstash.persistence;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import jenkins.plugins.logstash.persistence.LogstashIndexerDao.IndexerType;
 
 import org.junit.Test;
@@ -30,6 +32,22 @@ public class IndexerDaoFactoryTest {
     }
   }
 
+  @Test
+  public void settingsChangeReplacesInstance() throws Exception {
+    IndexerSettings settings = new IndexerSettings();
+    LogstashIndexerDao first = IndexerDaoFactory.getInstance(IndexerType.REDIS, "localhost", 1234, "key", null, null, settings);
+
+    IndexerSettings sameSettings = new IndexerSettings();
+    LogstashIndexerDao second = IndexerDaoFactory.getInstance(IndexerType.REDIS, "localhost", 1234, "key", null, null, sameSettings);
+
+    IndexerSettings otherSettings = new IndexerSettings();
+    otherSettings.setMaxConnectionsPerRoute(1);
+    LogstashIndexerDao third = IndexerDaoFactory.getInstance(IndexerType.REDIS, "localhost", 1234, "key", null, null, otherSettings);
+
+    assertSame("Instance not reused", first, second);
+    assertNotSame("Instance not replaced", first, third);
+  }
+
   @Test(expected = InstantiationException.class)
   public void failureNullType() throws Exception {
     try {
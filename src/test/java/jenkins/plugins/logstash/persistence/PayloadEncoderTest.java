@@ -0,0 +1,113 @@
+package jenkins.plugins.logstash.persistence;
+
+import static net.sf.json.test.JSONAssert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import net.sf.json.JSONObject;
+
+import org.junit.Test;
+
+public class PayloadEncoderTest {
+
+  static final String EMPTY_STRING = "{\"@buildTimestamp\":\"2000-01-01\",\"data\":{},\"message\":[],\"source\":\"jenkins\",\"source_host\":\"http://localhost:8080/jenkins\",\"@version\":1}";
+  static final String TWO_LINE_STRING = "{\"@buildTimestamp\":\"2000-01-01\",\"data\":{\"id\":\"TEST_JOB_123\"},\"message\":[\"LINE 1\", \"LINE 2\"],\"source\":\"jenkins\",\"source_host\":\"http://localhost:8080/jenkins\",\"@version\":1}";
+  static final String NO_HOST_STRING = "{\"data\":{},\"message\":[\"LINE 1\"],\"source\":\"jenkins\",\"@version\":1}";
+
+  static JSONObject encode(PayloadEncoder encoder, List<String> lines) throws Exception {
+    encoder.encode(lines, new Date());
+    return JSONObject.fromObject(new String(encoder.buffer(), 0, encoder.size(), "UTF-8"));
+  }
+
+  @Test
+  public void encodeEmpty() throws Exception {
+    PayloadEncoder encoder = new PayloadEncoder("{}".getBytes("UTF-8"), "http://localhost:8080/jenkins", "2000-01-01");
+
+    // Unit under test
+    JSONObject result = encode(encoder, new ArrayList<String>());
+
+    // Verify results
+    assertTrue("Missing @timestamp", result.containsKey("@timestamp"));
+    result.remove("@timestamp");
+    assertEquals("Results don't match", JSONObject.fromObject(EMPTY_STRING), result);
+  }
+
+  @Test
+  public void encodeTwoLinesWithBuildData() throws Exception {
+    BuildData buildData = new BuildData();
+    buildData.setId("TEST_JOB_123");
+    buildData.timestamp = "2000-01-01";
+    PayloadEncoder encoder = new PayloadEncoder(buildData, "http://localhost:8080/jenkins");
+
+    // Unit under test
+    JSONObject result = encode(encoder, Arrays.asList("LINE 1", "LINE 2"));
+    result.remove("@timestamp");
+
+    // Verify results
+    assertEquals("Results don't match", JSONObject.fromObject(TWO_LINE_STRING), result);
+  }
+
+  @Test
+  public void encodeWithoutHostOrBuildTimestamp() throws Exception {
+    PayloadEncoder encoder = new PayloadEncoder("{}".getBytes("UTF-8"), null, null);
+
+    // Unit under test
+    JSONObject result = encode(encoder, Arrays.asList("LINE 1"));
+    result.remove("@timestamp");
+
+    // Verify results
+    assertEquals("Results don't match", JSONObject.fromObject(NO_HOST_STRING), result);
+  }
+
+  @Test
+  public void encodeNextKeepsPreviousPayloads() throws Exception {
+    PayloadEncoder encoder = new PayloadEncoder("{}".getBytes("UTF-8"), null, null);
+    encoder.encode(Arrays.asList("LINE 1"), new Date());
+    int first = encoder.size();
+
+    // Unit under test
+    encoder.encodeNext(Arrays.asList("LINE 1"), new Date());
+
+    // Verify results
+    JSONObject result = JSONObject.fromObject(new String(encoder.buffer(), first, encoder.size() - first, "UTF-8"));
+    result.remove("@timestamp");
+    assertEquals("Results don't match", JSONObject.fromObject(NO_HOST_STRING), result);
+    result = JSONObject.fromObject(new String(encoder.buffer(), 0, first, "UTF-8"));
+    result.remove("@timestamp");
+    assertEquals("First payload overwritten", JSONObject.fromObject(NO_HOST_STRING), result);
+  }
+
+  @Test
+  public void encodeEscapesLines() throws Exception {
+    PayloadEncoder encoder = new PayloadEncoder("{}".getBytes("UTF-8"), null, null);
+    String line = "quote \" backslash \\ tab \t unicode \u00e9\u4e2d";
+
+    // Unit under test
+    JSONObject result = encode(encoder, Arrays.asList(line));
+
+    // Verify results
+    org.junit.Assert.assertEquals("Line not round-tripped", line, result.getJSONArray("message").getString(0));
+  }
+
+  @Test
+  public void encodeReusesBuffer() throws Exception {
+    PayloadEncoder encoder = new PayloadEncoder("{}".getBytes("UTF-8"), null, null);
+    StringBuilder longLine = new StringBuilder();
+    for (int i = 0; i < 10000; i++) {
+      longLine.append("0123456789");
+    }
+
+    // Unit under test
+    JSONObject first = encode(encoder, Arrays.asList(longLine.toString()));
+    JSONObject second = encode(encoder, Arrays.asList("short"));
+
+    // Verify results
+    org.junit.Assert.assertEquals("Long line not encoded", longLine.toString(), first.getJSONArray("message").getString(0));
+    org.junit.Assert.assertEquals("Previous payload leaked", "short", second.getJSONArray("message").getString(0));
+    org.junit.Assert.assertEquals("Copy does not match buffer", encoder.toString(), new String(encoder.toByteArray(), "UTF-8"));
+  }
+}
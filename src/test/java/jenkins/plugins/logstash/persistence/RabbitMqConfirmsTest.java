@@ -0,0 +1,141 @@
+package jenkins.plugins.logstash.persistence;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ShutdownSignalException;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RabbitMqConfirmsTest {
+  RabbitMqConfirms confirms;
+  @Mock Channel mockChannel;
+  @Mock PushCompletion mockCompletion;
+  @Mock RabbitMqConfirms.Republisher mockRepublisher;
+
+  static byte[] body(String text) {
+    return text.getBytes(StandardCharsets.UTF_8);
+  }
+
+  // Publishes the events as one batch with delivery tags from 1
+  RabbitMqConfirms.Batch publish(String... events) throws Exception {
+    RabbitMqConfirms.Batch batch = new RabbitMqConfirms.Batch(events.length, mockCompletion);
+    for (int i = 0; i < events.length; i++) {
+      when(mockChannel.getNextPublishSeqNo()).thenReturn(i + 1L);
+      confirms.publish(mockChannel, "", "logstash", body(events[i]), batch, 0);
+    }
+    return batch;
+  }
+
+  @Before
+  public void before() throws Exception {
+    confirms = new RabbitMqConfirms(mockRepublisher);
+  }
+
+  @After
+  public void after() throws Exception {
+    verifyNoMoreInteractions(mockCompletion);
+    verifyNoMoreInteractions(mockRepublisher);
+  }
+
+  @Test
+  public void handleAckCompletesBatch() throws Exception {
+    publish("event 1", "event 2");
+
+    // Unit under test
+    confirms.handleAck(1, false);
+    verify(mockCompletion, never()).completed();
+    confirms.handleAck(2, false);
+
+    // Verify results
+    verify(mockCompletion).completed();
+    assertEquals("Confirms still outstanding", 0, confirms.getOutstandingCount());
+  }
+
+  @Test
+  public void handleAckMultipleSettlesEarlierTags() throws Exception {
+    publish("event 1", "event 2", "event 3");
+
+    // Unit under test
+    confirms.handleAck(2, true);
+
+    // Verify results
+    assertEquals("Wrong outstanding count", 1, confirms.getOutstandingCount());
+    confirms.handleAck(3, false);
+    verify(mockCompletion).completed();
+  }
+
+  @Test
+  public void handleNackRepublishesOnlyNacked() throws Exception {
+    RabbitMqConfirms.Batch batch = publish("event 1", "event 2", "event 3");
+
+    // Unit under test
+    confirms.handleAck(1, false);
+    confirms.handleNack(2, false);
+    confirms.handleAck(3, false);
+
+    // Verify results, the batch waits for the nacked event
+    ArgumentCaptor<byte[]> republished = ArgumentCaptor.forClass(byte[].class);
+    verify(mockRepublisher).republish(eq("logstash"), republished.capture(), same(batch), eq(1));
+    assertEquals("Wrong event republished", "event 2", new String(republished.getValue(), StandardCharsets.UTF_8));
+    assertFalse("Settled before the republished event", batch.isSettled());
+  }
+
+  @Test
+  public void handleNackRejectsAfterRepublishing() throws Exception {
+    RabbitMqConfirms.Batch batch = new RabbitMqConfirms.Batch(2, mockCompletion);
+    when(mockChannel.getNextPublishSeqNo()).thenReturn(1L, 2L);
+    confirms.publish(mockChannel, "", "logstash", body("event 1"), batch, 0);
+    confirms.publish(mockChannel, "", "logstash", body("event 2"), batch, RabbitMqConfirms.MAX_REPUBLISH);
+
+    // Unit under test
+    confirms.handleAck(1, false);
+    confirms.handleNack(2, false);
+
+    // Verify results
+    ArgumentCaptor<IOException> failure = ArgumentCaptor.forClass(IOException.class);
+    verify(mockCompletion).failed(failure.capture());
+    assertTrue("Not a partial failure", failure.getValue() instanceof PartialFailureException);
+    assertEquals("Wrong failed count", 1, ((PartialFailureException) failure.getValue()).getFailedCount());
+  }
+
+  @Test
+  public void shutdownFailsOutstanding() throws Exception {
+    publish("event 1", "event 2");
+    confirms.handleAck(1, false);
+
+    // Unit under test
+    confirms.shutdownCompleted(mock(ShutdownSignalException.class));
+    confirms.handleAck(2, false);
+
+    // Verify results, reported once
+    verify(mockCompletion).failed(any(IOException.class));
+    assertEquals("Confirms still outstanding", 0, confirms.getOutstandingCount());
+  }
+
+  @Test(expected = IOException.class)
+  public void publishFailForgetsTag() throws Exception {
+    RabbitMqConfirms.Batch batch = new RabbitMqConfirms.Batch(1, mockCompletion);
+    when(mockChannel.getNextPublishSeqNo()).thenReturn(1L);
+    doThrow(new IOException("Channel closed")).when(mockChannel).basicPublish("", "logstash", null, body("event 1"));
+
+    // Unit under test
+    try {
+      confirms.publish(mockChannel, "", "logstash", body("event 1"), batch, 0);
+    } finally {
+      // Verify results
+      assertEquals("Failed publish still outstanding", 0, confirms.getOutstandingCount());
+    }
+  }
+}
@@ -1,10 +1,18 @@
 package jenkins.plugins.logstash.persistence;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.*;
 
 import java.io.IOException;
 import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.exception.ExceptionUtils;
@@ -12,13 +20,18 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 
+import com.rabbitmq.client.AMQP;
 import com.rabbitmq.client.AuthenticationFailureException;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Recoverable;
+import com.rabbitmq.client.RecoveryListener;
+import com.rabbitmq.client.ShutdownSignalException;
 
 @RunWith(MockitoJUnitRunner.class)
 public class RabbitMqDaoTest {
@@ -31,6 +44,8 @@ public class RabbitMqDaoTest {
     RabbitMqDao factory = new RabbitMqDao(mockPool, host, port, key, username, password);
     verify(mockPool, atLeastOnce()).setHost(host);
     verify(mockPool, atLeastOnce()).setPort(port);
+    verify(mockPool, atLeastOnce()).setAutomaticRecoveryEnabled(true);
+    verify(mockPool, atLeastOnce()).setTopologyRecoveryEnabled(true);
 
     if (!StringUtils.isBlank(username) && !StringUtils.isBlank(password)) {
       verify(mockPool, atLeastOnce()).setUsername(username);
@@ -158,15 +173,14 @@ public class RabbitMqDaoTest {
     try {
       dao.push("{}");
     } catch (IOException e) {
-      // Verify results
+      // Verify results, the channel is closed but the connection is kept
       verify(mockPool).newConnection();
       verify(mockConnection).createChannel();
-      verify(mockConnection).isOpen();
-      verify(mockConnection).close();
       verify(mockChannel).queueDeclarePassive("logstash");
       verify(mockChannel).basicPublish("", "logstash", null, "{}".getBytes());
       verify(mockChannel).isOpen();
       verify(mockChannel).close();
+      assertTrue("Failed channel pooled", dao.channels.isEmpty());
       assertEquals("wrong error message",
         "SocketException: Queue length limit exceeded", ExceptionUtils.getMessage(e));
       throw e;
@@ -180,15 +194,90 @@ public class RabbitMqDaoTest {
     // Unit under test
     dao.push(json);
 
-    // Verify results
+    // Verify results, the connection and channel stay open
     verify(mockPool).newConnection();
     verify(mockConnection).createChannel();
-    verify(mockConnection).isOpen();
-    verify(mockConnection).close();
     verify(mockChannel).queueDeclarePassive("logstash");
     verify(mockChannel).basicPublish("", "logstash", null, json.getBytes());
     verify(mockChannel).isOpen();
-    verify(mockChannel).close();
+    assertEquals("Channel not pooled", 1, dao.channels.size());
+  }
+
+  @Test
+  public void pushReusesConnectionAndChannel() throws Exception {
+    String json = "{ 'foo': 'bar' }";
+
+    // Unit under test
+    dao.push(json);
+    dao.push(json);
+
+    // Verify results, the queue is only declared once
+    verify(mockPool).newConnection();
+    verify(mockConnection).isOpen();
+    verify(mockConnection).createChannel();
+    verify(mockChannel).queueDeclarePassive("logstash");
+    verify(mockChannel, times(2)).basicPublish("", "logstash", null, json.getBytes());
+    verify(mockChannel, times(3)).isOpen();
+  }
+
+  @Test
+  public void pushRedeclaresAfterNotFound() throws Exception {
+    String json = "{ 'foo': 'bar' }";
+    dao.push(json);
+    ShutdownSignalException cause = mock(ShutdownSignalException.class);
+    when(cause.getReason()).thenReturn(new AMQP.Channel.Close.Builder().replyCode(AMQP.NOT_FOUND).build());
+    when(mockChannel.getCloseReason()).thenReturn(cause);
+    // The pooled channel was closed by the broker
+    when(mockChannel.isOpen()).thenReturn(false, true);
+
+    // Unit under test
+    dao.push(json);
+
+    // Verify results
+    assertTrue("Topology not declared", dao.topologyDeclared);
+    verify(mockPool).newConnection();
+    verify(mockConnection).isOpen();
+    verify(mockConnection, times(2)).createChannel();
+    verify(mockChannel).getCloseReason();
+    verify(mockChannel, times(2)).queueDeclarePassive("logstash");
+    verify(mockChannel, times(2)).basicPublish("", "logstash", null, json.getBytes());
+    verify(mockChannel, times(3)).isOpen();
+  }
+
+  @Test
+  public void pushRedeclaresAfterRecovery() throws Exception {
+    Connection recoverable = mock(Connection.class, withSettings().extraInterfaces(Recoverable.class));
+    when(mockPool.newConnection()).thenReturn(recoverable);
+    when(recoverable.createChannel()).thenReturn(mockChannel);
+    dao.push("{}");
+    ArgumentCaptor<RecoveryListener> listener = ArgumentCaptor.forClass(RecoveryListener.class);
+    verify((Recoverable) recoverable).addRecoveryListener(listener.capture());
+    assertTrue("Topology not declared", dao.topologyDeclared);
+
+    // Unit under test
+    listener.getValue().handleRecovery((Recoverable) recoverable);
+
+    // Verify results
+    assertFalse("Topology still declared after recovery", dao.topologyDeclared);
+    verify(mockPool).newConnection();
+    verify(mockChannel).queueDeclarePassive("logstash");
+    verify(mockChannel).basicPublish("", "logstash", null, "{}".getBytes());
+    verify(mockChannel).isOpen();
+  }
+
+  @Test
+  public void pushEventSuccess() throws Exception {
+    byte[] json = "{ 'foo': 'bar' }".getBytes("UTF-8");
+
+    // Unit under test
+    dao.push(new LogstashEvent(json, 0));
+
+    // Verify results
+    verify(mockPool).newConnection();
+    verify(mockConnection).createChannel();
+    verify(mockChannel).queueDeclarePassive("logstash");
+    verify(mockChannel).basicPublish("", "logstash", null, "{ 'foo': 'bar' }".getBytes("UTF-8"));
+    verify(mockChannel).isOpen();
   }
 
   @Test
@@ -202,12 +291,9 @@ public class RabbitMqDaoTest {
     // Verify results
     verify(mockPool).newConnection();
     verify(mockConnection).createChannel();
-    verify(mockConnection).isOpen();
-    verify(mockConnection).close();
     verify(mockChannel).queueDeclarePassive("logstash");
     verify(mockChannel).basicPublish("", "logstash", null, json.getBytes());
     verify(mockChannel).isOpen();
-    verify(mockChannel).close();
   }
 
   @Test
@@ -222,12 +308,223 @@ public class RabbitMqDaoTest {
     // Verify results
     verify(mockPool).newConnection();
     verify(mockConnection, times(2)).createChannel();
-    verify(mockConnection).isOpen();
-    verify(mockConnection).close();
     verify(mockChannel).queueDeclarePassive("logstash");
     verify(mockChannel).queueDeclare("logstash", true, false, false, null);
     verify(mockChannel).basicPublish("", "logstash", null, json.getBytes());
     verify(mockChannel, times(2)).isOpen();
-    verify(mockChannel, times(2)).close();
+    verify(mockChannel).close();
+  }
+
+  @Test
+  public void pushAllSingleChannel() throws Exception {
+    // Unit under test
+    dao.pushAll(Arrays.asList(new LogstashEvent("event 1".getBytes(StandardCharsets.UTF_8), 0),
+      new LogstashEvent("event 2".getBytes(StandardCharsets.UTF_8), 0)));
+
+    // Verify results
+    verify(mockPool).newConnection();
+    verify(mockConnection).createChannel();
+    verify(mockChannel).queueDeclarePassive("logstash");
+    verify(mockChannel).basicPublish("", "logstash", null, "event 1".getBytes(StandardCharsets.UTF_8));
+    verify(mockChannel).basicPublish("", "logstash", null, "event 2".getBytes(StandardCharsets.UTF_8));
+    verify(mockChannel).isOpen();
+  }
+
+  @Test
+  public void pushRoutedToQueueWithoutExchange() throws Exception {
+    byte[] json = "{}".getBytes(StandardCharsets.UTF_8);
+
+    // Unit under test
+    dao.push(new LogstashEvent(json, 0, "job.master.1"));
+
+    // Verify results
+    verify(mockPool).newConnection();
+    verify(mockConnection).createChannel();
+    verify(mockChannel).queueDeclarePassive("logstash");
+    verify(mockChannel).basicPublish("", "logstash", null, json);
+    verify(mockChannel).isOpen();
+  }
+
+  @Test
+  public void pushToExchangeByRoutingKey() throws Exception {
+    IndexerSettings settings = new IndexerSettings();
+    settings.setRabbitMqExchange("logs");
+    settings.setRabbitMqExchangeType("x-consistent-hash");
+    dao.configure(settings);
+    byte[] json = "{ 'foo': 'bar' }".getBytes(StandardCharsets.UTF_8);
+
+    // Unit under test
+    dao.push(new LogstashEvent(json, 0, "job.master.1"));
+    dao.pushAll(Arrays.asList(new LogstashEvent(json, 0, "job.master.2"), new LogstashEvent(json, 0)));
+
+    // Verify results, the exchange is declared once and the queue is left to the consumers
+    verify(mockPool).setNetworkRecoveryInterval(IndexerSettings.DEFAULT_RABBIT_MQ_RECOVERY_MILLIS);
+    verify(mockPool).newConnection();
+    verify(mockConnection).isOpen();
+    verify(mockConnection).createChannel();
+    verify(mockChannel).exchangeDeclare("logs", "x-consistent-hash", true);
+    verify(mockChannel).basicPublish("logs", "job.master.1", null, json);
+    verify(mockChannel).basicPublish("logs", "job.master.2", null, json);
+    verify(mockChannel).basicPublish("logs", "logstash", null, json);
+    verify(mockChannel, times(3)).isOpen();
+  }
+
+  @Test(expected = IOException.class)
+  public void pushFailWhileRecovering() throws Exception {
+    dao.push("{}");
+    when(mockConnection.isOpen()).thenReturn(false);
+
+    // Unit under test
+    try {
+      dao.push("{}");
+    } catch (IOException e) {
+      // Verify results, no second connection is opened
+      verify(mockPool).newConnection();
+      verify(mockConnection).isOpen();
+      verify(mockConnection).createChannel();
+      verify(mockChannel).queueDeclarePassive("logstash");
+      verify(mockChannel).basicPublish("", "logstash", null, "{}".getBytes());
+      verify(mockChannel).isOpen();
+      assertEquals("wrong error message", "The connection to " + dao.getDescription() + " is being recovered", e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test
+  public void configureSetsPoolSize() throws Exception {
+    IndexerSettings settings = new IndexerSettings();
+    settings.setRabbitMqChannels(2);
+    settings.setRabbitMqRecoveryMillis(1000);
+
+    // Unit under test
+    dao.configure(settings);
+
+    // Verify results
+    verify(mockPool).setNetworkRecoveryInterval(1000);
+    assertEquals("Wrong channel pool size", 2, dao.channels.remainingCapacity());
+  }
+
+  @Test
+  public void closeClosesChannelsAndConnection() throws Exception {
+    dao.push("{}");
+
+    // Unit under test
+    dao.close();
+
+    // Verify results
+    verify(mockPool).newConnection();
+    verify(mockConnection).createChannel();
+    verify(mockChannel).queueDeclarePassive("logstash");
+    verify(mockChannel).basicPublish("", "logstash", null, "{}".getBytes());
+    verify(mockChannel, times(2)).isOpen();
+    verify(mockChannel).close();
+    verify(mockConnection, times(2)).isOpen();
+    verify(mockConnection).close();
+    assertTrue("Channel still pooled", dao.channels.isEmpty());
+  }
+
+  @Test(expected = IOException.class)
+  public void pushAfterCloseFails() throws Exception {
+    dao.close();
+
+    // Unit under test, no connection is opened again
+    try {
+      dao.push("{}");
+    } catch (IOException e) {
+      assertTrue("Wrong error message", e.getMessage().endsWith("is closed"));
+      throw e;
+    }
+  }
+
+  // Confirmed pushes wait for the broker, which the test plays on its own thread
+  Thread pushAllInBackground(final List<LogstashEvent> data, final AtomicReference<IOException> failure) {
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          dao.pushAll(data);
+        } catch (IOException e) {
+          failure.set(e);
+        }
+      }
+    };
+    thread.start();
+    return thread;
+  }
+
+  @Test
+  public void pushAllConfirmedWaitsForBroker() throws Exception {
+    IndexerSettings settings = new IndexerSettings();
+    settings.setRabbitMqConfirms(true);
+    dao.configure(settings);
+    verify(mockPool).setNetworkRecoveryInterval(settings.getRabbitMqRecoveryMillis());
+    when(mockChannel.getNextPublishSeqNo()).thenReturn(1L, 2L);
+    AtomicReference<IOException> failure = new AtomicReference<IOException>();
+
+    // Unit under test
+    Thread push = pushAllInBackground(Arrays.asList(new LogstashEvent("event 1".getBytes(StandardCharsets.UTF_8), 0),
+      new LogstashEvent("event 2".getBytes(StandardCharsets.UTF_8), 0)), failure);
+
+    // Verify results, done once the broker confirmed both
+    verify(mockChannel, timeout(5000)).basicPublish("", "logstash", null, "event 2".getBytes(StandardCharsets.UTF_8));
+    push.join(100);
+    assertTrue("Returned before the broker confirmed", push.isAlive());
+    dao.confirms.get(mockChannel).handleAck(2, true);
+    push.join(5000);
+    assertFalse("Still waiting after the broker confirmed", push.isAlive());
+    assertNull("Push failed", failure.get());
+
+    verify(mockPool).newConnection();
+    verify(mockConnection).createChannel();
+    verify(mockChannel).confirmSelect();
+    verify(mockChannel).addConfirmListener(dao.confirms.get(mockChannel));
+    verify(mockChannel).addShutdownListener(dao.confirms.get(mockChannel));
+    verify(mockChannel).queueDeclarePassive("logstash");
+    verify(mockChannel, times(2)).getNextPublishSeqNo();
+    verify(mockChannel).basicPublish("", "logstash", null, "event 1".getBytes(StandardCharsets.UTF_8));
+    verify(mockChannel).basicPublish("", "logstash", null, "event 2".getBytes(StandardCharsets.UTF_8));
+    verify(mockChannel).isOpen();
+  }
+
+  @Test
+  public void pushAllConfirmedRepublishesNacked() throws Exception {
+    IndexerSettings settings = new IndexerSettings();
+    settings.setRabbitMqConfirms(true);
+    dao.configure(settings);
+    verify(mockPool).setNetworkRecoveryInterval(settings.getRabbitMqRecoveryMillis());
+    dao.republishExecutor = new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        command.run();
+      }
+    };
+    when(mockChannel.getNextPublishSeqNo()).thenReturn(1L, 2L, 3L);
+    AtomicReference<IOException> failure = new AtomicReference<IOException>();
+    Thread push = pushAllInBackground(Arrays.asList(new LogstashEvent("event 1".getBytes(StandardCharsets.UTF_8), 0),
+      new LogstashEvent("event 2".getBytes(StandardCharsets.UTF_8), 0)), failure);
+    verify(mockChannel, timeout(5000)).basicPublish("", "logstash", null, "event 2".getBytes(StandardCharsets.UTF_8));
+    RabbitMqConfirms tracker = dao.confirms.get(mockChannel);
+
+    // Unit under test
+    tracker.handleAck(1, false);
+    tracker.handleNack(2, false);
+    tracker.handleAck(3, false);
+
+    // Verify results, only the nacked event is published again
+    push.join(5000);
+    assertFalse("Still waiting after the broker confirmed", push.isAlive());
+    assertNull("Push failed", failure.get());
+
+    verify(mockPool).newConnection();
+    verify(mockConnection).isOpen();
+    verify(mockConnection).createChannel();
+    verify(mockChannel).confirmSelect();
+    verify(mockChannel).addConfirmListener(tracker);
+    verify(mockChannel).addShutdownListener(tracker);
+    verify(mockChannel).queueDeclarePassive("logstash");
+    verify(mockChannel, times(3)).getNextPublishSeqNo();
+    verify(mockChannel).basicPublish("", "logstash", null, "event 1".getBytes(StandardCharsets.UTF_8));
+    verify(mockChannel, times(2)).basicPublish("", "logstash", null, "event 2".getBytes(StandardCharsets.UTF_8));
+    verify(mockChannel, times(3)).isOpen();
   }
 }
@@ -0,0 +1,44 @@
+package jenkins.plugins.logstash.persistence;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class RedisBacklogTest {
+  @Test(expected = IllegalArgumentException.class)
+  public void constructorFailLowAboveHigh() throws Exception {
+    try {
+      new RedisBacklog(100, 100);
+    } catch (IllegalArgumentException e) {
+      assertEquals("Wrong error message was thrown", "low watermark must be below the high watermark", e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test
+  public void constructorDefaultsLowWatermark() throws Exception {
+    RedisBacklog backlog = new RedisBacklog(1000, 0);
+
+    assertEquals("Wrong low watermark", 750, backlog.lowWatermark);
+    assertEquals("Sampled already", -1, backlog.getDepth());
+  }
+
+  @Test
+  public void updateHoldsBetweenWatermarks() throws Exception {
+    RedisBacklog backlog = new RedisBacklog(1000, 500);
+
+    // Unit under test, verify results
+    assertFalse("Changed below the high watermark", backlog.update(999));
+    assertFalse("Backed up below the high watermark", backlog.isBackedUp());
+
+    assertTrue("Not changed at the high watermark", backlog.update(1000));
+    assertTrue("Not backed up at the high watermark", backlog.isBackedUp());
+
+    assertFalse("Changed above the low watermark", backlog.update(501));
+    assertTrue("Resumed above the low watermark", backlog.isBackedUp());
+
+    assertTrue("Not changed at the low watermark", backlog.update(500));
+    assertFalse("Not resumed at the low watermark", backlog.isBackedUp());
+    assertEquals("Wrong depth", 500, backlog.getDepth());
+  }
+}
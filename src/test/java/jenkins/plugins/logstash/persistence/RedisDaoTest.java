@@ -1,7 +1,13 @@
 package jenkins.plugins.logstash.persistence;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
@@ -11,20 +17,84 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.Matchers;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.jedis.exceptions.JedisDataException;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
 
 @RunWith(MockitoJUnitRunner.class)
 public class RedisDaoTest {
   RedisDao dao;
   @Mock JedisPool mockPool;
   @Mock Jedis mockJedis;
+  @Mock JedisPool mockPool2;
+  @Mock Jedis mockJedis2;
+
+  // Records the values of each variadic RPUSH
+  List<List<String>> recordPushes() {
+    final List<List<String>> pushes = new ArrayList<List<String>>();
+    when(mockJedis.rpush(Matchers.any(byte[].class), Matchers.<byte[]>anyVararg())).thenAnswer(new Answer<Long>() {
+      @Override
+      public Long answer(InvocationOnMock invocation) throws Throwable {
+        Object[] args = invocation.getArguments();
+        assertEquals("Wrong key", "logstash", new String((byte[]) args[0], StandardCharsets.UTF_8));
+        List<String> values = new ArrayList<String>();
+        for (int i = 1; i < args.length; i++) {
+          if (args[i] instanceof byte[][]) {
+            for (byte[] value : (byte[][]) args[i]) {
+              values.add(new String(value, StandardCharsets.UTF_8));
+            }
+          } else {
+            values.add(new String((byte[]) args[i], StandardCharsets.UTF_8));
+          }
+        }
+        pushes.add(values);
+        return (long) values.size();
+      }
+    });
+    return pushes;
+  }
+
+  static List<LogstashEvent> events(String... data) {
+    List<LogstashEvent> events = new ArrayList<LogstashEvent>();
+    for (String item : data) {
+      events.add(new LogstashEvent(item.getBytes(StandardCharsets.UTF_8), 0));
+    }
+    return events;
+  }
+
+  RedisPoolStats stats() {
+    return dao.shards.shards.get(0).stats;
+  }
+
+  // Two brokers, the one of the mock pool first
+  RedisShards createShards() {
+    return new RedisShards(Arrays.asList(
+      new RedisShards.Shard("localhost", 6379, mockPool, new RedisPoolStats(60000, 0)),
+      new RedisShards.Shard("redis2", 6379, mockPool2, new RedisPoolStats(60000, 0))), 60000, null);
+  }
+
+  // A routing key that the ring assigns to the given broker
+  static String routingKeyFor(RedisShards shards, RedisShards.Shard shard) {
+    for (int i = 1; ; i++) {
+      if (shards.select("job#" + i) == shard) {
+        return "job#" + i;
+      }
+    }
+  }
 
   RedisDao createDao(String host, int port, String key, String username, String password) {
     return new RedisDao(mockPool, host, port, key, username, password);
@@ -36,12 +106,15 @@ public class RedisDaoTest {
     dao = createDao("localhost", port, "logstash", "username", "password");
 
     when(mockPool.getResource()).thenReturn(mockJedis);
+    when(mockPool2.getResource()).thenReturn(mockJedis2);
   }
 
   @After
   public void after() throws Exception {
     verifyNoMoreInteractions(mockPool);
     verifyNoMoreInteractions(mockJedis);
+    verifyNoMoreInteractions(mockPool2);
+    verifyNoMoreInteractions(mockJedis2);
   }
 
   @Test(expected = IllegalArgumentException.class)
@@ -99,8 +172,9 @@ public class RedisDaoTest {
 
   @Test(expected = IOException.class)
   public void pushFailUnauthorized() throws Exception {
-    // Initialize mocks
-    when(mockJedis.auth("password")).thenThrow(new JedisConnectionException("Unauthorized"));
+    // Initialize mocks, the pool authenticates new connections
+    when(mockPool.getResource()).thenThrow(new JedisConnectionException("Could not get a resource from the pool",
+      new JedisDataException("ERR invalid password")));
 
     // Unit under test
     try {
@@ -108,18 +182,18 @@ public class RedisDaoTest {
     } catch (IOException e) {
       // Verify results
       verify(mockPool).getResource();
-      verify(mockPool).returnBrokenResource(mockJedis);
-      verify(mockJedis).auth("password");
       assertEquals("wrong error message",
-        "IOException: redis.clients.jedis.exceptions.JedisConnectionException: Unauthorized", ExceptionUtils.getMessage(e));
+        "IOException: redis.clients.jedis.exceptions.JedisConnectionException: Could not get a resource from the pool", ExceptionUtils.getMessage(e));
+      assertEquals("Counted as exhausted", 0, stats().getExhaustedCount());
       throw e;
     }
   }
 
   @Test(expected = IOException.class)
-  public void pushFailCantConnect() throws Exception {
+  public void pushFailPoolExhausted() throws Exception {
     // Initialize mocks
-    doThrow(new JedisConnectionException("Connection refused")).when(mockJedis).connect();
+    when(mockPool.getResource()).thenThrow(new JedisConnectionException("Could not get a resource from the pool",
+      new NoSuchElementException("Timeout waiting for idle object")));
 
     // Unit under test
     try {
@@ -127,11 +201,8 @@ public class RedisDaoTest {
     } catch (IOException e) {
       // Verify results
       verify(mockPool).getResource();
-      verify(mockPool).returnBrokenResource(mockJedis);
-      verify(mockJedis).auth("password");
-      verify(mockJedis).connect();
-      assertEquals("wrong error message",
-        "IOException: redis.clients.jedis.exceptions.JedisConnectionException: Connection refused", ExceptionUtils.getMessage(e));
+      assertEquals("Wrong exhausted count", 1, stats().getExhaustedCount());
+      assertEquals("Wrong borrow count", 1, stats().getBorrowCount());
       throw e;
     }
   }
@@ -150,8 +221,6 @@ public class RedisDaoTest {
       // Verify results
       verify(mockPool).getResource();
       verify(mockPool).returnBrokenResource(mockJedis);
-      verify(mockJedis).auth("password");
-      verify(mockJedis).connect();
       verify(mockJedis).rpush("logstash", json);
       assertEquals("wrong error message",
         "IOException: redis.clients.jedis.exceptions.JedisConnectionException: Push failed", ExceptionUtils.getMessage(e));
@@ -168,32 +237,374 @@ public class RedisDaoTest {
 
     // Unit under test
     dao.push(json);
+    dao.push(json);
+
+    // Verify results, the connection is neither authenticated nor reopened per push
+    verify(mockPool, times(2)).getResource();
+    verify(mockPool, times(2)).returnResource(mockJedis);
+    verify(mockJedis, times(2)).rpush("logstash", json);
+    assertEquals("Wrong borrow count", 2, stats().getBorrowCount());
+  }
+
+  @Test
+  public void configureReplacesOwnPool() throws Exception {
+    dao = new RedisDao("localhost", 6379, "logstash", null, "password");
+    RedisShards defaultShards = dao.shards;
+    IndexerSettings settings = new IndexerSettings();
+    settings.setRedisMaxConnections(60);
+
+    // Unit under test
+    dao.configure(settings);
+
+    // Verify results
+    assertTrue("Pool not owned", dao.ownsPool);
+    assertNotSame("Pool not replaced", defaultShards, dao.shards);
+    dao.close();
+  }
+
+  @Test
+  public void closeClosesOwnPool() throws Exception {
+    dao = new RedisDao("localhost", 6379, "logstash", null, "password");
+    RedisShards ownShards = dao.shards;
+
+    // Unit under test
+    dao.close();
+
+    // Verify results, the pool is not opened again for builds still pushing
+    assertSame("Pool replaced", ownShards, dao.shards);
+  }
+
+  @Test
+  public void closeRefusesPushes() throws Exception {
+    // Unit under test
+    dao.close();
+
+    // Verify results, no connection is borrowed
+    try {
+      dao.push("{ 'foo': 'bar' }");
+      fail("Push to a closed indexer accepted");
+    } catch (IOException e) {
+      assertTrue("Wrong error message", e.getMessage().endsWith("is closed"));
+    }
+    try {
+      dao.pushAll(events("{\"a\":1}"));
+      fail("Push to a closed indexer accepted");
+    } catch (IOException e) {
+      assertTrue("Wrong error message", e.getMessage().endsWith("is closed"));
+    }
+  }
+
+  @Test
+  public void configureAddsBrokers() throws Exception {
+    dao = new RedisDao("localhost", 6379, "logstash", null, "password");
+    IndexerSettings settings = new IndexerSettings();
+    settings.setRedisShards(Arrays.asList("redis2:6380", "redis3"));
+
+    // Unit under test
+    dao.configure(settings);
 
     // Verify results
+    assertEquals("Wrong broker count", 3, dao.shards.shards.size());
+    assertEquals("Wrong broker", "localhost:6379", dao.shards.shards.get(0).toString());
+    assertEquals("Wrong broker", "redis2:6380", dao.shards.shards.get(1).toString());
+    assertEquals("Wrong broker", "redis3:6379", dao.shards.shards.get(2).toString());
+    dao.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void configureFailBadBroker() throws Exception {
+    dao = new RedisDao("localhost", 6379, "logstash", null, "password");
+    IndexerSettings settings = new IndexerSettings();
+    settings.setRedisShards(Arrays.asList("redis2:port"));
+
+    try {
+      // Unit under test
+      dao.configure(settings);
+    } catch (IllegalArgumentException e) {
+      assertEquals("Wrong error message was thrown", "broker 'redis2:port' must be given as host or host:port", e.getMessage());
+      throw e;
+    } finally {
+      dao.close();
+    }
+  }
+
+  @Test
+  public void pushRoutesByKey() throws Exception {
+    RedisShards shards = createShards();
+    dao = new RedisDao(shards, "localhost", 6379, "logstash", null, null);
+    String routingKey = routingKeyFor(shards, shards.shards.get(1));
+    byte[] data = "{ 'foo': 'bar' }".getBytes(StandardCharsets.UTF_8);
+    when(mockJedis2.rpush(Matchers.any(byte[].class), Matchers.<byte[]>anyVararg())).thenReturn(1L);
+
+    // Unit under test
+    dao.push(new LogstashEvent(data, 0, routingKey));
+    dao.push(new LogstashEvent(data, 0, routingKey));
+
+    // Verify results, both pushes go to the broker of the key
+    verify(mockPool2, times(2)).getResource();
+    verify(mockPool2, times(2)).returnResource(mockJedis2);
+    verify(mockJedis2, times(2)).rpush(Matchers.any(byte[].class), Matchers.<byte[]>anyVararg());
+  }
+
+  @Test
+  public void pushAllGroupsByBroker() throws Exception {
+    RedisShards shards = createShards();
+    dao = new RedisDao(shards, "localhost", 6379, "logstash", null, null);
+    String first = routingKeyFor(shards, shards.shards.get(0));
+    String second = routingKeyFor(shards, shards.shards.get(1));
+    List<List<String>> pushes = recordPushes();
+    when(mockJedis2.rpush(Matchers.any(byte[].class), Matchers.<byte[]>anyVararg())).thenReturn(2L);
+    List<LogstashEvent> data = Arrays.asList(
+      new LogstashEvent("event 1".getBytes(StandardCharsets.UTF_8), 0, first),
+      new LogstashEvent("event 2".getBytes(StandardCharsets.UTF_8), 0, second),
+      new LogstashEvent("event 3".getBytes(StandardCharsets.UTF_8), 0, first),
+      new LogstashEvent("event 4".getBytes(StandardCharsets.UTF_8), 0, second));
+
+    // Unit under test
+    dao.pushAll(data);
+
+    // Verify results, one push per broker
     verify(mockPool).getResource();
     verify(mockPool).returnResource(mockJedis);
-    verify(mockJedis).auth("password");
-    verify(mockJedis).connect();
-    verify(mockJedis).rpush("logstash", json);
-    verify(mockJedis).disconnect();
+    verify(mockJedis).rpush(Matchers.any(byte[].class), Matchers.<byte[]>anyVararg());
+    verify(mockPool2).getResource();
+    verify(mockPool2).returnResource(mockJedis2);
+    verify(mockJedis2).rpush(Matchers.any(byte[].class), Matchers.<byte[]>anyVararg());
+    assertEquals("Wrong values", Arrays.asList(Arrays.asList("event 1", "event 3")), pushes);
   }
 
   @Test
-  public void pushSuccessNoAuth() throws Exception {
-    String json = "{ 'foo': 'bar' }";
+  public void pushFailMarksBrokerDown() throws Exception {
+    RedisShards shards = createShards();
+    dao = new RedisDao(shards, "localhost", 6379, "logstash", null, null);
+    String routingKey = routingKeyFor(shards, shards.shards.get(1));
+    byte[] data = "{ 'foo': 'bar' }".getBytes(StandardCharsets.UTF_8);
+    when(mockJedis2.rpush(Matchers.any(byte[].class), Matchers.<byte[]>anyVararg())).thenThrow(new JedisConnectionException("Push failed"));
+    recordPushes();
+
+    // Unit under test
+    try {
+      dao.push(new LogstashEvent(data, 0, routingKey));
+    } catch (IOException e) {
+      // Expected, the next push goes to the other broker
+    }
+    dao.push(new LogstashEvent(data, 0, routingKey));
+
+    // Verify results
+    assertTrue("Broker not marked down", shards.shards.get(1).down);
+    verify(mockPool2).getResource();
+    verify(mockPool2).returnBrokenResource(mockJedis2);
+    verify(mockJedis2).rpush(Matchers.any(byte[].class), Matchers.<byte[]>anyVararg());
+    verify(mockPool).getResource();
+    verify(mockPool).returnResource(mockJedis);
+    verify(mockJedis).rpush(Matchers.any(byte[].class), Matchers.<byte[]>anyVararg());
+
+    shards.close();
+    verify(mockPool).destroy();
+    verify(mockPool2).destroy();
+  }
+
+  @Test
+  public void pushAllSuccess() throws Exception {
+    List<List<String>> pushes = recordPushes();
 
+    // Unit under test
+    dao.pushAll(events("event 1", "event 2", "event 3"));
+
+    // Verify results
+    verify(mockPool).getResource();
+    verify(mockPool).returnResource(mockJedis);
+    verify(mockJedis).rpush(Matchers.any(byte[].class), Matchers.<byte[]>anyVararg());
+    assertEquals("Wrong values", Arrays.asList(Arrays.asList("event 1", "event 2", "event 3")), pushes);
+  }
+
+  @Test
+  public void pushAllSplitsBatches() throws Exception {
+    IndexerSettings settings = new IndexerSettings();
+    settings.setRedisBatchSize(2);
+    dao.configure(settings);
+    List<List<String>> pushes = recordPushes();
+
+    // Unit under test
+    dao.pushAll(events("event 1", "event 2", "event 3"));
+
+    // Verify results
+    verify(mockPool).getResource();
+    verify(mockPool).returnResource(mockJedis);
+    verify(mockJedis, times(2)).rpush(Matchers.any(byte[].class), Matchers.<byte[]>anyVararg());
+    assertEquals("Wrong values", Arrays.asList(Arrays.asList("event 1", "event 2"), Arrays.asList("event 3")), pushes);
+  }
+
+  @Test(expected = IOException.class)
+  public void pushAllFailCantWrite() throws Exception {
     // Initialize mocks
-    dao = createDao("localhost", 6379, "logstash", null, null);
-    when(mockJedis.rpush("logstash", json)).thenReturn(1L);
+    when(mockJedis.rpush(Matchers.any(byte[].class), Matchers.<byte[]>anyVararg())).thenThrow(new JedisConnectionException("Push failed"));
+
+    try {
+      // Unit under test
+      dao.pushAll(events("event 1"));
+    } catch (IOException e) {
+      // Verify results
+      verify(mockPool).getResource();
+      verify(mockPool).returnBrokenResource(mockJedis);
+      verify(mockJedis).rpush(Matchers.any(byte[].class), Matchers.<byte[]>anyVararg());
+      assertEquals("wrong error message",
+        "PendingEventsException: redis.clients.jedis.exceptions.JedisConnectionException: Push failed", ExceptionUtils.getMessage(e));
+      throw e;
+    }
+  }
+
+  @Test(expected = PendingEventsException.class)
+  public void pushAllKeepsPushedBatches() throws Exception {
+    IndexerSettings settings = new IndexerSettings();
+    settings.setRedisBatchSize(2);
+    dao.configure(settings);
+    when(mockJedis.rpush(Matchers.any(byte[].class), Matchers.<byte[]>anyVararg()))
+      .thenReturn(2L).thenThrow(new JedisConnectionException("Push failed"));
+    List<LogstashEvent> data = events("event 1", "event 2", "event 3");
+
+    try {
+      // Unit under test
+      dao.pushAll(data);
+    } catch (PendingEventsException e) {
+      // Verify results, the first batch is not pushed again
+      verify(mockPool).getResource();
+      verify(mockPool).returnBrokenResource(mockJedis);
+      verify(mockJedis, times(2)).rpush(Matchers.any(byte[].class), Matchers.<byte[]>anyVararg());
+      assertEquals("Wrong pending events", data.subList(2, 3), e.getPendingEvents());
+      throw e;
+    }
+  }
+
+  @Test
+  public void pushStreamSuccess() throws Exception {
+    IndexerSettings settings = new IndexerSettings();
+    settings.setRedisDataType(IndexerSettings.RedisDataType.STREAM);
+    dao.configure(settings);
+    when(mockJedis.evalsha(Matchers.any(byte[].class), Matchers.eq(1), Matchers.<byte[]>anyVararg())).thenReturn(1L);
 
     // Unit under test
-    dao.push(json);
+    dao.push("{ 'foo': 'bar' }");
+
+    // Verify results
+    verify(mockPool).getResource();
+    verify(mockPool).returnResource(mockJedis);
+    verify(mockJedis).evalsha(Matchers.any(byte[].class), Matchers.eq(1), Matchers.<byte[]>anyVararg());
+  }
+
+  @Test
+  public void pushAllStreamLoadsScript() throws Exception {
+    IndexerSettings settings = new IndexerSettings();
+    settings.setRedisDataType(IndexerSettings.RedisDataType.STREAM);
+    settings.setRedisStreamMaxLength(1000);
+    dao.configure(settings);
+    when(mockJedis.evalsha(Matchers.any(byte[].class), Matchers.eq(1), Matchers.<byte[]>anyVararg()))
+      .thenThrow(new JedisDataException("NOSCRIPT No matching script. Please use EVAL."));
+    final List<String> params = new ArrayList<String>();
+    when(mockJedis.eval(Matchers.any(byte[].class), Matchers.eq(1), Matchers.<byte[]>anyVararg())).thenAnswer(new Answer<Long>() {
+      @Override
+      public Long answer(InvocationOnMock invocation) throws Throwable {
+        Object[] args = invocation.getArguments();
+        assertTrue("Not the XADD script", new String((byte[]) args[0], StandardCharsets.UTF_8).contains("'XADD', KEYS[1], 'MAXLEN', '~'"));
+        for (int i = 2; i < args.length; i++) {
+          if (args[i] instanceof byte[][]) {
+            for (byte[] value : (byte[][]) args[i]) {
+              params.add(new String(value, StandardCharsets.UTF_8));
+            }
+          } else {
+            params.add(new String((byte[]) args[i], StandardCharsets.UTF_8));
+          }
+        }
+        return 2L;
+      }
+    });
+
+    // Unit under test
+    dao.pushAll(events("event 1", "event 2"));
+
+    // Verify results
+    verify(mockPool).getResource();
+    verify(mockPool).returnResource(mockJedis);
+    verify(mockJedis).evalsha(Matchers.any(byte[].class), Matchers.eq(1), Matchers.<byte[]>anyVararg());
+    verify(mockJedis).eval(Matchers.any(byte[].class), Matchers.eq(1), Matchers.<byte[]>anyVararg());
+    assertEquals("Wrong script arguments", Arrays.asList("logstash", "1000", "event 1", "event 2"), params);
+  }
+
+  @Test
+  public void checkBacklogHoldsBackAboveWatermark() throws Exception {
+    IndexerSettings settings = new IndexerSettings();
+    settings.setRedisHighWatermark(1000);
+    settings.setRedisLowWatermark(500);
+    dao.configure(settings);
+    when(mockJedis.llen(Matchers.any(byte[].class))).thenReturn(1200L, 700L, 400L);
+
+    // Unit under test, verify results
+    assertFalse("Backed up before the first check", dao.isBackedUp());
+    dao.checkBacklog();
+    assertTrue("Not backed up above the high watermark", dao.isBackedUp());
+    dao.checkBacklog();
+    assertTrue("Resumed above the low watermark", dao.isBackedUp());
+    dao.checkBacklog();
+    assertFalse("Not resumed below the low watermark", dao.isBackedUp());
+
+    verify(mockPool, times(3)).getResource();
+    verify(mockPool, times(3)).returnResource(mockJedis);
+    verify(mockJedis, times(3)).llen(Matchers.any(byte[].class));
+    assertEquals("Checks counted as pushes", 0, stats().getBorrowCount());
+  }
+
+  @Test
+  public void checkBacklogKeepsStateOnFailure() throws Exception {
+    IndexerSettings settings = new IndexerSettings();
+    settings.setRedisHighWatermark(1000);
+    dao.configure(settings);
+    when(mockJedis.llen(Matchers.any(byte[].class))).thenReturn(1200L).thenThrow(new JedisConnectionException("Read failed"));
+    dao.checkBacklog();
+
+    // Unit under test
+    dao.checkBacklog();
+
+    // Verify results
+    assertTrue("Resumed without a sample", dao.isBackedUp());
+    verify(mockPool, times(2)).getResource();
+    verify(mockPool).returnResource(mockJedis);
+    verify(mockPool).returnBrokenResource(mockJedis);
+    verify(mockJedis, times(2)).llen(Matchers.any(byte[].class));
+  }
+
+  @Test
+  public void checkBacklogReadsStreamLength() throws Exception {
+    IndexerSettings settings = new IndexerSettings();
+    settings.setRedisDataType(IndexerSettings.RedisDataType.STREAM);
+    settings.setRedisHighWatermark(1000);
+    dao.configure(settings);
+    when(mockJedis.eval(Matchers.any(byte[].class), Matchers.eq(1), Matchers.<byte[]>anyVararg())).thenReturn(1000L);
+
+    // Unit under test
+    dao.checkBacklog();
+
+    // Verify results
+    assertTrue("Not backed up at the high watermark", dao.isBackedUp());
+    verify(mockPool).getResource();
+    verify(mockPool).returnResource(mockJedis);
+    verify(mockJedis).eval(Matchers.any(byte[].class), Matchers.eq(1), Matchers.<byte[]>anyVararg());
+  }
+
+  @Test
+  public void closeStopsHoldingBack() throws Exception {
+    IndexerSettings settings = new IndexerSettings();
+    settings.setRedisHighWatermark(1000);
+    dao.configure(settings);
+    when(mockJedis.llen(Matchers.any(byte[].class))).thenReturn(1200L);
+    dao.checkBacklog();
+
+    // Unit under test
+    dao.close();
 
     // Verify results
+    assertFalse("Replaced indexer still backed up", dao.isBackedUp());
     verify(mockPool).getResource();
     verify(mockPool).returnResource(mockJedis);
-    verify(mockJedis).connect();
-    verify(mockJedis).rpush("logstash", json);
-    verify(mockJedis).disconnect();
+    verify(mockJedis).llen(Matchers.any(byte[].class));
   }
 }
@@ -0,0 +1,53 @@
+package jenkins.plugins.logstash.persistence;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RedisPoolStatsTest {
+  @Test
+  public void recordBorrowTracksWaits() throws Exception {
+    RedisPoolStats stats = new RedisPoolStats(1000, 0);
+
+    // Unit under test
+    stats.recordBorrow(TimeUnit.MILLISECONDS.toNanos(1));
+    stats.recordBorrow(TimeUnit.MILLISECONDS.toNanos(3));
+
+    // Verify results
+    assertEquals("Wrong borrow count", 2, stats.getBorrowCount());
+    assertEquals("Wrong mean wait", 2.0, stats.getMeanWaitMillis(), 0.001);
+    assertEquals("Wrong max wait", 3.0, stats.getMaxWaitMillis(), 0.001);
+    assertFalse("Strained", stats.isStrained(100));
+  }
+
+  @Test
+  public void recordExhaustedStrains() throws Exception {
+    RedisPoolStats stats = new RedisPoolStats(1000, 0);
+
+    // Unit under test
+    stats.recordExhausted();
+
+    // Verify results
+    assertEquals("Wrong exhausted count", 1, stats.getExhaustedCount());
+    assertTrue("Not strained", stats.isStrained(100));
+  }
+
+  @Test
+  public void reportOncePerInterval() throws Exception {
+    RedisPoolStats stats = new RedisPoolStats(1000, 0);
+    stats.recordBorrow(TimeUnit.MILLISECONDS.toNanos(2));
+
+    // Unit under test
+    String early = stats.report(999);
+    String summary = stats.report(2000);
+    String idle = stats.report(3000);
+
+    // Verify results
+    assertNull("Reported before the interval elapsed", early);
+    assertEquals("Wrong summary", "1 borrows in 2 s, mean wait 2.0 ms, max wait 2.0 ms, exhausted 0 times", summary);
+    assertNull("Reported an idle interval", idle);
+    assertEquals("Counters not reset", 0, stats.getBorrowCount());
+  }
+}
@@ -0,0 +1,125 @@
+package jenkins.plugins.logstash.persistence;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import redis.clients.jedis.JedisPool;
+
+@RunWith(MockitoJUnitRunner.class)
+public class RedisShardsTest {
+  RedisShards shards;
+  RedisShards.Shard first;
+  RedisShards.Shard second;
+  RedisShards.Shard third;
+  @Mock JedisPool mockPool1;
+  @Mock JedisPool mockPool2;
+  @Mock JedisPool mockPool3;
+  @Mock RedisShards.Probe mockProbe;
+
+  @Before
+  public void before() throws Exception {
+    first = new RedisShards.Shard("redis1", 6379, mockPool1, new RedisPoolStats(60000, 0));
+    second = new RedisShards.Shard("redis2", 6379, mockPool2, new RedisPoolStats(60000, 0));
+    third = new RedisShards.Shard("redis3", 6379, mockPool3, new RedisPoolStats(60000, 0));
+    shards = new RedisShards(Arrays.asList(first, second, third), 60000, mockProbe);
+  }
+
+  @After
+  public void after() throws Exception {
+    shards.close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructorFailNoBrokers() throws Exception {
+    try {
+      new RedisShards(Arrays.<RedisShards.Shard>asList(), 60000, mockProbe);
+    } catch (IllegalArgumentException e) {
+      assertEquals("Wrong error message was thrown", "at least one broker is required", e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test
+  public void selectIsConsistent() throws Exception {
+    Set<RedisShards.Shard> used = new HashSet<RedisShards.Shard>();
+
+    // Unit under test
+    for (int i = 0; i < 100; i++) {
+      RedisShards.Shard shard = shards.select("job#" + i);
+      assertSame("Build moved", shard, shards.select("job#" + i));
+      used.add(shard);
+    }
+
+    // Verify results
+    assertEquals("Builds not spread over the brokers", 3, used.size());
+  }
+
+  @Test
+  public void selectSkipsBrokerDown() throws Exception {
+    String routingKey = "job#1";
+    RedisShards.Shard owner = shards.select(routingKey);
+
+    // Unit under test
+    shards.markDown(owner);
+
+    // Verify results
+    assertTrue("Broker not marked down", owner.down);
+    assertNotSame("Broker down still selected", owner, shards.select(routingKey));
+  }
+
+  @Test
+  public void selectWithoutKeyTakesFirstBrokerUp() throws Exception {
+    assertSame("Wrong broker", first, shards.select(null));
+
+    // Unit under test
+    shards.markDown(first);
+
+    // Verify results
+    assertSame("Wrong broker", second, shards.select(null));
+  }
+
+  @Test
+  public void recheckRestoresBroker() throws Exception {
+    String routingKey = "job#1";
+    RedisShards.Shard owner = shards.select(routingKey);
+    shards.markDown(owner);
+    when(mockProbe.isAlive(owner)).thenReturn(true);
+
+    // Unit under test
+    shards.recheck();
+
+    // Verify results
+    verify(mockProbe).isAlive(owner);
+    assertFalse("Broker still down", owner.down);
+    assertSame("Build not back on its broker", owner, shards.select(routingKey));
+  }
+
+  @Test
+  public void markDownIgnoredForSingleBroker() throws Exception {
+    shards.close();
+    shards = new RedisShards(Arrays.asList(first), 60000, mockProbe);
+
+    // Unit under test
+    shards.markDown(first);
+
+    // Verify results
+    assertFalse("Only broker marked down", first.down);
+    assertSame("Wrong broker", first, shards.select("job#1"));
+  }
+}
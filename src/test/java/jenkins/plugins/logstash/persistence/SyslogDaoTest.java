@@ -1,15 +1,22 @@
 package jenkins.plugins.logstash.persistence;
 
+import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.runners.MockitoJUnitRunner;
 import com.cloudbees.syslog.Facility;
 import com.cloudbees.syslog.MessageFormat;
 import com.cloudbees.syslog.Severity;
 import com.cloudbees.syslog.sender.UdpSyslogMessageSender;
+import jenkins.plugins.logstash.persistence.IndexerSettings.SyslogTransport;
 
 
 @RunWith(MockitoJUnitRunner.class)
@@ -21,6 +28,7 @@ public class SyslogDaoTest {
   int port = 514;
   UdpSyslogMessageSender testSyslogSend = new UdpSyslogMessageSender();
   @Mock UdpSyslogMessageSender mockUdpSyslogMessageSender;
+  @Mock TcpSyslogSender mockTcpSyslogSender;
  	  
   @Before
   public void before() throws Exception {    
@@ -46,6 +54,119 @@ public class SyslogDaoTest {
     verify(mockUdpSyslogMessageSender, times(1)).setMessageFormat(MessageFormat.RFC_5424);
   }
 
+  // The sender is configured once, not for each message.
+  @Test
+  public void pushConfiguresSenderOnce() throws Exception {
+    dao.push(data);
+
+    verify(mockUdpSyslogMessageSender, times(2)).sendMessage(" @cee: " + data);
+    verify(mockUdpSyslogMessageSender, times(1)).setSyslogServerHostname(host);
+    verify(mockUdpSyslogMessageSender, times(1)).setMessageFormat(MessageFormat.RFC_5424);
+  }
+
+  // Test the message sent over TCP.
+  @Test
+  public void pushOverTcp() throws Exception {
+    dao = createTcpDao(SyslogTransport.TCP);
+
+    dao.push(data);
+
+    List<byte[]> messages = captureSent();
+    assertEquals("Wrong number of messages", 1, messages.size());
+    String message = new String(messages.get(0), StandardCharsets.UTF_8);
+    assertTrue("Wrong header: " + message, message.startsWith("<14>1 "));
+    assertTrue("Wrong app name: " + message, message.contains(" " + host + " jenkins: "));
+    assertTrue("Wrong message: " + message, message.endsWith(" @cee: " + data));
+    verify(mockUdpSyslogMessageSender, times(1)).sendMessage(" @cee: " + data);
+  }
+
+  // Over TCP the events are sent as one batch.
+  @Test
+  public void pushAllOverTcp() throws Exception {
+    dao = createTcpDao(SyslogTransport.TCP);
+
+    dao.pushAll(Arrays.asList(new LogstashEvent("event 1".getBytes(StandardCharsets.UTF_8), 0),
+      new LogstashEvent("event 2".getBytes(StandardCharsets.UTF_8), 0)));
+
+    List<byte[]> messages = captureSent();
+    assertEquals("Wrong number of messages", 2, messages.size());
+    assertTrue("Wrong message", new String(messages.get(1), StandardCharsets.UTF_8).endsWith(" @cee: event 2"));
+  }
+
+  // The TCP connection is closed with the indexer.
+  @Test
+  public void closeOverTcp() throws Exception {
+    dao = createTcpDao(SyslogTransport.TCP);
+
+    dao.close();
+
+    verify(mockTcpSyslogSender, times(1)).close();
+  }
+
+  // A closed indexer refuses to send instead of reconnecting.
+  @Test(expected = IOException.class)
+  public void pushAfterCloseFails() throws Exception {
+    dao = createTcpDao(SyslogTransport.TCP);
+    dao.close();
+
+    try {
+      dao.push("{}");
+    } catch (IOException e) {
+      verify(mockTcpSyslogSender, times(1)).close();
+      verifyNoMoreInteractions(mockTcpSyslogSender);
+      throw e;
+    }
+  }
+
+  // TLS uses the TCP sender over an encrypted connection.
+  @Test
+  public void configureTls() throws Exception {
+    IndexerSettings settings = new IndexerSettings();
+    settings.setSyslogTransport(SyslogTransport.TLS);
+
+    dao.configure(settings);
+
+    assertTrue("Not sent over TLS", dao.tcpSender.tls);
+    assertFalse("Connected before the first message", dao.tcpSender.isConnected());
+  }
+
+  // Over UDP, events larger than a datagram are split.
+  @Test
+  public void pushSplitsOverUdp() throws Exception {
+    IndexerSettings settings = new IndexerSettings();
+    settings.setSyslogMaxDatagramBytes(SyslogDao.MIN_DATAGRAM_BYTES);
+    dao.configure(settings);
+    StringBuilder lines = new StringBuilder();
+    for (int i = 0; i < 50; i++) {
+      lines.append(i == 0 ? "" : ",").append("\"console line ").append(i).append('"');
+    }
+
+    dao.push("{\"data\":{\"projectName\":\"PROJECT_NAME\"},\"message\":[" + lines + "],\"@version\":1}");
+
+    ArgumentCaptor<CharSequence> messages = ArgumentCaptor.forClass(CharSequence.class);
+    verify(mockUdpSyslogMessageSender, atLeast(3)).sendMessage(messages.capture());
+    int headerBytes = dao.format("").length;
+    for (CharSequence message : messages.getAllValues()) {
+      assertTrue("Not a CEE message: " + message, message.toString().startsWith(" @cee: {"));
+      int bytes = headerBytes + message.toString().getBytes(StandardCharsets.UTF_8).length - SyslogDao.CEE_PREFIX.length();
+      assertTrue("Datagram too large: " + message, bytes <= SyslogDao.MIN_DATAGRAM_BYTES);
+    }
+  }
+
+  // Datagrams must leave room for the events.
+  @Test(expected = IllegalArgumentException.class)
+  public void configureFailSmallDatagram() throws Exception {
+    IndexerSettings settings = new IndexerSettings();
+    settings.setSyslogMaxDatagramBytes(100);
+
+    try {
+      dao.configure(settings);
+    } catch (IllegalArgumentException e) {
+      assertEquals("Wrong error message was thrown", "syslog datagrams must be allowed at least 480 bytes", e.getMessage());
+      throw e;
+    }
+  }
+
   // Send a real Syslog message.
   @Test
   public void syslogSend() throws Exception {
@@ -62,4 +183,24 @@ public class SyslogDaoTest {
   SyslogDao createDao(String host, int port, String key, String username, String password) {
     return new SyslogDao(mockUdpSyslogMessageSender, host, port, key, username, password);
   }
+
+  SyslogDao createTcpDao(SyslogTransport transport) {
+    SyslogDao tcpDao = new SyslogDao(mockUdpSyslogMessageSender, host, port, null, null, null) {
+      @Override
+      TcpSyslogSender createTcpSender(boolean tls) {
+        return mockTcpSyslogSender;
+      }
+    };
+    IndexerSettings settings = new IndexerSettings();
+    settings.setSyslogTransport(transport);
+    tcpDao.configure(settings);
+    return tcpDao;
+  }
+
+  @SuppressWarnings("unchecked")
+  List<byte[]> captureSent() throws Exception {
+    ArgumentCaptor<List> messages = ArgumentCaptor.forClass(List.class);
+    verify(mockTcpSyslogSender, times(1)).send(messages.capture());
+    return messages.getValue();
+  }
 }
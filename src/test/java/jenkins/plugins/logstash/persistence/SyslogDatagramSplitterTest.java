@@ -0,0 +1,179 @@
+package jenkins.plugins.logstash.persistence;
+
+import static org.junit.Assert.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+import net.sf.json.JSONObject;
+
+import org.apache.commons.lang.StringUtils;
+import org.junit.Test;
+
+public class SyslogDatagramSplitterTest {
+  static final int MAX_BYTES = 300;
+
+  SyslogDatagramSplitter splitter = new SyslogDatagramSplitter(MAX_BYTES);
+
+  static String payload(String timestamp, String... lines) {
+    JSONObject payload = new JSONObject();
+    payload.put("data", JSONObject.fromObject("{\"projectName\":\"PROJECT_NAME\",\"buildNum\":123}"));
+    payload.put("message", Arrays.asList(lines));
+    payload.put("source", "jenkins");
+    payload.put("@timestamp", timestamp);
+    payload.put("@version", 1);
+    return payload.toString();
+  }
+
+  static void assertFits(List<String> documents) {
+    for (String document : documents) {
+      assertTrue("Too large: " + document, document.getBytes(StandardCharsets.UTF_8).length <= MAX_BYTES);
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void constructorFailTooSmall() throws Exception {
+    try {
+      new SyslogDatagramSplitter(100);
+    } catch (IllegalArgumentException e) {
+      assertEquals("Wrong error message was thrown", "syslog documents must be allowed at least 256 bytes", e.getMessage());
+      throw e;
+    }
+  }
+
+  @Test
+  public void splitKeepsSmallPayload() throws Exception {
+    String payload = payload("2015-06-01T12:34:56+0200", "line 1");
+
+    // Unit under test
+    List<String> documents = splitter.split(payload);
+
+    // Verify results, the payload is not even parsed
+    assertEquals("Payload changed", Arrays.asList(payload), documents);
+    assertEquals("Not JSON changed", Arrays.asList("not JSON"), splitter.split("not JSON"));
+  }
+
+  @Test
+  public void splitByLines() throws Exception {
+    String[] lines = new String[20];
+    for (int i = 0; i < lines.length; i++) {
+      lines[i] = "console line " + i;
+    }
+
+    // Unit under test
+    List<String> documents = splitter.split(payload("2015-06-01T12:34:56+0200", lines));
+
+    // Verify results
+    assertTrue("Not split", documents.size() > 1);
+    assertFits(documents);
+    String correlationId = null;
+    int line = 0;
+    for (int i = 0; i < documents.size(); i++) {
+      JSONObject document = JSONObject.fromObject(documents.get(i));
+      assertEquals("Wrong project", "PROJECT_NAME", document.getJSONObject("data").getString("projectName"));
+      assertEquals("Wrong timestamp", "2015-06-01T12:34:56+0200", document.getString("@timestamp"));
+      assertEquals("Wrong sequence", i + 1, document.getInt("@sequence"));
+      assertEquals("Wrong sequence count", documents.size(), document.getInt("@sequenceCount"));
+      if (correlationId == null) {
+        correlationId = document.getString("@correlationId");
+      }
+      assertEquals("Correlation id differs", correlationId, document.getString("@correlationId"));
+      for (Object text : document.getJSONArray("message")) {
+        assertEquals("Lines out of order", lines[line++], text);
+      }
+    }
+    assertEquals("Lines lost", lines.length, line);
+  }
+
+  @Test
+  public void splitCutsLongLine() throws Exception {
+    String longLine = StringUtils.repeat("\u00e9\"", 200);
+
+    // Unit under test
+    List<String> documents = splitter.split(payload("2015-06-01T12:34:56+0200", "short", longLine));
+
+    // Verify results
+    assertFits(documents);
+    StringBuilder joined = new StringBuilder();
+    for (String document : documents.subList(1, documents.size())) {
+      joined.append(JSONObject.fromObject(document).getJSONArray("message").getString(0));
+    }
+    assertEquals("Line not kept apart", "short", JSONObject.fromObject(documents.get(0)).getJSONArray("message").getString(0));
+    assertEquals("Long line lost", longLine, joined.toString());
+  }
+
+  @Test
+  public void splitFragmentsLargeData() throws Exception {
+    String payload = "{\"data\":{\"buildVariables\":{\"HUGE\":\"" + StringUtils.repeat("x", 1000) + "\"}},\"message\":[\"line\"]}";
+
+    // Unit under test
+    List<String> documents = splitter.split(payload);
+
+    // Verify results
+    assertFits(documents);
+    StringBuilder joined = new StringBuilder();
+    for (String document : documents) {
+      joined.append(JSONObject.fromObject(document).getString("@fragment"));
+    }
+    assertEquals("Payload lost", payload, joined.toString());
+  }
+
+  @Test
+  public void packSmallPayloads() throws Exception {
+    String first = payload("2015-06-01T12:34:56+0200", "line 1");
+    String second = payload("2015-06-01T12:34:57+0200", "line 2");
+
+    // Unit under test
+    List<String> documents = splitter.pack(Arrays.asList(first, second, "not JSON", first));
+
+    // Verify results, payloads are only packed with their neighbours
+    assertEquals("Wrong number of documents", 3, documents.size());
+    JSONObject packed = JSONObject.fromObject(documents.get(0));
+    assertEquals("Wrong lines", Arrays.asList("line 1", "line 2"), packed.getJSONArray("message"));
+    assertEquals("Wrong timestamp", "2015-06-01T12:34:56+0200", packed.getString("@timestamp"));
+    assertFalse("Packed payload correlated", packed.has("@correlationId"));
+    assertEquals("Not JSON changed", "not JSON", documents.get(1));
+    assertEquals("Payload changed", first, documents.get(2));
+  }
+
+  @Test
+  public void packKeepsBuildsApart() throws Exception {
+    String first = payload("2015-06-01T12:34:56+0200", "line 1");
+    String other = first.replace("\"buildNum\":123", "\"buildNum\":124");
+    String extra = first.replace("\"source\":\"jenkins\"", "\"source\":\"jenkins\",\"source_host\":\"http://localhost\"");
+
+    // Unit under test
+    List<String> documents = splitter.pack(Arrays.asList(first, other, extra));
+
+    // Verify results, payloads with other fields are sent on their own
+    assertEquals("Wrong documents", Arrays.asList(first, other, extra), documents);
+  }
+
+  @Test
+  public void packOnlyWhatFits() throws Exception {
+    String[] payloads = new String[10];
+    for (int i = 0; i < payloads.length; i++) {
+      payloads[i] = payload("2015-06-01T12:34:56+0200", "console line " + i);
+    }
+
+    // Unit under test
+    List<String> documents = splitter.pack(Arrays.asList(payloads));
+
+    // Verify results
+    assertTrue("Not packed", documents.size() < payloads.length);
+    assertFits(documents);
+    for (String document : documents) {
+      assertFalse("Packed payload correlated", JSONObject.fromObject(document).has("@correlationId"));
+    }
+  }
+
+  @Test
+  public void cutKeepsSurrogatePairs() throws Exception {
+    // Unit under test
+    List<String> pieces = SyslogDatagramSplitter.cut("ab\uD83D\uDE00cd", 3);
+
+    // Verify results
+    assertEquals("Wrong pieces", Arrays.asList("ab", "\uD83D\uDE00", "cd"), pieces);
+  }
+}
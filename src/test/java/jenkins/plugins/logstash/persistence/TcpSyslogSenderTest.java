@@ -0,0 +1,143 @@
+package jenkins.plugins.logstash.persistence;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+@RunWith(MockitoJUnitRunner.class)
+public class TcpSyslogSenderTest {
+  TcpSyslogSender sender;
+  ByteArrayOutputStream written = new ByteArrayOutputStream();
+  int connects;
+  @Mock Socket mockSocket;
+
+  @Before
+  public void before() throws Exception {
+    when(mockSocket.getOutputStream()).thenReturn(written);
+    sender = new TcpSyslogSender("localhost", 6514, false) {
+      @Override
+      Socket createSocket() throws IOException {
+        connects++;
+        return mockSocket;
+      }
+    };
+  }
+
+  @After
+  public void after() throws Exception {
+    verifyNoMoreInteractions(mockSocket);
+  }
+
+  static List<byte[]> messages(String... messages) {
+    byte[][] result = new byte[messages.length][];
+    for (int i = 0; i < messages.length; i++) {
+      result[i] = messages[i].getBytes(StandardCharsets.UTF_8);
+    }
+    return Arrays.asList(result);
+  }
+
+  @Test
+  public void sendFramesByOctetCount() throws Exception {
+    // Unit under test
+    sender.send(messages("<14>1 first", "<14>1 zweite \u00fc\nline"));
+
+    // Verify results, the length counts bytes rather than chars
+    assertEquals("Wrong frames", "11 <14>1 first20 <14>1 zweite \u00fc\nline", new String(written.toByteArray(), StandardCharsets.UTF_8));
+    assertTrue("Not connected", sender.isConnected());
+    verify(mockSocket).getOutputStream();
+  }
+
+  @Test
+  public void sendKeepsConnection() throws Exception {
+    // Unit under test
+    sender.send(messages("<14>1 first"));
+    sender.send(messages("<14>1 second"));
+
+    // Verify results
+    assertEquals("Wrong frames", "11 <14>1 first12 <14>1 second", new String(written.toByteArray(), StandardCharsets.UTF_8));
+    assertEquals("Connected more than once", 1, connects);
+    verify(mockSocket).getOutputStream();
+  }
+
+  @Test
+  public void sendReconnectsAfterFailure() throws Exception {
+    OutputStream broken = mock(OutputStream.class);
+    doThrow(new IOException("Broken pipe")).when(broken).flush();
+    when(mockSocket.getOutputStream()).thenReturn(broken, written);
+
+    // Unit under test
+    sender.send(messages("<14>1 first"));
+
+    // Verify results
+    assertEquals("Wrong frames", "11 <14>1 first", new String(written.toByteArray(), StandardCharsets.UTF_8));
+    assertEquals("Not reconnected", 2, connects);
+    verify(mockSocket, times(2)).getOutputStream();
+    verify(mockSocket).close();
+  }
+
+  @Test(expected = IOException.class)
+  public void sendFailTwice() throws Exception {
+    doThrow(new IOException("Connection refused")).when(mockSocket).getOutputStream();
+
+    // Unit under test
+    try {
+      sender.send(messages("<14>1 first"));
+    } catch (IOException e) {
+      // Verify results
+      assertFalse("Still connected", sender.isConnected());
+      assertEquals("Not retried", 2, connects);
+      verify(mockSocket, times(2)).getOutputStream();
+      verify(mockSocket, times(2)).close();
+      throw e;
+    }
+  }
+
+  @Test
+  public void closeDisconnects() throws Exception {
+    sender.send(Collections.<byte[]>emptyList());
+
+    // Unit under test
+    sender.close();
+
+    // Verify results
+    assertFalse("Still connected", sender.isConnected());
+    verify(mockSocket).getOutputStream();
+    verify(mockSocket).close();
+  }
+
+  @Test
+  public void createSocketSetsTimeout() throws Exception {
+    ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+    Socket socket = null;
+    try {
+      // Unit under test
+      socket = new TcpSyslogSender("127.0.0.1", server.getLocalPort(), false).createSocket();
+
+      // Verify results
+      assertEquals("Wrong read timeout", TcpSyslogSender.READ_TIMEOUT_MILLIS, socket.getSoTimeout());
+      assertTrue("Keep-alive not set", socket.getKeepAlive());
+    } finally {
+      if (socket != null) {
+        socket.close();
+      }
+      server.close();
+    }
+  }
+}
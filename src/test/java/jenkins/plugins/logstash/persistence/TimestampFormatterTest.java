@@ -0,0 +1,76 @@
+package jenkins.plugins.logstash.persistence;
+
+import static org.junit.Assert.*;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class TimestampFormatterTest {
+  static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+  static final long TIME = 1433162096789L; // 2015-06-01T12:34:56.789Z
+
+  @Test
+  public void formatSeconds() throws Exception {
+    TimestampFormatter formatter = new TimestampFormatter(false, UTC);
+
+    // Unit under test
+    String result = formatter.format(TIME);
+
+    // Verify results
+    assertEquals("Wrong timestamp", "2015-06-01T12:34:56+0000", result);
+  }
+
+  @Test
+  public void formatMillis() throws Exception {
+    TimestampFormatter formatter = new TimestampFormatter(true, UTC);
+
+    // Unit under test
+    String result = formatter.format(TIME);
+
+    // Verify results
+    assertEquals("Wrong timestamp", "2015-06-01T12:34:56.789+0000", result);
+    assertEquals("Millis not padded", "2015-06-01T12:34:56.007+0000", formatter.format(TIME - 782));
+    assertEquals("Millis not padded", "2015-06-01T12:34:56.000+0000", formatter.format(TIME - 789));
+  }
+
+  @Test
+  public void formatCachesSecond() throws Exception {
+    TimestampFormatter formatter = new TimestampFormatter(false, UTC);
+
+    // Unit under test
+    String first = formatter.format(TIME);
+    String second = formatter.format(TIME + 100);
+    String next = formatter.format(TIME + 300);
+
+    // Verify results
+    assertSame("Second not cached", first, second);
+    assertEquals("Wrong timestamp", "2015-06-01T12:34:57+0000", next);
+  }
+
+  @Test
+  public void formatMatchesSimpleDateFormat() throws Exception {
+    TimestampFormatter formatter = new TimestampFormatter(false, TimeZone.getDefault());
+    SimpleDateFormat expected = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+    Date date = new Date();
+
+    // Unit under test
+    String result = formatter.format(date);
+
+    // Verify results
+    assertEquals("Format changed", expected.format(date), result);
+  }
+
+  @Test
+  public void formatBeforeEpoch() throws Exception {
+    TimestampFormatter formatter = new TimestampFormatter(true, UTC);
+
+    // Unit under test
+    String result = formatter.format(-1L);
+
+    // Verify results
+    assertEquals("Wrong timestamp", "1969-12-31T23:59:59.999+0000", result);
+  }
+}